@@ -1,23 +1,43 @@
 package com.bukkitbackup.full;
 
+import com.bukkitbackup.full.catalog.BackupCatalog;
+import com.bukkitbackup.full.config.BackupTier;
 import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.SettingsSnapshot;
 import com.bukkitbackup.full.config.Strings;
 import com.bukkitbackup.full.config.UpdateChecker;
+import com.bukkitbackup.full.events.AutosaveTracker;
 import com.bukkitbackup.full.events.CommandHandler;
+import com.bukkitbackup.full.events.DirtyRegionTracker;
 import com.bukkitbackup.full.events.EventListener;
+import com.bukkitbackup.full.events.NotifyRecipients;
+import com.bukkitbackup.full.events.PluginChangeJournal;
+import com.bukkitbackup.full.events.ProgressDisplay;
+import com.bukkitbackup.full.history.ActivityProfile;
+import com.bukkitbackup.full.history.BackupHistory;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupJournal;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.threading.BackupQueue;
 import com.bukkitbackup.full.threading.BackupScheduler;
 import com.bukkitbackup.full.threading.BackupTask;
+import com.bukkitbackup.full.threading.CronExpression;
+import com.bukkitbackup.full.threading.DeadlineScheduler;
 import com.bukkitbackup.full.threading.PrepareBackup;
 import com.bukkitbackup.full.utils.FileUtils;
 import com.bukkitbackup.full.utils.LogUtils;
 import com.bukkitbackup.full.utils.MetricUtils;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.bukkit.Server;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 /**
  * Backup - The simple server backup solution.
@@ -27,13 +47,30 @@ import org.bukkit.plugin.java.JavaPlugin;
  */
 public class BackupFull extends JavaPlugin {
 
+    // How long a stopped backup has to clean up while disabling.
+    private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
     // Public variables for class comms.
     private static PrepareBackup prepareBackup;
     public static BackupTask backupTask;
+    public static BackupQueue backupQueue;
+    public static BackupHistory backupHistory;
+    public static BackupCatalog backupCatalog;
+    public static DirtyRegionTracker dirtyRegions;
+    public static PluginChangeJournal pluginChanges;
 
     // Private variables for this class.
     private static Settings settings;
     private static Strings strings;
+    private static BackupScheduler backupScheduler;
+    private static ActivityProfile activityProfile;
+    private static ProgressDisplay progressDisplay;
+    private static NotifyRecipients notifyRecipients;
+    private static BackupJournal backupJournal;
+    private BukkitTask intervalTask;
+    private final List<BukkitTask> tierTasks = new ArrayList<BukkitTask>();
+    private BukkitTask idleTask;
+    private String scheduledInterval;
     private File thisDataFolder;
     private String clientUID;
 
@@ -54,7 +91,7 @@ public class BackupFull extends JavaPlugin {
         settings.checkSettingsVersion(this.getDescription().getVersion());
 
         // Complete loading log utils.
-        LogUtils.finishInitLogUtils(settings.getBooleanProperty("displaylog", true), settings.getBooleanProperty("debugenabled", false));
+        LogUtils.finishInitLogUtils(settings.getBooleanProperty("displaylog", true), settings.getBooleanProperty("debugmode", false));
 
     }
 
@@ -67,26 +104,141 @@ public class BackupFull extends JavaPlugin {
         // Check backup path, create if required.
         FileUtils.checkFolderAndCreate(new File(settings.getStringProperty("backuppath", "backups")));
 
-        // Setup backup tasks.
-        backupTask = new BackupTask(this, settings, strings);
+        // Track who should be notified of backups.
+        notifyRecipients = new NotifyRecipients(this, settings);
+        pluginManager.registerEvents(notifyRecipients, this);
+        notifyRecipients.start();
+
+        // Setup backup tasks, sharing one journal.
+        backupJournal = new BackupJournal(new File(thisDataFolder, "journal.log"));
+        backupHistory = new BackupHistory(new File(thisDataFolder, "history.dat"));
+        backupCatalog = new BackupCatalog(new File(thisDataFolder, "catalog.txt"));
+        activityProfile = new ActivityProfile(this, new File(thisDataFolder, "activity.dat"));
+        activityProfile.start();
+
+        // Track which regions change, for incremental world backups.
+        dirtyRegions = new DirtyRegionTracker(this, new File(thisDataFolder, "dirtyregions.dat"));
+        pluginManager.registerEvents(dirtyRegions, this);
+        dirtyRegions.start();
+
+        // Watch the plugins folder, for incremental plugin backups.
+        if (settings.getBooleanProperty("incrementalplugins", false)) {
+            pluginChanges = new PluginChangeJournal(new File("plugins"), settings.getIntProperty("pluginrescan", 30));
+            pluginChanges.start();
+        }
+        backupTask = new BackupTask(this, settings.getSnapshot(), strings, notifyRecipients, backupJournal);
+
+        // Remember when worlds were saved, so backups can use autosaves.
+        AutosaveTracker autosaveTracker = new AutosaveTracker();
+        pluginManager.registerEvents(autosaveTracker, this);
 
         // Create new "PrepareBackup" instance.
-        prepareBackup = new PrepareBackup(this, settings, strings);
+        prepareBackup = new PrepareBackup(this, settings, strings, notifyRecipients, autosaveTracker);
+
+        // Create the queue all backups are run through.
+        backupQueue = new BackupQueue(this, prepareBackup, strings);
+
+        // Resume or roll back a backup interrupted by a crash.
+        backupTask.recoverInterrupted(backupQueue);
 
         // Initalize Command Listener.
-        getCommand("backup").setExecutor(new CommandHandler(prepareBackup, this, settings, strings));
-        getCommand("bu").setExecutor(new CommandHandler(prepareBackup, this, settings, strings));
+        getCommand("backup").setExecutor(new CommandHandler(backupQueue, backupHistory, this, settings, strings));
+        getCommand("bu").setExecutor(new CommandHandler(backupQueue, backupHistory, this, settings, strings));
 
         // Initalize Event Listener.
-        EventListener eventListener = new EventListener(prepareBackup, this, settings, strings);
+        EventListener eventListener = new EventListener(backupQueue, this, settings, strings);
         pluginManager.registerEvents(eventListener, this);
 
+        // Show backup progress to permitted players.
+        progressDisplay = new ProgressDisplay(this, settings, backupQueue);
+        pluginManager.registerEvents(progressDisplay, this);
+        progressDisplay.start();
+
+        // Start automatic backups.
+        scheduleBackups();
+
+        // BukkitMetrics Loading. (Not Plugin-Specific)
+        try {
+            MetricUtils metricUtils = new MetricUtils(this);
+
+            // Report backup progress and throughput.
+            MetricUtils.Graph progressGraph = metricUtils.createGraph("Backup Progress");
+            progressGraph.addPlotter(new MetricUtils.Plotter("Percent Complete") {
+                @Override
+                public int getValue() {
+                    BackupJob runningJob = (backupQueue != null) ? backupQueue.getRunningJob() : null;
+                    return (runningJob != null) ? (int) (runningJob.getProgress().getFraction() * 100) : 0;
+                }
+            });
+            progressGraph.addPlotter(new MetricUtils.Plotter("Throughput (MB/s)") {
+                @Override
+                public int getValue() {
+                    return (int) (BackupProgress.getLastBytesPerSecond() / FileUtils.ONE_MB);
+                }
+            });
+            progressGraph.addPlotter(new MetricUtils.Plotter("Backup Size (MB)") {
+                @Override
+                public int getValue() {
+                    return (int) (BackupProgress.getLastTotalBytes() / FileUtils.ONE_MB);
+                }
+            });
+            metricUtils.start();
+            clientUID = metricUtils.guid;
+        } catch (IOException ex) {
+            LogUtils.exceptionLog(ex, "Exception loading metrics.");
+        }
+
+        // If the update check is enabled.
+        if (settings.getBooleanProperty("enableversioncheck", true)) {
+
+            // Start the update checker in another thread.
+            //pluginServer.getScheduler().runTaskAsynchronously(this, new UpdateChecker(this.getDescription(), strings, clientUID)); // TODO: Disabled due to the website no-longer being active.
+        }
+
+        // Notify loading complete.
+        LogUtils.sendLog(this.getDescription().getFullName() + " enabled!");
+    }
+
+    /**
+     * Reads "backupinterval", and schedules automatic backups to match.
+     */
+    private void scheduleBackups() {
         // Get the backup interval setting, and clean it.
         String backupInterval = settings.getStringProperty("backupinterval", "15M").trim().toLowerCase();
+        scheduledInterval = getScheduleKey(settings.getSnapshot());
+
+        // Each tier repeats on its own interval, whatever the main schedule is.
+        for (final BackupTier tier : settings.getSnapshot().getTiers()) {
+            long tierTicks = tier.getIntervalMinutes() * 1200L;
+            tierTasks.add(getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() {
+                public void run() {
+                    backupQueue.submit(BackupJob.forTier(tier));
+                }
+            }, tierTicks, tierTicks));
+            LogUtils.sendDebug("Scheduled tier: %s (M:0036)", tier);
+        }
+
+        // Maintenance looks for work now and then, and only runs while the server is quiet.
+        final boolean consolidate = settings.getBooleanProperty("consolidatebackups", false);
+        final boolean migrate = !settings.getStringProperty("coldpath", "").trim().equals("");
+        if (consolidate || migrate) {
+            long idleTicks = Math.max(1, settings.getIntProperty("idleinterval", 30)) * 1200L;
+            idleTask = getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() {
+                public void run() {
+                    if (migrate) {
+                        backupQueue.submit(new BackupJob(BackupJob.Type.MIGRATE));
+                    }
+                    if (consolidate) {
+                        backupQueue.submit(new BackupJob(BackupJob.Type.CONSOLIDATE));
+                    }
+                }
+            }, idleTicks, idleTicks);
+        }
 
         // Initalize default variables.
         int backupMinutes = 0; // Should contain interval, in minutes.
-        String[] backupSchedArray = null; // Should contain an array of times.
+        List<CronExpression> backupSchedule = null; // Should contain the times to fire at.
+        boolean backupDeadlines = false; // The times are when backups must be finished by.
 
         // Matches one or more numbers. (Interpret them as minutes)
         if (backupInterval.matches("^[0-9]+$")) {
@@ -134,10 +286,58 @@ public class BackupFull extends JavaPlugin {
             Pattern letterPattern = Pattern.compile("^ta\\[(.*)\\]$");
             Matcher array = letterPattern.matcher(backupInterval);
 
-            // Put the array into a variable.
-            backupSchedArray = array.toString().split(",");
+            // Convert each time in the array to a daily expression.
+            if (array.matches()) {
+                backupSchedule = new ArrayList<CronExpression>();
+                for (String time : array.group(1).split(",")) {
+                    try {
+                        backupSchedule.add(CronExpression.daily(time));
+                    } catch (IllegalArgumentException iae) {
+                        LogUtils.sendLog(strings.getString("checkbackupinterval"));
+                    }
+                }
+            }
             LogUtils.sendDebug("Found time array string. (M:0003)");
 
+        } // Matches "DEADLINE[05:00,17:00]", or similar.
+        else if (backupInterval.matches("^deadline\\[(.*)\\]$")) {
+            // Parse the string to get the array.
+            Pattern deadlinePattern = Pattern.compile("^deadline\\[(.*)\\]$");
+            Matcher array = deadlinePattern.matcher(backupInterval);
+
+            // Convert each time in the array to a daily expression.
+            if (array.matches()) {
+                backupSchedule = new ArrayList<CronExpression>();
+                backupDeadlines = true;
+                for (String time : array.group(1).split(",")) {
+                    try {
+                        backupSchedule.add(CronExpression.daily(time));
+                    } catch (IllegalArgumentException iae) {
+                        LogUtils.sendLog(strings.getString("checkbackupinterval"));
+                    }
+                }
+            }
+            LogUtils.sendDebug("Found deadline array string. (M:0024)");
+
+        } // Matches "CRON[0 */4 * * *;30 12 * * sat]", or similar.
+        else if (backupInterval.matches("^cron\\[(.*)\\]$")) {
+            // Parse the string to get the expressions.
+            Pattern cronPattern = Pattern.compile("^cron\\[(.*)\\]$");
+            Matcher array = cronPattern.matcher(backupInterval);
+
+            // Compile each of the expressions.
+            if (array.matches()) {
+                backupSchedule = new ArrayList<CronExpression>();
+                for (String expression : array.group(1).split(";")) {
+                    try {
+                        backupSchedule.add(new CronExpression(expression));
+                    } catch (IllegalArgumentException iae) {
+                        LogUtils.sendLog(strings.getString("checkbackupinterval"));
+                    }
+                }
+            }
+            LogUtils.sendDebug("Found cron expression string. (M:0003)");
+
         } else {
             // Nothing found.
             LogUtils.sendLog(strings.getString("checkbackupinterval"));
@@ -151,17 +351,21 @@ public class BackupFull extends JavaPlugin {
             int backupIntervalInTicks = (backupMinutes * 1200);
 
             // Schedule a repeating backup task.
-            pluginServer.getScheduler().runTaskTimerAsynchronously(this, prepareBackup, backupIntervalInTicks, backupIntervalInTicks);
+            intervalTask = getServer().getScheduler().runTaskTimerAsynchronously(this, backupQueue.triggerFor(BackupJob.Type.SCHEDULED), backupIntervalInTicks, backupIntervalInTicks);
 
             LogUtils.sendDebug("Doing recurring backup interval code. (M:0005)");
 
         } // If the backup should be done at pre-defined times.
-        else if (backupSchedArray != null) {
-            // Create a backup scheduler instance.
-            BackupScheduler backupScheduler = new BackupScheduler(this, prepareBackup, settings, strings, backupSchedArray);
+        else if (backupSchedule != null && !backupSchedule.isEmpty()) {
+            // Create a backup scheduler instance, finishing by the times if they are deadlines.
+            if (backupDeadlines) {
+                backupScheduler = new DeadlineScheduler(this, backupQueue, settings, strings, backupSchedule, backupHistory, activityProfile);
+            } else {
+                backupScheduler = new BackupScheduler(this, backupQueue, settings, strings, backupSchedule);
+            }
 
-            // Start the scheduler as another thread.
-            pluginServer.getScheduler().runTaskAsynchronously(this, backupScheduler);
+            // Schedule the first fire time.
+            backupScheduler.start();
 
             LogUtils.sendDebug("Doing time array backup code. (M:0006)");
 
@@ -173,33 +377,115 @@ public class BackupFull extends JavaPlugin {
             LogUtils.sendDebug("Disabled automatic backup. (M:0007)");
 
         }
+    }
 
-        // BukkitMetrics Loading. (Not Plugin-Specific)
-        try {
-            MetricUtils metricUtils = new MetricUtils(this);
-            metricUtils.start();
-            clientUID = metricUtils.guid;
-        } catch (IOException ex) {
-            LogUtils.exceptionLog(ex, "Exception loading metrics.");
+    /**
+     * Stops automatic backups, without affecting a running backup.
+     */
+    private void cancelSchedule() {
+        if (intervalTask != null) {
+            intervalTask.cancel();
+            intervalTask = null;
+        }
+        if (backupScheduler != null) {
+            backupScheduler.stop();
+            backupScheduler = null;
+        }
+        for (BukkitTask tierTask : tierTasks) {
+            tierTask.cancel();
         }
+        tierTasks.clear();
+        if (idleTask != null) {
+            idleTask.cancel();
+            idleTask = null;
+        }
+    }
 
-        // If the update check is enabled.
-        if (settings.getBooleanProperty("enableversioncheck", true)) {
+    /**
+     * @param snapshot The settings.
+     * @return Everything the schedule is built from, to see if it changed.
+     */
+    private static String getScheduleKey(SettingsSnapshot snapshot) {
+        return snapshot.getStringProperty("backupinterval", "15M").trim().toLowerCase() + snapshot.getTiers()
+                + snapshot.isConsolidateBackups() + snapshot.getColdPath()
+                + snapshot.getIntProperty("idleinterval", 30);
+    }
 
-            // Start the update checker in another thread.
-            //pluginServer.getScheduler().runTaskAsynchronously(this, new UpdateChecker(this.getDescription(), strings, clientUID)); // TODO: Disabled due to the website no-longer being active.
+    /**
+     * Reloads the configuration and strings, without stopping anything. A
+     * running backup finishes with the settings it was started with, and the
+     * schedule is only rebuilt if "backupinterval", "tiers" or the maintenance
+     * settings were changed.
+     */
+    public void reloadSettings() {
+        strings.reload();
+        SettingsSnapshot reloaded = settings.reload();
+        LogUtils.finishInitLogUtils(reloaded.getBooleanProperty("displaylog", true), reloaded.getBooleanProperty("debugmode", false));
+        FileUtils.checkFolderAndCreate(new File(reloaded.getBackupPath()));
+
+        // Backups started from now on use the new settings.
+        backupTask = new BackupTask(this, reloaded, strings, notifyRecipients, backupJournal);
+
+        // Rebuild the schedule, only if it was changed.
+        if (!getScheduleKey(reloaded).equals(scheduledInterval)) {
+            cancelSchedule();
+            scheduleBackups();
         }
-
-        // Notify loading complete.
-        LogUtils.sendLog(this.getDescription().getFullName() + " enabled!");
     }
 
     @Override
     public void onDisable() {
         // Stop any scheduled tasks.
         this.getServer().getScheduler().cancelTasks(this);
+        cancelSchedule();
+
+        // Keep what has been learned about player activity.
+        if (activityProfile != null) {
+            activityProfile.stop();
+            activityProfile = null;
+        }
+
+        // Hide the progress bar.
+        if (progressDisplay != null) {
+            progressDisplay.stop();
+            progressDisplay = null;
+        }
+
+        // Drop queued jobs, and stop any running backup.
+        if (backupQueue != null) {
+            backupQueue.shutdown();
+            prepareBackup.stopWaiting(); // Nothing was started, so a shutdown backup can still run.
+
+            // A stopped backup removes what it wrote at its next safe point.
+            boolean stopped = backupQueue.awaitFinished(TimeUnit.SECONDS.toMillis(SHUTDOWN_WAIT_SECONDS));
+
+            // Take a final backup on this thread, if enabled.
+            if (settings.getBooleanProperty("backuponshutdown", false)) {
+                if (stopped) {
+                    prepareBackup.runInline(new BackupJob(BackupJob.Type.SHUTDOWN));
+                } else {
+                    LogUtils.sendLog(strings.getString("shutdownskipped"));
+                }
+            }
+            backupQueue = null;
+        }
+
+        // Stop watching the plugins folder.
+        if (pluginChanges != null) {
+            pluginChanges.stop();
+            pluginChanges = null;
+        }
+
+        // Keep the changed regions, marked as safe to use next time.
+        if (dirtyRegions != null) {
+            dirtyRegions.stop();
+            dirtyRegions = null;
+        }
 
         // Shutdown complete.
         LogUtils.sendLog(this.getDescription().getFullName() + " diabled!");
+
+        // Write out any waiting log messages.
+        LogUtils.shutdown();
     }
 }
@@ -0,0 +1,162 @@
+package com.bukkitbackup.full.archive;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A way of writing many files into one archive, and reading them back. ZIP
+ * is the default; "tar", "tar.gz", "tar.lz4" and "tar.zst" are built in
+ * too, and an archive is always read with the codec its extension names.
+ *
+ * More codecs can be added by a jar on the plugin's class path which lists
+ * them in "META-INF/services/com.bukkitbackup.full.archive.ArchiveCodec".
+ * Most only need to extend {@link TarCodec} with their compressing streams.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public abstract class ArchiveCodec {
+
+    public static final ArchiveCodec ZIP = new ZipCodec();
+
+    private static List<ArchiveCodec> codecs;
+
+    /**
+     * @return The name of the codec, as set in "archiveformat".
+     */
+    public abstract String getName();
+
+    /**
+     * @return The extension of archives written with this codec.
+     */
+    public String getExtension() {
+        return ".".concat(getName());
+    }
+
+    /**
+     * Start writing an archive.
+     *
+     * @param out The stream to write the archive to, closed with it.
+     * @param level How hard to compress, from 0 to 9, or -1 for the default.
+     * @param threads How many threads may compress at once.
+     * @return The stream to write entries to.
+     * @throws IOException If the archive cannot be started.
+     */
+    public abstract ArchiveOutputStream openWriter(OutputStream out, int level, int threads) throws IOException;
+
+    /**
+     * Start reading an archive written with this codec.
+     *
+     * @param in The archive, closed with the stream returned.
+     * @return The stream to read entries from.
+     * @throws IOException If the archive cannot be read.
+     */
+    public abstract ArchiveInputStream openReader(InputStream in) throws IOException;
+
+    /**
+     * @return Every codec, the built in ones first.
+     */
+    public static synchronized List<ArchiveCodec> getCodecs() {
+        if (codecs == null) {
+            List<ArchiveCodec> found = new ArrayList<ArchiveCodec>();
+            found.add(ZIP);
+            found.add(TarCodec.TAR);
+            found.add(TarCodec.GZIP);
+
+            // Their libraries are not built for every platform.
+            try {
+                found.add(new Lz4Codec());
+            } catch (LinkageError le) {
+                LogUtils.sendLog("The tar.lz4 format is not available on this platform: %s", le.getMessage());
+            }
+            try {
+                found.add(new ZstdCodec());
+            } catch (LinkageError le) {
+                LogUtils.sendLog("The tar.zst format is not available on this platform: %s", le.getMessage());
+            }
+
+            Iterator<ArchiveCodec> added = ServiceLoader.load(ArchiveCodec.class, ArchiveCodec.class.getClassLoader()).iterator();
+            while (true) {
+                try {
+                    if (!added.hasNext()) {
+                        break;
+                    }
+                    ArchiveCodec codec = added.next();
+                    if (forName(found, codec.getName()) == null) {
+                        found.add(codec);
+                    }
+                } catch (ServiceConfigurationError sce) {
+                    // A broken codec jar leaves the rest usable.
+                    LogUtils.sendLog("Skipped an archive codec which could not be loaded: %s", sce.getMessage());
+                }
+            }
+            codecs = Collections.unmodifiableList(found);
+        }
+        return codecs;
+    }
+
+    /**
+     * @param name The name of a codec, such as "zip" or "tar.gz".
+     * @return The codec, or null if there is none by that name.
+     */
+    public static ArchiveCodec forName(String name) {
+        return forName(getCodecs(), name);
+    }
+
+    private static ArchiveCodec forName(List<ArchiveCodec> list, String name) {
+        for (ArchiveCodec codec : list) {
+            if (codec.getName().equalsIgnoreCase(name.trim())) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param fileName The name of a file.
+     * @return The codec its extension names, or null if it is not an archive.
+     */
+    public static ArchiveCodec forFile(String fileName) {
+        // The longest match, so ".tar.gz" is not taken for ".gz".
+        ArchiveCodec found = null;
+        for (ArchiveCodec codec : getCodecs()) {
+            if (fileName.endsWith(codec.getExtension()) && (found == null || codec.getExtension().length() > found.getExtension().length())) {
+                found = codec;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param file A file.
+     * @return The codec its extension names, or null if it is not an archive.
+     */
+    public static ArchiveCodec forFile(File file) {
+        return forFile(file.getName());
+    }
+
+    /**
+     * @param fileName The name of a file.
+     * @return The name without its archive extension, if it has one.
+     */
+    public static String stripExtension(String fileName) {
+        ArchiveCodec codec = forFile(fileName);
+        return (codec != null) ? fileName.substring(0, fileName.length() - codec.getExtension().length()) : fileName;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
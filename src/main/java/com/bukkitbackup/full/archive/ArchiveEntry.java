@@ -0,0 +1,44 @@
+package com.bukkitbackup.full.archive;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * One file or folder read from an archive.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class ArchiveEntry {
+
+    private final String name;
+    private final long time;
+    private final boolean directory;
+
+    /**
+     * @param name The path of the entry, with '/' between folders.
+     * @param time When the file was last modified, or -1 if not known.
+     * @param directory True if it is a folder.
+     */
+    public ArchiveEntry(String name, long time, boolean directory) {
+        this.name = name;
+        this.time = time;
+        this.directory = directory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
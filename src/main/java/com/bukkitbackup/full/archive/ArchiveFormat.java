@@ -0,0 +1,69 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * How the archives of a backup are written: the codec, how hard it
+ * compresses, and on how many threads.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class ArchiveFormat {
+
+    public static final ArchiveFormat DEFAULT = new ArchiveFormat(ArchiveCodec.ZIP, Deflater.DEFAULT_COMPRESSION, 1);
+
+    private final ArchiveCodec codec;
+    private final int level;
+    private final int threads;
+
+    /**
+     * @param codec The codec.
+     * @param level How hard to compress, from 0 to 9, or -1 for the default.
+     * @param threads How many threads may compress at once.
+     */
+    public ArchiveFormat(ArchiveCodec codec, int level, int threads) {
+        this.codec = codec;
+        this.level = level;
+        this.threads = Math.max(1, threads);
+    }
+
+    public ArchiveCodec getCodec() {
+        return codec;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return The extension of archives written in this format.
+     */
+    public String getExtension() {
+        return codec.getExtension();
+    }
+
+    /**
+     * Start writing an archive in this format.
+     *
+     * @param out The stream to write the archive to, closed with it.
+     * @return The stream to write entries to.
+     * @throws IOException If the archive cannot be started.
+     */
+    public ArchiveOutputStream open(OutputStream out) throws IOException {
+        return codec.openWriter(out, level, threads);
+    }
+
+    @Override
+    public String toString() {
+        return codec.getName() + " (level " + level + ", " + threads + " thread(s))";
+    }
+}
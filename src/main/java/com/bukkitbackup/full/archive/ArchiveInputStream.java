@@ -0,0 +1,32 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Reads the entries of an archive one after another, as
+ * {@link java.util.zip.ZipInputStream} does. Data read comes from the
+ * current entry.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public abstract class ArchiveInputStream extends InputStream {
+
+    /**
+     * Move on to the next entry, skipping what is left of the current one.
+     *
+     * @return The next entry, or null at the end of the archive.
+     * @throws IOException If the archive cannot be read.
+     */
+    public abstract ArchiveEntry getNextEntry() throws IOException;
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return (read == -1) ? -1 : (single[0] & 0xFF);
+    }
+}
@@ -0,0 +1,42 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes the entries of an archive one after another, as
+ * {@link java.util.zip.ZipOutputStream} does. Data written goes into the
+ * current entry.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public abstract class ArchiveOutputStream extends OutputStream {
+
+    /**
+     * Start a new entry, ending the one before it.
+     *
+     * @param name The path of the entry, with '/' between folders.
+     * @param modified When the file was last modified.
+     * @param size The length of the entry, or -1 if it is not known.
+     * @param compress False if the data is already compressed, so is only
+     * stored, where the codec can.
+     * @throws IOException If the entry cannot be started.
+     */
+    public abstract void putNextEntry(String name, long modified, long size, boolean compress) throws IOException;
+
+    /**
+     * End the current entry, if there is one.
+     *
+     * @throws IOException If the entry cannot be finished, or is not the
+     * length it was started with.
+     */
+    public abstract void closeEntry() throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+}
@@ -0,0 +1,45 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * tar compressed with LZ4, the fastest of the compressed formats. It
+ * compresses less than gzip, but usually keeps up with the disk. It can be
+ * read with tar -I lz4, or lz4 -d.
+ *
+ * As with the lz4 tool, levels up to 2 use the fast compressor, and higher
+ * ones LZ4 HC at that level, which is slower to write but as fast to read.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class Lz4Codec extends TarCodec {
+
+    private static final int FIRST_HC_LEVEL = 3;
+
+    public Lz4Codec() {
+        super("tar.lz4");
+    }
+
+    @Override
+    protected OutputStream compress(OutputStream out, int level, int threads) throws IOException {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        LZ4Compressor compressor = (level >= FIRST_HC_LEVEL) ? factory.highCompressor(level) : factory.fastCompressor();
+        return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L, compressor, XXHashFactory.fastestInstance().hash32(),
+                LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE, LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM);
+    }
+
+    @Override
+    protected InputStream decompress(InputStream in) throws IOException {
+        return new LZ4FrameInputStream(in);
+    }
+}
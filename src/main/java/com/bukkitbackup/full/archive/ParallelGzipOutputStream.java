@@ -0,0 +1,187 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes gzip, compressing blocks on several threads and writing them in
+ * order, the way pigz does. Each block is primed with the end of the block
+ * before it, so little is lost to splitting, and ends on a byte boundary,
+ * so the blocks join into one ordinary DEFLATE stream. Anything which reads
+ * gzip can read it.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 128 * 1024;
+
+    // The most a DEFLATE match can reach back.
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService compressors;
+    private final int maxInFlight;
+    private final CRC32 crc = new CRC32();
+    private final LinkedList<Future<byte[]>> blocks = new LinkedList<Future<byte[]>>();
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferFill = 0;
+    private byte[] dictionary = null;
+    private long totalBytes = 0L;
+    private boolean closed = false;
+
+    /**
+     * @param out The stream to write the gzip to.
+     * @param level How hard to compress, from 0 to 9, or -1 for the default.
+     * @param threads How many blocks to compress at once.
+     * @throws IOException If the header cannot be written.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, int threads) throws IOException {
+        this.out = out;
+        this.level = level;
+        int threadCount = Math.max(1, threads);
+        this.maxInFlight = threadCount * 2;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.compressors = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup-Gzip-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Deflate, no flags, no time, no extra flags, Unix.
+        out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3});
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        totalBytes += len;
+        while (len > 0) {
+            // A full block is only sent once more data shows it is not the last.
+            if (bufferFill == BLOCK_SIZE) {
+                sendBlock(false);
+            }
+            int copied = Math.min(len, BLOCK_SIZE - bufferFill);
+            System.arraycopy(b, off, buffer, bufferFill, copied);
+            bufferFill += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    private void sendBlock(boolean last) throws IOException {
+        // Write what is done, and wait if too much is waiting.
+        while (!blocks.isEmpty() && (blocks.size() >= maxInFlight || blocks.getFirst().isDone())) {
+            writeBlock(blocks.removeFirst());
+        }
+        blocks.add(compressors.submit(compressTask(buffer, bufferFill, dictionary, last)));
+
+        // The next block is primed with the end of this one.
+        int dictionaryLength = Math.min(DICTIONARY_SIZE, bufferFill);
+        dictionary = new byte[dictionaryLength];
+        System.arraycopy(buffer, bufferFill - dictionaryLength, dictionary, 0, dictionaryLength);
+        buffer = new byte[BLOCK_SIZE];
+        bufferFill = 0;
+    }
+
+    private Callable<byte[]> compressTask(final byte[] data, final int length, final byte[] primer, final boolean last) {
+        return new Callable<byte[]>() {
+            public byte[] call() {
+                Deflater deflater = new Deflater(level, true);
+                try {
+                    if (primer != null && primer.length > 0) {
+                        deflater.setDictionary(primer);
+                    }
+                    deflater.setInput(data, 0, length);
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+                    byte[] chunk = new byte[65536];
+                    if (last) {
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            int count = deflater.deflate(chunk);
+                            compressed.write(chunk, 0, count);
+                        }
+                    } else {
+                        // A sync flush ends the block on a byte boundary, without ending the stream.
+                        int count;
+                        do {
+                            count = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                            compressed.write(chunk, 0, count);
+                        } while (count == chunk.length);
+                    }
+                    return compressed.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    private void writeBlock(Future<byte[]> block) throws IOException {
+        try {
+            out.write(block.get());
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed to compress the archive.", ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted compressing the archive.");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Compress the last block, write every block and the trailer, and close
+     * the stream. If a block cannot be compressed, the gzip is left without
+     * its end, so it fails to read.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sendBlock(true);
+            while (!blocks.isEmpty()) {
+                writeBlock(blocks.removeFirst());
+            }
+            long crcValue = crc.getValue();
+            out.write(new byte[]{
+                (byte) crcValue, (byte) (crcValue >>> 8), (byte) (crcValue >>> 16), (byte) (crcValue >>> 24),
+                (byte) totalBytes, (byte) (totalBytes >>> 8), (byte) (totalBytes >>> 16), (byte) (totalBytes >>> 24)});
+        } finally {
+            for (Future<byte[]> block : blocks) {
+                block.cancel(true);
+            }
+            compressors.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * POSIX tar archives, with the whole archive compressed as one stream rather
+ * than each entry on its own, so small files compress well together.
+ *
+ * "tar" is not compressed at all, for the fastest backups of data which is
+ * already compressed, such as region files. "tar.gz" is compressed in blocks
+ * on several threads, and can be read by gzip, pigz and tar.
+ *
+ * Other compressors plug in by extending this with a name and their streams.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class TarCodec extends ArchiveCodec {
+
+    public static final TarCodec TAR = new TarCodec("tar");
+
+    public static final TarCodec GZIP = new TarCodec("tar.gz") {
+        @Override
+        protected OutputStream compress(OutputStream out, int level, int threads) throws IOException {
+            return new ParallelGzipOutputStream(out, level, threads);
+        }
+
+        @Override
+        protected InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, 65536);
+        }
+    };
+
+    private final String name;
+
+    /**
+     * @param name The name of the codec, which is also its extension.
+     */
+    protected TarCodec(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param out The stream to write the compressed archive to.
+     * @param level How hard to compress, from 0 to 9, or -1 for the default.
+     * @param threads How many threads may compress at once.
+     * @return The stream to write the tar archive to.
+     * @throws IOException If the stream cannot be started.
+     */
+    protected OutputStream compress(OutputStream out, int level, int threads) throws IOException {
+        return out;
+    }
+
+    /**
+     * @param in The compressed archive.
+     * @return The tar archive.
+     * @throws IOException If the stream cannot be read.
+     */
+    protected InputStream decompress(InputStream in) throws IOException {
+        return in;
+    }
+
+    @Override
+    public ArchiveOutputStream openWriter(OutputStream out, int level, int threads) throws IOException {
+        return new TarOutputStream(compress(out, level, threads));
+    }
+
+    @Override
+    public ArchiveInputStream openReader(InputStream in) throws IOException {
+        return new TarInputStream(new BufferedInputStream(decompress(in), 65536));
+    }
+}
@@ -0,0 +1,226 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Reads a tar archive: ustar, with pax extended headers and GNU long names.
+ * Links and devices are skipped, as backups never hold them.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+class TarInputStream extends ArchiveInputStream {
+
+    private static final int BLOCK_SIZE = TarOutputStream.BLOCK_SIZE;
+
+    private final InputStream in;
+    private long entryRemaining = 0L;
+    private long entryPadding = 0L;
+
+    TarInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public ArchiveEntry getNextEntry() throws IOException {
+        skipFully(entryRemaining + entryPadding);
+        entryRemaining = 0L;
+        entryPadding = 0L;
+
+        String longName = null;
+        Long longSize = null;
+        byte[] header = new byte[BLOCK_SIZE];
+        while (true) {
+            if (!readBlock(header) || isEmpty(header)) {
+                return null;
+            }
+            verifyChecksum(header);
+            byte type = header[156];
+            long size = parseNumber(header, 124, 12);
+            if (type == 'x' || type == 'L') { // Applies to the next entry.
+                String content = new String(readContent(size), TarOutputStream.UTF_8);
+                if (type == 'L') {
+                    longName = content.replace("\u0000", "");
+                } else {
+                    for (String record : parsePax(content)) {
+                        int equals = record.indexOf('=');
+                        if (record.startsWith("path=")) {
+                            longName = record.substring(equals + 1);
+                        } else if (record.startsWith("size=")) {
+                            longSize = Long.parseLong(record.substring(equals + 1));
+                        }
+                    }
+                }
+                continue;
+            }
+            if (type == 'g') { // Global headers hold nothing needed.
+                readContent(size);
+                continue;
+            }
+            if (longSize != null) {
+                size = longSize;
+            }
+
+            String name = longName;
+            if (name == null) {
+                name = readString(header, 0, 100);
+                String magic = readString(header, 257, 6);
+                String prefix = magic.startsWith("ustar") ? readString(header, 345, 155) : "";
+                if (!prefix.isEmpty()) {
+                    name = prefix + "/" + name;
+                }
+            }
+            long modified = parseNumber(header, 136, 12) * 1000L;
+            boolean directory = type == '5' || name.endsWith("/");
+            if (type != '0' && type != 0 && type != '7' && !directory) { // Not a file.
+                skipFully(size + padding(size));
+                longName = null;
+                longSize = null;
+                continue;
+            }
+            entryRemaining = directory ? 0L : size;
+            entryPadding = directory ? 0L : padding(size);
+            return new ArchiveEntry(name, modified, directory);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (entryRemaining <= 0) {
+            return -1;
+        }
+        int read = in.read(b, off, (int) Math.min(len, entryRemaining));
+        if (read == -1) {
+            throw new EOFException("The tar archive ends inside an entry.");
+        }
+        entryRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int filled = 0;
+        while (filled < block.length) {
+            int read = in.read(block, filled, block.length - filled);
+            if (read == -1) {
+                if (filled == 0) {
+                    return false;
+                }
+                throw new EOFException("The tar archive ends inside a header.");
+            }
+            filled += read;
+        }
+        return true;
+    }
+
+    private byte[] readContent(long size) throws IOException {
+        if (size > Integer.MAX_VALUE / 2) {
+            throw new IOException("Tar extended header is too long: " + size);
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("The tar archive ends inside a header.");
+            }
+            content.write(buffer, 0, read);
+            remaining -= read;
+        }
+        skipFully(padding(size));
+        return content.toByteArray();
+    }
+
+    private void skipFully(long count) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new EOFException("The tar archive ends inside an entry.");
+            }
+            count -= read;
+        }
+    }
+
+    private static long padding(long size) {
+        long remainder = size % BLOCK_SIZE;
+        return (remainder == 0) ? 0 : BLOCK_SIZE - remainder;
+    }
+
+    private static boolean isEmpty(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void verifyChecksum(byte[] header) throws IOException {
+        long expected = parseNumber(header, 148, 8);
+        long actual = 0;
+        for (int i = 0; i < header.length; i++) {
+            actual += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+        }
+        if (expected != actual) {
+            throw new IOException("Bad tar header checksum, the archive is corrupt.");
+        }
+    }
+
+    /**
+     * Read an octal number, or a base-256 one if the top bit is set.
+     */
+    private static long parseNumber(byte[] header, int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7F;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xFF);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) + (b - '0');
+            } else if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String readString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, TarOutputStream.UTF_8);
+    }
+
+    /**
+     * @return The "key=value" of each "length key=value\n" record.
+     */
+    private static List<String> parsePax(String content) {
+        List<String> records = new ArrayList<String>();
+        for (String line : content.split("\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                records.add(line.substring(space + 1));
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,266 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes a POSIX (pax) tar archive. Paths too long for the header, and
+ * entries over 8 GB, get an extended header before them.
+ *
+ * A tar header holds the length of the entry, so an entry of unknown length
+ * is held in a temporary file until it is finished.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+class TarOutputStream extends ArchiveOutputStream {
+
+    static final int BLOCK_SIZE = 512;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The largest length the 11 octal digits of a header can hold.
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final OutputStream out;
+    private String entryName;
+    private long entryModified;
+    private long entryRemaining;
+    private long entryLength;
+    private File spoolFile;
+    private OutputStream spool;
+    private boolean closed = false;
+
+    TarOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void putNextEntry(String name, long modified, long size, boolean compress) throws IOException {
+        closeEntry();
+        entryName = name;
+        entryModified = modified;
+        if (size < 0) {
+            spoolFile = File.createTempFile("backup-tar", ".tmp");
+            spool = new BufferedOutputStream(new FileOutputStream(spoolFile));
+        } else {
+            writeHeader(name, modified, size);
+            entryRemaining = size;
+            entryLength = size;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (entryName == null) {
+            throw new IOException("No tar entry to write to.");
+        }
+        if (spool != null) {
+            spool.write(b, off, len);
+            return;
+        }
+        if (len > entryRemaining) {
+            throw new IOException("More was written to " + entryName + " than its length.");
+        }
+        out.write(b, off, len);
+        entryRemaining -= len;
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        if (entryName == null) {
+            return;
+        }
+        try {
+            if (spool != null) {
+                spool.close();
+                spool = null;
+                entryLength = spoolFile.length();
+                writeHeader(entryName, entryModified, entryLength);
+                InputStream in = new BufferedInputStream(new FileInputStream(spoolFile));
+                try {
+                    byte[] buffer = new byte[65536];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            } else if (entryRemaining != 0) {
+                throw new IOException("Less was written to " + entryName + " than its length.");
+            }
+            pad(entryLength);
+        } finally {
+            entryName = null;
+            deleteSpool();
+        }
+    }
+
+    /**
+     * Finish the archive with two empty blocks, and close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeEntry();
+            out.write(new byte[BLOCK_SIZE * 2]);
+        } finally {
+            deleteSpool();
+            out.close();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void writeHeader(String name, long modified, long size) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        Map<String, String> extended = new LinkedHashMap<String, String>();
+
+        // Long paths are split over the prefix and name where they can be.
+        byte[] prefixBytes = new byte[0];
+        if (nameBytes.length > 100) {
+            int split = findSplit(nameBytes);
+            if (split < 0) {
+                extended.put("path", name);
+                nameBytes = truncate(nameBytes, 100);
+            } else {
+                prefixBytes = truncate(nameBytes, split);
+                byte[] rest = new byte[nameBytes.length - split - 1];
+                System.arraycopy(nameBytes, split + 1, rest, 0, rest.length);
+                nameBytes = rest;
+            }
+        }
+        if (size > MAX_OCTAL_SIZE) {
+            extended.put("size", Long.toString(size));
+        }
+        if (!extended.isEmpty()) {
+            byte[] records = paxRecords(extended);
+            out.write(header(truncate(("PaxHeaders/" + name).getBytes(UTF_8), 100), new byte[0], modified, records.length, (byte) 'x'));
+            out.write(records);
+            pad(records.length);
+        }
+        out.write(header(nameBytes, prefixBytes, modified, Math.min(size, MAX_OCTAL_SIZE), (byte) '0'));
+    }
+
+    /**
+     * @return Where to split a path between the prefix and name fields, at a
+     * '/', or -1 if it cannot be.
+     */
+    private static int findSplit(byte[] path) {
+        for (int i = Math.min(155, path.length - 1); i > 0; i--) {
+            if (path[i] == '/' && path.length - i - 1 <= 100 && path.length - i - 1 > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] header(byte[] name, byte[] prefix, long modified, long size, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, Math.max(0L, modified / 1000L));
+        header[156] = type;
+        byte[] magic = "ustar\u000000".getBytes(UTF_8);
+        System.arraycopy(magic, 0, header, 257, magic.length);
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        // Summed with the checksum field as spaces.
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Write a number as zero padded octal, ending with a NUL.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+        for (int i = offset; i < start; i++) {
+            header[i] = '0';
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            header[start + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    /**
+     * @return Extended header records, each as "length key=value\n", where
+     * the length counts the whole record.
+     */
+    private static byte[] paxRecords(Map<String, String> values) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            byte[] body = (" " + value.getKey() + "=" + value.getValue() + "\n").getBytes(UTF_8);
+            int length = body.length + 1;
+            while (Integer.toString(length).length() + body.length > length) {
+                length++;
+            }
+            byte[] digits = Integer.toString(length).getBytes(UTF_8);
+            records.write(digits, 0, digits.length);
+            records.write(body, 0, body.length);
+        }
+        return records.toByteArray();
+    }
+
+    private static byte[] truncate(byte[] bytes, int length) {
+        if (bytes.length <= length) {
+            return bytes;
+        }
+        byte[] truncated = new byte[length];
+        System.arraycopy(bytes, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    private void pad(long length) throws IOException {
+        int remainder = (int) (length % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    private void deleteSpool() {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException ioe) {
+                // Deleted anyway.
+            }
+            spool = null;
+        }
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * ZIPs, with DEFLATE, through java.util.zip. Each entry is compressed on its
+ * own, on the writing thread.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+class ZipCodec extends ArchiveCodec {
+
+    @Override
+    public String getName() {
+        return "zip";
+    }
+
+    @Override
+    public ArchiveOutputStream openWriter(OutputStream out, int level, int threads) {
+        return new ZipWriter(new ZipOutputStream(out), level);
+    }
+
+    @Override
+    public ArchiveInputStream openReader(InputStream in) {
+        return new ZipReader(new ZipInputStream(in));
+    }
+
+    private static class ZipWriter extends ArchiveOutputStream {
+
+        private final ZipOutputStream zos;
+        private final int level;
+
+        ZipWriter(ZipOutputStream zos, int level) {
+            this.zos = zos;
+            this.level = level;
+        }
+
+        @Override
+        public void putNextEntry(String name, long modified, long size, boolean compress) throws IOException {
+            // The level is set between entries, so the last one is finished at its own.
+            zos.closeEntry();
+            zos.setLevel(compress ? level : Deflater.NO_COMPRESSION);
+            ZipEntry entry = new ZipEntry(name);
+            if (modified > 0) {
+                entry.setTime(modified);
+            }
+            zos.putNextEntry(entry);
+        }
+
+        @Override
+        public void closeEntry() throws IOException {
+            zos.closeEntry();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            zos.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            zos.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            zos.close();
+        }
+    }
+
+    private static class ZipReader extends ArchiveInputStream {
+
+        private final ZipInputStream zis;
+
+        ZipReader(ZipInputStream zis) {
+            this.zis = zis;
+        }
+
+        @Override
+        public ArchiveEntry getNextEntry() throws IOException {
+            ZipEntry entry = zis.getNextEntry();
+            return (entry != null) ? new ArchiveEntry(entry.getName(), entry.getTime(), entry.isDirectory()) : null;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return zis.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            zis.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.bukkitbackup.full.catalog;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Every backup made, and where its parts are, kept in "catalog.txt". Backups
+ * striped across several directories are only found through the catalog, so
+ * retention removes them as whole sets. The measured write speed of each
+ * stripe target is also kept here, for placing parts.
+ *
+ * The file is one line per backup or target, of tab separated key=value
+ * fields, and is rewritten whole on each change.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupCatalog {
+
+    private static final String BACKUP = "backup";
+    private static final String TARGET = "target";
+    private static final String PART_SEPARATOR = "|";
+
+    // Weight of a new speed measurement.
+    private static final double SPEED_WEIGHT = 0.3D;
+
+    private final File catalogFile;
+    private final Map<String, CatalogEntry> entries = new LinkedHashMap<String, CatalogEntry>();
+    private final Map<String, Long> targetSpeeds = new HashMap<String, Long>();
+
+    public BackupCatalog(File catalogFile) {
+        this.catalogFile = catalogFile;
+        load();
+    }
+
+    /**
+     * Add a backup, or replace the entry of the same name.
+     *
+     * @param entry The backup.
+     */
+    public synchronized void add(CatalogEntry entry) {
+        entries.put(entry.getName(), entry);
+        save();
+    }
+
+    /**
+     * Forget a backup, without touching its files.
+     *
+     * @param name The backup name.
+     */
+    public synchronized void remove(String name) {
+        if (entries.remove(name) != null) {
+            save();
+        }
+    }
+
+    /**
+     * @param name The backup name.
+     * @return The backup, or null if it is not in the catalog.
+     */
+    public synchronized CatalogEntry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return Every backup, oldest first.
+     */
+    public synchronized List<CatalogEntry> getEntries() {
+        List<CatalogEntry> sorted = new ArrayList<CatalogEntry>(entries.values());
+        Collections.sort(sorted, new Comparator<CatalogEntry>() {
+            public int compare(CatalogEntry first, CatalogEntry second) {
+                return (first.getCreatedAt() < second.getCreatedAt()) ? -1 : ((first.getCreatedAt() == second.getCreatedAt()) ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @param target The stripe target directory.
+     * @return Its measured write speed in bytes per second, or 0 if unknown.
+     */
+    public synchronized long getTargetSpeed(File target) {
+        Long speed = targetSpeeds.get(target.getAbsolutePath());
+        return (speed != null) ? speed : 0L;
+    }
+
+    /**
+     * Record a measured write speed, averaged with those before it.
+     *
+     * @param target The stripe target directory.
+     * @param bytesPerSecond The speed of the last write.
+     */
+    public synchronized void recordTargetSpeed(File target, long bytesPerSecond) {
+        long previous = getTargetSpeed(target);
+        long speed = (previous > 0L) ? (long) (previous + (bytesPerSecond - previous) * SPEED_WEIGHT) : bytesPerSecond;
+        targetSpeeds.put(target.getAbsolutePath(), speed);
+        save();
+    }
+
+    private void load() {
+        if (!catalogFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                Map<String, String> values = new LinkedHashMap<String, String>();
+                for (int i = 1; i < fields.length; i++) {
+                    int equals = fields[i].indexOf('=');
+                    if (equals > 0) {
+                        values.put(fields[i].substring(0, equals), fields[i].substring(equals + 1));
+                    }
+                }
+
+                if (fields[0].equals(BACKUP)) {
+                    String name = values.remove("name");
+                    String created = values.remove("created");
+                    String parts = values.remove("parts");
+                    if (name == null || created == null) {
+                        continue;
+                    }
+                    List<File> partFiles = new ArrayList<File>();
+                    if (parts != null) {
+                        for (String part : parts.split("\\" + PART_SEPARATOR)) {
+                            if (!part.isEmpty()) {
+                                partFiles.add(new File(part));
+                            }
+                        }
+                    }
+                    entries.put(name, new CatalogEntry(name, Long.parseLong(created), partFiles, values));
+                } else if (fields[0].equals(TARGET) && values.containsKey("path") && values.containsKey("speed")) {
+                    targetSpeeds.put(values.get("path"), Long.parseLong(values.get("speed")));
+                }
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read the backup catalog.");
+        } catch (NumberFormatException nfe) {
+            LogUtils.exceptionLog(nfe, "Backup catalog has a bad line, later entries were skipped.");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close the backup catalog.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the catalog to a new file, then swap it in, so a crash never
+     * leaves half a catalog.
+     */
+    private void save() {
+        File newFile = new File(catalogFile.getPath().concat(".new"));
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newFile), "UTF-8"));
+            writer.write("# Backup catalog. Do not edit while the server is running.");
+            writer.newLine();
+            for (CatalogEntry entry : entries.values()) {
+                StringBuilder line = new StringBuilder(BACKUP);
+                line.append("\tname=").append(entry.getName());
+                line.append("\tcreated=").append(entry.getCreatedAt());
+                for (Map.Entry<String, String> attribute : entry.getAttributes().entrySet()) {
+                    line.append('\t').append(attribute.getKey()).append('=').append(attribute.getValue());
+                }
+                line.append("\tparts=");
+                for (int i = 0; i < entry.getParts().size(); i++) {
+                    if (i > 0) {
+                        line.append(PART_SEPARATOR);
+                    }
+                    line.append(entry.getParts().get(i).getPath());
+                }
+                writer.write(line.toString());
+                writer.newLine();
+            }
+            for (Map.Entry<String, Long> speed : targetSpeeds.entrySet()) {
+                writer.write(TARGET + "\tpath=" + speed.getKey() + "\tspeed=" + speed.getValue());
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+
+            if (!newFile.renameTo(catalogFile)) {
+                // Windows will not rename over an existing file.
+                catalogFile.delete();
+                if (!newFile.renameTo(catalogFile)) {
+                    throw new IOException("Could not replace " + catalogFile);
+                }
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write the backup catalog.");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close the backup catalog.");
+                }
+            }
+        }
+    }
+}
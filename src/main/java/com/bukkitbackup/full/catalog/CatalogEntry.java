@@ -0,0 +1,131 @@
+package com.bukkitbackup.full.catalog;
+
+import com.bukkitbackup.full.utils.FileUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * One backup in the {@link BackupCatalog}: its name, when it was made, and
+ * every file or folder it was written to. A striped backup has a part in
+ * each of several directories, and is only complete with all of them.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class CatalogEntry {
+
+    private final String name;
+    private final long createdAt;
+    private final List<File> parts;
+    private final Map<String, String> attributes;
+
+    /**
+     * @param name The backup name.
+     * @param createdAt When the backup was made.
+     * @param parts The files and folders the backup was written to.
+     */
+    public CatalogEntry(String name, long createdAt, List<File> parts) {
+        this(name, createdAt, parts, new LinkedHashMap<String, String>());
+    }
+
+    CatalogEntry(String name, long createdAt, List<File> parts, Map<String, String> attributes) {
+        this.name = name;
+        this.createdAt = createdAt;
+        this.parts = Collections.unmodifiableList(new ArrayList<File>(parts));
+        this.attributes = attributes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public List<File> getParts() {
+        return parts;
+    }
+
+    /**
+     * @return True if the backup was spread across more than one directory.
+     */
+    public boolean isStriped() {
+        return "true".equals(attributes.get("striped"));
+    }
+
+    /**
+     * @return The total size of the parts which still exist.
+     */
+    public long getSize() {
+        long size = 0L;
+        for (File part : parts) {
+            size += part.isDirectory() ? FileUtils.getTotalFolderSize(part) : part.length();
+        }
+        return size;
+    }
+
+    /**
+     * @return True if any part is missing.
+     */
+    public boolean isIncomplete() {
+        for (File part : parts) {
+            if (!part.exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Other details of the backup, kept as text.
+     *
+     * @param key The name of the detail.
+     * @return The value, or null.
+     */
+    public String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    /**
+     * Make a copy of this entry with a detail changed.
+     *
+     * @param key The name of the detail.
+     * @param value The value, or null to remove it.
+     * @return The new entry.
+     */
+    public CatalogEntry withAttribute(String key, String value) {
+        Map<String, String> changed = new LinkedHashMap<String, String>(attributes);
+        if (value == null) {
+            changed.remove(key);
+        } else {
+            changed.put(key, value);
+        }
+        return new CatalogEntry(name, createdAt, parts, changed);
+    }
+
+    /**
+     * Make a copy of this entry with different parts, after they are moved.
+     *
+     * @param movedParts The new parts.
+     * @return The new entry.
+     */
+    public CatalogEntry withParts(List<File> movedParts) {
+        return new CatalogEntry(name, createdAt, movedParts, new LinkedHashMap<String, String>(attributes));
+    }
+
+    Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + parts.size() + " part(s))";
+    }
+}
@@ -0,0 +1,427 @@
+package com.bukkitbackup.full.catalog;
+
+import com.bukkitbackup.full.archive.ArchiveCodec;
+import com.bukkitbackup.full.archive.ArchiveEntry;
+import com.bukkitbackup.full.archive.ArchiveInputStream;
+import com.bukkitbackup.full.crypto.ArchiveEncryption;
+import com.bukkitbackup.full.crypto.ArchiveKey;
+import com.bukkitbackup.full.delta.ApplyDelta;
+import com.bukkitbackup.full.delta.DeltaEncoder;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.PackUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Rebuilds the server as it was at one point in time, from the backups in
+ * the catalog. Tiers back up parts of each world on their own schedules, and
+ * incremental backups and deltas only hold what changed, so no one backup
+ * holds everything. This runs without the server:
+ *
+ * java -cp Backup.jar com.bukkitbackup.full.catalog.MergeRestore
+ * [catalog file] [YYYY-MM-DD-HH-MM[-SS], or latest] [output folder] [key file]
+ *
+ * The newest full backup from before the time which needs no earlier one is
+ * restored first, then every later full backup, and the newest backup of
+ * each tier and of each world or plugin backed up alone, in the order they
+ * were made. Each file ends up as it was in the
+ * newest backup holding it.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class MergeRestore {
+
+    // Written by the backups for people, they are not part of the server.
+    private static final String INCREMENTAL_NOTE = "incremental.txt";
+    private static final String DELETED_NOTE = "deleted.txt";
+    private static final String TIER_NOTE = "tier.txt";
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: MergeRestore <catalog file> <YYYY-MM-DD-HH-MM[-SS] or latest> <output folder> [key file]");
+            System.exit(2);
+        }
+        File output = new File(args[2]);
+        try {
+            long pointInTime = parseTime(args[1]);
+            ArchiveKey key = (args.length == 4) ? ArchiveKey.load(new File(args[3]), false) : null;
+            String[] existing = output.list();
+            if (existing != null && existing.length > 0) {
+                throw new IOException("The output folder must be empty: " + output.getPath());
+            }
+
+            List<CatalogEntry> plan = plan(new BackupCatalog(new File(args[0])).getEntries(), pointInTime, key);
+            if (plan.isEmpty()) {
+                throw new IOException("There are no backups from before then.");
+            }
+            for (CatalogEntry entry : plan) {
+                String tier = entry.getAttribute("tier");
+                String partial = entry.getAttribute("partial");
+                if (tier != null) {
+                    System.out.println("Restoring " + entry.getName() + " (" + entry.getAttribute("content") + " of tier " + tier + ")");
+                } else if (partial != null) {
+                    System.out.println("Restoring " + entry.getName() + " (just " + partial.replace(':', ' ') + ")");
+                } else {
+                    System.out.println("Restoring " + entry.getName());
+                }
+                restore(entry, output, key);
+            }
+            removeNotes(output);
+            System.out.println("Restored to " + output.getPath());
+        } catch (ParseException pe) {
+            System.err.println("Failed to read the time, use YYYY-MM-DD-HH-MM[-SS] or latest: " + args[1]);
+            System.exit(2);
+        } catch (IOException ioe) {
+            System.err.println("Failed to restore: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static long parseTime(String time) throws ParseException {
+        if (time.equalsIgnoreCase("latest")) {
+            return Long.MAX_VALUE;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(time.length() > 16 ? "yyyy-MM-dd-HH-mm-ss" : "yyyy-MM-dd-HH-mm");
+        format.setLenient(false);
+        long parsed = format.parse(time).getTime();
+        return (time.length() > 16) ? parsed + 999L : parsed + 59999L; // The whole second or minute.
+    }
+
+    /**
+     * Pick the backups to restore, oldest first.
+     *
+     * @param entries Every backup in the catalog, oldest first.
+     * @param pointInTime The time to restore to.
+     * @param key The key, for encrypted backups, or null.
+     * @return The backups to restore, in order.
+     * @throws IOException If a backup cannot be read.
+     */
+    static List<CatalogEntry> plan(List<CatalogEntry> entries, long pointInTime, ArchiveKey key) throws IOException {
+        List<CatalogEntry> usable = new ArrayList<CatalogEntry>();
+        for (CatalogEntry entry : entries) {
+            if (entry.getCreatedAt() <= pointInTime && !entry.isIncomplete()) {
+                usable.add(entry);
+            }
+        }
+
+        // Back from the newest full backup, to one which holds all it has.
+        int base = -1;
+        boolean foundBase = false;
+        for (int i = usable.size() - 1; i >= 0 && !foundBase; i--) {
+            if (groupOf(usable.get(i)) == null) {
+                base = i;
+                foundBase = !buildsOnEarlier(usable.get(i), key);
+            }
+        }
+        if (base != -1 && !foundBase) {
+            System.err.println("Warning: " + usable.get(base).getName() + " builds on backups which are gone, some files may be missing.");
+        }
+
+        // Only the newest backup of each tier, world or plugin matters, as each holds all of its content.
+        Map<String, CatalogEntry> newestParts = new HashMap<String, CatalogEntry>();
+        for (int i = base + 1; i < usable.size(); i++) {
+            if (groupOf(usable.get(i)) != null) {
+                newestParts.put(groupOf(usable.get(i)), usable.get(i));
+            }
+        }
+
+        List<CatalogEntry> plan = new ArrayList<CatalogEntry>();
+        for (int i = Math.max(0, base); i < usable.size(); i++) {
+            CatalogEntry entry = usable.get(i);
+            String group = groupOf(entry);
+            if ((group == null && base != -1) || (group != null && newestParts.get(group) == entry)) {
+                plan.add(entry);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return What part of the server the backup holds, or null if it is a
+     * full backup.
+     */
+    private static String groupOf(CatalogEntry entry) {
+        if (entry.getAttribute("tier") != null) {
+            return "tier:" + entry.getAttribute("tier");
+        }
+        return entry.getAttribute("partial");
+    }
+
+    /**
+     * @return True if the backup holds incremental copies or deltas, which
+     * need the backups before it.
+     */
+    private static boolean buildsOnEarlier(CatalogEntry entry, ArchiveKey key) throws IOException {
+        for (File part : entry.getParts()) {
+            if (buildsOnEarlier(part, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param part A ZIP, folder or file written for a backup.
+     * @param key The key, for encrypted backups, or null.
+     * @return True if it holds incremental copies or deltas, which need the
+     * backups before it.
+     * @throws IOException If it cannot be read.
+     */
+    public static boolean buildsOnEarlier(File part, ArchiveKey key) throws IOException {
+        for (String name : listNames(part, key)) {
+            String fileName = name.substring(name.lastIndexOf('/') + 1);
+            if (fileName.equals(INCREMENTAL_NOTE) || fileName.endsWith(DeltaEncoder.DELTA_EXTENSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> listNames(File part, ArchiveKey key) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if (part.isDirectory()) {
+            File[] children = part.listFiles();
+            for (File child : (children != null) ? children : new File[0]) {
+                if (child.isDirectory()) {
+                    for (String name : listNames(child, key)) {
+                        names.add(child.getName() + "/" + name);
+                    }
+                } else {
+                    names.addAll(listNames(child, key));
+                }
+            }
+        } else if (ArchiveCodec.forFile(part) == ArchiveCodec.ZIP) {
+            try {
+                ZipFile zip = new ZipFile(part); // Plain ZIPs have an index at the end.
+                try {
+                    for (ZipEntry entry : Collections.list(zip.entries())) {
+                        names.add(entry.getName());
+                    }
+                } finally {
+                    zip.close();
+                }
+            } catch (ZipException ze) {
+                names.addAll(readNames(part, key));
+            }
+        } else if (ArchiveCodec.forFile(part) != null) {
+            names.addAll(readNames(part, key));
+        } else {
+            names.add(part.getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return The names of the entries of an archive, read through to the
+     * end.
+     */
+    private static List<String> readNames(File archive, ArchiveKey key) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ArchiveInputStream in = openArchive(archive, key);
+        try {
+            ArchiveEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        } finally {
+            in.close();
+        }
+        return names;
+    }
+
+    /**
+     * Open an archive with the codec of its extension, decrypting it if it
+     * is encrypted.
+     */
+    private static ArchiveInputStream openArchive(File archive, ArchiveKey key) throws IOException {
+        InputStream in = ArchiveEncryption.openArchive(archive, key);
+        try {
+            return ArchiveCodec.forFile(archive).openReader(in);
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Restore one backup over what is already in the output folder.
+     */
+    private static void restore(CatalogEntry entry, File output, ArchiveKey key) throws IOException {
+        for (File part : entry.getParts()) {
+            restorePart(part, output, key);
+        }
+    }
+
+    /**
+     * Restore one ZIP, folder or file written for a backup over what is
+     * already in the output folder, applying any deltas and removed files.
+     *
+     * @param part The part of the backup.
+     * @param output The folder to restore into.
+     * @param key The key, for encrypted backups, or null.
+     * @throws IOException If it cannot be read, or a delta has nothing to
+     * apply to.
+     */
+    public static void restorePart(File part, File output, ArchiveKey key) throws IOException {
+        if (part.isDirectory()) {
+            restoreFolder(part, "", output, key);
+        } else {
+            restoreFile(part, part.getName(), output, key);
+        }
+    }
+
+    private static void restoreFolder(File folder, String path, File output, ArchiveKey key) throws IOException {
+        File[] children = folder.listFiles();
+        for (File child : (children != null) ? children : new File[0]) {
+            if (child.isDirectory()) {
+                restoreFolder(child, path + child.getName() + "/", output, key);
+            } else {
+                restoreFile(child, path + child.getName(), output, key);
+            }
+        }
+    }
+
+    private static void restoreFile(File file, String path, File output, ArchiveKey key) throws IOException {
+        // Archives are only at the top of a backup, deeper ones are files from the server.
+        if (ArchiveCodec.forFile(file) != null && path.indexOf('/') < 0) { // Entries are already under their place.
+            ArchiveInputStream archive = openArchive(file, key);
+            try {
+                ArchiveEntry entry;
+                while ((entry = archive.getNextEntry()) != null) {
+                    if (!entry.isDirectory()) {
+                        place(archive, entry.getName(), entry.getTime(), output);
+                    }
+                }
+            } finally {
+                archive.close();
+            }
+        } else {
+            InputStream in = new FileInputStream(file);
+            try {
+                place(in, path, file.lastModified(), output);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Put one file from a backup in its place, applying it if it is a delta,
+     * a plugin pack or a list of removed files.
+     */
+    private static void place(InputStream in, String path, long modified, File output) throws IOException {
+        File target = new File(output, path.replace('/', File.separatorChar));
+        if (!target.getCanonicalPath().startsWith(output.getCanonicalPath())) {
+            throw new IOException("Backup entry outside the output folder: " + path);
+        }
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getPath());
+        }
+
+        if (path.endsWith(DeltaEncoder.DELTA_EXTENSION)) {
+            File base = new File(target.getPath().substring(0, target.getPath().length() - DeltaEncoder.DELTA_EXTENSION.length()));
+            if (!base.isFile()) {
+                throw new IOException("No earlier copy of " + base.getPath() + " to apply its delta to.");
+            }
+            File rebuilt = new File(base.getPath().concat(".new"));
+            ApplyDelta.apply(base, new UnclosedInputStream(in), rebuilt);
+            if (!base.delete() || !rebuilt.renameTo(base)) {
+                throw new IOException("Could not replace " + base.getPath());
+            }
+        } else if (path.endsWith(PackUtils.PACK_EXTENSION)) {
+            // A pack is the whole plugins folder.
+            File pack = new File(output, "plugins" + PackUtils.PACK_EXTENSION + ".tmp");
+            write(in, pack);
+            File plugins = new File(output, "plugins");
+            FileUtils.deleteDir(plugins);
+            PackUtils.unpack(pack, plugins);
+            pack.delete();
+        } else {
+            write(in, target);
+            target.setLastModified(modified);
+            if (target.getName().equals(DELETED_NOTE)) {
+                removeDeleted(target);
+            }
+        }
+    }
+
+    private static void write(InputStream in, File target) throws IOException {
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[FileUtils.BUFFER_SIZE * 8];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void removeDeleted(File deletedNote) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(deletedNote));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    new File(deletedNote.getParentFile(), line.replace('/', File.separatorChar)).delete();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Remove the notes written for people restoring by hand, once the
+     * backups they describe have been applied.
+     *
+     * @param folder The folder restored into.
+     */
+    public static void removeNotes(File folder) {
+        File[] children = folder.listFiles();
+        for (File child : (children != null) ? children : new File[0]) {
+            if (child.isDirectory()) {
+                removeNotes(child);
+            } else if (child.getName().equals(INCREMENTAL_NOTE) || child.getName().equals(DELETED_NOTE) || child.getName().equals(TIER_NOTE)) {
+                child.delete();
+            }
+        }
+    }
+
+    /**
+     * Lets a delta be read from an archive entry, without closing the
+     * archive.
+     */
+    private static class UnclosedInputStream extends FilterInputStream {
+
+        UnclosedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
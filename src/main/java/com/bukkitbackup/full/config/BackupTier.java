@@ -0,0 +1,178 @@
+package com.bukkitbackup.full.config;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * One tier from the "tiers" section: a part of each world backed up on its
+ * own schedule, kept for its own time. Small files which change all the time,
+ * such as player data, can be backed up every few minutes, while the region
+ * files are backed up far less often.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class BackupTier {
+
+    /**
+     * The files of a world which belong to the "players" content, the rest
+     * is "regions".
+     */
+    public static final String[] PLAYER_FILES = {"playerdata", "stats", "advancements", "level.dat"};
+
+    private static final Pattern DURATION = Pattern.compile("^([0-9]+)([a-z]?)$");
+
+    private final String name;
+    private final boolean players;
+    private final boolean regions;
+    private final int intervalMinutes;
+    private final long keepMillis;
+    private final boolean snapshot;
+    private final String path;
+
+    private BackupTier(String name, boolean players, boolean regions, int intervalMinutes, long keepMillis, boolean snapshot, String path) {
+        this.name = name;
+        this.players = players;
+        this.regions = regions;
+        this.intervalMinutes = intervalMinutes;
+        this.keepMillis = keepMillis;
+        this.snapshot = snapshot;
+        this.path = path;
+    }
+
+    /**
+     * Read a tier from the settings.
+     *
+     * @param settings The settings.
+     * @param name The name of the tier, under "tiers".
+     * @return The tier, or null if it is not set up correctly.
+     */
+    static BackupTier compile(SettingsSnapshot settings, String name) {
+        String prefix = "tiers.".concat(name).concat(".");
+        boolean players = false;
+        boolean regions = false;
+        for (String content : settings.getStringProperty(prefix.concat("content"), "").split(",")) {
+            if (content.trim().equalsIgnoreCase("players")) {
+                players = true;
+            } else if (content.trim().equalsIgnoreCase("regions")) {
+                regions = true;
+            } else if (!content.trim().isEmpty()) {
+                return null;
+            }
+        }
+        long interval = parseMinutes(settings.getStringProperty(prefix.concat("interval"), ""));
+        long keep = parseMinutes(settings.getStringProperty(prefix.concat("keep"), "0"));
+        if ((!players && !regions) || interval <= 0 || keep < 0 || !name.matches("^[A-Za-z0-9_]+$")) {
+            return null;
+        }
+        String engine = settings.getStringProperty(prefix.concat("engine"), "copy").trim();
+        String path = settings.getBackupPath().concat("-").concat(name);
+        return new BackupTier(name, players, regions, (int) Math.min(interval, Integer.MAX_VALUE), TimeUnit.MINUTES.toMillis(keep),
+                engine.equalsIgnoreCase("snapshot"), path);
+    }
+
+    /**
+     * @param duration A time, such as "2M", "24H" or "14D". A number alone is
+     * minutes.
+     * @return The time in minutes, or -1 if it cannot be read.
+     */
+    private static long parseMinutes(String duration) {
+        Matcher matcher = DURATION.matcher(duration.trim().toLowerCase(Locale.ENGLISH));
+        if (!matcher.matches()) {
+            return -1L;
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String letter = matcher.group(2);
+        if (letter.isEmpty() || letter.equals("m")) {
+            return amount;
+        } else if (letter.equals("h")) {
+            return amount * 60L;
+        } else if (letter.equals("d")) {
+            return amount * 60L * 24L;
+        } else if (letter.equals("w")) {
+            return amount * 60L * 24L * 7L;
+        }
+        return -1L;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return True if this tier backs up the player files of each world.
+     */
+    public boolean hasPlayers() {
+        return players;
+    }
+
+    /**
+     * @return True if this tier backs up the rest of each world.
+     */
+    public boolean hasRegions() {
+        return regions;
+    }
+
+    /**
+     * @return The content, as written in the catalog.
+     */
+    public String getContent() {
+        return (players && regions) ? "players,regions" : (players ? "players" : "regions");
+    }
+
+    public int getIntervalMinutes() {
+        return intervalMinutes;
+    }
+
+    /**
+     * @return How long backups of this tier are kept, or 0 to keep them all.
+     */
+    public long getKeepMillis() {
+        return keepMillis;
+    }
+
+    /**
+     * @return True if regions are taken with the snapshot engine.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return True if the worlds must be saved before this tier is backed
+     * up. Player files only need the players saved.
+     */
+    public boolean savesWorlds() {
+        return regions && !snapshot;
+    }
+
+    /**
+     * @return The folder backups of this tier are written to.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @param file A file or folder directly in a world folder.
+     * @return True if it is one of the player files.
+     */
+    public static boolean isPlayerFile(String file) {
+        for (String playerFile : PLAYER_FILES) {
+            if (playerFile.equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getContent() + " every " + intervalMinutes + "m, kept " + TimeUnit.MILLISECONDS.toMinutes(keepMillis) + "m"
+                + (snapshot ? ", snapshot" : "") + "]";
+    }
+}
@@ -2,8 +2,7 @@ package com.bukkitbackup.full.config;
 
 import com.bukkitbackup.full.utils.LogUtils;
 import java.io.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -11,68 +10,103 @@ import org.bukkit.configuration.file.YamlConfiguration;
 /**
  * Backup - The simple server backup solution.
  *
+ * Holds the current {@link SettingsSnapshot}. The property getters always read
+ * the latest settings, and are meant for commands and listeners.
+ *
  * @author Samuel98
  * @author info@samuel98.com
  */
 public final class Settings {
 
     private static Strings strings;
-    private static FileConfiguration settings;
-    public boolean useMaxSizeBackup = false;
+    private final File configFile;
+    private final AtomicReference<SettingsSnapshot> snapshot = new AtomicReference<SettingsSnapshot>();
 
     public Settings(File configFile, Strings strings) {
         // Populate the strings variable.
         Settings.strings = strings;
+        this.configFile = configFile;
 
-        try {
-            // Checks if configuration file exists, creates it if it does not.
-            if (!configFile.exists()) {
-                LogUtils.sendLog(strings.getString("newconfigfile"));
+        // Checks if configuration file exists, creates it if it does not.
+        if (!configFile.exists()) {
+            LogUtils.sendLog(strings.getString("newconfigfile"));
 
-                BufferedReader bReader = null;
-                BufferedWriter bWriter = null;
-                String line;
+            BufferedReader bReader = null;
+            BufferedWriter bWriter = null;
+            String line;
 
+            try {
+                // Open a stream to the configuration file in the jar, because we can only access over the class loader.
+                bReader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/resources/config.yml")));
+                bWriter = new BufferedWriter(new FileWriter(configFile));
+
+                // Writeout the new configuration file.
+                while ((line = bReader.readLine()) != null) {
+                    bWriter.write(line);
+                    bWriter.newLine();
+                }
+            } catch (IOException e) {
+                LogUtils.exceptionLog(e, "Error opening stream.");
+            } finally {
                 try {
-                    // Open a stream to the configuration file in the jar, because we can only access over the class loader.
-                    bReader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/resources/config.yml")));
-                    bWriter = new BufferedWriter(new FileWriter(configFile));
-
-                    // Writeout the new configuration file.
-                    while ((line = bReader.readLine()) != null) {
-                        bWriter.write(line);
-                        bWriter.newLine();
+                    // Confirm the streams are closed.
+                    if (bReader != null) {
+                        bReader.close();
                     }
-                } catch (IOException e) {
-                    LogUtils.exceptionLog(e, "Error opening stream.");
-                } finally {
-                    try {
-                        // Confirm the streams are closed.
-                        if (bReader != null) {
-                            bReader.close();
-                        }
-                        if (bWriter != null) {
-                            bWriter.close();
-                        }
-                    } catch (IOException e) {
-                        LogUtils.exceptionLog(e, "Error closing configuration stream.");
+                    if (bWriter != null) {
+                        bWriter.close();
                     }
+                } catch (IOException e) {
+                    LogUtils.exceptionLog(e, "Error closing configuration stream.");
                 }
             }
+        }
+
+        // Initialize the configuration, and populate with settings.
+        SettingsSnapshot loaded = load();
+        snapshot.set((loaded != null) ? loaded : new SettingsSnapshot(new YamlConfiguration(), strings));
+    }
+
+    /**
+     * Re-read the configuration file, and swap in the new settings. If the
+     * file cannot be read, the current settings are kept.
+     *
+     * @return The settings now in use.
+     */
+    public SettingsSnapshot reload() {
+        SettingsSnapshot loaded = load();
+        if (loaded != null) {
+            snapshot.set(loaded);
+        }
+        return snapshot.get();
+    }
 
-            // Initialize the configuration, and populate with settings.
-            settings = new YamlConfiguration();
+    /**
+     * The settings currently in use. Backups should take this once, when they
+     * start.
+     *
+     * @return The current settings.
+     */
+    public SettingsSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    private SettingsSnapshot load() {
+        try {
+            FileConfiguration settings = new YamlConfiguration();
             settings.load(configFile);
+            return new SettingsSnapshot(settings, strings);
         } catch (IOException e) {
             LogUtils.exceptionLog(e, "Failed to load configuration.");
         } catch (InvalidConfigurationException e) {
             LogUtils.exceptionLog(e, "Failed to load configuration.");
         }
+        return null;
     }
 
     public void checkSettingsVersion(String requiredVersion) {
         // Get the version information from the file.
-        String configVersion = settings.getString("version", null);
+        String configVersion = getStringProperty("version", null);
 
         // Check we got a version from the config file.
         if (configVersion == null) {
@@ -90,7 +124,7 @@ public final class Settings {
      * @return The value of the property.
      */
     public int getIntProperty(String property, int defaultInt) {
-        return settings.getInt(property, defaultInt);
+        return snapshot.get().getIntProperty(property, defaultInt);
     }
 
     /**
@@ -101,7 +135,7 @@ public final class Settings {
      * @return The value of the property.
      */
     public boolean getBooleanProperty(String property, boolean defaultBool) {
-        return settings.getBoolean(property, defaultBool);
+        return snapshot.get().getBooleanProperty(property, defaultBool);
     }
 
     /**
@@ -112,53 +146,6 @@ public final class Settings {
      * @return The value of the property.
      */
     public String getStringProperty(String property, String defaultString) {
-        return settings.getString(property, defaultString);
-    }
-
-    public long getBackupLimits() {
-        String limitSetting = getStringProperty("maxbackups", "25").trim().toLowerCase();
-
-        // If it is null or set to disable.
-        if (limitSetting.equals("-1")) {
-            return 0L;
-        }
-
-        // If it is just a number, return minutes.
-        if (limitSetting.matches("^[0-9]+$")) {
-            LogUtils.sendDebug("Max Backups: Amount (M:0011)");
-
-            return Long.parseLong(limitSetting);
-        } else if (limitSetting.matches("^[0-9]+[a-z]$")) {
-            LogUtils.sendDebug("Max Backups: Size (M:0010)");
-
-            useMaxSizeBackup = true;
-            Pattern timePattern = Pattern.compile("^([0-9]+)[a-z]$");
-            Matcher amountTime = timePattern.matcher(limitSetting);
-            Pattern letterPattern = Pattern.compile("^[0-9]+([a-z])$");
-            Matcher letterTime = letterPattern.matcher(limitSetting);
-            if (letterTime.matches() && amountTime.matches()) {
-                String letter = letterTime.group(1);
-                long bytes = Long.parseLong(amountTime.group(1));
-
-                if (letter.equals("k")) {
-                    return bytes * 1024L;
-                } else if (letter.equals("m")) {
-                    return bytes * 1048576L;
-                } else if (letter.equals("g")) {
-                    return bytes * 1073741824L;
-                } else {
-                    LogUtils.sendLog(strings.getString("unknownsizeident"));
-                    return bytes;
-                }
-            } else {
-                LogUtils.sendLog(strings.getString("checksizelimit"));
-                return 0L;
-            }
-        } else {
-            LogUtils.sendDebug("Max Backups: Unknown (M:0012)");
-
-            LogUtils.sendLog(strings.getString("checksizelimit"));
-            return 0L;
-        }
+        return snapshot.get().getStringProperty(property, defaultString);
     }
 }
@@ -0,0 +1,325 @@
+package com.bukkitbackup.full.config;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * An immutable copy of the configuration, taken when it is loaded. Values
+ * are sorted by type once here, so lookups are plain map reads, and the
+ * settings every backup reads, and those which need parsing, are kept in
+ * typed fields.
+ *
+ * A backup keeps the snapshot it was started with, so reloading the
+ * configuration never changes a running backup.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class SettingsSnapshot {
+
+    private static final Pattern SIZE_LIMIT = Pattern.compile("^([0-9]+)([a-z])$");
+
+    private final Map<String, Integer> intValues;
+    private final Map<String, Boolean> booleanValues;
+    private final Map<String, String> stringValues;
+    private final String backupPath;
+    private final String tempFolderName;
+    private final String coldPath;
+    private final boolean zipBackup;
+    private final boolean usingTemp;
+    private final boolean backupWorlds;
+    private final boolean backupPlugins;
+    private final boolean backupEverything;
+    private final boolean splitBackup;
+    private final boolean consolidateBackups;
+    private final long backupLimit;
+    private final boolean sizeLimit;
+    private final List<String> stripePaths;
+    private final List<String> mirrorPaths;
+    private final List<BackupTier> tiers;
+
+    /**
+     * Copy and compile a loaded configuration.
+     *
+     * @param config The loaded configuration.
+     * @param strings The strings, for reporting bad values.
+     */
+    SettingsSnapshot(ConfigurationSection config, Strings strings) {
+        Map<String, Integer> ints = new HashMap<String, Integer>();
+        Map<String, Boolean> booleans = new HashMap<String, Boolean>();
+        Map<String, String> texts = new HashMap<String, String>();
+        Set<String> tierNames = new TreeSet<String>();
+        for (Map.Entry<String, Object> entry : config.getValues(true).entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            String[] parts = key.split("\\.");
+            if (parts.length == 2 && parts[0].equals("tiers")) {
+                tierNames.add(parts[1]);
+            }
+            if (value == null || value instanceof ConfigurationSection) {
+                continue;
+            }
+            if (value instanceof Number) {
+                ints.put(key, ((Number) value).intValue());
+            } else if (value instanceof Boolean) {
+                booleans.put(key, (Boolean) value);
+            }
+            texts.put(key, value.toString());
+        }
+        this.intValues = Collections.unmodifiableMap(ints);
+        this.booleanValues = Collections.unmodifiableMap(booleans);
+        this.stringValues = Collections.unmodifiableMap(texts);
+
+        this.backupPath = getStringProperty("backuppath", "backups");
+        this.tempFolderName = getStringProperty("tempfoldername", "");
+        this.coldPath = getStringProperty("coldpath", "").trim();
+        this.zipBackup = getBooleanProperty("zipbackup", true);
+        this.usingTemp = getBooleanProperty("usetemp", true);
+        this.backupWorlds = getBooleanProperty("backupworlds", true);
+        this.backupPlugins = getBooleanProperty("backupplugins", true);
+        this.backupEverything = getBooleanProperty("backupeverything", false);
+        this.splitBackup = getBooleanProperty("splitbackup", false);
+        this.consolidateBackups = getBooleanProperty("consolidatebackups", false);
+
+        // Compile the backup limit.
+        String limitSetting = getStringProperty("maxbackups", "25").trim().toLowerCase();
+        long limit = 0L;
+        boolean isSize = false;
+
+        // If it is just a number, it is an amount of backups.
+        if (limitSetting.equals("-1")) {
+            limit = 0L;
+        } else if (limitSetting.matches("^[0-9]+$")) {
+            LogUtils.sendDebug("Max Backups: Amount (M:0011)");
+            limit = Long.parseLong(limitSetting);
+        } else {
+            Matcher sizeMatcher = SIZE_LIMIT.matcher(limitSetting);
+            if (sizeMatcher.matches()) {
+                LogUtils.sendDebug("Max Backups: Size (M:0010)");
+                isSize = true;
+                long bytes = Long.parseLong(sizeMatcher.group(1));
+                String letter = sizeMatcher.group(2);
+
+                if (letter.equals("k")) {
+                    limit = bytes * 1024L;
+                } else if (letter.equals("m")) {
+                    limit = bytes * 1048576L;
+                } else if (letter.equals("g")) {
+                    limit = bytes * 1073741824L;
+                } else {
+                    LogUtils.sendLog(strings.getString("unknownsizeident"));
+                    limit = bytes;
+                }
+            } else {
+                LogUtils.sendDebug("Max Backups: Unknown (M:0012)");
+                LogUtils.sendLog(strings.getString("checksizelimit"));
+            }
+        }
+        this.backupLimit = limit;
+        this.sizeLimit = isSize;
+
+        // Compile the extra stripe targets, "backuppath" is always the first.
+        this.stripePaths = compilePaths("stripepaths");
+        this.mirrorPaths = compilePaths("mirrorpaths");
+        this.tiers = compileTiers(tierNames, strings);
+    }
+
+    private List<String> compilePaths(String property) {
+        List<String> paths = new ArrayList<String>();
+        for (String path : getStringProperty(property, "").split(";")) {
+            if (!path.trim().isEmpty()) {
+                paths.add(path.trim());
+            }
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    private List<BackupTier> compileTiers(Set<String> tierNames, Strings strings) {
+        List<BackupTier> compiled = new ArrayList<BackupTier>();
+        for (String name : tierNames) {
+            BackupTier tier = BackupTier.compile(this, name);
+            if (tier != null) {
+                compiled.add(tier);
+            } else {
+                LogUtils.sendLog(strings.getString("checktier", name));
+            }
+        }
+        return Collections.unmodifiableList(compiled);
+    }
+
+    /**
+     * Gets the value of a integer property.
+     *
+     * @param property The name of the property.
+     * @param defaultInt Set the default value of the integer.
+     * @return The value of the property.
+     */
+    public int getIntProperty(String property, int defaultInt) {
+        Integer value = intValues.get(property);
+        return (value != null) ? value : defaultInt;
+    }
+
+    /**
+     * Gets the value of a boolean property.
+     *
+     * @param property The name of the property.
+     * @param defaultBool Set the default value of the boolean.
+     * @return The value of the property.
+     */
+    public boolean getBooleanProperty(String property, boolean defaultBool) {
+        Boolean value = booleanValues.get(property);
+        return (value != null) ? value : defaultBool;
+    }
+
+    /**
+     * Gets a value of the string property.
+     *
+     * @param property The name of the property.
+     * @param defaultString Set the default value of the string.
+     * @return The value of the property.
+     */
+    public String getStringProperty(String property, String defaultString) {
+        String value = stringValues.get(property);
+        return (value != null) ? value : defaultString;
+    }
+
+    /**
+     * @return Where backups are kept, from "backuppath".
+     */
+    public String getBackupPath() {
+        return backupPath;
+    }
+
+    /**
+     * @return The temp folder set by "tempfoldername", or empty for the one
+     * in "backuppath".
+     */
+    public String getTempFolderName() {
+        return tempFolderName;
+    }
+
+    /**
+     * @return Where old backups are moved to, from "coldpath", or empty if
+     * they are not.
+     */
+    public String getColdPath() {
+        return coldPath;
+    }
+
+    /**
+     * @return True if backups are zipped, from "zipbackup".
+     */
+    public boolean isZipBackup() {
+        return zipBackup;
+    }
+
+    /**
+     * @return True if files are copied to a temp folder before they are
+     * archived, from "usetemp".
+     */
+    public boolean isUsingTemp() {
+        return usingTemp;
+    }
+
+    /**
+     * @return True if worlds are backed up, from "backupworlds".
+     */
+    public boolean isBackupWorlds() {
+        return backupWorlds;
+    }
+
+    /**
+     * @return True if plugins are backed up, from "backupplugins".
+     */
+    public boolean isBackupPlugins() {
+        return backupPlugins;
+    }
+
+    /**
+     * @return True if the whole server folder is backed up, from
+     * "backupeverything".
+     */
+    public boolean isBackupEverything() {
+        return backupEverything;
+    }
+
+    /**
+     * @return True if old backups are consolidated while the server is quiet,
+     * from "consolidatebackups".
+     */
+    public boolean isConsolidateBackups() {
+        return consolidateBackups;
+    }
+
+    /**
+     * The backup limit, from "maxbackups".
+     *
+     * @return The number of backups, or bytes if {@link #isSizeLimit()}. 0 if
+     * disabled.
+     */
+    public long getBackupLimit() {
+        return backupLimit;
+    }
+
+    /**
+     * @return True if the backup limit is a total size, rather than an amount.
+     */
+    public boolean isSizeLimit() {
+        return sizeLimit;
+    }
+
+    /**
+     * The directories backups are striped across, from "stripepaths".
+     *
+     * @return The extra directories, not including "backuppath".
+     */
+    public List<String> getStripePaths() {
+        return stripePaths;
+    }
+
+    /**
+     * The directories each archive is also written to, from "mirrorpaths".
+     *
+     * @return The mirror directories.
+     */
+    public List<String> getMirrorPaths() {
+        return mirrorPaths;
+    }
+
+    /**
+     * The extra schedules for parts of each world, from "tiers".
+     *
+     * @return The tiers, by name.
+     */
+    public List<BackupTier> getTiers() {
+        return tiers;
+    }
+
+    /**
+     * Striping needs the worlds and plugins as separate parts, so it does not
+     * apply to "backupeverything", and replaces "splitbackup".
+     *
+     * @return True if backups are striped across several directories.
+     */
+    public boolean isStriped() {
+        return !stripePaths.isEmpty() && !backupEverything;
+    }
+
+    /**
+     * @return True if worlds and plugins are each archived on their own.
+     */
+    public boolean isSplitBackup() {
+        return splitBackup && !isStriped();
+    }
+}
@@ -15,7 +15,7 @@ import org.bukkit.configuration.file.YamlConfiguration;
 public class Strings {
 
     private final File stringsFile;
-    private FileConfiguration strings;
+    private volatile FileConfiguration strings;
 
     /**
      * Loads the strings configuration file. If it does not exist, it creates it
@@ -57,18 +57,34 @@ public class Strings {
         }
     }
 
+    /**
+     * Re-read the strings file.
+     */
+    public void reload() {
+        loadStrings();
+    }
+
     /**
      * Load strings configuration into memory from file.
      */
     private void loadStrings() {
-        strings = new YamlConfiguration();
+        FileConfiguration loaded = new YamlConfiguration();
         try {
-            strings.load(stringsFile);
+            loaded.load(stringsFile);
         } catch (IOException e) {
             LogUtils.exceptionLog(e, "Error loading strings file.");
+            if (strings != null) {
+                return;
+            }
         } catch (InvalidConfigurationException e) {
             LogUtils.exceptionLog(e, "Error loading strings file.");
+            if (strings != null) {
+                return;
+            }
         }
+
+        // Swap in the strings, keeping the old ones if a reload failed.
+        strings = loaded;
     }
 
     /**
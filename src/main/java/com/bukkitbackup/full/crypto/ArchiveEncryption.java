@@ -0,0 +1,213 @@
+package com.bukkitbackup.full.crypto;
+
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The encryption of one backup. A new data key is made for the backup, and
+ * every ZIP written for it is encrypted with that key as it is written. The
+ * data key is kept, wrapped with the key file, in the header of each ZIP.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ArchiveEncryption {
+
+    // Enough to get AES-GCM compiled, which a backup would otherwise pay for.
+    private static final int WARM_UP_SEGMENTS = 64;
+    private static final AtomicBoolean warmedUp = new AtomicBoolean();
+
+    private final ArchiveKey key;
+    private final SecretKey dataKey;
+    private final byte[] wrappedKey;
+    private final int threads;
+    private final ExecutorService encrypters;
+    private final AtomicLong encryptNanos = new AtomicLong();
+    private final AtomicLong encryptBytes = new AtomicLong();
+
+    /**
+     * @param key The key from the key file.
+     * @param threads The number of threads to encrypt on.
+     * @throws IOException If a data key cannot be made.
+     */
+    public ArchiveEncryption(ArchiveKey key, int threads) throws IOException {
+        this.key = key;
+        this.threads = Math.max(1, threads);
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(ArchiveKey.KEY_BYTES * 8);
+            this.dataKey = generator.generateKey();
+            this.wrappedKey = key.wrap(dataKey);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Failed to make a data key.", gse);
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.encrypters = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup-Encrypt-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Load the key file set by "encryptionkeyfile", if "encryptbackups" is
+     * on. A new key file is made if there is none.
+     *
+     * @param settings The settings.
+     * @param dataFolder The plugin data folder, for a relative key file.
+     * @param strings The strings.
+     * @return The key, or null if backups are not encrypted.
+     * @throws IOException If backups are encrypted, but the key file cannot
+     * be read or made.
+     */
+    public static ArchiveKey loadKey(SettingsSnapshot settings, File dataFolder, Strings strings) throws IOException {
+        if (!settings.getBooleanProperty("encryptbackups", false)) {
+            return null;
+        }
+        File keyFile = getKeyFile(settings, dataFolder);
+        boolean existed = keyFile.exists();
+        ArchiveKey key = ArchiveKey.load(keyFile, true);
+        if (!existed) {
+            LogUtils.sendLog(strings.getString("encryptionkeycreated", keyFile.getPath()));
+        }
+        if (!warmedUp.get()) {
+            Thread warmUp = new Thread(new Runnable() {
+                public void run() {
+                    warmUp();
+                }
+            }, "Backup-Encrypt-WarmUp");
+            warmUp.setDaemon(true);
+            warmUp.setPriority(Thread.MIN_PRIORITY);
+            warmUp.start();
+        }
+        return key;
+    }
+
+    /**
+     * Encrypt throwaway data until AES-GCM is compiled. Until then it runs at
+     * a few percent of its compiled speed, so without this the first backup
+     * after a restart takes far longer encrypted. Only the first call does
+     * anything.
+     */
+    public static void warmUp() {
+        if (!warmedUp.compareAndSet(false, true)) {
+            return;
+        }
+        long started = System.nanoTime();
+        ExecutorService encrypter = Executors.newSingleThreadExecutor();
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(ArchiveKey.KEY_BYTES * 8);
+            OutputStream out = new EncryptedOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }, generator.generateKey(), new byte[ArchiveKey.FINGERPRINT_BYTES], new byte[0], encrypter, 2, new AtomicLong(), new AtomicLong());
+            byte[] segment = new byte[EncryptedOutputStream.SEGMENT_SIZE];
+            for (int i = 0; i < WARM_UP_SEGMENTS; i++) {
+                out.write(segment);
+            }
+            out.close();
+            LogUtils.sendDebug("Encryption warmed up in %d ms. (M:0040)", (System.nanoTime() - started) / 1000000L);
+        } catch (GeneralSecurityException gse) {
+            LogUtils.exceptionLog(gse, "Failed to warm up encryption.");
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to warm up encryption.");
+        } finally {
+            encrypter.shutdownNow();
+        }
+    }
+
+    private static File getKeyFile(SettingsSnapshot settings, File dataFolder) {
+        File keyFile = new File(settings.getStringProperty("encryptionkeyfile", "backup.key").trim());
+        return keyFile.isAbsolute() ? keyFile : new File(dataFolder, keyFile.getPath());
+    }
+
+    /**
+     * @param out The stream to write the encrypted archive to.
+     * @return A stream which encrypts what is written to it.
+     * @throws IOException If the header cannot be written.
+     */
+    public OutputStream encrypt(OutputStream out) throws IOException {
+        return new EncryptedOutputStream(out, dataKey, key.getFingerprint(), wrappedKey, encrypters, threads * 2, encryptNanos, encryptBytes);
+    }
+
+    /**
+     * Stop the encryption threads, and note how long encryption took.
+     */
+    public void finish() {
+        encrypters.shutdownNow();
+        long nanos = encryptNanos.get();
+        if (nanos > 0) {
+            long bytesPerSecond = (long) (encryptBytes.get() * 1000000000D / nanos);
+            LogUtils.sendDebug("Encrypted %d bytes in %d ms of thread time, %d bytes/s per thread, on %d thread(s). (M:0030)",
+                    encryptBytes.get(), nanos / 1000000L, bytesPerSecond, threads);
+        }
+    }
+
+    /**
+     * Open an archive for reading, decrypting it if it is encrypted.
+     *
+     * @param archive The archive.
+     * @param key The key from the key file, or null if there is none.
+     * @return The contents of the archive.
+     * @throws IOException If the archive cannot be read, or is encrypted and
+     * cannot be decrypted.
+     */
+    public static InputStream openArchive(File archive, ArchiveKey key) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(archive));
+        try {
+            if (!isEncrypted(in)) {
+                return in;
+            }
+            if (key == null) {
+                throw new IOException("The archive is encrypted, and there is no key file.");
+            }
+            return new EncryptedInputStream(in, key);
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @param in A stream which supports mark, at the start of an archive.
+     * @return True if the archive is encrypted. The stream is not moved.
+     */
+    private static boolean isEncrypted(InputStream in) throws IOException {
+        in.mark(4);
+        try {
+            return new DataInputStream(in).readInt() == EncryptedOutputStream.MAGIC;
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+}
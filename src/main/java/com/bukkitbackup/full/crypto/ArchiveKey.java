@@ -0,0 +1,175 @@
+package com.bukkitbackup.full.crypto;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The key in the key file. It never encrypts archives itself: each backup
+ * gets a new data key, which is wrapped with this key and stored in the
+ * header of every archive. Losing the key file loses every encrypted backup.
+ *
+ * The file holds the key as one line of hex. Lines starting with '#' are
+ * ignored.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class ArchiveKey {
+
+    public static final int KEY_BYTES = 32;
+    public static final int FINGERPRINT_BYTES = 8;
+
+    private final SecretKey key;
+    private final byte[] fingerprint;
+
+    private ArchiveKey(byte[] keyBytes) throws IOException {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+            this.fingerprint = Arrays.copyOf(digest, FINGERPRINT_BYTES);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("SHA-256 is not available.", gse);
+        }
+    }
+
+    /**
+     * Read the key file, or create it with a new random key.
+     *
+     * @param keyFile The key file.
+     * @param create True to create the file if it does not exist.
+     * @return The key.
+     * @throws IOException If the file cannot be read or written, or is not a
+     * key file.
+     */
+    public static ArchiveKey load(File keyFile, boolean create) throws IOException {
+        if (!keyFile.exists() && create) {
+            byte[] keyBytes = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(keyBytes);
+            write(keyFile, keyBytes);
+            return new ArchiveKey(keyBytes);
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    byte[] keyBytes = fromHex(line);
+                    if (keyBytes == null || keyBytes.length != KEY_BYTES) {
+                        throw new IOException("Not a valid key: " + keyFile);
+                    }
+                    return new ArchiveKey(keyBytes);
+                }
+            }
+            throw new IOException("No key found in: " + keyFile);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return A new random key, which is not written to a file.
+     * @throws IOException If the key cannot be made.
+     */
+    static ArchiveKey generate() throws IOException {
+        byte[] keyBytes = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(keyBytes);
+        return new ArchiveKey(keyBytes);
+    }
+
+    private static void write(File keyFile, byte[] keyBytes) throws IOException {
+        File parent = keyFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        // Readable by the owner only, before the key goes in.
+        keyFile.createNewFile();
+        keyFile.setReadable(false, false);
+        keyFile.setWritable(false, false);
+        keyFile.setReadable(true, true);
+        keyFile.setWritable(true, true);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(keyFile), "UTF-8");
+        try {
+            writer.write("# Backup archive key. Keep a copy somewhere safe, away from the backups.\n");
+            writer.write("# Without it, encrypted backups cannot be restored.\n");
+            writer.write(toHex(keyBytes));
+            writer.write("\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return The first bytes of the SHA-256 of the key, to tell keys apart.
+     */
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    /**
+     * @param dataKey The data key of a backup.
+     * @return The data key, encrypted with this key.
+     * @throws GeneralSecurityException If it cannot be wrapped.
+     */
+    public byte[] wrap(SecretKey dataKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.WRAP_MODE, key);
+        return cipher.wrap(dataKey);
+    }
+
+    /**
+     * @param wrappedKey A data key from an archive header.
+     * @return The data key.
+     * @throws GeneralSecurityException If it was not wrapped with this key.
+     */
+    public SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.UNWRAP_MODE, key);
+        Key unwrapped = cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+        return (SecretKey) unwrapped;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
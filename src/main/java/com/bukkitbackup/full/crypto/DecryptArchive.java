@@ -0,0 +1,63 @@
+package com.bukkitbackup.full.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Decrypts an encrypted backup to a plain ZIP, to restore it. This runs
+ * without the server, as the server may be what needs restoring:
+ *
+ * java -cp Backup.jar com.bukkitbackup.full.crypto.DecryptArchive
+ * [key file] [encrypted ZIP] [output ZIP]
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class DecryptArchive {
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: DecryptArchive <key file> <encrypted ZIP> <output ZIP>");
+            System.exit(2);
+        }
+        File output = new File(args[2]);
+        try {
+            decrypt(ArchiveKey.load(new File(args[0]), false), new File(args[1]), output);
+            System.out.println("Decrypted to " + output.getPath());
+        } catch (IOException ioe) {
+            output.delete();
+            System.err.println("Failed to decrypt: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param key The key from the key file.
+     * @param archive The encrypted archive.
+     * @param output The file to write the plain archive to.
+     * @throws IOException If the archive cannot be read, or fails to decrypt.
+     */
+    public static void decrypt(ArchiveKey key, File archive, File output) throws IOException {
+        InputStream in = new EncryptedInputStream(new FileInputStream(archive), key);
+        try {
+            OutputStream out = new FileOutputStream(output);
+            try {
+                byte[] buffer = new byte[EncryptedOutputStream.SEGMENT_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
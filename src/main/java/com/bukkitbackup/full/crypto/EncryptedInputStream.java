@@ -0,0 +1,160 @@
+package com.bukkitbackup.full.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Decrypts an archive written by {@link EncryptedOutputStream} as it is
+ * read. Each segment is checked before any of it is returned, and the
+ * stream fails if a segment was changed, moved or removed.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class EncryptedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final SecretKey dataKey;
+    private final byte[] header;
+    private final byte[] noncePrefix;
+    private final int segmentSize;
+    private byte[] segment = new byte[0];
+    private int segmentPosition = 0;
+    private int segmentNumber = 0;
+    private int nextLength;
+    private boolean finished = false;
+
+    /**
+     * Read the header of an archive, and unwrap its data key.
+     *
+     * @param in The encrypted archive.
+     * @param key The key from the key file.
+     * @throws IOException If it is not an encrypted archive, or was encrypted
+     * with another key.
+     */
+    public EncryptedInputStream(InputStream in, ArchiveKey key) throws IOException {
+        this.in = new DataInputStream(in);
+        if (this.in.readInt() != EncryptedOutputStream.MAGIC) {
+            throw new IOException("Not an encrypted archive.");
+        }
+        segmentSize = this.in.readInt();
+        byte[] fingerprint = new byte[ArchiveKey.FINGERPRINT_BYTES];
+        this.in.readFully(fingerprint);
+        byte[] wrappedKey = new byte[this.in.readUnsignedShort()];
+        this.in.readFully(wrappedKey);
+        noncePrefix = new byte[EncryptedOutputStream.NONCE_PREFIX_BYTES];
+        this.in.readFully(noncePrefix);
+
+        if (!Arrays.equals(fingerprint, key.getFingerprint())) {
+            throw new IOException("The archive was encrypted with another key (" + ArchiveKey.toHex(fingerprint) + ").");
+        }
+        try {
+            dataKey = key.unwrap(wrappedKey);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("The data key of the archive could not be unwrapped.", gse);
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(headerBytes);
+        headerOut.writeInt(EncryptedOutputStream.MAGIC);
+        headerOut.writeInt(segmentSize);
+        headerOut.write(fingerprint);
+        headerOut.writeShort(wrappedKey.length);
+        headerOut.write(wrappedKey);
+        headerOut.write(noncePrefix);
+        headerOut.close();
+        header = headerBytes.toByteArray();
+
+        nextLength = readLength();
+        if (nextLength < 0) {
+            throw new IOException("The archive has no segments, it was cut short.");
+        }
+    }
+
+    /**
+     * @return The length of the next segment, or -1 at the end of the file.
+     */
+    private int readLength() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return -1;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < 0 || length > segmentSize + EncryptedOutputStream.TAG_BITS / 8) {
+            throw new IOException("Corrupt segment length in the archive.");
+        }
+        return length;
+    }
+
+    /**
+     * Read and decrypt the next segment. It is the last if nothing follows.
+     *
+     * @return False at the end of the archive.
+     */
+    private boolean nextSegment() throws IOException {
+        if (finished) {
+            return false;
+        }
+        byte[] sealed = new byte[nextLength];
+        try {
+            in.readFully(sealed);
+        } catch (EOFException eofe) {
+            throw new IOException("The archive was cut short.", eofe);
+        }
+        nextLength = readLength();
+        boolean last = nextLength < 0;
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(EncryptedOutputStream.TAG_BITS,
+                    EncryptedOutputStream.nonce(noncePrefix, segmentNumber)));
+            cipher.updateAAD(header);
+            cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+            segment = cipher.doFinal(sealed);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Segment " + segmentNumber + " of the archive failed to decrypt, it is corrupt or cut short.", gse);
+        }
+        segmentPosition = 0;
+        segmentNumber++;
+        finished = last;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (segmentPosition == segment.length) {
+            if (!nextSegment()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, segment.length - segmentPosition);
+        System.arraycopy(segment, segmentPosition, b, off, count);
+        segmentPosition += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,285 @@
+package com.bukkitbackup.full.crypto;
+
+import com.bukkitbackup.full.archive.ArchiveCodec;
+import com.bukkitbackup.full.archive.ArchiveFormat;
+import com.bukkitbackup.full.archive.ArchiveOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Measures what "encryptbackups" costs. The samples are zipped as a backup
+ * would zip them, with and without encryption, in many short passes
+ * taking turns, and the total time of each is compared. Only encryption is
+ * warmed up first, as the plugin does when it loads the key, so the first
+ * backup after a restart is counted too. Encryption should add no more than
+ * a few percent.
+ *
+ * With no folders, the same made up region files are used on every run, so
+ * hosts can be compared. Run it on the server host, with the server stopped:
+ *
+ * java -cp Backup.jar com.bukkitbackup.full.crypto.EncryptionBenchmark [folder]...
+ *
+ * It exits with 1 if encryption costs more than the target.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class EncryptionBenchmark {
+
+    public static final double TARGET_PERCENT = 5D;
+
+    private static final int ROUNDS = 41;
+    private static final long BATCH_BYTES = 16L * 1024L * 1024L;
+    private static final long SYNTHETIC_SEED = 20261019L;
+    private static final int SYNTHETIC_FILES = 16;
+    private static final int CHUNKS_PER_REGION = 256;
+    private static final int CHUNK_BYTES = 24 * 1024;
+    private static final int SECTOR_BYTES = 4096;
+
+    // More than this is unlikely to fit in memory beside the JVM.
+    private static final long MAX_SAMPLE_BYTES = 1024L * 1024L * 1024L;
+
+    public static void main(String[] args) {
+        try {
+            List<byte[]> samples = new ArrayList<byte[]>();
+            long sampleBytes = 0L;
+            for (String arg : args) {
+                File folder = new File(arg);
+                if (!folder.isDirectory()) {
+                    throw new IOException("Not a folder: " + folder.getPath());
+                }
+                sampleBytes += readSamples(folder, samples);
+                if (sampleBytes > MAX_SAMPLE_BYTES) {
+                    throw new IOException("The samples are over 1 GB, use a smaller folder.");
+                }
+            }
+            if (args.length == 0) {
+                sampleBytes = makeSamples(samples);
+            }
+            if (sampleBytes == 0) {
+                throw new IOException("The folders have nothing in them.");
+            }
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            ArchiveKey key = ArchiveKey.generate();
+            ArchiveFormat format = new ArchiveFormat(ArchiveCodec.ZIP, Deflater.DEFAULT_COMPRESSION, 1);
+            System.out.println(String.format("%d file(s), %.1f MB, %d thread(s), %s.", samples.size(), sampleBytes / 1048576D, threads,
+                    (args.length == 0) ? "made up samples" : "samples from disk"));
+
+            long warmUpStarted = System.nanoTime();
+            ArchiveEncryption.warmUp();
+            System.out.println(String.format("Warmed up encryption in %d ms.", (System.nanoTime() - warmUpStarted) / 1000000L));
+
+            // Short passes taking turns, so a host which speeds up and slows
+            // down, as shared ones do, slows both alike.
+            List<List<byte[]>> batches = batch(samples);
+            long plainNanos = 0L;
+            long encryptedNanos = 0L;
+            long passBytes = 0L;
+            for (int round = 0; round < ROUNDS; round++) {
+                List<byte[]> batch = batches.get(round % batches.size());
+                if (round % 2 == 0) {
+                    plainNanos += archive(format, batch, null);
+                }
+                ArchiveEncryption encryption = new ArchiveEncryption(key, threads);
+                try {
+                    encryptedNanos += archive(format, batch, encryption);
+                } finally {
+                    encryption.finish();
+                }
+                if (round % 2 != 0) {
+                    plainNanos += archive(format, batch, null);
+                }
+                for (byte[] sample : batch) {
+                    passBytes += sample.length;
+                }
+            }
+            long encryptOnlyNanos = encryptOnly(samples, key, threads);
+            double overhead = (encryptedNanos - plainNanos) * 100D / plainNanos;
+            System.out.println(String.format("%-10s %10s %10s", "Pass", "MB/s", "ms"));
+            System.out.println(String.format("%-10s %10.1f %10d", "zip", rate(passBytes, plainNanos), plainNanos / 1000000L));
+            System.out.println(String.format("%-10s %10.1f %10d", "zip+gcm", rate(passBytes, encryptedNanos), encryptedNanos / 1000000L));
+            System.out.println(String.format("%-10s %10.1f %10d", "gcm", rate(sampleBytes, encryptOnlyNanos), encryptOnlyNanos / 1000000L));
+            System.out.println(String.format("Overhead: %.1f%%, target %.1f%%: %s.", overhead, TARGET_PERCENT,
+                    (overhead <= TARGET_PERCENT) ? "met" : "NOT met"));
+            if (overhead > TARGET_PERCENT) {
+                System.exit(1);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Failed to run the benchmark: " + ioe.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Make the same region-like files on every run. Like real region files,
+     * they are mostly deflated chunks in 4 KB sectors, so they barely
+     * compress again, and zipping them is as fast as it gets.
+     *
+     * @return How many bytes were made.
+     */
+    private static long makeSamples(List<byte[]> samples) {
+        Random random = new Random(SYNTHETIC_SEED);
+        Deflater deflater = new Deflater();
+        byte[] chunk = new byte[CHUNK_BYTES];
+        byte[] compressed = new byte[CHUNK_BYTES * 2];
+        long total = 0L;
+        for (int i = 0; i < SYNTHETIC_FILES; i++) {
+            ByteArrayOutputStream region = new ByteArrayOutputStream();
+            region.write(new byte[SECTOR_BYTES * 2], 0, SECTOR_BYTES * 2); // Offsets and timestamps.
+            for (int c = 0; c < CHUNKS_PER_REGION; c++) {
+                // Mostly small values from a narrow range, with runs of zeros.
+                int position = 0;
+                while (position < chunk.length) {
+                    int run = Math.min(chunk.length - position, 16 + random.nextInt(512));
+                    boolean zeros = random.nextInt(3) == 0;
+                    for (int j = 0; j < run; j++) {
+                        chunk[position + j] = zeros ? 0 : (byte) random.nextInt(48);
+                    }
+                    position += run;
+                }
+                deflater.reset();
+                deflater.setInput(chunk);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                region.write(compressed, 0, length);
+                region.write(new byte[SECTOR_BYTES], 0, SECTOR_BYTES - length % SECTOR_BYTES);
+            }
+            samples.add(region.toByteArray());
+            total += region.size();
+        }
+        deflater.end();
+        return total;
+    }
+
+    /**
+     * Read every file in a folder into memory.
+     *
+     * @return How many bytes were read.
+     */
+    private static long readSamples(File folder, List<byte[]> samples) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + folder.getPath());
+        }
+        long total = 0L;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                total += readSamples(file, samples);
+                continue;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            samples.add(content.toByteArray());
+            total += content.size();
+        }
+        return total;
+    }
+
+    /**
+     * @return How long encrypting the samples alone took, in nanoseconds.
+     */
+    private static long encryptOnly(List<byte[]> samples, ArchiveKey key, int threads) throws IOException {
+        ArchiveEncryption encryption = new ArchiveEncryption(key, threads);
+        try {
+            long started = System.nanoTime();
+            OutputStream out = encryption.encrypt(new CountingOutputStream());
+            try {
+                for (byte[] sample : samples) {
+                    out.write(sample);
+                }
+            } finally {
+                out.close();
+            }
+            return System.nanoTime() - started;
+        } finally {
+            encryption.finish();
+        }
+    }
+
+    /**
+     * Split the samples into batches of about BATCH_BYTES each.
+     */
+    private static List<List<byte[]>> batch(List<byte[]> samples) {
+        List<List<byte[]>> batches = new ArrayList<List<byte[]>>();
+        List<byte[]> batch = new ArrayList<byte[]>();
+        long batchBytes = 0L;
+        for (byte[] sample : samples) {
+            batch.add(sample);
+            batchBytes += sample.length;
+            if (batchBytes >= BATCH_BYTES) {
+                batches.add(batch);
+                batch = new ArrayList<byte[]>();
+                batchBytes = 0L;
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return bytes / 1048576D / (nanos / 1e9D);
+    }
+
+    /**
+     * @return How long archiving the samples took, in nanoseconds.
+     */
+    private static long archive(ArchiveFormat format, List<byte[]> samples, ArchiveEncryption encryption) throws IOException {
+        long started = System.nanoTime();
+        OutputStream target = new CountingOutputStream();
+        if (encryption != null) {
+            target = encryption.encrypt(target);
+        }
+        ArchiveOutputStream out = format.open(target);
+        try {
+            int number = 0;
+            for (byte[] sample : samples) {
+                out.putNextEntry("sample/r." + number++ + ".mca", 0L, sample.length, true);
+                out.write(sample);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return System.nanoTime() - started;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        long count = 0L;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
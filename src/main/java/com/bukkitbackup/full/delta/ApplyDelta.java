@@ -0,0 +1,121 @@
+package com.bukkitbackup.full.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Rebuilds a file from the version before it and a delta, to restore it.
+ * A file backed up as deltas is restored by taking the full copy from the
+ * first backup of its chain, then applying the delta from each later backup
+ * in order. This runs without the server:
+ *
+ * java -cp Backup.jar com.bukkitbackup.full.delta.ApplyDelta
+ * [old version] [delta] [new version]
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ApplyDelta {
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: ApplyDelta <old version> <delta> <new version>");
+            System.exit(2);
+        }
+        File output = new File(args[2]);
+        try {
+            InputStream delta = new FileInputStream(args[1]);
+            try {
+                apply(new File(args[0]), delta, output);
+            } finally {
+                delta.close();
+            }
+            System.out.println("Rebuilt " + output.getPath());
+        } catch (IOException ioe) {
+            output.delete();
+            System.err.println("Failed to apply the delta: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param base The version the delta was made against.
+     * @param deltaIn The delta.
+     * @param output The file to write the new version to.
+     * @throws IOException If the delta is corrupt, is for another version,
+     * or the new version does not match its checksum.
+     */
+    public static void apply(File base, InputStream deltaIn, File output) throws IOException {
+        DataInputStream delta = new DataInputStream(new BufferedInputStream(deltaIn));
+        if (delta.readInt() != DeltaEncoder.MAGIC) {
+            throw new IOException("Not a delta file.");
+        }
+        delta.readUTF(); // The path, for people.
+        int blockSize = delta.readInt();
+        long baseLength = delta.readLong();
+        byte[] baseSha256 = new byte[32];
+        delta.readFully(baseSha256);
+
+        RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+        MessageDigest sha256 = DeltaSignature.digest("SHA-256");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+        try {
+            if (baseFile.length() != baseLength) {
+                throw new IOException("The delta is for a " + baseLength + " byte version, not this " + baseFile.length() + " byte one.");
+            }
+            byte[] buffer = new byte[Math.max(blockSize, 64 * 1024)];
+            long written = 0L;
+            while (true) {
+                int op = delta.readUnsignedByte();
+                if (op == DeltaEncoder.OP_END) {
+                    long newLength = delta.readLong();
+                    byte[] newSha256 = new byte[32];
+                    delta.readFully(newSha256);
+                    if (written != newLength || !Arrays.equals(sha256.digest(), newSha256)) {
+                        throw new IOException("The rebuilt file does not match, the delta or old version is wrong.");
+                    }
+                    return;
+                } else if (op == DeltaEncoder.OP_COPY) {
+                    long from = (long) delta.readInt() * blockSize;
+                    long count = Math.min((long) delta.readInt() * blockSize, baseLength - from);
+                    baseFile.seek(from);
+                    while (count > 0) {
+                        int chunk = (int) Math.min(buffer.length, count);
+                        baseFile.readFully(buffer, 0, chunk);
+                        out.write(buffer, 0, chunk);
+                        sha256.update(buffer, 0, chunk);
+                        count -= chunk;
+                        written += chunk;
+                    }
+                } else if (op == DeltaEncoder.OP_LITERAL) {
+                    int count = delta.readInt();
+                    while (count > 0) {
+                        int chunk = Math.min(buffer.length, count);
+                        delta.readFully(buffer, 0, chunk);
+                        out.write(buffer, 0, chunk);
+                        sha256.update(buffer, 0, chunk);
+                        count -= chunk;
+                        written += chunk;
+                    }
+                } else {
+                    throw new IOException("Corrupt delta, unknown operation " + op + ".");
+                }
+            }
+        } finally {
+            out.close();
+            baseFile.close();
+        }
+    }
+}
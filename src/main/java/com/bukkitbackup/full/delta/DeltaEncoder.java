@@ -0,0 +1,258 @@
+package com.bukkitbackup.full.delta;
+
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupProgress;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes a new version of a file as changes to the version a signature was
+ * made from, in the way rsync does. A window the size of a block is rolled
+ * over the new version a byte at a time; where its weak checksum and MD5
+ * match a block of the old version, the block is copied, and everything
+ * between matches is stored as it is.
+ *
+ * Layout: "BDL1", the path, the block size, the length and SHA-256 of the
+ * old version, then operations: copy [first block][block count], literal
+ * [length][bytes], and end [new length][SHA-256 of the new version].
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class DeltaEncoder {
+
+    public static final String DELTA_EXTENSION = ".bdelta";
+    static final int MAGIC = 0x42444C31; // "BDL1"
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_LITERAL = 2;
+
+    // Literal runs are written in pieces of at most this size.
+    private static final int LITERAL_CHUNK = 256 * 1024;
+    private static final int READ_CHUNK = 1024 * 1024;
+
+    private final DeltaSignature base;
+    private final int blockSize;
+    private final Map<Integer, Integer> firstBlockByWeak;
+    private final int[] nextBlockSameWeak;
+    private final MessageDigest md5 = DeltaSignature.digest("MD5");
+
+    private DataOutputStream out;
+    private int copyFirst = -1;
+    private int copyCount = 0;
+    private long literalBytes = 0L;
+
+    /**
+     * @param base The signature of the old version.
+     */
+    public DeltaEncoder(DeltaSignature base) {
+        this.base = base;
+        this.blockSize = base.getBlockSize();
+
+        // Only whole blocks can match a full window.
+        int blocks = base.getBlockCount();
+        if (blocks > 0 && base.getLength() % blockSize != 0) {
+            blocks--;
+        }
+        firstBlockByWeak = new HashMap<Integer, Integer>(blocks * 2);
+        nextBlockSameWeak = new int[blocks];
+        for (int block = blocks - 1; block >= 0; block--) {
+            Integer previous = firstBlockByWeak.put(base.getWeak(block), block);
+            nextBlockSameWeak[block] = (previous != null) ? previous : -1;
+        }
+    }
+
+    /**
+     * @return How many bytes of the last delta were stored as they are.
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * Write the delta of a new version of the file.
+     *
+     * @param in The new version.
+     * @param deltaOut The stream to write the delta to.
+     * @param next Gets every byte of the new version, for its signature.
+     * @throws IOException If the file cannot be read, or the delta written.
+     */
+    public void encode(InputStream in, OutputStream deltaOut, DeltaSignature.Builder next) throws IOException {
+        out = new DataOutputStream(deltaOut);
+        literalBytes = 0L;
+        writeHeader();
+
+        MessageDigest sha256 = DeltaSignature.digest("SHA-256");
+        byte[] buffer = new byte[Math.max(4 * READ_CHUNK, 2 * blockSize + LITERAL_CHUNK + READ_CHUNK)];
+        int literalStart = 0; // Start of bytes not yet written.
+        int start = 0; // Start of the window.
+        int end = 0; // End of the data read.
+        boolean eof = false;
+        long newLength = 0L;
+        int a = 0;
+        int b = 0;
+        boolean windowSummed = false;
+        int expectedBlock = 0;
+
+        while (true) {
+            // Need a whole window, and the byte after it to roll.
+            if (end - start <= blockSize && !eof) {
+                if (start - literalStart > 0) {
+                    writeLiteral(buffer, literalStart, start - literalStart);
+                    literalStart = start;
+                }
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                literalStart = 0;
+                while (end < buffer.length && !eof) {
+                    BackupJob.checkCancelled();
+                    int read = in.read(buffer, end, Math.min(READ_CHUNK, buffer.length - end));
+                    if (read < 0) {
+                        eof = true;
+                    } else {
+                        next.update(buffer, end, read);
+                        sha256.update(buffer, end, read);
+                        BackupProgress.addBytes(read);
+                        newLength += read;
+                        end += read;
+                    }
+                }
+            }
+            if (end - start < blockSize) {
+                break;
+            }
+
+            if (!windowSummed) {
+                int sum = DeltaSignature.weakSum(buffer, start, blockSize);
+                a = sum & 0xFFFF;
+                b = sum >>> 16;
+                windowSummed = true;
+            }
+
+            int match = findMatch((a & 0xFFFF) | (b << 16), buffer, start, expectedBlock);
+            if (match >= 0) {
+                if (start > literalStart) {
+                    writeLiteral(buffer, literalStart, start - literalStart);
+                }
+                writeCopy(match);
+                expectedBlock = match + 1;
+                start += blockSize;
+                literalStart = start;
+                windowSummed = false;
+                continue;
+            }
+
+            // Keep literals to a bounded size, so the buffer can always be refilled.
+            if (start - literalStart >= LITERAL_CHUNK) {
+                writeLiteral(buffer, literalStart, start - literalStart);
+                literalStart = start;
+            }
+            if (end - start == blockSize) { // At the end of the file.
+                break;
+            }
+            int outByte = buffer[start] & 0xFF;
+            int inByte = buffer[start + blockSize] & 0xFF;
+            a += inByte - outByte;
+            b += a - blockSize * outByte;
+            start++;
+        }
+
+        // Whatever is left did not match.
+        if (end > literalStart) {
+            writeLiteral(buffer, literalStart, end - literalStart);
+        }
+        flushCopy();
+        out.writeByte(OP_END);
+        out.writeLong(newLength);
+        out.write(sha256.digest());
+        out.flush();
+    }
+
+    private void writeHeader() throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(base.getPath());
+        out.writeInt(blockSize);
+        out.writeLong(base.getLength());
+        out.write(base.getSha256());
+    }
+
+    /**
+     * @return The block of the old version the window matches, preferring
+     * the one after the last match, or -1.
+     */
+    private int findMatch(int weak, byte[] buffer, int start, int expectedBlock) {
+        Integer first = firstBlockByWeak.get(weak);
+        if (first == null) {
+            return -1;
+        }
+        md5.update(buffer, start, blockSize);
+        byte[] digest = md5.digest();
+        if (expectedBlock < nextBlockSameWeak.length && base.getWeak(expectedBlock) == weak
+                && base.strongEquals(expectedBlock, digest)) {
+            return expectedBlock;
+        }
+        for (int block = first; block >= 0; block = nextBlockSameWeak[block]) {
+            if (base.strongEquals(block, digest)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void writeCopy(int block) throws IOException {
+        if (copyCount > 0 && copyFirst + copyCount == block) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyFirst = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyCount > 0) {
+            out.writeByte(OP_COPY);
+            out.writeInt(copyFirst);
+            out.writeInt(copyCount);
+            copyCount = 0;
+        }
+    }
+
+    private void writeLiteral(byte[] buffer, int offset, int count) throws IOException {
+        flushCopy();
+        out.writeByte(OP_LITERAL);
+        out.writeInt(count);
+        out.write(buffer, offset, count);
+        literalBytes += count;
+    }
+
+    /**
+     * Write a delta which copies the whole old version, for a file which has
+     * not changed since. The file is not read.
+     *
+     * @param deltaOut The stream to write the delta to.
+     * @throws IOException If the delta cannot be written.
+     */
+    public void encodeUnchanged(OutputStream deltaOut) throws IOException {
+        out = new DataOutputStream(deltaOut);
+        literalBytes = 0L;
+        writeHeader();
+        if (base.getBlockCount() > 0) {
+            out.writeByte(OP_COPY);
+            out.writeInt(0);
+            out.writeInt(base.getBlockCount());
+        }
+        out.writeByte(OP_END);
+        out.writeLong(base.getLength());
+        out.write(base.getSha256());
+        out.flush();
+    }
+}
@@ -0,0 +1,261 @@
+package com.bukkitbackup.full.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The block checksums of one version of a file, which the next version is
+ * compared against. Each block has a weak rolling checksum, to find blocks
+ * at any offset cheaply, and an MD5, to confirm them. It also keeps the
+ * names of the backups holding the chain of versions up to this one.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class DeltaSignature {
+
+    private static final int MAGIC = 0x42534731; // "BSG1"
+    static final int STRONG_BYTES = 16;
+
+    private final String path;
+    private final long lastModified;
+    private final long length;
+    private final int blockSize;
+    private final byte[] sha256;
+    private final int[] weak;
+    private final byte[] strong;
+    private final List<String> chain;
+
+    private DeltaSignature(String path, long lastModified, long length, int blockSize, byte[] sha256, int[] weak, byte[] strong, List<String> chain) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.sha256 = sha256;
+        this.weak = weak;
+        this.strong = strong;
+        this.chain = Collections.unmodifiableList(new ArrayList<String>(chain));
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public byte[] getSha256() {
+        return sha256.clone();
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    int getWeak(int block) {
+        return weak[block];
+    }
+
+    boolean strongEquals(int block, byte[] digest) {
+        for (int i = 0; i < STRONG_BYTES; i++) {
+            if (strong[block * STRONG_BYTES + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The backups holding this version, the full copy first, then
+     * each delta.
+     */
+    public List<String> getChain() {
+        return chain;
+    }
+
+    /**
+     * @param newChain The backups holding this version.
+     * @return This signature, for another chain.
+     */
+    public DeltaSignature withChain(List<String> newChain) {
+        return new DeltaSignature(path, lastModified, length, blockSize, sha256, weak, strong, newChain);
+    }
+
+    /**
+     * The weak checksum of a block, as used by rsync: the sum of the bytes,
+     * and the sum of those sums, each kept to 16 bits.
+     */
+    static int weakSum(byte[] data, int offset, int count) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < count; i++) {
+            a += data[offset + i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public static DeltaSignature read(File file) throws IOException {
+        return read(file, true);
+    }
+
+    /**
+     * Read the path and chain of a signature, without the block checksums,
+     * which cannot be used to encode a delta.
+     *
+     * @param file The signature file.
+     * @return The signature, with no blocks.
+     * @throws IOException If it cannot be read.
+     */
+    public static DeltaSignature readHeader(File file) throws IOException {
+        return read(file, false);
+    }
+
+    private static DeltaSignature read(File file, boolean withBlocks) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a signature file: " + file);
+            }
+            String path = in.readUTF();
+            long lastModified = in.readLong();
+            long length = in.readLong();
+            int blockSize = in.readInt();
+            byte[] sha256 = new byte[32];
+            in.readFully(sha256);
+            int chainLength = in.readInt();
+            List<String> chain = new ArrayList<String>(chainLength);
+            for (int i = 0; i < chainLength; i++) {
+                chain.add(in.readUTF());
+            }
+            int blocks = withBlocks ? in.readInt() : 0;
+            int[] weak = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                weak[i] = in.readInt();
+            }
+            byte[] strong = new byte[blocks * STRONG_BYTES];
+            in.readFully(strong);
+            return new DeltaSignature(path, lastModified, length, blockSize, sha256, weak, strong, chain);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(path);
+            out.writeLong(lastModified);
+            out.writeLong(length);
+            out.writeInt(blockSize);
+            out.write(sha256);
+            out.writeInt(chain.size());
+            for (String backupName : chain) {
+                out.writeUTF(backupName);
+            }
+            out.writeInt(weak.length);
+            for (int blockWeak : weak) {
+                out.writeInt(blockWeak);
+            }
+            out.write(strong);
+        } finally {
+            out.close();
+        }
+    }
+
+    static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(algorithm + " is not available.", nsae);
+        }
+    }
+
+    /**
+     * Builds the signature of a file as it is read, in order, once.
+     */
+    public static class Builder {
+
+        private final String path;
+        private final long lastModified;
+        private final int blockSize;
+        private final byte[] block;
+        private final MessageDigest md5 = digest("MD5");
+        private final MessageDigest sha256 = digest("SHA-256");
+        private int blockFill = 0;
+        private int blocks = 0;
+        private int[] weak = new int[64];
+        private byte[] strong = new byte[64 * STRONG_BYTES];
+        private long length = 0L;
+
+        public Builder(String path, long lastModified, int blockSize) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+        }
+
+        public void update(byte[] data, int offset, int count) {
+            sha256.update(data, offset, count);
+            length += count;
+            while (count > 0) {
+                int copied = Math.min(count, blockSize - blockFill);
+                System.arraycopy(data, offset, block, blockFill, copied);
+                blockFill += copied;
+                offset += copied;
+                count -= copied;
+                if (blockFill == blockSize) {
+                    addBlock();
+                }
+            }
+        }
+
+        private void addBlock() {
+            if (blocks == weak.length) {
+                weak = Arrays.copyOf(weak, blocks * 2);
+                strong = Arrays.copyOf(strong, blocks * 2 * STRONG_BYTES);
+            }
+            weak[blocks] = weakSum(block, 0, blockFill);
+            md5.update(block, 0, blockFill);
+            System.arraycopy(md5.digest(), 0, strong, blocks * STRONG_BYTES, STRONG_BYTES);
+            blocks++;
+            blockFill = 0;
+        }
+
+        /**
+         * @param chain The backups holding this version.
+         * @return The signature of everything given to {@link #update}.
+         */
+        public DeltaSignature finish(List<String> chain) {
+            if (blockFill > 0) { // The last, short block.
+                addBlock();
+            }
+            return new DeltaSignature(path, lastModified, length, blockSize, sha256.digest(),
+                    Arrays.copyOf(weak, blocks), Arrays.copyOf(strong, blocks * STRONG_BYTES), chain);
+        }
+    }
+}
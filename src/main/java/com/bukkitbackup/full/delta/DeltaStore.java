@@ -0,0 +1,262 @@
+package com.bukkitbackup.full.delta;
+
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupMirrors;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Backs up large files, such as plugin databases, as deltas against the
+ * version in the backup before. The signature of the last version backed up
+ * is kept in the "deltas" folder of the plugin for each file. A full copy is
+ * made when there is no signature, when the chain of deltas reaches
+ * "deltamaxchain", or when a backup in the chain no longer exists.
+ *
+ * New signatures only replace the old ones once the backup has finished, so
+ * a failed backup is never used as the base of a delta.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class DeltaStore {
+
+    /**
+     * Tells the store which backups still exist, so a chain missing one is
+     * not carried on.
+     */
+    public interface BackupLookup {
+
+        boolean exists(String backupName);
+    }
+
+    private final boolean enabled;
+    private final long minSize;
+    private final int blockSize;
+    private final int maxChain;
+    private final File signatureFolder;
+    private final BackupLookup lookup;
+    private final List<File> pending = new ArrayList<File>();
+
+    /**
+     * @param settings The settings.
+     * @param dataFolder The plugin data folder, for the signatures.
+     * @param lookup Finds which backups exist.
+     */
+    public DeltaStore(SettingsSnapshot settings, File dataFolder, BackupLookup lookup) {
+        this.enabled = settings.getBooleanProperty("deltaplugins", false);
+        this.minSize = Math.max(1, settings.getIntProperty("deltaminsize", 64)) * FileUtils.ONE_MB;
+        this.blockSize = Math.max(1, settings.getIntProperty("deltablocksize", 32)) * 1024;
+        this.signatureFolder = new File(dataFolder, "deltas");
+        this.lookup = lookup;
+
+        // Every backup in a chain must outlast the newest delta, so a chain
+        // cannot be longer than the number of backups kept. With a size
+        // limit, the backups in a chain are kept instead, by BackupTask.
+        int chain = Math.max(0, settings.getIntProperty("deltamaxchain", 10));
+        long backupLimit = settings.getBackupLimit();
+        if (!settings.isSizeLimit() && backupLimit > 0) {
+            chain = (int) Math.min(chain, backupLimit - 1);
+        }
+        this.maxChain = chain;
+    }
+
+    /**
+     * @param file A file being backed up.
+     * @return True if it should be backed up as a delta.
+     */
+    public boolean handles(File file) {
+        return enabled && maxChain > 0 && file.isFile() && file.length() >= minSize;
+    }
+
+    /**
+     * Back up a file, as a delta against its last backup if there is one to
+     * use, otherwise as a full copy.
+     *
+     * @param source The file to back up.
+     * @param destination Where a full copy goes. A delta goes next to it,
+     * with {@link DeltaEncoder#DELTA_EXTENSION} added.
+     * @param backupName The name of the backup.
+     * @throws IOException If the file cannot be read, or the backup written.
+     */
+    public void backup(File source, File destination, String backupName) throws IOException {
+        String path = source.getPath().replace(File.separatorChar, '/');
+        File signatureFile = new File(signatureFolder, toHex(DeltaSignature.digest("MD5").digest(path.getBytes("UTF-8"))) + ".sig");
+        DeltaSignature previous = readSignature(signatureFile);
+        FileUtils.checkFolderAndCreate(destination.getParentFile());
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+
+        DeltaSignature next;
+        long started = System.currentTimeMillis();
+        if (canDelta(previous, path)) {
+            List<String> chain = new ArrayList<String>(previous.getChain());
+            chain.add(backupName);
+            DeltaEncoder encoder = new DeltaEncoder(previous);
+            OutputStream out = new BufferedOutputStream(BackupMirrors.open(new File(destination.getPath() + DeltaEncoder.DELTA_EXTENSION)), FileUtils.BUFFER_SIZE * 8);
+            try {
+                // Trust the size and date, as rsync does, for files which have not changed.
+                if (source.length() == previous.getLength() && source.lastModified() == previous.getLastModified()) {
+                    encoder.encodeUnchanged(out);
+                    next = previous.withChain(chain);
+                } else {
+                    DeltaSignature.Builder builder = new DeltaSignature.Builder(path, source.lastModified(), blockSize);
+                    InputStream in = new FileInputStream(source);
+                    try {
+                        encoder.encode(in, out, builder);
+                    } finally {
+                        in.close();
+                    }
+                    next = builder.finish(chain);
+                }
+            } finally {
+                out.close();
+            }
+            LogUtils.sendDebug("Delta of %s: %d of %d bytes changed, chain of %d, in %d ms. (M:0031)",
+                    path, encoder.getLiteralBytes(), next.getLength(), chain.size(), System.currentTimeMillis() - started);
+        } else {
+            next = copyFull(source, destination, path, backupName);
+            LogUtils.sendDebug("Full copy of %s for deltas, in %d ms. (M:0031)", path, System.currentTimeMillis() - started);
+        }
+        BackupProgress.addFile();
+
+        FileUtils.checkFolderAndCreate(signatureFolder);
+        File pendingFile = new File(signatureFile.getPath() + ".new");
+        next.write(pendingFile);
+        synchronized (pending) {
+            pending.add(pendingFile);
+        }
+    }
+
+    private boolean canDelta(DeltaSignature previous, String path) {
+        if (previous == null || !previous.getPath().equals(path) || previous.getBlockSize() != blockSize) {
+            return false;
+        }
+        List<String> chain = previous.getChain();
+        if (chain.size() > maxChain) { // The full copy, and as many deltas as allowed.
+            return false;
+        }
+        for (String backupName : chain) {
+            if (!lookup.exists(backupName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private DeltaSignature copyFull(File source, File destination, String path, String backupName) throws IOException {
+        DeltaSignature.Builder builder = new DeltaSignature.Builder(path, source.lastModified(), blockSize);
+        InputStream in = new BufferedInputStream(new FileInputStream(source));
+        try {
+            OutputStream out = BackupMirrors.open(destination);
+            try {
+                byte[] buffer = new byte[FileUtils.BUFFER_SIZE * 8];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    BackupJob.checkCancelled();
+                    out.write(buffer, 0, read);
+                    builder.update(buffer, 0, read);
+                    BackupProgress.addBytes(read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        destination.setLastModified(source.lastModified());
+        return builder.finish(Collections.singletonList(backupName));
+    }
+
+    private static DeltaSignature readSignature(File signatureFile) {
+        if (!signatureFile.exists()) {
+            return null;
+        }
+        try {
+            return DeltaSignature.read(signatureFile);
+        } catch (IOException ioe) {
+            LogUtils.sendDebug("Unreadable signature, making a full copy: %s (M:0031)", signatureFile);
+            return null;
+        }
+    }
+
+    /**
+     * Find the backups the newest delta of each file builds on, with those of
+     * a backup which has not finished. Removing one of them would leave the
+     * newest backup of the file with nothing to apply its delta to.
+     *
+     * @return The names of the backups.
+     */
+    public Set<String> getChainedBackups() {
+        Set<String> chained = new HashSet<String>();
+        File[] signatureFiles = enabled ? signatureFolder.listFiles() : null;
+        for (File signatureFile : (signatureFiles != null) ? signatureFiles : new File[0]) {
+            if (!signatureFile.getName().endsWith(".sig") && !signatureFile.getName().endsWith(".sig.new")) {
+                continue;
+            }
+            try {
+                DeltaSignature signature = DeltaSignature.readHeader(signatureFile);
+
+                // A file which is gone is in no newer backup, so nothing builds on its chain.
+                if (new File(signature.getPath()).isFile()) {
+                    chained.addAll(signature.getChain());
+                }
+            } catch (IOException ioe) {
+                LogUtils.sendDebug("Unreadable signature: %s (M:0031)", signatureFile);
+            }
+        }
+        return chained;
+    }
+
+    /**
+     * Keep the signatures of this backup, now it has finished.
+     */
+    public void commit() {
+        synchronized (pending) {
+            for (File pendingFile : pending) {
+                String path = pendingFile.getPath();
+                File signatureFile = new File(path.substring(0, path.length() - ".new".length()));
+                signatureFile.delete();
+                if (!pendingFile.renameTo(signatureFile)) {
+                    LogUtils.sendDebug("Failed to keep signature: %s (M:0031)", signatureFile);
+                }
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Throw away the signatures of a backup which did not finish.
+     */
+    public void rollback() {
+        synchronized (pending) {
+            for (File pendingFile : pending) {
+                pendingFile.delete();
+            }
+            pending.clear();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.bukkitbackup.full.events;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldSaveEvent;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Remembers when each world was last saved, by the server's autosave or
+ * anything else, so a backup can use that save instead of forcing another.
+ * Only used on the main thread.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class AutosaveTracker implements Listener {
+
+    private final Map<String, Long> lastSaved = new HashMap<String, Long>();
+    private long lastAnySave = 0L;
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldSave(WorldSaveEvent event) {
+        long now = System.currentTimeMillis();
+        lastSaved.put(event.getWorld().getName(), now);
+        lastAnySave = now;
+    }
+
+    /**
+     * @param world A world.
+     * @param maxAge How old, in milliseconds, the last save may be.
+     * @return True if the world has not been saved within that time.
+     */
+    public boolean isStale(World world, long maxAge) {
+        Long saved = lastSaved.get(world.getName());
+        return saved == null || System.currentTimeMillis() - saved > maxAge;
+    }
+
+    /**
+     * @return When any world was last saved, or 0 if none have been.
+     */
+    public long getLastAnySave() {
+        return lastAnySave;
+    }
+}
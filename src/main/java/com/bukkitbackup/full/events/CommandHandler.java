@@ -1,13 +1,25 @@
 package com.bukkitbackup.full.events;
 
+import com.bukkitbackup.full.BackupFull;
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
 import com.bukkitbackup.full.config.UpdateChecker;
+import com.bukkitbackup.full.history.BackupHistory;
+import com.bukkitbackup.full.history.HistoryRecord;
+import com.bukkitbackup.full.storage.RemoteStorage;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.threading.BackupQueue;
+import com.bukkitbackup.full.threading.BackupScope;
 import com.bukkitbackup.full.threading.PrepareBackup;
+import com.bukkitbackup.full.threading.tasks.BackupPartial;
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import org.bukkit.Server;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -23,7 +35,8 @@ import org.bukkit.plugin.Plugin;
  */
 public class CommandHandler implements Listener, CommandExecutor {
 
-    private final PrepareBackup prepareBackup;
+    private final BackupQueue backupQueue;
+    private final BackupHistory backupHistory;
     private final Plugin plugin;
     private final Server server;
     private final Settings settings;
@@ -34,13 +47,15 @@ public class CommandHandler implements Listener, CommandExecutor {
      * This class is used to listen for console and player commands. It also
      * contains methods to handle them, and provide output.
      *
-     * @param prepareBackup Instance of the prepareBackup.
+     * @param backupQueue Instance of the backup queue.
+     * @param backupHistory Instance of the backup history.
      * @param plugin Instance of the JavaPlugin.
      * @param settings Instance of the settings loader.
      * @param strings Instance of the strings loader.
      */
-    public CommandHandler(PrepareBackup prepareBackup, Plugin plugin, Settings settings, Strings strings) {
-        this.prepareBackup = prepareBackup;
+    public CommandHandler(BackupQueue backupQueue, BackupHistory backupHistory, Plugin plugin, Settings settings, Strings strings) {
+        this.backupQueue = backupQueue;
+        this.backupHistory = backupHistory;
         this.plugin = plugin;
         this.server = plugin.getServer();
         this.settings = settings;
@@ -77,7 +92,7 @@ public class CommandHandler implements Listener, CommandExecutor {
             if (args.length == 0) {
                 // Main command, perform manual backup.
                 if (checkPerms(sender, "backup.backup")) {
-                    doManualBackup();
+                    doManualBackup(sender);
                 }
             } else if (args.length == 1) {
                 // Reload command - Reloads plugin.
@@ -104,6 +119,36 @@ public class CommandHandler implements Listener, CommandExecutor {
                     if (checkPerms(sender, "backup.toggle")) {
                         toggleEnabled(sender);
                     }
+                } // Status command - Progress of the running backup.
+                else if (args[0].equals("status")) {
+                    if (checkPerms(sender, "backup.status")) {
+                        showStatus(sender);
+                    }
+                } // Cancel command - Stops the running backup.
+                else if (args[0].equals("cancel")) {
+                    if (checkPerms(sender, "backup.cancel")) {
+                        cancelBackup(sender);
+                    }
+                } // History command - Recent backups, default 8.
+                else if (args[0].equals("history")) {
+                    if (checkPerms(sender, "backup.history")) {
+                        showHistory(sender, 8);
+                    }
+                } // Trends command - This week against last week.
+                else if (args[0].equals("trends")) {
+                    if (checkPerms(sender, "backup.history")) {
+                        showTrends(sender);
+                    }
+                } // Remote command - Backups in remote storage.
+                else if (args[0].equals("remote")) {
+                    if (checkPerms(sender, "backup.list")) {
+                        listRemoteBackups(sender);
+                    }
+                } // Changes command - How busy each plugin is.
+                else if (args[0].equals("changes")) {
+                    if (checkPerms(sender, "backup.status")) {
+                        showPluginChanges(sender);
+                    }
                 } // Unknown command.
                 else {
                     // Unknown Command Message.
@@ -115,6 +160,21 @@ public class CommandHandler implements Listener, CommandExecutor {
                     if (checkPerms(sender, "backup.list")) {
                         listBackups(sender, Integer.parseInt(args[1]));
                     }
+                } // History - Set amount.
+                else if (args[0].equals("history")) {
+                    if (checkPerms(sender, "backup.history")) {
+                        showHistory(sender, Integer.parseInt(args[1]));
+                    }
+                } // World command - Back up just one world.
+                else if (args[0].equals("world")) {
+                    if (checkPerms(sender, "backup.backup")) {
+                        doWorldBackup(sender, args[1]);
+                    }
+                } // Plugin command - Back up just one plugin.
+                else if (args[0].equals("plugin")) {
+                    if (checkPerms(sender, "backup.backup")) {
+                        doPluginBackup(sender, args[1]);
+                    }
                 }
                 // Unknown command.
                 else {
@@ -132,13 +192,220 @@ public class CommandHandler implements Listener, CommandExecutor {
 
     /**
      * Performs a manual backup.
+     *
+     * @param sender The CommandSender.
      */
-    private void doManualBackup() {
-        // Sets this as a manual backup in the preperation stage.
-        prepareBackup.isManualBackup = true;
+    private void doManualBackup(CommandSender sender) {
+        // Queue the manual backup, it runs ahead of automatic ones.
+        if (backupQueue.submit(new BackupJob(BackupJob.Type.MANUAL)) && backupQueue.getRunningJob() != null
+                && backupQueue.getRunningJob().getType() != BackupJob.Type.MANUAL) {
+            messageSender(sender, strings.getString("backupqueued"));
+        }
+    }
 
-        // Schedule an async task to run for the backup.
-        plugin.getServer().getScheduler().runTask(plugin, prepareBackup);
+    /**
+     * Backs up one world on its own, such as before a big edit to it.
+     *
+     * @param sender The CommandSender.
+     * @param worldName The name of the world.
+     */
+    private void doWorldBackup(CommandSender sender, String worldName) {
+        World world = server.getWorld(worldName);
+        if (world == null) {
+            messageSender(sender, strings.getString("unknownworld", worldName));
+            return;
+        }
+        doScopedBackup(sender, BackupScope.world(world.getName()));
+    }
+
+    /**
+     * Backs up the folder of one plugin on its own.
+     *
+     * @param sender The CommandSender.
+     * @param pluginName The name of the plugin, or of its folder.
+     */
+    private void doPluginBackup(CommandSender sender, String pluginName) {
+        Plugin target = server.getPluginManager().getPlugin(pluginName);
+        File pluginFolder = BackupPartial.findPluginFolder((target != null) ? target.getDataFolder().getName() : pluginName);
+        if (pluginFolder == null) {
+            messageSender(sender, strings.getString("unknownplugin", pluginName));
+            return;
+        }
+        doScopedBackup(sender, BackupScope.plugin(pluginFolder.getName()));
+    }
+
+    private void doScopedBackup(CommandSender sender, BackupScope scope) {
+        BackupJob job = BackupJob.forScope(scope);
+        if (backupQueue.submit(job) && backupQueue.getRunningJob() != null && backupQueue.getRunningJob() != job) {
+            messageSender(sender, strings.getString("backupqueued"));
+        }
+    }
+
+    /**
+     * Cancels the running backup, and report to the sender.
+     *
+     * @param sender The CommandSender.
+     */
+    private void cancelBackup(CommandSender sender) {
+        if (backupQueue.cancelRunning()) {
+            messageSender(sender, strings.getString("backupcancelling"));
+        } else {
+            messageSender(sender, strings.getString("nobackuprunning"));
+        }
+    }
+
+    /**
+     * Show the progress of the running backup.
+     *
+     * @param sender The CommandSender.
+     */
+    private void showStatus(CommandSender sender) {
+        BackupJob runningJob = backupQueue.getRunningJob();
+        if (runningJob == null) {
+            messageSender(sender, strings.getString("nobackuprunning"));
+            return;
+        }
+        BackupProgress progress = runningJob.getProgress();
+
+        sender.sendMessage("Backup Status (" + runningJob + " backup)");
+        sender.sendMessage(" ");
+        sender.sendMessage(progress.describe());
+        sender.sendMessage("Data: " + BackupProgress.formatBytes(progress.getDoneBytes()) + " of " + BackupProgress.formatBytes(progress.getPlannedBytes()));
+        sender.sendMessage("Files: " + progress.getDoneFiles() + " of " + progress.getPlannedFiles());
+        sender.sendMessage("Elapsed: " + BackupProgress.formatSeconds(progress.getElapsedMillis() / 1000L));
+        sender.sendMessage(" ");
+    }
+
+    /**
+     * List the most recent backups from the history.
+     *
+     * @param sender The CommandSender.
+     * @param amount The amount of results we want.
+     */
+    private void showHistory(CommandSender sender, int amount) {
+        List<HistoryRecord> records = backupHistory.getRecent(amount);
+        if (records.isEmpty()) {
+            messageSender(sender, strings.getString("nohistory"));
+            return;
+        }
+
+        sender.sendMessage("Backup History (" + records.size() + " of " + backupHistory.size() + ")");
+        sender.sendMessage(" ");
+        for (HistoryRecord record : records) {
+            sender.sendMessage(String.format("%1$tY-%1$tm-%1$td %1$tH:%1$tM", record.getStartedAt()) + " " + record.getType() + " " + record.getOutcome()
+                    + ", " + BackupProgress.formatSeconds(record.getTotalMillis() / 1000L)
+                    + " (copy " + BackupProgress.formatSeconds(record.getCopyMillis() / 1000L)
+                    + ", zip " + BackupProgress.formatSeconds(record.getZipMillis() / 1000L) + ")");
+            sender.sendMessage("  " + BackupProgress.formatBytes(record.getSourceBytes()) + " to " + BackupProgress.formatBytes(record.getOutputBytes())
+                    + " (" + Math.round(record.getCompressionRatio() * 100D) + "%), " + record.getFiles() + " files, main thread "
+                    + record.getMainThreadMillis() + " ms, deferred " + record.getDeferrals() + ", errors " + record.getErrors());
+        }
+        sender.sendMessage(" ");
+    }
+
+    /**
+     * Compare the last week of backups to the week before, and flag anything
+     * which has got noticeably worse.
+     *
+     * @param sender The CommandSender.
+     */
+    private void showTrends(CommandSender sender) {
+        long now = System.currentTimeMillis();
+        List<HistoryRecord> thisWeek = backupHistory.getFinishedBetween(now - BackupHistory.ONE_WEEK, now + 1L);
+        List<HistoryRecord> lastWeek = backupHistory.getFinishedBetween(now - 2L * BackupHistory.ONE_WEEK, now - BackupHistory.ONE_WEEK);
+        if (thisWeek.isEmpty()) {
+            messageSender(sender, strings.getString("nohistory"));
+            return;
+        }
+
+        sender.sendMessage("Backup Trends (" + thisWeek.size() + " backups this week, " + lastWeek.size() + " last week)");
+        sender.sendMessage(" ");
+        BackupHistory.Metric[] metrics = {BackupHistory.DURATION, BackupHistory.COPY_TIME, BackupHistory.ZIP_TIME,
+            BackupHistory.MAIN_THREAD, BackupHistory.THROUGHPUT, BackupHistory.OUTPUT_SIZE};
+        for (BackupHistory.Metric metric : metrics) {
+            BackupHistory.Trend trend = BackupHistory.compare(metric, thisWeek, lastWeek);
+            String line = metric.getName() + ": p50 " + formatMetric(metric, trend.getMedian()) + ", p90 " + formatMetric(metric, trend.getP90());
+            if (trend.getPreviousMedian() > 0) {
+                line += String.format(" (%+d%% on last week)", Math.round(trend.getChange() * 100D));
+            }
+            if (trend.isRegression()) {
+                line += " " + strings.getString("trendregression");
+            }
+            sender.sendMessage(line);
+        }
+        sender.sendMessage(" ");
+    }
+
+    /**
+     * Show how often the files of each plugin change, from the plugin change
+     * journal, so plugins which write constantly can be spotted.
+     *
+     * @param sender The CommandSender.
+     */
+    private void showPluginChanges(CommandSender sender) {
+        PluginChangeJournal changeJournal = BackupFull.pluginChanges;
+        if (changeJournal == null || !changeJournal.isWatching()) {
+            messageSender(sender, strings.getString("nochangejournal"));
+            return;
+        }
+
+        double hours = Math.max(1D / 60D, (System.currentTimeMillis() - changeJournal.getStartedAt()) / 3600000D);
+        sender.sendMessage("Plugin Changes (" + changeJournal.getPendingChanges() + " files changed since the last backup, "
+                + changeJournal.getMissedChanges() + " found by scanning)");
+        sender.sendMessage(" ");
+        int shown = 0;
+        for (Map.Entry<String, Long> entry : changeJournal.getChangeCounts().entrySet()) {
+            if (shown++ == 8) {
+                break;
+            }
+            sender.sendMessage(String.format("%s: %d changes, %.1f per hour", entry.getKey(), entry.getValue(), entry.getValue() / hours));
+        }
+        sender.sendMessage(" ");
+    }
+
+    /**
+     * List the backups in remote storage. The listing is fetched on another
+     * thread, as it needs the network.
+     *
+     * @param sender The CommandSender.
+     */
+    private void listRemoteBackups(final CommandSender sender) {
+        final RemoteStorage remoteStorage = BackupFull.backupTask.getRemoteStorage();
+        if (remoteStorage == null) {
+            messageSender(sender, strings.getString("noremote"));
+            return;
+        }
+
+        server.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            public void run() {
+                List<RemoteStorage.RemoteBackup> remoteBackups;
+                try {
+                    remoteBackups = remoteStorage.listBackups();
+                } catch (IOException ioe) {
+                    messageSender(sender, strings.getString("errorremotelist", ioe.getMessage()));
+                    return;
+                }
+
+                sender.sendMessage("Remote Backups on " + remoteStorage.getName() + " (" + remoteBackups.size() + ")");
+                sender.sendMessage(" ");
+                for (RemoteStorage.RemoteBackup remoteBackup : remoteBackups) {
+                    sender.sendMessage(remoteBackup.getName() + " - " + remoteBackup.getObjects().size() + " object(s), "
+                            + BackupProgress.formatBytes(remoteBackup.getSize()));
+                }
+                sender.sendMessage(" ");
+            }
+        });
+    }
+
+    private String formatMetric(BackupHistory.Metric metric, long value) {
+        if (metric == BackupHistory.MAIN_THREAD) {
+            return value + " ms";
+        } else if (metric == BackupHistory.THROUGHPUT) {
+            return BackupProgress.formatBytes(value) + "/s";
+        } else if (metric == BackupHistory.OUTPUT_SIZE) {
+            return BackupProgress.formatBytes(value);
+        }
+        return BackupProgress.formatSeconds(value / 1000L);
     }
 
     /**
@@ -147,10 +414,8 @@ public class CommandHandler implements Listener, CommandExecutor {
      * @param sender The CommandSender.
      */
     public void reloadPlugin(CommandSender sender) {
-        plugin.getServer().getScheduler().cancelTasks(plugin);
-        plugin.onDisable();
-        plugin.onLoad();
-        plugin.onEnable();
+        // Reload in place, so schedules and a running backup carry on.
+        ((BackupFull) plugin).reloadSettings();
         messageSender(sender, strings.getString("reloadedok", plugin.getDescription().getVersion()));
     }
 
@@ -316,8 +581,10 @@ public class CommandHandler implements Listener, CommandExecutor {
 
             // Loop the lines of this message.
             for (int i = 0; i < messageList.size(); i++) {
-                sender.sendMessage(stringsMessage);
+                sender.sendMessage(messageList.get(i));
             }
+        } else {
+            sender.sendMessage(stringsMessage);
         }
     }
 }
@@ -0,0 +1,384 @@
+package com.bukkitbackup.full.events;
+
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.RegionBitmap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkPopulateEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Keeps track of which region files of each world have changed since the
+ * last backup, so unchanged regions can be left out of incremental world
+ * backups.
+ *
+ * Every chunk which was changed is either still loaded when the backup is
+ * taken, or was unloaded since, so the loaded chunks are added when a backup
+ * starts and unloaded chunks as they go. Block events are tracked as well,
+ * so changes show up as soon as they happen.
+ *
+ * The regions and the backups each world is chained to are kept in
+ * "dirtyregions.dat", which is marked as in use while the server runs. If
+ * the server stops without saving it, nothing it says can be trusted, so
+ * every world gets a full backup next time.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class DirtyRegionTracker implements Listener {
+
+    private static final int MAGIC = 0x42445231; // "BDR1"
+    private static final Pattern REGION_NAME = Pattern.compile("^r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.mca$");
+
+    private final Plugin plugin;
+    private final File stateFile;
+
+    // Guarded by this.
+    private final Map<String, RegionBitmap> dirtyRegions = new HashMap<String, RegionBitmap>();
+    private final Map<String, List<String>> chains = new HashMap<String, List<String>>();
+    private final Map<String, RegionBitmap> captured = new HashMap<String, RegionBitmap>();
+    private final Map<String, List<String>> pendingChains = new HashMap<String, List<String>>();
+
+    /**
+     * @param plugin The plugin.
+     * @param stateFile The file the regions are kept in.
+     */
+    public DirtyRegionTracker(Plugin plugin, File stateFile) {
+        this.plugin = plugin;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Load what was tracked before the server stopped, and mark it as in
+     * use. Must be called once the worlds are loaded.
+     */
+    public synchronized void start() {
+        long savedAt = load();
+
+        // Catch region files changed while the server was not running.
+        if (savedAt > 0) {
+            for (World world : plugin.getServer().getWorlds()) {
+                File regionFolder = getRegionFolder(world);
+                File[] regionFiles = regionFolder.listFiles();
+                if (regionFiles == null) {
+                    continue;
+                }
+                for (File regionFile : regionFiles) {
+                    Matcher matcher = REGION_NAME.matcher(regionFile.getName());
+                    if (matcher.matches() && regionFile.lastModified() > savedAt) {
+                        getDirty(world.getName()).add(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+                    }
+                }
+            }
+        }
+        save(false);
+    }
+
+    /**
+     * Save what has been tracked, and mark it as safe to use next time.
+     */
+    public synchronized void stop() {
+        save(true);
+    }
+
+    /**
+     * @return The time the state was saved cleanly, or 0 if it cannot be
+     * trusted.
+     */
+    private long load() {
+        if (!stateFile.exists()) {
+            return 0L;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a region state file.");
+                }
+                boolean clean = in.readBoolean();
+                long savedAt = in.readLong();
+                if (!clean) {
+                    LogUtils.sendDebug("Region tracking was interrupted, the next world backups are full. (M:0032)");
+                    return 0L;
+                }
+                int worldCount = in.readInt();
+                for (int i = 0; i < worldCount; i++) {
+                    String worldName = in.readUTF();
+                    dirtyRegions.put(worldName, RegionBitmap.read(in));
+                    int chainLength = in.readInt();
+                    List<String> chain = new ArrayList<String>(chainLength);
+                    for (int j = 0; j < chainLength; j++) {
+                        chain.add(in.readUTF());
+                    }
+                    if (!chain.isEmpty()) {
+                        chains.put(worldName, chain);
+                    }
+                }
+                return savedAt;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read the region state, the next world backups are full.");
+            dirtyRegions.clear();
+            chains.clear();
+            return 0L;
+        }
+    }
+
+    private void save(boolean clean) {
+        // Regions taken by a backup which has not finished are still dirty.
+        Map<String, RegionBitmap> toSave = new HashMap<String, RegionBitmap>();
+        for (Map.Entry<String, RegionBitmap> entry : dirtyRegions.entrySet()) {
+            RegionBitmap copy = new RegionBitmap();
+            copy.addAll(entry.getValue());
+            toSave.put(entry.getKey(), copy);
+        }
+        for (Map.Entry<String, RegionBitmap> entry : captured.entrySet()) {
+            if (!toSave.containsKey(entry.getKey())) {
+                toSave.put(entry.getKey(), new RegionBitmap());
+            }
+            toSave.get(entry.getKey()).addAll(entry.getValue());
+        }
+        for (String worldName : chains.keySet()) {
+            if (!toSave.containsKey(worldName)) {
+                toSave.put(worldName, new RegionBitmap());
+            }
+        }
+
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try {
+            FileUtils.checkFolderAndCreate(stateFile.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeBoolean(clean);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(toSave.size());
+                for (Map.Entry<String, RegionBitmap> entry : toSave.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                    List<String> chain = chains.containsKey(entry.getKey()) ? chains.get(entry.getKey()) : Collections.<String>emptyList();
+                    out.writeInt(chain.size());
+                    for (String backupName : chain) {
+                        out.writeUTF(backupName);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            stateFile.delete();
+            if (!tempFile.renameTo(stateFile)) {
+                throw new IOException("Failed to replace " + stateFile);
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to save the region state.");
+        }
+    }
+
+    private RegionBitmap getDirty(String worldName) {
+        RegionBitmap dirty = dirtyRegions.get(worldName);
+        if (dirty == null) {
+            dirty = new RegionBitmap();
+            dirtyRegions.put(worldName, dirty);
+        }
+        return dirty;
+    }
+
+    private synchronized void markChunk(World world, int chunkX, int chunkZ) {
+        getDirty(world.getName()).add(chunkX >> 5, chunkZ >> 5);
+    }
+
+    private void markBlock(Block block) {
+        markChunk(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        markBlock(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        markBlock(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        markBlock(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        markBlock(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        markBlock(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for (Block block : event.blockList()) {
+            markBlock(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkPopulate(ChunkPopulateEvent event) {
+        markChunk(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        markChunk(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    /**
+     * Take the regions changed in each world since the last backup, for the
+     * backup about to start. Must be called on the main thread, after the
+     * worlds are saved.
+     *
+     * @param worlds The worlds being backed up.
+     */
+    public synchronized void capture(List<World> worlds) {
+        rollback(); // Anything left from a backup which never ran.
+        for (World world : worlds) {
+            RegionBitmap dirty = getDirty(world.getName());
+            for (Chunk chunk : world.getLoadedChunks()) {
+                dirty.add(chunk.getX() >> 5, chunk.getZ() >> 5);
+            }
+            captured.put(world.getName(), dirty);
+            dirtyRegions.remove(world.getName());
+        }
+    }
+
+    /**
+     * @param worldName The name of a world.
+     * @return The regions of the world changed since its last backup, or
+     * null if they were not captured for this backup.
+     */
+    public synchronized RegionBitmap getCaptured(String worldName) {
+        return captured.get(worldName);
+    }
+
+    /**
+     * @param worldName The name of a world.
+     * @return The backups the world can be restored from, the full backup
+     * first, then each incremental one. Empty if the next must be full.
+     */
+    public synchronized List<String> getChain(String worldName) {
+        List<String> chain = chains.get(worldName);
+        return (chain != null) ? new ArrayList<String>(chain) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Find the backups the newest backup of each world builds on, with those
+     * of a backup which has not finished.
+     *
+     * @param worldNames The worlds still on the server.
+     * @return The names of the backups.
+     */
+    public synchronized Set<String> getChainedBackups(Collection<String> worldNames) {
+        Set<String> chained = new HashSet<String>();
+        for (String worldName : worldNames) {
+            List<String> chain = pendingChains.containsKey(worldName) ? pendingChains.get(worldName) : chains.get(worldName);
+            if (chain != null) {
+                chained.addAll(chain);
+            }
+        }
+        return chained;
+    }
+
+    /**
+     * Record how a world was backed up, to keep once the backup finishes.
+     *
+     * @param worldName The name of the world.
+     * @param chain The backups the world can now be restored from.
+     */
+    public synchronized void recordWorld(String worldName, List<String> chain) {
+        pendingChains.put(worldName, new ArrayList<String>(chain));
+    }
+
+    /**
+     * The backup has finished, so the regions it took are no longer dirty.
+     */
+    public synchronized void commit() {
+        chains.putAll(pendingChains);
+
+        // A world which was captured but not backed up keeps its regions.
+        for (Map.Entry<String, RegionBitmap> entry : captured.entrySet()) {
+            if (!pendingChains.containsKey(entry.getKey())) {
+                getDirty(entry.getKey()).addAll(entry.getValue());
+            }
+        }
+        captured.clear();
+        pendingChains.clear();
+        save(false);
+    }
+
+    /**
+     * The backup did not finish, so the regions it took are dirty again.
+     */
+    public synchronized void rollback() {
+        for (Map.Entry<String, RegionBitmap> entry : captured.entrySet()) {
+            getDirty(entry.getKey()).addAll(entry.getValue());
+        }
+        captured.clear();
+        pendingChains.clear();
+    }
+
+    /**
+     * @param world A world.
+     * @return The folder holding the live region files of the world.
+     */
+    public static File getRegionFolder(World world) {
+        return new File(world.getWorldFolder(), getRegionPath(world.getEnvironment()));
+    }
+
+    /**
+     * @param environment The environment of a world.
+     * @return Where the region files of the world are, in its folder.
+     */
+    public static String getRegionPath(World.Environment environment) {
+        if (environment == World.Environment.NETHER) {
+            return "DIM-1" + File.separator + "region";
+        } else if (environment == World.Environment.THE_END) {
+            return "DIM1" + File.separator + "region";
+        }
+        return "region";
+    }
+}
@@ -2,7 +2,8 @@ package com.bukkitbackup.full.events;
 
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
-import com.bukkitbackup.full.threading.PrepareBackup;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupQueue;
 import com.bukkitbackup.full.utils.LogUtils;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -21,7 +22,7 @@ import org.bukkit.plugin.Plugin;
  */
 public class EventListener implements Listener {
 
-    private PrepareBackup prepareBackup = null;
+    private final BackupQueue backupQueue;
     private final Plugin plugin;
     private final Settings settings;
     private final Strings strings;
@@ -30,13 +31,13 @@ public class EventListener implements Listener {
     /**
      * Constructor for listening for login events.
      *
-     * @param backupTask The BackupTast to call.
+     * @param backupQueue The queue to submit backups to.
      * @param plugin Plugin to link this class too.
      * @param settings
      * @param strings
      */
-    public EventListener(PrepareBackup backupTask, Plugin plugin, Settings settings, Strings strings) {
-        this.prepareBackup = backupTask;
+    public EventListener(BackupQueue backupQueue, Plugin plugin, Settings settings, Strings strings) {
+        this.backupQueue = backupQueue;
         this.plugin = plugin;
         this.settings = settings;
         this.strings = strings;
@@ -68,12 +69,11 @@ public class EventListener implements Listener {
         int onlinePlayers = plugin.getServer().getOnlinePlayers().size();
         // Check if it was the last player, and we need to stop backups after this last player leaves.
         if (onlinePlayers == 1 && !settings.getBooleanProperty("backupemptyserver", false)) {
-            prepareBackup.isLastBackup = true;
             //int intervalInMinutes = settings.getBackupInterval();
             int intervalInMinutes = 15;
             if (intervalInMinutes != 0) {
                 int interval = intervalInMinutes * 1200;
-                lastBackupID = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, prepareBackup, interval);
+                lastBackupID = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, backupQueue.triggerFor(BackupJob.Type.LAST_PLAYER), interval);
                 LogUtils.sendLog(strings.getString("schedlastbackup", Integer.toString(intervalInMinutes)));
             } else {
                 LogUtils.sendLog(strings.getString("disbaledauto"));
@@ -89,7 +89,7 @@ public class EventListener implements Listener {
         if (lastBackupID != -2) {
             plugin.getServer().getScheduler().cancelTask(lastBackupID);
             lastBackupID = -2;
-            prepareBackup.isLastBackup = false;
+            backupQueue.removePending(BackupJob.Type.LAST_PLAYER);
             LogUtils.sendLog(strings.getString("stoppedlastjoined"));
         }
     }
@@ -0,0 +1,137 @@
+package com.bukkitbackup.full.events;
+
+import com.bukkitbackup.full.config.Settings;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerKickEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Keeps the set of online players holding "backup.notify", so notifying does
+ * not have to check every online player's permissions.
+ *
+ * Bukkit has no event for permission changes, so players are checked when
+ * they join or change world, and a few players are re-checked each refresh in
+ * rotation. Only used from the main thread.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class NotifyRecipients implements Listener {
+
+    private static final String NOTIFY_PERMISSION = "backup.notify";
+    private static final int REFRESH_TICKS = 100;
+    private static final int REFRESH_PLAYERS = 20;
+
+    private final Plugin plugin;
+    private final Server pluginServer;
+    private final Settings settings;
+    private final Map<UUID, Player> recipients = new LinkedHashMap<UUID, Player>();
+    private int refreshIndex = 0;
+
+    public NotifyRecipients(Plugin plugin, Settings settings) {
+        this.plugin = plugin;
+        this.pluginServer = plugin.getServer();
+        this.settings = settings;
+    }
+
+    /**
+     * Fill the cache from the players already online, and start the periodic
+     * re-check.
+     */
+    public void start() {
+        recipients.clear();
+        for (Player player : pluginServer.getOnlinePlayers()) {
+            recheck(player);
+        }
+
+        pluginServer.getScheduler().runTaskTimer(plugin, new Runnable() {
+            public void run() {
+                refreshSome();
+            }
+        }, REFRESH_TICKS, REFRESH_TICKS);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        recheck(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        recipients.remove(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerKick(PlayerKickEvent event) {
+        recipients.remove(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        // Permission plugins often have per-world permissions.
+        recheck(event.getPlayer());
+    }
+
+    /**
+     * Send a message to players, one batch of lines per player.
+     *
+     * @param message The message, lines separated by ";;".
+     */
+    public void notify(String message) {
+        if (message == null) {
+            return;
+        }
+        String[] lines = message.split(";;");
+
+        // Notify all players, regardless of the permission node.
+        if (settings.getBooleanProperty("notifyallplayers", true)) {
+            for (String line : lines) {
+                pluginServer.broadcastMessage(line);
+            }
+        } else {
+            for (Player player : recipients.values()) {
+                player.sendMessage(lines);
+            }
+        }
+    }
+
+    /**
+     * Add or remove a player, based on their current permissions.
+     */
+    private void recheck(Player player) {
+        if (player.hasPermission(NOTIFY_PERMISSION)) {
+            recipients.put(player.getUniqueId(), player);
+        } else {
+            recipients.remove(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Re-check the next few online players, to pick up permission changes.
+     */
+    private void refreshSome() {
+        List<Player> online = new ArrayList<Player>(pluginServer.getOnlinePlayers());
+        if (online.isEmpty()) {
+            return;
+        }
+        int count = Math.min(REFRESH_PLAYERS, online.size());
+        for (int i = 0; i < count; i++) {
+            refreshIndex = (refreshIndex + 1) % online.size();
+            recheck(online.get(refreshIndex));
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.bukkitbackup.full.events;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Watches the plugins folder for changes, so an incremental plugin backup
+ * can copy just the files changed since the last one without walking the
+ * whole folder.
+ *
+ * The operating system can drop change events when too many happen at once,
+ * so the folder is also scanned every "pluginrescan" minutes, and straight
+ * after events are dropped, comparing sizes and dates with the scan before.
+ * Until the watcher has been running since the last plugin backup, or if it
+ * stops, or too many files change to keep track of, the next plugin backup
+ * is full.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class PluginChangeJournal implements Runnable {
+
+    // More changes than this are not worth tracking, the next backup is full.
+    private static final int MAX_CHANGES = 100000;
+
+    private final File pluginsFolder;
+    private final Path pluginsPath;
+    private final long rescanInterval;
+    private WatchService watchService;
+    private Thread watchThread;
+    private volatile boolean running;
+
+    // Only used by the watch thread.
+    private Map<String, long[]> lastScan = new HashMap<String, long[]>();
+    private long lastScanAt;
+    private boolean scanNeeded;
+
+    // Guarded by this.
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<WatchKey, Path>();
+    private final Set<Path> watchedPaths = new HashSet<Path>();
+    private Set<String> changes = new HashSet<String>();
+    private boolean tooManyChanges = false;
+    private boolean watching = false;
+    private Set<String> captured;
+    private boolean capturedAll;
+    private List<String> chain = Collections.emptyList();
+    private List<String> pendingChain;
+    private final Map<String, Long> changeCounts = new HashMap<String, Long>();
+    private long startedAt;
+    private long missedChanges;
+
+    /**
+     * @param pluginsFolder The plugins folder.
+     * @param rescanMinutes How often to scan for changes which were missed.
+     */
+    public PluginChangeJournal(File pluginsFolder, int rescanMinutes) {
+        this.pluginsFolder = pluginsFolder;
+        this.pluginsPath = pluginsFolder.toPath();
+        this.rescanInterval = TimeUnit.MINUTES.toMillis(Math.max(1, rescanMinutes));
+    }
+
+    /**
+     * Start watching, in another thread.
+     */
+    public synchronized void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to watch the plugins folder, plugin backups will be full.");
+            return;
+        }
+        running = true;
+        startedAt = System.currentTimeMillis();
+        watchThread = new Thread(this, "Backup-PluginWatch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Stop watching.
+     */
+    public void stop() {
+        running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = watchThread;
+            watchThread = null;
+            watching = false;
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to stop watching the plugins folder.");
+                }
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void run() {
+        try {
+            synchronized (this) {
+                registerFolder(pluginsFolder, false);
+            }
+            lastScan = scan();
+            lastScanAt = System.currentTimeMillis();
+            synchronized (this) {
+                watching = true;
+            }
+
+            while (running) {
+                WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    synchronized (this) {
+                        handleKey(key);
+                    }
+                }
+                if (scanNeeded || System.currentTimeMillis() - lastScanAt >= rescanInterval) {
+                    rescan();
+                }
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            // Stopped.
+        } catch (InterruptedException ie) {
+            // Stopped.
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Stopped watching the plugins folder, plugin backups will be full.");
+        } catch (RuntimeException re) {
+            LogUtils.exceptionLog(re, "Stopped watching the plugins folder, plugin backups will be full.");
+        } finally {
+            synchronized (this) {
+                watching = false;
+            }
+        }
+    }
+
+    private void handleKey(WatchKey key) throws IOException {
+        Path folder = watchedFolders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LogUtils.sendDebug("Missed plugin changes, rescanning. (M:0033)");
+                scanNeeded = true;
+                continue;
+            }
+            if (folder == null) {
+                continue;
+            }
+            Path changed = folder.resolve((Path) event.context());
+            File changedFile = changed.toFile();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && changedFile.isDirectory()) {
+                registerFolder(changedFile, true); // Its files are new too.
+            } else {
+                recordChange(changedFile, true);
+            }
+        }
+        if (!key.reset()) {
+            watchedFolders.remove(key);
+            watchedPaths.remove(folder);
+        }
+    }
+
+    /**
+     * Watch a folder and the folders in it.
+     *
+     * @param folder The folder.
+     * @param isNew True to record the files in it as changed.
+     */
+    private void registerFolder(File folder, boolean isNew) throws IOException {
+        Path path = folder.toPath();
+        if (!watchedPaths.contains(path)) {
+            WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedFolders.put(key, path);
+            watchedPaths.add(path);
+        }
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                registerFolder(file, isNew);
+            } else if (isNew) {
+                recordChange(file, true);
+            }
+        }
+    }
+
+    private void recordChange(File file, boolean fromEvent) {
+        String path = relativePath(file);
+        if (fromEvent) {
+            int slash = path.indexOf('/');
+            String owner = (slash == -1) ? path : path.substring(0, slash);
+            Long count = changeCounts.get(owner);
+            changeCounts.put(owner, (count == null) ? 1L : count + 1L);
+        } else {
+            missedChanges++;
+        }
+        if (!tooManyChanges) {
+            changes.add(path);
+            if (changes.size() > MAX_CHANGES) {
+                LogUtils.sendDebug("Too many plugin changes to track, the next plugin backup is full. (M:0033)");
+                tooManyChanges = true;
+                changes = new HashSet<String>();
+            }
+        }
+    }
+
+    private String relativePath(File file) {
+        return pluginsPath.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Scan the folder again, recording anything changed since the last scan
+     * which no event was seen for, and watching any folder missed.
+     */
+    private void rescan() throws IOException {
+        scanNeeded = false;
+        Map<String, long[]> scanned = scan();
+        synchronized (this) {
+            for (Map.Entry<String, long[]> entry : scanned.entrySet()) {
+                long[] before = lastScan.remove(entry.getKey());
+                if (before == null || before[0] != entry.getValue()[0] || before[1] != entry.getValue()[1]) {
+                    recordChange(new File(pluginsFolder, entry.getKey()), false);
+                }
+            }
+            for (String removed : lastScan.keySet()) {
+                recordChange(new File(pluginsFolder, removed), false);
+            }
+        }
+        lastScan = scanned;
+        lastScanAt = System.currentTimeMillis();
+    }
+
+    private Map<String, long[]> scan() throws IOException {
+        Map<String, long[]> scanned = new HashMap<String, long[]>();
+        scanFolder(pluginsFolder, scanned);
+        return scanned;
+    }
+
+    private void scanFolder(File folder, Map<String, long[]> scanned) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                synchronized (this) {
+                    if (!watchedPaths.contains(file.toPath())) {
+                        registerFolder(file, false);
+                    }
+                }
+                scanFolder(file, scanned);
+            } else {
+                scanned.put(relativePath(file), new long[]{file.length(), file.lastModified()});
+            }
+        }
+    }
+
+    /**
+     * Take the files changed since the last plugin backup, for the backup
+     * about to start.
+     *
+     * @return The paths of the changed files in the plugins folder, with "/"
+     * between folders, or null if they are not known and the backup must be
+     * full.
+     */
+    public synchronized Set<String> capture() {
+        rollback(); // Anything left from a backup which never finished.
+
+        // Take in anything the watch thread has not got to yet.
+        if (watching) {
+            try {
+                WatchKey key;
+                while ((key = watchService.poll()) != null) {
+                    handleKey(key);
+                }
+            } catch (ClosedWatchServiceException cwse) {
+                watching = false;
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to read plugin changes.");
+                tooManyChanges = true;
+            }
+        }
+
+        captured = changes;
+        capturedAll = tooManyChanges || !watching;
+        changes = new HashSet<String>();
+        tooManyChanges = false;
+        return capturedAll ? null : Collections.unmodifiableSet(captured);
+    }
+
+    /**
+     * @return The files changed since the last plugin backup so far, without
+     * taking them, or null if they are not all known.
+     */
+    public synchronized Set<String> getChanges() {
+        return (tooManyChanges || !watching) ? null : new HashSet<String>(changes);
+    }
+
+    /**
+     * @return The backups the plugins can be restored from, the full backup
+     * first, then each incremental one. Empty if the next must be full.
+     */
+    public synchronized List<String> getChain() {
+        return new ArrayList<String>(chain);
+    }
+
+    /**
+     * @return The backups the newest plugin backup builds on, or those of
+     * the backup which has not finished.
+     */
+    public synchronized List<String> getChainedBackups() {
+        return new ArrayList<String>((pendingChain != null) ? pendingChain : chain);
+    }
+
+    /**
+     * Record how the plugins were backed up, to keep once the backup
+     * finishes.
+     *
+     * @param newChain The backups the plugins can now be restored from.
+     */
+    public synchronized void recordBackup(List<String> newChain) {
+        pendingChain = new ArrayList<String>(newChain);
+    }
+
+    /**
+     * The backup has finished, so the changes it took have been backed up.
+     */
+    public synchronized void commit() {
+        if (captured == null) {
+            return;
+        }
+        if (pendingChain == null) { // Captured, but the plugins were not backed up.
+            rollback();
+            return;
+        }
+        // Changes since the capture are only all known if the watcher kept running.
+        chain = watching ? pendingChain : Collections.<String>emptyList();
+        captured = null;
+        pendingChain = null;
+    }
+
+    /**
+     * The backup did not finish, so the changes it took are changes again.
+     */
+    public synchronized void rollback() {
+        if (captured != null) {
+            if (capturedAll) {
+                tooManyChanges = true;
+                changes = new HashSet<String>();
+            } else if (!tooManyChanges) {
+                changes.addAll(captured);
+            }
+        }
+        captured = null;
+        pendingChain = null;
+    }
+
+    /**
+     * @return True if the plugins folder is being watched.
+     */
+    public synchronized boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * @return The number of changes seen for each plugin, or file directly in
+     * the plugins folder, busiest first.
+     */
+    public synchronized Map<String, Long> getChangeCounts() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(changeCounts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * @return When watching started.
+     */
+    public synchronized long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return How many changes were only found by scanning.
+     */
+    public synchronized long getMissedChanges() {
+        return missedChanges;
+    }
+
+    /**
+     * @return How many files have changed since the last plugin backup.
+     */
+    public synchronized int getPendingChanges() {
+        return changes.size();
+    }
+}
@@ -0,0 +1,103 @@
+package com.bukkitbackup.full.events;
+
+import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupQueue;
+import org.bukkit.Server;
+import org.bukkit.boss.BarColor;
+import org.bukkit.boss.BarStyle;
+import org.bukkit.boss.BossBar;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Shows the progress of the running backup in a boss bar, to players with
+ * "backup.progress". The bar is updated by one main thread task, once a
+ * second.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ProgressDisplay implements Listener {
+
+    private static final String PROGRESS_PERMISSION = "backup.progress";
+    private static final long UPDATE_TICKS = 20L;
+
+    private final Plugin plugin;
+    private final Server pluginServer;
+    private final Settings settings;
+    private final BackupQueue backupQueue;
+    private BossBar progressBar = null;
+
+    public ProgressDisplay(Plugin plugin, Settings settings, BackupQueue backupQueue) {
+        this.plugin = plugin;
+        this.pluginServer = plugin.getServer();
+        this.settings = settings;
+        this.backupQueue = backupQueue;
+    }
+
+    /**
+     * Start updating the bar.
+     */
+    public void start() {
+        pluginServer.getScheduler().runTaskTimer(plugin, new Runnable() {
+            public void run() {
+                update();
+            }
+        }, UPDATE_TICKS, UPDATE_TICKS);
+    }
+
+    /**
+     * Hide the bar, if it is showing.
+     */
+    public void stop() {
+        if (progressBar != null) {
+            progressBar.removeAll();
+            progressBar = null;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if (progressBar != null && event.getPlayer().hasPermission(PROGRESS_PERMISSION)) {
+            progressBar.addPlayer(event.getPlayer());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        if (progressBar != null) {
+            progressBar.removePlayer(event.getPlayer());
+        }
+    }
+
+    private void update() {
+        BackupJob job = backupQueue.getRunningJob();
+
+        // Nothing running, or turned off, hide the bar.
+        if (job == null || !settings.getBooleanProperty("progressbar", true)) {
+            stop();
+            return;
+        }
+
+        // Show the bar to everyone allowed to see it.
+        if (progressBar == null) {
+            progressBar = pluginServer.createBossBar("Backup", BarColor.BLUE, BarStyle.SOLID);
+            for (Player player : pluginServer.getOnlinePlayers()) {
+                if (player.hasPermission(PROGRESS_PERMISSION)) {
+                    progressBar.addPlayer(player);
+                }
+            }
+        }
+
+        progressBar.setTitle("Backup " + job.getProgress().describe());
+        progressBar.setProgress(job.getProgress().getFraction());
+    }
+}
@@ -0,0 +1,176 @@
+package com.bukkitbackup.full.history;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The usual number of players online for each hour of the week, kept in
+ * "activity.dat". It is used to move scheduled backups to quieter times.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ActivityProfile {
+
+    private static final int HOURS_IN_WEEK = 7 * 24;
+
+    // Sample every 5 minutes, and save every hour.
+    private static final long SAMPLE_TICKS = 6000L;
+    private static final int SAMPLES_PER_SAVE = 12;
+
+    // Weight of a new sample, so each hour follows the last few weeks.
+    private static final double SAMPLE_WEIGHT = 0.1D;
+
+    private final Plugin plugin;
+    private final File activityFile;
+    private final double[] players = new double[HOURS_IN_WEEK];
+    private final boolean[] sampled = new boolean[HOURS_IN_WEEK];
+    private BukkitTask sampleTask;
+    private int unsavedSamples = 0;
+
+    public ActivityProfile(Plugin plugin, File activityFile) {
+        this.plugin = plugin;
+        this.activityFile = activityFile;
+        load();
+    }
+
+    /**
+     * Start sampling the number of online players.
+     */
+    public void start() {
+        sampleTask = plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+            public void run() {
+                sample(System.currentTimeMillis(), plugin.getServer().getOnlinePlayers().size());
+                if (++unsavedSamples >= SAMPLES_PER_SAVE) {
+                    unsavedSamples = 0;
+                    plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+                        public void run() {
+                            save();
+                        }
+                    });
+                }
+            }
+        }, SAMPLE_TICKS, SAMPLE_TICKS);
+    }
+
+    /**
+     * Stop sampling, and save the profile.
+     */
+    public void stop() {
+        if (sampleTask != null) {
+            sampleTask.cancel();
+            sampleTask = null;
+        }
+        save();
+    }
+
+    /**
+     * Add a sample of the number of online players.
+     *
+     * @param time When the sample was taken.
+     * @param online The number of players online.
+     */
+    public synchronized void sample(long time, int online) {
+        int hour = hourOfWeek(time);
+        if (sampled[hour]) {
+            players[hour] += (online - players[hour]) * SAMPLE_WEIGHT;
+        } else {
+            players[hour] = online;
+            sampled[hour] = true;
+        }
+    }
+
+    /**
+     * The usual number of players online over a period.
+     *
+     * @param from The start of the period.
+     * @param duration The length of the period, in milliseconds.
+     * @return The average of the hours covered, or -1 if none have been
+     * sampled.
+     */
+    public synchronized double getExpectedPlayers(long from, long duration) {
+        double total = 0D;
+        int hours = 0;
+        for (long time = from; time < from + Math.max(duration, 1L); time += 3600000L) {
+            int hour = hourOfWeek(time);
+            if (sampled[hour]) {
+                total += players[hour];
+                hours++;
+            }
+        }
+        return (hours > 0) ? total / hours : -1D;
+    }
+
+    private static int hourOfWeek(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return (calendar.get(Calendar.DAY_OF_WEEK) - 1) * 24 + calendar.get(Calendar.HOUR_OF_DAY);
+    }
+
+    /**
+     * Write the profile to its file.
+     */
+    public void save() {
+        double[] playersCopy;
+        boolean[] sampledCopy;
+        synchronized (this) {
+            playersCopy = players.clone();
+            sampledCopy = sampled.clone();
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(activityFile)));
+            for (int i = 0; i < HOURS_IN_WEEK; i++) {
+                out.writeFloat(sampledCopy[i] ? (float) playersCopy[i] : -1F);
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to save player activity.");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close player activity.");
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (!activityFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(activityFile)));
+            for (int i = 0; i < HOURS_IN_WEEK; i++) {
+                float value = in.readFloat();
+                sampled[i] = value >= 0F;
+                players[i] = sampled[i] ? value : 0D;
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to load player activity.");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close player activity.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.bukkitbackup.full.history;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Keeps one {@link HistoryRecord} per finished backup, in "history.dat".
+ * Every record is held in memory (a year of hourly backups is under 600 KB),
+ * so queries never touch the disk. Records are in the order they finished,
+ * which is also start order, so time windows are found by binary search.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupHistory {
+
+    private static final int HEADER_MAGIC = 0x424B4831; // "BKH1"
+    private static final int HEADER_SIZE = 8;
+    public static final long ONE_WEEK = 7L * 24L * 60L * 60L * 1000L;
+
+    // A metric is flagged when its median is this much worse than before.
+    public static final double REGRESSION_THRESHOLD = 0.25D;
+
+    // How many recent backups a duration prediction is based on.
+    private static final int PREDICTION_SAMPLES = 20;
+
+    private final File historyFile;
+    private final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+    /**
+     * A value taken from each record, for percentiles and trends.
+     */
+    public static abstract class Metric {
+
+        private final String name;
+        private final boolean higherIsBetter;
+
+        protected Metric(String name, boolean higherIsBetter) {
+            this.name = name;
+            this.higherIsBetter = higherIsBetter;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHigherBetter() {
+            return higherIsBetter;
+        }
+
+        public abstract long valueOf(HistoryRecord record);
+    }
+
+    public static final Metric DURATION = new Metric("Duration", false) {
+        @Override
+        public long valueOf(HistoryRecord record) {
+            return record.getTotalMillis();
+        }
+    };
+    public static final Metric COPY_TIME = new Metric("Copy", false) {
+        @Override
+        public long valueOf(HistoryRecord record) {
+            return record.getCopyMillis();
+        }
+    };
+    public static final Metric ZIP_TIME = new Metric("ZIP", false) {
+        @Override
+        public long valueOf(HistoryRecord record) {
+            return record.getZipMillis();
+        }
+    };
+    public static final Metric MAIN_THREAD = new Metric("Main thread", false) {
+        @Override
+        public long valueOf(HistoryRecord record) {
+            return record.getMainThreadMillis();
+        }
+    };
+    public static final Metric THROUGHPUT = new Metric("Throughput", true) {
+        @Override
+        public long valueOf(HistoryRecord record) {
+            return record.getBytesPerSecond();
+        }
+    };
+    public static final Metric OUTPUT_SIZE = new Metric("Size", false) {
+        @Override
+        public long valueOf(HistoryRecord record) {
+            return record.getOutputBytes();
+        }
+    };
+
+    /**
+     * One metric compared between two periods.
+     */
+    public static class Trend {
+
+        private final Metric metric;
+        private final long median;
+        private final long p90;
+        private final long previousMedian;
+
+        Trend(Metric metric, long median, long p90, long previousMedian) {
+            this.metric = metric;
+            this.median = median;
+            this.p90 = p90;
+            this.previousMedian = previousMedian;
+        }
+
+        public Metric getMetric() {
+            return metric;
+        }
+
+        public long getMedian() {
+            return median;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getPreviousMedian() {
+            return previousMedian;
+        }
+
+        /**
+         * @return The change in median as a fraction, positive is an
+         * increase. 0 if there is nothing to compare against.
+         */
+        public double getChange() {
+            return (previousMedian > 0) ? (double) (median - previousMedian) / previousMedian : 0D;
+        }
+
+        /**
+         * @return True if the metric has got worse by more than the threshold.
+         */
+        public boolean isRegression() {
+            double change = getChange();
+            return metric.isHigherBetter() ? (change < -REGRESSION_THRESHOLD) : (change > REGRESSION_THRESHOLD);
+        }
+    }
+
+    public BackupHistory(File historyFile) {
+        this.historyFile = historyFile;
+        load();
+    }
+
+    /**
+     * Add a record, and append it to the history file.
+     *
+     * @param record The record of a finished backup.
+     */
+    public synchronized void append(HistoryRecord record) {
+        records.add(record);
+
+        RandomAccessFile out = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HistoryRecord.RECORD_SIZE);
+            record.write(new DataOutputStream(bytes));
+
+            out = new RandomAccessFile(historyFile, "rw");
+            if (out.length() < HEADER_SIZE) {
+                out.setLength(0L);
+                out.writeInt(HEADER_MAGIC);
+                out.writeInt(HistoryRecord.RECORD_SIZE);
+            }
+
+            // Write after the last whole record, over any torn write.
+            long written = (out.length() - HEADER_SIZE) / HistoryRecord.RECORD_SIZE;
+            out.seek(HEADER_SIZE + written * HistoryRecord.RECORD_SIZE);
+            out.write(bytes.toByteArray());
+            out.setLength(out.getFilePointer());
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write backup history.");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close backup history.");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param amount The most records to return.
+     * @return The most recent records, newest first.
+     */
+    public synchronized List<HistoryRecord> getRecent(int amount) {
+        int from = Math.max(0, records.size() - amount);
+        List<HistoryRecord> recent = new ArrayList<HistoryRecord>(records.subList(from, records.size()));
+        Collections.reverse(recent);
+        return recent;
+    }
+
+    /**
+     * @param from The start of the window, inclusive.
+     * @param to The end of the window, exclusive.
+     * @return The records of backups started in the window, oldest first.
+     */
+    public synchronized List<HistoryRecord> getBetween(long from, long to) {
+        return new ArrayList<HistoryRecord>(records.subList(indexOf(from), indexOf(to)));
+    }
+
+    /**
+     * @param from The start of the window, inclusive.
+     * @param to The end of the window, exclusive.
+     * @return The records of backups started in the window which were not
+     * cancelled, oldest first.
+     */
+    public synchronized List<HistoryRecord> getFinishedBetween(long from, long to) {
+        List<HistoryRecord> finished = new ArrayList<HistoryRecord>();
+        for (HistoryRecord record : records.subList(indexOf(from), indexOf(to))) {
+            if (record.getOutcome() != HistoryRecord.Outcome.CANCELLED) {
+                finished.add(record);
+            }
+        }
+        return finished;
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Predict how long a backup will take, from the throughput of recent
+     * backups. The slower quarter of recent runs is used, so the prediction
+     * errs on the long side.
+     *
+     * @param sourceBytes The size of the data to back up, or 0 if unknown.
+     * @param defaultMillis The duration to assume with no usable history.
+     * @return The predicted duration in milliseconds.
+     */
+    public synchronized long predictDuration(long sourceBytes, long defaultMillis) {
+        List<HistoryRecord> recent = new ArrayList<HistoryRecord>(PREDICTION_SAMPLES);
+        for (int i = records.size() - 1; i >= 0 && recent.size() < PREDICTION_SAMPLES; i--) {
+            HistoryRecord record = records.get(i);
+            if (record.getOutcome() != HistoryRecord.Outcome.CANCELLED && record.getTotalMillis() > 0) {
+                recent.add(record);
+            }
+        }
+        if (recent.isEmpty()) {
+            return defaultMillis;
+        }
+
+        // Without a size, assume it takes as long as it has been.
+        long bytesPerSecond = percentile(sortedValues(THROUGHPUT, recent), 25);
+        if (sourceBytes <= 0L || bytesPerSecond <= 0L) {
+            return percentile(sortedValues(DURATION, recent), 75);
+        }
+        return Math.max(1000L, (sourceBytes * 1000L) / bytesPerSecond);
+    }
+
+    /**
+     * Compare a metric between two sets of records.
+     *
+     * @param metric The metric to compare.
+     * @param current The recent records.
+     * @param previous The records to compare against.
+     * @return The trend, or null if there are no recent records.
+     */
+    public static Trend compare(Metric metric, List<HistoryRecord> current, List<HistoryRecord> previous) {
+        if (current.isEmpty()) {
+            return null;
+        }
+        long[] values = sortedValues(metric, current);
+        long previousMedian = previous.isEmpty() ? 0L : percentile(sortedValues(metric, previous), 50);
+        return new Trend(metric, percentile(values, 50), percentile(values, 90), previousMedian);
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     *
+     * @param sorted The values, in ascending order.
+     * @param percent The percentile, 0 to 100.
+     * @return The value, or 0 if there are none.
+     */
+    public static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        int rank = (int) Math.ceil(percent / 100D * sorted.length);
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+    }
+
+    private static long[] sortedValues(Metric metric, List<HistoryRecord> from) {
+        long[] values = new long[from.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = metric.valueOf(from.get(i));
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * The index of the first record started at or after a time.
+     */
+    private int indexOf(long time) {
+        int low = 0;
+        int high = records.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (records.get(middle).getStartedAt() < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void load() {
+        if (!historyFile.exists()) {
+            return;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(historyFile, "r");
+            byte[] data;
+            try {
+                data = new byte[(int) file.length()];
+                file.readFully(data);
+            } finally {
+                file.close();
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (data.length < HEADER_SIZE || in.readInt() != HEADER_MAGIC || in.readInt() != HistoryRecord.RECORD_SIZE) {
+                LogUtils.sendLog("Backup history file is not recognised, starting a new one.");
+                historyFile.delete();
+                return;
+            }
+
+            // A torn final record is ignored, and written over by the next append.
+            int count = (data.length - HEADER_SIZE) / HistoryRecord.RECORD_SIZE;
+            for (int i = 0; i < count; i++) {
+                records.add(HistoryRecord.read(in));
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read backup history.");
+        }
+    }
+}
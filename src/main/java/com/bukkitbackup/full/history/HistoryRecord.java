@@ -0,0 +1,191 @@
+package com.bukkitbackup.full.history;
+
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupProgress;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * One finished backup run, as kept in the history file. Records are a fixed
+ * {@link #RECORD_SIZE} bytes, so the file can be appended to and read back
+ * without any framing.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class HistoryRecord {
+
+    public static final int RECORD_SIZE = 64;
+
+    /**
+     * How the run ended.
+     */
+    public enum Outcome {
+
+        COMPLETED,
+        ERRORS,
+        CANCELLED
+    }
+
+    private final long startedAt;
+    private final BackupJob.Type type;
+    private final Outcome outcome;
+    private final int totalMillis;
+    private final int planMillis;
+    private final int copyMillis;
+    private final int zipMillis;
+    private final int verifyMillis;
+    private final long sourceBytes;
+    private final long outputBytes;
+    private final int files;
+    private final int mainThreadMillis;
+    private final int deferrals;
+    private final int errors;
+
+    private HistoryRecord(long startedAt, BackupJob.Type type, Outcome outcome, int totalMillis, int planMillis, int copyMillis, int zipMillis,
+            int verifyMillis, long sourceBytes, long outputBytes, int files, int mainThreadMillis, int deferrals, int errors) {
+        this.startedAt = startedAt;
+        this.type = type;
+        this.outcome = outcome;
+        this.totalMillis = totalMillis;
+        this.planMillis = planMillis;
+        this.copyMillis = copyMillis;
+        this.zipMillis = zipMillis;
+        this.verifyMillis = verifyMillis;
+        this.sourceBytes = sourceBytes;
+        this.outputBytes = outputBytes;
+        this.files = files;
+        this.mainThreadMillis = mainThreadMillis;
+        this.deferrals = deferrals;
+        this.errors = errors;
+    }
+
+    /**
+     * Make a record from a finished job.
+     *
+     * @param job The job, after it has finished.
+     * @return The record.
+     */
+    public static HistoryRecord of(BackupJob job) {
+        BackupProgress progress = job.getProgress();
+        Outcome outcome = job.isCancelled() ? Outcome.CANCELLED : ((progress.getErrors() > 0) ? Outcome.ERRORS : Outcome.COMPLETED);
+        return new HistoryRecord(progress.getStartedAt(), job.getType(), outcome,
+                clamp(progress.getDurationMillis()),
+                clamp(progress.getPhaseMillis(BackupProgress.Phase.PLANNING)),
+                clamp(progress.getPhaseMillis(BackupProgress.Phase.COPYING)),
+                clamp(progress.getPhaseMillis(BackupProgress.Phase.ZIPPING)),
+                clamp(progress.getPhaseMillis(BackupProgress.Phase.VERIFYING)),
+                progress.getSourceBytes(), progress.getOutputBytes(), clamp(progress.getSourceFiles()),
+                clamp(progress.getMainThreadMillis()), progress.getDeferrals(), progress.getErrors());
+    }
+
+    static HistoryRecord read(DataInput in) throws IOException {
+        long startedAt = in.readLong();
+        int typeIndex = in.readByte();
+        int outcomeIndex = in.readByte();
+        in.readShort();
+        BackupJob.Type[] types = BackupJob.Type.values();
+        Outcome[] outcomes = Outcome.values();
+        return new HistoryRecord(startedAt,
+                types[Math.min(Math.max(typeIndex, 0), types.length - 1)],
+                outcomes[Math.min(Math.max(outcomeIndex, 0), outcomes.length - 1)],
+                in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                in.readLong(), in.readLong(),
+                in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(startedAt);
+        out.writeByte(type.ordinal());
+        out.writeByte(outcome.ordinal());
+        out.writeShort(0);
+        out.writeInt(totalMillis);
+        out.writeInt(planMillis);
+        out.writeInt(copyMillis);
+        out.writeInt(zipMillis);
+        out.writeInt(verifyMillis);
+        out.writeLong(sourceBytes);
+        out.writeLong(outputBytes);
+        out.writeInt(files);
+        out.writeInt(mainThreadMillis);
+        out.writeInt(deferrals);
+        out.writeInt(errors);
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, value));
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public BackupJob.Type getType() {
+        return type;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public int getTotalMillis() {
+        return totalMillis;
+    }
+
+    public int getPlanMillis() {
+        return planMillis;
+    }
+
+    public int getCopyMillis() {
+        return copyMillis;
+    }
+
+    public int getZipMillis() {
+        return zipMillis;
+    }
+
+    public int getVerifyMillis() {
+        return verifyMillis;
+    }
+
+    public long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public int getMainThreadMillis() {
+        return mainThreadMillis;
+    }
+
+    public int getDeferrals() {
+        return deferrals;
+    }
+
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Output size as a fraction of the source size, or 0 if unknown.
+     */
+    public double getCompressionRatio() {
+        return (sourceBytes > 0 && outputBytes > 0) ? (double) outputBytes / sourceBytes : 0D;
+    }
+
+    /**
+     * @return Source bytes per second, or 0 if unknown.
+     */
+    public long getBytesPerSecond() {
+        return (totalMillis > 0) ? (sourceBytes * 1000L) / totalMillis : 0L;
+    }
+}
@@ -0,0 +1,181 @@
+package com.bukkitbackup.full.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Cuts what is written into parts of a fixed size, and uploads them in
+ * parallel while more is written. Writing waits only when the most parts
+ * allowed are already being sent. Parts already stored, when resuming, are
+ * skipped. Closing the stream waits for every part, then completes the
+ * upload.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class MultipartOutputStream extends OutputStream {
+
+    // Tries for each part, before the upload fails.
+    private static final int PART_ATTEMPTS = 3;
+
+    private final MultipartUpload upload;
+    private final int partSize;
+    private final ExecutorService uploaders;
+    private final Semaphore inFlight;
+    private final Set<Integer> storedParts;
+    private final List<Future<?>> parts = new ArrayList<Future<?>>();
+    private byte[] buffer;
+    private int bufferFill = 0;
+    private int partNumber = 1;
+    private boolean closed = false;
+
+    /**
+     * @param upload The upload to write.
+     * @param partSize The size of each part, except the last.
+     * @param uploaders The threads to send parts on.
+     * @param maxInFlight The most parts to hold in memory at once.
+     */
+    public MultipartOutputStream(MultipartUpload upload, int partSize, ExecutorService uploaders, int maxInFlight) {
+        this.upload = upload;
+        this.partSize = partSize;
+        this.uploaders = uploaders;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.storedParts = upload.getStoredParts();
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int copied = Math.min(len, partSize - bufferFill);
+            System.arraycopy(b, off, buffer, bufferFill, copied);
+            bufferFill += copied;
+            off += copied;
+            len -= copied;
+            if (bufferFill == partSize) {
+                sendPart();
+            }
+        }
+    }
+
+    /**
+     * Send the buffered part, unless it was stored before.
+     */
+    private void sendPart() throws IOException {
+        checkParts();
+        if (!storedParts.contains(partNumber)) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to upload a part.");
+            }
+            final byte[] data = buffer;
+            final int length = bufferFill;
+            final int number = partNumber;
+            parts.add(uploaders.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    try {
+                        uploadWithRetries(number, data, length);
+                        return null;
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            }));
+            buffer = new byte[partSize];
+        }
+        bufferFill = 0;
+        partNumber++;
+    }
+
+    private void uploadWithRetries(int number, byte[] data, int length) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                upload.uploadPart(number, data, length);
+                return;
+            } catch (IOException ioe) {
+                if (attempt >= PART_ATTEMPTS) {
+                    throw ioe;
+                }
+                try {
+                    Thread.sleep(1000L * attempt * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ioe;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail early if a part sent so far has failed.
+     */
+    private void checkParts() throws IOException {
+        for (Future<?> part : parts) {
+            if (part.isDone()) {
+                waitFor(part);
+            }
+        }
+    }
+
+    private static void waitFor(Future<?> part) throws IOException {
+        try {
+            part.get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException("Part upload failed.", ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a part upload.");
+        }
+    }
+
+    /**
+     * Send the last part, wait for every part, and complete the upload.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // Even an empty object needs one part.
+        if (bufferFill > 0 || partNumber == 1) {
+            sendPart();
+        }
+        for (Future<?> part : parts) {
+            waitFor(part);
+        }
+        upload.complete(partNumber - 1);
+    }
+
+    /**
+     * Stop sending parts, without completing the upload.
+     */
+    public void abandon() {
+        closed = true;
+        for (Future<?> part : parts) {
+            part.cancel(true);
+        }
+    }
+}
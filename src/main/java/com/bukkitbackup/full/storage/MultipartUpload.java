@@ -0,0 +1,54 @@
+package com.bukkitbackup.full.storage;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * An object being written to a {@link StorageBackend} in parts. Parts are
+ * numbered from 1, may be uploaded in any order and at the same time, and
+ * the object only exists once the upload is completed.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public interface MultipartUpload {
+
+    String getKey();
+
+    /**
+     * @return The ID to resume the upload with.
+     */
+    String getUploadId();
+
+    /**
+     * @return The numbers of the parts stored before the upload was resumed.
+     */
+    Set<Integer> getStoredParts();
+
+    /**
+     * Store one part. This may be called from several threads at once.
+     *
+     * @param partNumber The number of the part, from 1.
+     * @param data The part data.
+     * @param length How many bytes of the data to store.
+     * @throws IOException If the part was not stored.
+     */
+    void uploadPart(int partNumber, byte[] data, int length) throws IOException;
+
+    /**
+     * Join the parts into the object.
+     *
+     * @param partCount How many parts there are.
+     * @throws IOException If the object was not made.
+     */
+    void complete(int partCount) throws IOException;
+
+    /**
+     * Throw the upload away, with any parts stored.
+     *
+     * @throws IOException If the store could not be told.
+     */
+    void abort() throws IOException;
+}
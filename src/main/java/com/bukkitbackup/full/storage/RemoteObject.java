@@ -0,0 +1,39 @@
+package com.bukkitbackup.full.storage;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * An object in a {@link StorageBackend}, as listed.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class RemoteObject {
+
+    private final String key;
+    private final long size;
+    private final long lastModified;
+
+    public RemoteObject(String key, long size, long lastModified) {
+        this.key = key;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,458 @@
+package com.bukkitbackup.full.storage;
+
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.TeeOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Uploads archives to a {@link StorageBackend} while they are written. Each
+ * archive is stored as "[s3prefix/]backup name/path in backup folder", so
+ * the store can be listed, and old backups removed, without the local files.
+ *
+ * An upload which falls behind the archive carries on from the archive on
+ * disk once it is written. Uploads cut short by a crash or restart are kept
+ * in "uploads.txt", and carried on from the parts already stored before the
+ * next backup. Uploads which fail are aborted, so no parts are left stored.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class RemoteStorage {
+
+    private final StorageBackend backend;
+    private final String prefix;
+    private final int partSize;
+    private final int uploadThreads;
+    private final ThreadPoolExecutor uploaders;
+    private final File pendingFile;
+    private final Strings strings;
+    private final Map<String, String[]> pending = new LinkedHashMap<String, String[]>();
+
+    /**
+     * @param backend The store to upload to.
+     * @param settings The settings.
+     * @param dataFolder The plugin data folder, for "uploads.txt".
+     * @param strings The strings.
+     */
+    public RemoteStorage(StorageBackend backend, SettingsSnapshot settings, File dataFolder, Strings strings) {
+        this.backend = backend;
+        String prefixSetting = settings.getStringProperty("s3prefix", "backups").trim();
+        while (prefixSetting.endsWith("/")) {
+            prefixSetting = prefixSetting.substring(0, prefixSetting.length() - 1);
+        }
+        this.prefix = prefixSetting.isEmpty() ? "" : prefixSetting.concat("/");
+
+        // Parts must be at least 5 MB, apart from the last.
+        this.partSize = (int) (Math.max(5, settings.getIntProperty("uploadpartsize", 16)) * FileUtils.ONE_MB);
+        this.uploadThreads = Math.max(1, settings.getIntProperty("uploadthreads", 4));
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.uploaders = new ThreadPoolExecutor(uploadThreads, uploadThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup-Upload-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.uploaders.allowCoreThreadTimeOut(true);
+        this.pendingFile = new File(dataFolder, "uploads.txt");
+        this.strings = strings;
+        loadPending();
+    }
+
+    /**
+     * Set up the remote storage chosen by "remotestorage".
+     *
+     * @param settings The settings.
+     * @param dataFolder The plugin data folder.
+     * @param strings The strings.
+     * @return The remote storage, or null if there is none.
+     */
+    public static RemoteStorage create(SettingsSnapshot settings, File dataFolder, Strings strings) {
+        String type = settings.getStringProperty("remotestorage", "none").trim().toLowerCase();
+        StorageBackend backend;
+        try {
+            if (type.equals("s3")) {
+                backend = new S3Storage(settings);
+            } else {
+                if (!type.equals("none") && !type.isEmpty()) {
+                    LogUtils.sendLog(strings.getString("remoteunknown", type));
+                }
+                return null;
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to set up remote storage.");
+            return null;
+        }
+        return new RemoteStorage(backend, settings, dataFolder, strings);
+    }
+
+    public String getName() {
+        return backend.getName();
+    }
+
+    /**
+     * @param backupName The name of the backup.
+     * @param relativePath The path of the archive under the backup folder.
+     * @return The name to store the archive under.
+     */
+    public String getKey(String backupName, String relativePath) {
+        return prefix + backupName + "/" + relativePath.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Make a branch which uploads an archive as it is written.
+     *
+     * @param archive The archive being written.
+     * @param key The name to store it under.
+     * @param bufferLimit How far, in bytes, the upload may fall behind before
+     * it reads from the archive on disk instead.
+     * @return The branch.
+     */
+    public TeeOutputStream.Branch createBranch(File archive, String key, long bufferLimit) {
+        return new UploadBranch(archive, key, bufferLimit);
+    }
+
+    /**
+     * Uploads one archive. If the upload falls behind, it is sent the rest
+     * of the archive from disk once the archive is written.
+     */
+    private class UploadBranch extends TeeOutputStream.Branch {
+
+        private final String key;
+        private volatile MultipartUpload upload;
+
+        UploadBranch(File archive, String key, long bufferLimit) {
+            super(archive, bufferLimit);
+            this.key = key;
+        }
+
+        @Override
+        public String describe() {
+            return backend.getName() + "/" + key;
+        }
+
+        @Override
+        protected void fellBehind() {
+            LogUtils.sendDebug("Upload of %s fell behind, it will carry on from disk. (M:0029)", key);
+        }
+
+        @Override
+        protected OutputStream openTarget() throws IOException {
+            upload = backend.startUpload(key);
+            addPending(key, upload.getUploadId(), getFile(), partSize);
+            return new MultipartOutputStream(upload, partSize, uploaders, uploadThreads + 1);
+        }
+
+        @Override
+        protected void finishTarget(OutputStream out, long bytesWritten) throws IOException {
+            if (isBehind()) {
+                copyFrom(getFile(), bytesWritten, out);
+            }
+        }
+
+        @Override
+        protected void completed() {
+            removePending(key);
+        }
+
+        @Override
+        protected void abandonTarget(OutputStream out) {
+            ((MultipartOutputStream) out).abandon();
+        }
+
+        @Override
+        protected void discard() {
+            // Throw away the parts already stored, rather than leave them to be paid for.
+            if (upload != null) {
+                removePending(key);
+                abortUpload(key, upload);
+            }
+        }
+    }
+
+    /**
+     * Carry on the uploads cut short by a crash or restart, from their
+     * archives on disk. Uploads whose archive is gone are thrown away.
+     */
+    public void resumePending() {
+        Map<String, String[]> toResume;
+        synchronized (pending) {
+            toResume = new LinkedHashMap<String, String[]>(pending);
+        }
+        for (Map.Entry<String, String[]> entry : toResume.entrySet()) {
+            String key = entry.getKey();
+            String uploadId = entry.getValue()[0];
+            File archive = new File(entry.getValue()[1]);
+
+            // The parts stored were cut at the size used then.
+            int uploadPartSize = Integer.parseInt(entry.getValue()[2]);
+            try {
+                MultipartUpload upload = backend.resumeUpload(key, uploadId);
+                if (!archive.isFile()) {
+                    upload.abort();
+                } else {
+                    LogUtils.sendLog(strings.getString("remoteresuming", key, Integer.toString(upload.getStoredParts().size())));
+                    MultipartOutputStream out = new MultipartOutputStream(upload, uploadPartSize, uploaders, uploadThreads + 1);
+                    try {
+                        copyFrom(archive, 0L, out);
+                        out.close();
+                    } catch (IOException ioe) {
+                        out.abandon();
+                        throw ioe;
+                    }
+                }
+                removePending(key);
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to resume upload of " + key);
+            }
+        }
+    }
+
+    private static void copyFrom(File archive, long offset, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(archive);
+        try {
+            long skipped = 0L;
+            while (skipped < offset) {
+                long skip = in.skip(offset - skipped);
+                if (skip <= 0) {
+                    throw new IOException("Archive is shorter than the upload: " + archive);
+                }
+                skipped += skip;
+            }
+            byte[] buffer = new byte[FileUtils.BUFFER_SIZE * 8];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A backup in the store, made of every object under its name.
+     */
+    public static final class RemoteBackup {
+
+        private final String name;
+        private final List<RemoteObject> objects = new ArrayList<RemoteObject>();
+
+        RemoteBackup(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<RemoteObject> getObjects() {
+            return objects;
+        }
+
+        public long getSize() {
+            long size = 0L;
+            for (RemoteObject object : objects) {
+                size += object.getSize();
+            }
+            return size;
+        }
+
+        /**
+         * @return When the first object of the backup was stored.
+         */
+        public long getCreatedAt() {
+            long created = Long.MAX_VALUE;
+            for (RemoteObject object : objects) {
+                created = Math.min(created, object.getLastModified());
+            }
+            return created;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * List the backups in the store.
+     *
+     * @return The backups, oldest first.
+     * @throws IOException If the store could not be listed.
+     */
+    public List<RemoteBackup> listBackups() throws IOException {
+        Map<String, RemoteBackup> backups = new LinkedHashMap<String, RemoteBackup>();
+        for (RemoteObject object : backend.list(prefix)) {
+            String path = object.getKey().substring(prefix.length());
+            int slash = path.indexOf('/');
+            if (slash <= 0) {
+                continue;
+            }
+            String name = path.substring(0, slash);
+            RemoteBackup backup = backups.get(name);
+            if (backup == null) {
+                backup = new RemoteBackup(name);
+                backups.put(name, backup);
+            }
+            backup.objects.add(object);
+        }
+
+        List<RemoteBackup> sorted = new ArrayList<RemoteBackup>(backups.values());
+        Collections.sort(sorted, new Comparator<RemoteBackup>() {
+            public int compare(RemoteBackup first, RemoteBackup second) {
+                return (first.getCreatedAt() < second.getCreatedAt()) ? -1 : ((first.getCreatedAt() == second.getCreatedAt()) ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Apply the backup limit to the store. Backups with an upload still
+     * pending are left alone.
+     *
+     * @param backupLimit The amount of backups, or bytes, to keep.
+     * @param sizeLimit True if the limit is a size.
+     * @return The backups deleted.
+     * @throws IOException If the store could not be listed.
+     */
+    public List<RemoteBackup> deleteOldBackups(long backupLimit, boolean sizeLimit) throws IOException {
+        List<RemoteBackup> deleted = new ArrayList<RemoteBackup>();
+        if (backupLimit == 0) {
+            return deleted;
+        }
+        List<RemoteBackup> backups = listBackups();
+        long totalSize = 0L;
+        for (RemoteBackup backup : backups) {
+            totalSize += backup.getSize();
+        }
+        while (backups.size() > 1 && (sizeLimit ? totalSize > backupLimit : backups.size() > backupLimit)) {
+            RemoteBackup oldest = backups.remove(0);
+            if (hasPending(oldest.getName())) {
+                continue;
+            }
+            for (RemoteObject object : oldest.getObjects()) {
+                backend.delete(object.getKey());
+            }
+            totalSize -= oldest.getSize();
+            deleted.add(oldest);
+        }
+        return deleted;
+    }
+
+    private boolean hasPending(String backupName) {
+        synchronized (pending) {
+            for (String key : pending.keySet()) {
+                if (key.startsWith(prefix + backupName + "/")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addPending(String key, String uploadId, File archive, int uploadPartSize) {
+        String[] replaced;
+        synchronized (pending) {
+            replaced = pending.put(key, new String[]{uploadId, archive.getPath(), Integer.toString(uploadPartSize)});
+            savePending();
+        }
+
+        // The parts of an earlier upload of the same archive are stored until it is aborted.
+        if (replaced != null && !replaced[0].equals(uploadId)) {
+            try {
+                abortUpload(key, backend.resumeUpload(key, replaced[0]));
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to abort the earlier upload of " + key);
+            }
+        }
+    }
+
+    private static void abortUpload(String key, MultipartUpload upload) {
+        try {
+            upload.abort();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to abort upload of " + key);
+        }
+    }
+
+    private void removePending(String key) {
+        synchronized (pending) {
+            if (pending.remove(key) != null) {
+                savePending();
+            }
+        }
+    }
+
+    private void loadPending() {
+        if (!pendingFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(pendingFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4 && fields[3].matches("^[0-9]+$")) {
+                    pending.put(fields[0], new String[]{fields[1], fields[2], fields[3]});
+                }
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read pending uploads.");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close pending uploads.");
+                }
+            }
+        }
+    }
+
+    private void savePending() {
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pendingFile), "UTF-8"));
+            for (Map.Entry<String, String[]> entry : pending.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\t" + entry.getValue()[2]);
+                writer.newLine();
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write pending uploads.");
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ioe) {
+                    LogUtils.exceptionLog(ioe, "Failed to close pending uploads.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.bukkitbackup.full.storage;
+
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Stores backups in Amazon S3, or any store with the same API, such as
+ * MinIO. Requests are signed with AWS Signature Version 4, and sent with
+ * HttpURLConnection, so no extra libraries are needed.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class S3Storage implements StorageBackend {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final URL endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyle;
+
+    /**
+     * @param settings The settings, for the "s3..." options.
+     * @throws IOException If the endpoint is not a valid URL.
+     */
+    public S3Storage(SettingsSnapshot settings) throws IOException {
+        this(settings.getStringProperty("s3endpoint", "https://s3.amazonaws.com"),
+                settings.getStringProperty("s3region", "us-east-1"),
+                settings.getStringProperty("s3bucket", ""),
+                settings.getStringProperty("s3accesskey", ""),
+                settings.getStringProperty("s3secretkey", ""),
+                settings.getBooleanProperty("s3pathstyle", true));
+    }
+
+    /**
+     * @param endpointSetting The URL of the store.
+     * @param region The region to sign requests for.
+     * @param bucket The bucket to store backups in.
+     * @param accessKey The access key.
+     * @param secretKey The secret key.
+     * @param pathStyle True to put the bucket in the path, not the host.
+     * @throws IOException If the endpoint is not a valid URL.
+     */
+    S3Storage(String endpointSetting, String region, String bucket, String accessKey, String secretKey, boolean pathStyle) throws IOException {
+        endpointSetting = endpointSetting.trim();
+        this.endpoint = new URL(endpointSetting.endsWith("/") ? endpointSetting.substring(0, endpointSetting.length() - 1) : endpointSetting);
+        this.region = region.trim();
+        this.bucket = bucket.trim();
+        this.accessKey = accessKey.trim();
+        this.secretKey = secretKey.trim();
+        this.pathStyle = pathStyle;
+        if (this.bucket.isEmpty()) {
+            throw new IOException("No bucket is set in \"s3bucket\".");
+        }
+    }
+
+    public String getName() {
+        return "s3://" + bucket;
+    }
+
+    public MultipartUpload startUpload(String key) throws IOException {
+        Map<String, String> query = new TreeMap<String, String>();
+        query.put("uploads", "");
+        Document result = parse(request("POST", key, query, new byte[0], 0));
+        return new S3Upload(key, text(result.getDocumentElement(), "UploadId"), Collections.<Integer, String>emptyMap());
+    }
+
+    public MultipartUpload resumeUpload(String key, String uploadId) throws IOException {
+        Map<Integer, String> stored = new TreeMap<Integer, String>();
+        String marker = null;
+        do {
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("uploadId", uploadId);
+            if (marker != null) {
+                query.put("part-number-marker", marker);
+            }
+            Element result = parse(request("GET", key, query, null, 0)).getDocumentElement();
+            NodeList partList = result.getElementsByTagName("Part");
+            for (int i = 0; i < partList.getLength(); i++) {
+                Element part = (Element) partList.item(i);
+                stored.put(Integer.parseInt(text(part, "PartNumber")), text(part, "ETag"));
+            }
+            marker = "true".equals(text(result, "IsTruncated")) ? text(result, "NextPartNumberMarker") : null;
+        } while (marker != null);
+        return new S3Upload(key, uploadId, stored);
+    }
+
+    public List<RemoteObject> list(String prefix) throws IOException {
+        List<RemoteObject> objects = new ArrayList<RemoteObject>();
+        String token = null;
+        do {
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            if (token != null) {
+                query.put("continuation-token", token);
+            }
+            Element result = parse(request("GET", "", query, null, 0)).getDocumentElement();
+            NodeList contents = result.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element object = (Element) contents.item(i);
+                objects.add(new RemoteObject(text(object, "Key"), Long.parseLong(text(object, "Size")), parseDate(text(object, "LastModified"))));
+            }
+            token = "true".equals(text(result, "IsTruncated")) ? text(result, "NextContinuationToken") : null;
+        } while (token != null);
+        return objects;
+    }
+
+    public void delete(String key) throws IOException {
+        request("DELETE", key, new TreeMap<String, String>(), null, 0);
+    }
+
+    /**
+     * An upload to S3, which keeps the ETag of each part for completing it.
+     */
+    private class S3Upload implements MultipartUpload {
+
+        private final String key;
+        private final String uploadId;
+        private final Set<Integer> storedParts;
+        private final Map<Integer, String> etags = new ConcurrentHashMap<Integer, String>();
+
+        S3Upload(String key, String uploadId, Map<Integer, String> stored) {
+            this.key = key;
+            this.uploadId = uploadId;
+            this.storedParts = Collections.unmodifiableSet(new HashSet<Integer>(stored.keySet()));
+            this.etags.putAll(stored);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public Set<Integer> getStoredParts() {
+            return storedParts;
+        }
+
+        public void uploadPart(int partNumber, byte[] data, int length) throws IOException {
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("partNumber", Integer.toString(partNumber));
+            query.put("uploadId", uploadId);
+            Response response = request("PUT", key, query, data, length);
+            String etag = response.etag;
+            if (etag == null) {
+                throw new IOException("No ETag returned for part " + partNumber + " of " + key);
+            }
+            etags.put(partNumber, etag);
+        }
+
+        public void complete(int partCount) throws IOException {
+            StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 1; i <= partCount; i++) {
+                String etag = etags.get(i);
+                if (etag == null) {
+                    throw new IOException("Part " + i + " of " + key + " was never stored.");
+                }
+                body.append("<Part><PartNumber>").append(i).append("</PartNumber><ETag>")
+                        .append(escapeXml(etag)).append("</ETag></Part>");
+            }
+            body.append("</CompleteMultipartUpload>");
+
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("uploadId", uploadId);
+            byte[] bytes = body.toString().getBytes("UTF-8");
+
+            // Completing can fail after the response has started, so check the body too.
+            Document result = parse(request("POST", key, query, bytes, bytes.length));
+            if (result.getDocumentElement().getTagName().equals("Error")) {
+                throw new IOException("Could not complete " + key + ": " + text(result.getDocumentElement(), "Message"));
+            }
+        }
+
+        public void abort() throws IOException {
+            Map<String, String> query = new TreeMap<String, String>();
+            query.put("uploadId", uploadId);
+            request("DELETE", key, query, null, 0);
+        }
+    }
+
+    private static class Response {
+
+        private byte[] body;
+        private String etag;
+    }
+
+    /**
+     * Send a signed request.
+     *
+     * @param method The HTTP method.
+     * @param key The object, or empty for the bucket.
+     * @param query The query parameters, sorted by name.
+     * @param body The body, or null for none.
+     * @param length How much of the body to send.
+     * @return The response.
+     * @throws IOException If the request failed, or was refused.
+     */
+    private Response request(String method, String key, Map<String, String> query, byte[] body, int length) throws IOException {
+        // Build the path and query, which are also signed.
+        String path;
+        String host = endpoint.getHost();
+        if (pathStyle) {
+            path = "/" + uriEncode(bucket, false) + (key.isEmpty() ? "" : "/" + uriEncode(key, true));
+        } else {
+            host = bucket + "." + host;
+            path = "/" + uriEncode(key, true);
+        }
+        if (endpoint.getPort() != -1 && endpoint.getPort() != endpoint.getDefaultPort()) {
+            host = host + ":" + endpoint.getPort();
+        }
+        path = endpoint.getPath() + path;
+        String queryString = canonicalQuery(query);
+
+        // Sign the request.
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String amzDate = format.format(new Date());
+        String payloadHash = hex(sha256(body, length));
+        String scope = amzDate.substring(0, 8) + "/" + region + "/s3/aws4_request";
+        String signature = sign(method, host, path, queryString, payloadHash, amzDate);
+
+        // Send it.
+        URL url = new URL(endpoint.getProtocol(), pathStyle ? endpoint.getHost() : bucket + "." + endpoint.getHost(), endpoint.getPort(),
+                path + (queryString.isEmpty() ? "" : "?" + queryString));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(120000);
+            connection.setRequestProperty("x-amz-date", amzDate);
+            connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+            connection.setRequestProperty("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+                    + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body, 0, length);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            Response response = new Response();
+            response.etag = connection.getHeaderField("ETag");
+            if (status < 200 || status > 299) {
+                byte[] error = readAll(connection.getErrorStream());
+                String message = "HTTP " + status;
+                if (error.length > 0) {
+                    try {
+                        message += ": " + text(parse(error).getDocumentElement(), "Message");
+                    } catch (IOException ioe) {
+                        // Not an S3 error document.
+                    }
+                }
+                throw new IOException(method + " " + (key.isEmpty() ? bucket : key) + " failed, " + message);
+            }
+            response.body = readAll(connection.getInputStream());
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @param query The query parameters, sorted by name.
+     * @return The query string, encoded as it is signed.
+     */
+    static String canonicalQuery(Map<String, String> query) throws UnsupportedEncodingException {
+        StringBuilder queryString = new StringBuilder();
+        for (Map.Entry<String, String> parameter : query.entrySet()) {
+            if (queryString.length() > 0) {
+                queryString.append('&');
+            }
+            queryString.append(uriEncode(parameter.getKey(), false)).append('=').append(uriEncode(parameter.getValue(), false));
+        }
+        return queryString.toString();
+    }
+
+    /**
+     * Work out the Signature Version 4 signature of a request.
+     *
+     * @param method The HTTP method.
+     * @param host The Host header.
+     * @param path The encoded path.
+     * @param queryString The encoded query string.
+     * @param payloadHash The hex SHA-256 of the body.
+     * @param amzDate The request time, as "yyyyMMdd'T'HHmmss'Z'".
+     * @return The signature, in hex.
+     * @throws IOException If the algorithms are not available.
+     */
+    String sign(String method, String host, String path, String queryString, String payloadHash, String amzDate) throws IOException {
+        String canonicalRequest = method + "\n" + path + "\n" + queryString + "\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + payloadHash + "\n"
+                + "x-amz-date:" + amzDate + "\n"
+                + "\n" + SIGNED_HEADERS + "\n" + payloadHash;
+        String scope = amzDate.substring(0, 8) + "/" + region + "/s3/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest.getBytes("UTF-8"), -1));
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes("UTF-8"), amzDate.substring(0, 8));
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        return hex(hmac(signingKey, stringToSign));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Document parse(Response response) throws IOException {
+        return parse(response.body);
+    }
+
+    private static Document parse(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            return builder.parse(new ByteArrayInputStream(xml));
+        } catch (ParserConfigurationException pce) {
+            throw new IOException("Could not read the response.", pce);
+        } catch (SAXException se) {
+            throw new IOException("Could not read the response.", se);
+        }
+    }
+
+    /**
+     * @return The text of the first child element with a name, or null.
+     */
+    private static String text(Element parent, String name) {
+        NodeList found = parent.getElementsByTagName(name);
+        return (found.getLength() > 0) ? found.item(0).getTextContent() : null;
+    }
+
+    private static long parseDate(String date) {
+        for (String pattern : new String[]{"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", "yyyy-MM-dd'T'HH:mm:ss'Z'"}) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse(date).getTime();
+            } catch (ParseException pe) {
+                // Try the next.
+            }
+        }
+        return 0L;
+    }
+
+    private static String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Encode a value as S3 expects, keeping only unreserved characters.
+     */
+    private static String uriEncode(String value, boolean keepSlash) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes("UTF-8")) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlash && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(HEX[(b >> 4) & 0xF])).append(Character.toUpperCase(HEX[b & 0xF]));
+            }
+        }
+        return encoded.toString();
+    }
+
+    static byte[] sha256(byte[] data, int length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (data != null) {
+                digest.update(data, 0, (length < 0) ? data.length : length);
+            }
+            return digest.digest();
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("SHA-256 is not available.", gse);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes("UTF-8"));
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("HmacSHA256 is not available.", gse);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
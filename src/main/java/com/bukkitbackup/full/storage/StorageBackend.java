@@ -0,0 +1,58 @@
+package com.bukkitbackup.full.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A remote store archives are uploaded to, alongside "backuppath". Objects
+ * are written in numbered parts, so large archives can be sent in parallel,
+ * and an upload cut short can carry on from the parts already stored.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public interface StorageBackend {
+
+    /**
+     * @return A short name for the store, used in messages.
+     */
+    String getName();
+
+    /**
+     * Start a new upload.
+     *
+     * @param key The name of the object to write.
+     * @return The upload.
+     * @throws IOException If the store refused the upload.
+     */
+    MultipartUpload startUpload(String key) throws IOException;
+
+    /**
+     * Carry on an upload started earlier, finding the parts already stored.
+     *
+     * @param key The name of the object being written.
+     * @param uploadId The ID from {@link MultipartUpload#getUploadId()}.
+     * @return The upload.
+     * @throws IOException If the upload no longer exists.
+     */
+    MultipartUpload resumeUpload(String key, String uploadId) throws IOException;
+
+    /**
+     * List the stored objects with a name starting with a prefix.
+     *
+     * @param prefix The start of the names.
+     * @return The objects.
+     * @throws IOException If the store could not be listed.
+     */
+    List<RemoteObject> list(String prefix) throws IOException;
+
+    /**
+     * Delete a stored object.
+     *
+     * @param key The name of the object.
+     * @throws IOException If it could not be deleted.
+     */
+    void delete(String key) throws IOException;
+}
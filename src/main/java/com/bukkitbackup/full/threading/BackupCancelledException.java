@@ -0,0 +1,20 @@
+package com.bukkitbackup.full.threading;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Thrown from inside the copy and ZIP loops when the running backup has been
+ * cancelled. It is unchecked so that it passes through the IOException
+ * handling in the file utilities untouched.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BackupCancelledException() {
+        super("Backup was cancelled.");
+    }
+}
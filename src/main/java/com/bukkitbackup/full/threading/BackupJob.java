@@ -0,0 +1,295 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.archive.ArchiveFormat;
+import com.bukkitbackup.full.config.BackupTier;
+import com.bukkitbackup.full.crypto.ArchiveEncryption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A single request for a backup, as held in the {@link BackupQueue}.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupJob {
+
+    /**
+     * What caused the backup. Lower priorities are run first.
+     */
+    public enum Type {
+
+        MANUAL(0),
+        SHUTDOWN(1),
+        RECOVERY(2),
+        LAST_PLAYER(3),
+        SCHEDULED(4),
+        TIER(5),
+        CONSOLIDATE(6),
+        MIGRATE(7),
+        // One world or plugin, asked for by a person. Last, as the history keeps types by position.
+        PARTIAL(0);
+
+        private final int priority;
+
+        Type(int priority) {
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Automatic jobs give way to a manual one. A partial job never
+         * cancels another, so a whole backup is not lost to it.
+         *
+         * @return True if a manual job may cancel this one.
+         */
+        public boolean isPreemptible() {
+            return this == LAST_PLAYER || this == SCHEDULED || this == TIER || isMaintenance();
+        }
+
+        /**
+         * Maintenance only works on backups already made, while the server
+         * is quiet, and gives way to any backup.
+         *
+         * @return True if this job never reads the server.
+         */
+        public boolean isMaintenance() {
+            return this == CONSOLIDATE || this == MIGRATE;
+        }
+    }
+
+    // The job being run by the current backup thread, if any.
+    private static final ThreadLocal<BackupJob> CURRENT_JOB = new ThreadLocal<BackupJob>();
+
+    private final Type type;
+    private final long createdAt;
+    private final BackupJournal.Entry resumeEntry;
+    private final BackupTier tier;
+    private final BackupScope scope;
+    private final BackupProgress progress = new BackupProgress();
+    private volatile boolean cancelled = false;
+    private volatile BackupMirrors mirrors;
+    private volatile ArchiveEncryption encryption;
+    private volatile MemoryStaging staging;
+    private volatile ArchiveFormat format = ArchiveFormat.DEFAULT;
+    private volatile List<String> quiescedWorlds = Collections.emptyList();
+
+    public BackupJob(Type type) {
+        this(type, null, null, null);
+    }
+
+    private BackupJob(Type type, BackupJournal.Entry resumeEntry, BackupTier tier, BackupScope scope) {
+        this.type = type;
+        this.createdAt = System.currentTimeMillis();
+        this.resumeEntry = resumeEntry;
+        this.tier = tier;
+        this.scope = scope;
+    }
+
+    /**
+     * Create a job which finishes a backup interrupted by a crash.
+     *
+     * @param entry The interrupted backup, from the journal.
+     * @return The recovery job.
+     */
+    public static BackupJob resume(BackupJournal.Entry entry) {
+        return new BackupJob(Type.RECOVERY, entry, null, null);
+    }
+
+    /**
+     * Create a job which backs up one tier.
+     *
+     * @param tier The tier.
+     * @return The tier job.
+     */
+    public static BackupJob forTier(BackupTier tier) {
+        return new BackupJob(Type.TIER, null, tier, null);
+    }
+
+    /**
+     * Create a job which backs up one world or plugin, when asked to.
+     *
+     * @param scope The world or plugin.
+     * @return The scoped job.
+     */
+    public static BackupJob forScope(BackupScope scope) {
+        return new BackupJob(Type.PARTIAL, null, null, scope);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return The journal entry to resume from, or null for a new backup.
+     */
+    public BackupJournal.Entry getResumeEntry() {
+        return resumeEntry;
+    }
+
+    /**
+     * @return The tier this job backs up, or null for a whole backup.
+     */
+    public BackupTier getTier() {
+        return tier;
+    }
+
+    /**
+     * @return The world or plugin this job backs up, or null for a whole
+     * backup.
+     */
+    public BackupScope getScope() {
+        return scope;
+    }
+
+    /**
+     * @return True if this job backs up only part of the server, so is kept
+     * out of the history.
+     */
+    public boolean isPartial() {
+        return tier != null || scope != null;
+    }
+
+    /**
+     * Jobs of the same type, and for the same tier or scope, make the same
+     * backup.
+     *
+     * @param other Another job.
+     * @return True if the other job would make the same backup as this.
+     */
+    public boolean isSameAs(BackupJob other) {
+        if (type != other.type || !((scope == null) ? other.scope == null : scope.equals(other.scope))) {
+            return false;
+        }
+        return (tier == null) ? other.tier == null : (other.tier != null && tier.getName().equals(other.tier.getName()));
+    }
+
+    public BackupProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return The mirrors archives of this job are copied to, or null.
+     */
+    BackupMirrors getMirrors() {
+        return mirrors;
+    }
+
+    void setMirrors(BackupMirrors mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    /**
+     * @return The encryption of the ZIPs of this job, or null.
+     */
+    ArchiveEncryption getEncryption() {
+        return encryption;
+    }
+
+    void setEncryption(ArchiveEncryption encryption) {
+        this.encryption = encryption;
+    }
+
+    /**
+     * @return The memory folders of this job are held in, or null.
+     */
+    MemoryStaging getStaging() {
+        return staging;
+    }
+
+    void setStaging(MemoryStaging staging) {
+        this.staging = staging;
+    }
+
+    /**
+     * @return How the archives of this job are written.
+     */
+    ArchiveFormat getFormat() {
+        return format;
+    }
+
+    void setFormat(ArchiveFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * @return The names of the worlds auto-saving was turned off for, to be
+     * turned back on when this job finishes.
+     */
+    List<String> getQuiescedWorlds() {
+        return quiescedWorlds;
+    }
+
+    void setQuiescedWorlds(List<String> quiescedWorlds) {
+        this.quiescedWorlds = quiescedWorlds;
+    }
+
+    /**
+     * Request that this job stops at the next safe point.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Bind a job to the calling thread, so long running loops can check it.
+     *
+     * @param job The job this thread is working on, or null to unbind.
+     */
+    public static void bind(BackupJob job) {
+        if (job == null) {
+            CURRENT_JOB.remove();
+        } else {
+            CURRENT_JOB.set(job);
+        }
+    }
+
+    /**
+     * @return The job bound to the calling thread, or null.
+     */
+    static BackupJob current() {
+        return CURRENT_JOB.get();
+    }
+
+    /**
+     * Throws if the job bound to this thread has been cancelled.
+     *
+     * @throws BackupCancelledException If the job was cancelled.
+     */
+    public static void checkCancelled() {
+        BackupJob job = CURRENT_JOB.get();
+        if (job != null && job.cancelled) {
+            throw new BackupCancelledException();
+        }
+    }
+
+    /**
+     * @return How archives written by the job on this thread are written,
+     * ZIP if there is none.
+     */
+    public static ArchiveFormat currentFormat() {
+        BackupJob job = CURRENT_JOB.get();
+        return (job != null) ? job.format : ArchiveFormat.DEFAULT;
+    }
+
+    @Override
+    public String toString() {
+        if (scope != null) {
+            return scope.toString();
+        }
+        return (tier != null) ? tier.getName() + " tier" : type.name().toLowerCase();
+    }
+}
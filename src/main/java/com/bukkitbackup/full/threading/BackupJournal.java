@@ -0,0 +1,230 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A write-ahead journal of the backup in progress. Each completed world,
+ * plugin folder and archive is recorded, and synced to disk, before the next
+ * step starts. After a crash, the journal tells us what was finished so the
+ * backup can be resumed or rolled back.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupJournal {
+
+    private static final String BEGIN = "BEGIN";
+    private static final String WORLD = "WORLD";
+    private static final String PLUGINS = "PLUGINS";
+    private static final String ARCHIVE = "ARCHIVE";
+    private static final String COMMIT = "COMMIT";
+    private static final String ROLLBACK = "ROLLBACK";
+
+    private final File journalFile;
+    private FileOutputStream journalStream;
+    private Entry currentEntry;
+
+    /**
+     * The recorded state of one backup.
+     */
+    public static class Entry {
+
+        private final String backupName;
+        private final Set<String> completedWorlds = new HashSet<String>();
+        private final Set<String> completedArchives = new HashSet<String>();
+        private boolean pluginsCompleted = false;
+
+        Entry(String backupName) {
+            this.backupName = backupName;
+        }
+
+        public String getBackupName() {
+            return backupName;
+        }
+
+        @Override
+        public String toString() {
+            return backupName + " (" + completedWorlds.size() + " world(s), " + completedArchives.size() + " archive(s) complete)";
+        }
+    }
+
+    public BackupJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Reads the journal left by the last run.
+     *
+     * @return The backup which was interrupted, or null if the last backup
+     * was committed or rolled back.
+     */
+    public synchronized Entry readInterrupted() {
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        Entry entry = null;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] record = line.split("\t", 2);
+                String value = (record.length > 1) ? record[1] : "";
+
+                if (record[0].equals(BEGIN)) {
+                    entry = new Entry(value);
+                } else if (entry == null) {
+                    continue;
+                } else if (record[0].equals(WORLD)) {
+                    entry.completedWorlds.add(value);
+                } else if (record[0].equals(PLUGINS)) {
+                    entry.pluginsCompleted = true;
+                } else if (record[0].equals(ARCHIVE)) {
+                    entry.completedArchives.add(value);
+                } else if (record[0].equals(COMMIT) || record[0].equals(ROLLBACK)) {
+                    entry = null;
+                }
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read backup journal.");
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to close backup journal.");
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Start journaling a new backup, replacing the previous journal. Any
+     * backup still in it, from {@link #readInterrupted()}, must be resumed or
+     * rolled back first, or its output is left behind.
+     *
+     * @param backupName The name of the new backup.
+     */
+    public synchronized void begin(String backupName) {
+        closeStream();
+        currentEntry = new Entry(backupName);
+        try {
+            journalStream = new FileOutputStream(journalFile, false);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to open backup journal.");
+        }
+        append(BEGIN, backupName);
+    }
+
+    /**
+     * Continue journaling an interrupted backup.
+     *
+     * @param entry The interrupted backup, from {@link #readInterrupted()}.
+     */
+    public synchronized void resume(Entry entry) {
+        closeStream();
+        currentEntry = entry;
+        try {
+            journalStream = new FileOutputStream(journalFile, true);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to open backup journal.");
+        }
+    }
+
+    public synchronized boolean isWorldDone(String worldName) {
+        return currentEntry != null && currentEntry.completedWorlds.contains(worldName);
+    }
+
+    public synchronized void recordWorld(String worldName) {
+        if (currentEntry != null && currentEntry.completedWorlds.add(worldName)) {
+            append(WORLD, worldName);
+        }
+    }
+
+    public synchronized boolean isPluginsDone() {
+        return currentEntry != null && currentEntry.pluginsCompleted;
+    }
+
+    public synchronized void recordPlugins() {
+        if (currentEntry != null && !currentEntry.pluginsCompleted) {
+            currentEntry.pluginsCompleted = true;
+            append(PLUGINS, "");
+        }
+    }
+
+    public synchronized boolean isArchiveDone(String archivePath) {
+        return currentEntry != null && currentEntry.completedArchives.contains(archivePath);
+    }
+
+    public synchronized void recordArchive(String archivePath) {
+        if (currentEntry != null && currentEntry.completedArchives.add(archivePath)) {
+            append(ARCHIVE, archivePath);
+        }
+    }
+
+    /**
+     * Mark the current backup as complete.
+     */
+    public synchronized void commit() {
+        append(COMMIT, "");
+        closeStream();
+        currentEntry = null;
+    }
+
+    /**
+     * Mark the current backup as abandoned, once its output has been removed.
+     */
+    public synchronized void rollback() {
+        append(ROLLBACK, "");
+        closeStream();
+        currentEntry = null;
+    }
+
+    /**
+     * Mark an interrupted backup from a previous run as abandoned.
+     *
+     * @param entry The interrupted backup.
+     */
+    public synchronized void rollback(Entry entry) {
+        resume(entry);
+        rollback();
+    }
+
+    /**
+     * Write a record, and sync it to disk before returning.
+     */
+    private void append(String type, String value) {
+        if (journalStream == null) {
+            return;
+        }
+        try {
+            journalStream.write(type.concat("\t").concat(value).concat("\n").getBytes("UTF-8"));
+            journalStream.getFD().sync();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write backup journal.");
+        }
+    }
+
+    private void closeStream() {
+        if (journalStream != null) {
+            try {
+                journalStream.close();
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to close backup journal.");
+            }
+            journalStream = null;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.crypto.ArchiveEncryption;
+import com.bukkitbackup.full.storage.RemoteStorage;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.TeeOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Copies each archive of a backup to the "mirrorpaths" directories, and to
+ * the remote storage, while it is written, so the backup is not read again
+ * to copy it. A copy is put at the same path under the mirror as the archive
+ * is under its backup folder.
+ *
+ * One is made for each backup, and bound to its job, so the archive writers
+ * can find it with {@link #open(File)}.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupMirrors {
+
+    private final List<File> roots;
+    private final List<File> mirrors;
+    private final RemoteStorage remote;
+    private final String backupName;
+    private final File staging;
+    private final long bufferLimit;
+    private final Strings strings;
+    private final ExecutorService writers;
+    private final List<TeeOutputStream.Branch> branches = new ArrayList<TeeOutputStream.Branch>();
+
+    /**
+     * @param roots The folders backups are written to.
+     * @param mirrors The folders to copy archives to.
+     * @param remote The remote storage to upload archives to, or null.
+     * @param backupName The name of the backup, for remote storage.
+     * @param staging A folder of working files not to copy, or null.
+     * @param bufferLimit How far, in bytes, a copy may fall behind.
+     * @param strings The strings.
+     */
+    public BackupMirrors(List<File> roots, List<File> mirrors, RemoteStorage remote, String backupName, File staging, long bufferLimit, Strings strings) {
+        this.roots = roots;
+        this.mirrors = mirrors;
+        this.remote = remote;
+        this.backupName = backupName;
+        this.staging = staging;
+        this.bufferLimit = bufferLimit;
+        this.strings = strings;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.writers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup-Mirror-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Open an archive for writing. If the backup on this thread has mirrors,
+     * everything written is copied to each of them.
+     *
+     * @param archive The archive to write.
+     * @return The stream to write the archive to.
+     * @throws IOException If the archive cannot be created.
+     */
+    public static OutputStream open(File archive) throws IOException {
+        BackupJob job = BackupJob.current();
+        BackupMirrors backupMirrors = (job != null) ? job.getMirrors() : null;
+        if (backupMirrors == null) {
+            return new FileOutputStream(archive);
+        }
+        return backupMirrors.openMirrored(archive);
+    }
+
+    /**
+     * Open a ZIP, or other archive, for writing. If the backup on this thread
+     * is encrypted, the archive is encrypted before it is copied, so mirrors
+     * only hold the encrypted archive too.
+     *
+     * @param archive The archive to write.
+     * @return The stream to write the archive to.
+     * @throws IOException If the ZIP cannot be created.
+     */
+    public static OutputStream openZip(File archive) throws IOException {
+        OutputStream out = open(archive);
+        BackupJob job = BackupJob.current();
+        ArchiveEncryption encryption = (job != null) ? job.getEncryption() : null;
+        if (encryption == null) {
+            return out;
+        }
+        try {
+            return encryption.encrypt(out);
+        } catch (IOException ioe) {
+            try {
+                out.close();
+            } catch (IOException closeFailure) {
+                // Failing anyway.
+            }
+            throw ioe;
+        }
+    }
+
+    private OutputStream openMirrored(File archive) throws IOException {
+        FileOutputStream primary = new FileOutputStream(archive);
+        String relative = getRelativePath(archive);
+        if (relative == null) {
+            return primary;
+        }
+
+        List<TeeOutputStream.Branch> archiveBranches = new ArrayList<TeeOutputStream.Branch>(mirrors.size() + 1);
+        for (File mirror : mirrors) {
+            archiveBranches.add(new TeeOutputStream.Branch(new File(mirror, relative), bufferLimit));
+        }
+        if (remote != null) {
+            archiveBranches.add(remote.createBranch(archive, remote.getKey(backupName, relative), bufferLimit));
+        }
+        for (TeeOutputStream.Branch branch : archiveBranches) {
+            synchronized (branches) {
+                branches.add(branch);
+            }
+            writers.execute(branch);
+        }
+
+        // Copies are queued in large pieces, not each small write.
+        return new BufferedOutputStream(new TeeOutputStream(primary, archiveBranches), FileUtils.BUFFER_SIZE * 8);
+    }
+
+    /**
+     * @return The path of an archive under its backup folder, or null if it
+     * is a working file, or not in a backup folder.
+     */
+    private String getRelativePath(File archive) throws IOException {
+        String archivePath = archive.getCanonicalPath();
+        if (staging != null && isUnder(archivePath, staging)) {
+            return null;
+        }
+        for (File root : roots) {
+            if (isUnder(archivePath, root)) {
+                return archivePath.substring(root.getCanonicalPath().length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUnder(String path, File folder) throws IOException {
+        return path.startsWith(folder.getCanonicalPath().concat(File.separator));
+    }
+
+    /**
+     * Wait for every copy to be written, and report those which failed. The
+     * mirrors cannot be used after this.
+     *
+     * @return The number of copies which failed.
+     */
+    public int finish() {
+        writers.shutdown();
+        try {
+            while (!writers.awaitTermination(5, TimeUnit.SECONDS)) {
+                LogUtils.sendDebug("Waiting for mirror copies to be written. (M:0028)");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            writers.shutdownNow();
+        }
+
+        int failed = 0;
+        synchronized (branches) {
+            for (TeeOutputStream.Branch branch : branches) {
+                if (branch.getFailure() != null) {
+                    LogUtils.sendLog(strings.getString("mirrorfailed", branch.describe(), branch.getFailure()));
+                    failed++;
+                }
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,410 @@
+package com.bukkitbackup.full.threading;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * How far a running backup has got. Counters are updated by the backup thread
+ * and read by the status command, the progress bar and metrics.
+ *
+ * Each pass over the data (copy, ZIP, verify) counts its bytes and files
+ * towards a total of the planned size times the number of passes.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupProgress {
+
+    /**
+     * What the backup is currently doing.
+     */
+    public enum Phase {
+
+        PLANNING,
+        COPYING,
+        ZIPPING,
+        VERIFYING,
+        FINISHED;
+
+        @Override
+        public String toString() {
+            return name().charAt(0) + name().substring(1).toLowerCase();
+        }
+    }
+
+    // The smoothing factor for throughput, and how often it is sampled.
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final long SAMPLE_MILLIS = 1000L;
+
+    // The average throughput of the last completed backup, for metrics.
+    private static volatile long lastBytesPerSecond = 0L;
+    private static volatile long lastTotalBytes = 0L;
+
+    private final AtomicLong plannedBytes = new AtomicLong();
+    private final AtomicLong plannedFiles = new AtomicLong();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final AtomicLong doneFiles = new AtomicLong();
+    private volatile int passes = 1;
+    private volatile Phase phase = Phase.PLANNING;
+    private volatile long startedAt = System.currentTimeMillis();
+    private volatile long finishedAt = 0L;
+    private volatile long outputBytes = 0L;
+    private final AtomicLong mainThreadMillis = new AtomicLong();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger deferrals = new AtomicInteger();
+
+    // Time spent in each phase, guarded by this.
+    private final long[] phaseMillis = new long[Phase.values().length];
+    private long phaseStartedAt = System.currentTimeMillis();
+
+    // Throughput sampling, guarded by this.
+    private long sampledAt = 0L;
+    private long sampledBytes = 0L;
+    private double bytesPerSecond = 0D;
+
+    /**
+     * Add a file or folder to the planned work, by walking it.
+     *
+     * @param source The file or folder that will be backed up.
+     * @param skipName A folder name to leave out (such as the backup folder),
+     * or null.
+     */
+    public void planSource(File source, final String skipName) {
+        if (!source.exists()) {
+            return;
+        }
+        try {
+            Files.walkFileTree(source.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    BackupJob.checkCancelled();
+                    if (skipName != null && dir.getFileName() != null && dir.getFileName().toString().equals(skipName)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    plannedBytes.addAndGet(attrs.size());
+                    plannedFiles.incrementAndGet();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ioe) {
+            // The plan is only an estimate.
+        }
+    }
+
+    /**
+     * Add one file to the planned work, without walking anything.
+     *
+     * @param file The file that will be backed up, if it exists.
+     */
+    public void planFile(File file) {
+        if (file.isFile()) {
+            plannedBytes.addAndGet(file.length());
+            plannedFiles.incrementAndGet();
+        }
+    }
+
+    /**
+     * Start the clock, when the backup thread picks up the job.
+     */
+    public synchronized void begin() {
+        startedAt = System.currentTimeMillis();
+        phaseStartedAt = startedAt;
+        phase = Phase.PLANNING;
+    }
+
+    /**
+     * Finish planning.
+     *
+     * @param passes How many times the data will be read (copy, ZIP, verify).
+     */
+    public void startPasses(int passes) {
+        this.passes = Math.max(1, passes);
+        setPhase(Phase.COPYING);
+    }
+
+    /**
+     * Mark the backup finished.
+     *
+     * @param completed True if it completed, in which case its throughput is
+     * kept for metrics.
+     */
+    public void finish(boolean completed) {
+        setPhase(Phase.FINISHED);
+        finishedAt = System.currentTimeMillis();
+        if (completed) {
+            long elapsed = Math.max(1L, finishedAt - startedAt);
+            lastBytesPerSecond = (doneBytes.get() * 1000L) / elapsed;
+            lastTotalBytes = plannedBytes.get();
+        }
+    }
+
+    /**
+     * Move to another phase, adding the time spent to the one being left.
+     *
+     * @param next The phase being entered.
+     */
+    public synchronized void setPhase(Phase next) {
+        if (next == phase) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        phaseMillis[phase.ordinal()] += now - phaseStartedAt;
+        phaseStartedAt = now;
+        phase = next;
+    }
+
+    /**
+     * @param phase The phase.
+     * @return Milliseconds spent in the phase so far.
+     */
+    public synchronized long getPhaseMillis(Phase phase) {
+        long millis = phaseMillis[phase.ordinal()];
+        if (phase == this.phase && phase != Phase.FINISHED) {
+            millis += System.currentTimeMillis() - phaseStartedAt;
+        }
+        return millis;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return Total time taken, or so far if still running.
+     */
+    public long getDurationMillis() {
+        return ((finishedAt > 0L) ? finishedAt : System.currentTimeMillis()) - startedAt;
+    }
+
+    /**
+     * Count time spent on the main thread for this backup.
+     *
+     * @param millis Milliseconds spent.
+     */
+    public void addMainThreadMillis(long millis) {
+        mainThreadMillis.addAndGet(millis);
+    }
+
+    public long getMainThreadMillis() {
+        return mainThreadMillis.get();
+    }
+
+    /**
+     * Count an error which did not stop the backup.
+     */
+    public void addError() {
+        errors.incrementAndGet();
+    }
+
+    public int getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Count a time the backup was held back, behind another one.
+     */
+    public void addDeferral() {
+        deferrals.incrementAndGet();
+    }
+
+    public int getDeferrals() {
+        return deferrals.get();
+    }
+
+    public void setOutputBytes(long outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * @return The planned bytes of a single pass, the size of the source data.
+     */
+    public long getSourceBytes() {
+        return plannedBytes.get();
+    }
+
+    /**
+     * @return The number of source files.
+     */
+    public long getSourceFiles() {
+        return plannedFiles.get();
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public long getPlannedBytes() {
+        return plannedBytes.get() * passes;
+    }
+
+    public long getDoneBytes() {
+        return doneBytes.get();
+    }
+
+    public long getPlannedFiles() {
+        return plannedFiles.get() * passes;
+    }
+
+    public long getDoneFiles() {
+        return doneFiles.get();
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startedAt;
+    }
+
+    /**
+     * @return How much of the planned work is done, from 0 to 1.
+     */
+    public double getFraction() {
+        long planned = getPlannedBytes();
+        if (planned <= 0) {
+            return 0D;
+        }
+        return Math.min(1D, (double) doneBytes.get() / planned);
+    }
+
+    /**
+     * The smoothed throughput. It is re-sampled at most once a second, however
+     * often it is asked for.
+     *
+     * @return Bytes per second.
+     */
+    public synchronized long getBytesPerSecond() {
+        long now = System.currentTimeMillis();
+        long done = doneBytes.get();
+        if (sampledAt == 0L) {
+            sampledAt = startedAt;
+        }
+        if (now - sampledAt >= SAMPLE_MILLIS) {
+            double current = (done - sampledBytes) * 1000D / (now - sampledAt);
+            bytesPerSecond = (bytesPerSecond == 0D) ? current : (RATE_SMOOTHING * current) + ((1 - RATE_SMOOTHING) * bytesPerSecond);
+            sampledAt = now;
+            sampledBytes = done;
+        }
+        return (long) bytesPerSecond;
+    }
+
+    /**
+     * @return Estimated seconds remaining, or -1 if not yet known.
+     */
+    public long getSecondsRemaining() {
+        long rate = getBytesPerSecond();
+        if (rate <= 0 || phase == Phase.PLANNING) {
+            return -1L;
+        }
+        return Math.max(0L, getPlannedBytes() - doneBytes.get()) / rate;
+    }
+
+    /**
+     * A one line summary, used for the status command and the progress bar.
+     *
+     * @return The summary.
+     */
+    public String describe() {
+        long remaining = getSecondsRemaining();
+        return String.format("%s: %d%% (%s/s, ETA %s)", phase, (int) (getFraction() * 100), formatBytes(getBytesPerSecond()),
+                (remaining < 0) ? "unknown" : formatSeconds(remaining));
+    }
+
+    public static long getLastBytesPerSecond() {
+        return lastBytesPerSecond;
+    }
+
+    public static long getLastTotalBytes() {
+        return lastTotalBytes;
+    }
+
+    /**
+     * @return The progress of the backup on this thread, or null.
+     */
+    public static BackupProgress current() {
+        BackupJob job = BackupJob.current();
+        return (job != null) ? job.getProgress() : null;
+    }
+
+    /**
+     * Count bytes read by the backup on this thread.
+     *
+     * @param bytes The number of bytes.
+     */
+    public static void addBytes(long bytes) {
+        BackupJob job = BackupJob.current();
+        if (job != null) {
+            job.getProgress().doneBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Count an error on the backup on this thread.
+     */
+    public static void errorOccurred() {
+        BackupJob job = BackupJob.current();
+        if (job != null) {
+            job.getProgress().addError();
+        }
+    }
+
+    /**
+     * Count a file handled by the backup on this thread.
+     */
+    public static void addFile() {
+        BackupJob job = BackupJob.current();
+        if (job != null) {
+            job.getProgress().doneFiles.incrementAndGet();
+        }
+    }
+
+    /**
+     * Set the phase of the backup on this thread.
+     *
+     * @param phase The phase being entered.
+     */
+    public static void enter(Phase phase) {
+        BackupJob job = BackupJob.current();
+        if (job != null) {
+            job.getProgress().setPhase(phase);
+        }
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024L) {
+            return bytes + " B";
+        } else if (bytes < 1024L * 1024L) {
+            return String.format("%.1f KB", bytes / 1024D);
+        } else if (bytes < 1024L * 1024L * 1024L) {
+            return String.format("%.1f MB", bytes / (1024D * 1024D));
+        }
+        return String.format("%.2f GB", bytes / (1024D * 1024D * 1024D));
+    }
+
+    public static String formatSeconds(long seconds) {
+        if (seconds >= 3600L) {
+            return String.format("%dh %02dm", seconds / 3600L, (seconds % 3600L) / 60L);
+        }
+        return String.format("%dm %02ds", seconds / 60L, seconds % 60L);
+    }
+}
@@ -0,0 +1,282 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Serializes all backup requests. Only one job runs at a time, duplicate
+ * requests are coalesced, and manual jobs are run ahead of (and preempt)
+ * automatic ones.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupQueue {
+
+    private final Plugin plugin;
+    private final Server pluginServer;
+    private final Strings strings;
+    private final PrepareBackup prepareBackup;
+    private final PriorityQueue<BackupJob> pendingJobs;
+    private BackupJob runningJob = null;
+    private boolean runningStarted = false;
+    private boolean acceptingJobs = true;
+
+    // A job which passed its checks while maintenance ran, to start next.
+    private BackupJob checkedJob = null;
+
+    public BackupQueue(Plugin plugin, PrepareBackup prepareBackup, Strings strings) {
+        this.plugin = plugin;
+        this.pluginServer = plugin.getServer();
+        this.prepareBackup = prepareBackup;
+        this.strings = strings;
+
+        // Order by type priority, then by age.
+        this.pendingJobs = new PriorityQueue<BackupJob>(4, new Comparator<BackupJob>() {
+            public int compare(BackupJob first, BackupJob second) {
+                int priority = first.getType().getPriority() - second.getType().getPriority();
+                if (priority != 0) {
+                    return priority;
+                }
+                return (first.getCreatedAt() < second.getCreatedAt()) ? -1 : ((first.getCreatedAt() == second.getCreatedAt()) ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Add a job to the queue. It is dropped if an equivalent job is already
+     * waiting or running.
+     *
+     * @param job The job to add.
+     * @return True if the job was queued, false if it was coalesced.
+     */
+    public synchronized boolean submit(BackupJob job) {
+        if (!acceptingJobs) {
+            return false;
+        }
+
+        // An equivalent job will already produce this backup.
+        for (BackupJob pendingJob : pendingJobs) {
+            if (pendingJob.isSameAs(job)) {
+                LogUtils.sendDebug("Coalesced %s backup with a queued one. (M:0019)", job);
+                return false;
+            }
+        }
+        if (checkedJob != null && checkedJob.isSameAs(job)) {
+            LogUtils.sendDebug("Coalesced %s backup with a queued one. (M:0019)", job);
+            return false;
+        }
+        if (runningJob != null && !runningJob.isCancelled()) {
+            if (runningJob.isSameAs(job)) {
+                if (job.getType() == BackupJob.Type.TIER) { // Frequent, so not worth a message.
+                    LogUtils.sendDebug("Coalesced %s backup with the running one. (M:0019)", job);
+                } else {
+                    LogUtils.sendLog(strings.getString("backupinprogress"));
+                }
+                return false;
+            }
+
+            // Any backup takes over from maintenance, once it is sure to run; manual backups from automatic ones.
+            if (runningJob.getType().isMaintenance() && !job.getType().isMaintenance()) {
+                checkPreemption(job);
+            } else if (job.getType() == BackupJob.Type.MANUAL && runningJob.getType().isPreemptible()) {
+                LogUtils.sendLog(strings.getString("backuppreempted", runningJob.toString()));
+                runningJob.cancel();
+            }
+        }
+
+        // Count jobs made to wait for another.
+        if (runningJob != null) {
+            job.getProgress().addDeferral();
+        }
+        pendingJobs.add(job);
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Check, on the main thread, whether a job waiting for maintenance would
+     * run. If so, the maintenance is stopped and the job started after it,
+     * otherwise the job is skipped, and the maintenance carries on.
+     */
+    private void checkPreemption(final BackupJob job) {
+        pluginServer.getScheduler().runTask(plugin, new Runnable() {
+            public void run() {
+                boolean runs = false;
+                try {
+                    runs = prepareBackup.shouldRun(job);
+                } catch (Exception e) {
+                    LogUtils.exceptionLog(e, "Failed to prepare backup.");
+                }
+                preempt(job, runs);
+            }
+        });
+    }
+
+    private synchronized void preempt(BackupJob job, boolean runs) {
+        if (!pendingJobs.contains(job)) { // Started, or dropped, meanwhile.
+            return;
+        }
+        if (!runs) { // Skipped, as it would have been once the maintenance finished.
+            pendingJobs.remove(job);
+        } else if (checkedJob == null && runningJob != null && runningJob.getType().isMaintenance()) {
+            pendingJobs.remove(job);
+            checkedJob = job;
+            LogUtils.sendDebug("Stopping %s for a %s backup. (M:0038)", runningJob, job);
+            runningJob.cancel();
+        }
+    }
+
+    /**
+     * Creates a Runnable which submits a new job of the given type each time
+     * it is run, for use with the Bukkit scheduler.
+     *
+     * @param type The type of job to submit.
+     * @return The Runnable.
+     */
+    public Runnable triggerFor(final BackupJob.Type type) {
+        return new Runnable() {
+            public void run() {
+                submit(new BackupJob(type));
+            }
+        };
+    }
+
+    /**
+     * Cancel the running job. The job stops at the next safe point, and
+     * removes its partial output.
+     *
+     * @return True if there was a job to cancel.
+     */
+    public synchronized boolean cancelRunning() {
+        if (runningJob == null || runningJob.isCancelled()) {
+            return false;
+        }
+        runningJob.cancel();
+        return true;
+    }
+
+    /**
+     * Remove waiting jobs of the given type, without touching a running job.
+     *
+     * @param type The type of job to remove.
+     */
+    public synchronized void removePending(BackupJob.Type type) {
+        Iterator<BackupJob> iterator = pendingJobs.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getType() == type) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Called when a job has completed, been cancelled or skipped, so the next
+     * job can be started.
+     *
+     * @param job The job which has finished.
+     */
+    public synchronized void finished(BackupJob job) {
+        if (runningJob == job) {
+            runningJob = null;
+            notifyAll();
+        }
+        dispatch();
+    }
+
+    /**
+     * Wait for the running job to finish, such as after {@link #shutdown()}.
+     *
+     * @param timeoutMillis The longest to wait.
+     * @return True if no job is running.
+     */
+    public synchronized boolean awaitFinished(long timeoutMillis) {
+        long waitUntil = System.currentTimeMillis() + timeoutMillis;
+        while (runningJob != null) {
+            long remaining = waitUntil - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isRunning() {
+        return runningJob != null;
+    }
+
+    public synchronized BackupJob getRunningJob() {
+        return runningJob;
+    }
+
+    /**
+     * Stop accepting jobs, drop all waiting ones and cancel the running one.
+     * Must be called after the tasks of the plugin are cancelled, as a job
+     * not yet prepared then never starts.
+     */
+    public synchronized void shutdown() {
+        acceptingJobs = false;
+        pendingJobs.clear();
+        checkedJob = null;
+        if (runningJob != null) {
+            runningJob.cancel();
+            if (!runningStarted) {
+                runningJob = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Start the next job, on the main thread, if nothing is running.
+     */
+    private void dispatch() {
+        if (runningJob != null || (pendingJobs.isEmpty() && checkedJob == null) || !acceptingJobs) {
+            return;
+        }
+
+        final BackupJob job = (checkedJob != null) ? checkedJob : pendingJobs.poll();
+        final boolean checked = (job == checkedJob);
+        checkedJob = null;
+        runningJob = job;
+        runningStarted = false;
+
+        LogUtils.sendDebug("Starting %s backup. (M:0020)", job);
+
+        // Preparation touches worlds, so it must happen on the main thread.
+        pluginServer.getScheduler().runTask(plugin, new Runnable() {
+            public void run() {
+                boolean started = false;
+                try {
+                    started = checked ? prepareBackup.begin(job) : prepareBackup.prepare(job);
+                } catch (Exception e) {
+                    LogUtils.exceptionLog(e, "Failed to prepare backup.");
+                }
+                if (started) {
+                    markStarted(job);
+                } else {
+                    finished(job);
+                }
+            }
+        });
+    }
+
+    private synchronized void markStarted(BackupJob job) {
+        if (runningJob == job) {
+            runningStarted = true;
+        }
+    }
+}
@@ -3,60 +3,169 @@ package com.bukkitbackup.full.threading;
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
 import com.bukkitbackup.full.utils.LogUtils;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.bukkit.Server;
 import org.bukkit.plugin.Plugin;
 
 /**
  * Backup - The simple server backup solution.
  *
+ * Fires backups at the times described by a set of cron expressions. Only the
+ * next fire time is ever scheduled, so nothing polls between backups.
+ *
  * @author Samuel98
  * @author info@samuel98.com
  */
-public class BackupScheduler implements Runnable {
+public class BackupScheduler {
+
+    // Allowed clock drift before a wake-up is treated as early and rescheduled.
+    private static final long EARLY_TOLERANCE_MS = 1000L;
 
     private final Plugin plugin;
-    private final PrepareBackup prepareBackup;
+    private final BackupQueue backupQueue;
     private final Settings settings;
     private final Strings strings;
     private final Server pluginServer;
-    private final String[] timesArray;
+    private final List<CronExpression> expressions;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> nextRun;
+    private long lastFireTime = -1L;
 
-    public BackupScheduler(Plugin plugin, PrepareBackup prepareBackup, Settings settings, Strings strings, String[] timesArray) {
+    public BackupScheduler(Plugin plugin, BackupQueue backupQueue, Settings settings, Strings strings, List<CronExpression> expressions) {
         this.plugin = plugin;
-        this.prepareBackup = prepareBackup;
+        this.backupQueue = backupQueue;
         this.pluginServer = plugin.getServer();
         this.settings = settings;
         this.strings = strings;
-        this.timesArray = timesArray;
+        this.expressions = expressions;
+
+        // A single daemon thread, which is parked until the next fire time.
+        ScheduledThreadPoolExecutor threadPool = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup-Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        threadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = threadPool;
+    }
+
+    /**
+     * Start the scheduler, computing the first fire time from now. Planning
+     * is done on the scheduler thread, as it may need to read the worlds.
+     */
+    public synchronized void start() {
+        final long now = System.currentTimeMillis();
+        executor.execute(new Runnable() {
+            public void run() {
+                scheduleNext(now);
+            }
+        });
     }
 
-    public void run() {
-        // Loop to check if we need to backup.
-        while (true) {
-            LogUtils.sendDebug("Checking if we should backup. (M:0008)");
+    /**
+     * Stop the scheduler, no further backups will be fired.
+     */
+    public synchronized void stop() {
+        if (nextRun != null) {
+            nextRun.cancel(false);
+            nextRun = null;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedule the earliest fire time of all expressions after the given time.
+     *
+     * @param afterMillis Time to search from, in epoch milliseconds.
+     */
+    private synchronized void scheduleNext(long afterMillis) {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        final long fireTime = getNextFireTime(afterMillis);
+        if (fireTime == -1L) {
+            LogUtils.sendLog(strings.getString("checkbackupinterval"));
+            return;
+        }
 
-            // Get current time, and format it to our requirements.
-            Calendar calendarInstance = Calendar.getInstance();
-            String timeNow = new SimpleDateFormat("HH:mm").format(calendarInstance.getTime());
+        // The backup may need to start before the time itself.
+        long startTime = planStart(fireTime);
+        if (startTime == -1L) {
+            scheduleNext(fireTime);
+            return;
+        }
 
-            LogUtils.sendDebug("Time is: " + timeNow + " (M:0009)");
+        LogUtils.sendDebug("Next scheduled backup at: %s, for: %s (M:0008)", new Date(startTime), new Date(fireTime));
 
-            // Loop the array of times we want to backup at.
-            for (String timesArray1 : timesArray) {
-                // If we want to backup this minute, schedule a backupTask.
-                if (timesArray1.equals(timeNow)) {
-                    pluginServer.getScheduler().scheduleAsyncDelayedTask(plugin, prepareBackup);
-                }
+        long delay = Math.max(0L, startTime - System.currentTimeMillis());
+        nextRun = executor.schedule(new Runnable() {
+            public void run() {
+                fire(fireTime);
             }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Work out when the backup for a fire time should start. This is called
+     * when the fire time is scheduled, and again when it is reached.
+     *
+     * @param fireTime The fire time, in epoch milliseconds.
+     * @return When to start the backup, or -1 to skip this fire time.
+     */
+    protected long planStart(long fireTime) {
+        return fireTime;
+    }
+
+    /**
+     * Called on the scheduler thread when a fire time is reached.
+     *
+     * @param fireTime The fire time this run was scheduled for.
+     */
+    private synchronized void fire(long fireTime) {
+        long now = System.currentTimeMillis();
+
+        // Planned again, as things may have changed since it was scheduled.
+        long startTime = planStart(fireTime);
+        if (startTime == -1L) {
+            scheduleNext(Math.max(fireTime, now));
+            return;
+        }
+
+        // Woken early, usually because the wall clock was moved back.
+        if (now < startTime - EARLY_TOLERANCE_MS) {
+            LogUtils.sendDebug("Woke before scheduled time, rescheduling. (M:0009)");
+            scheduleNext(Math.min(fireTime, now) - 60000L);
+            return;
+        }
+
+        // Overlapping expressions, or a clock change, can produce the same minute twice.
+        if (fireTime > lastFireTime) {
+            lastFireTime = fireTime;
+            backupQueue.submit(new BackupJob(BackupJob.Type.SCHEDULED));
+        } else {
+            LogUtils.sendDebug("Skipping duplicate trigger for: %s (M:0009)", new Date(fireTime));
+        }
+
+        scheduleNext(Math.max(fireTime, now));
+    }
 
-            // This sleeps the thread for 30 seconds in order to do another check.
-            try {
-                Thread.sleep(30000);
-            } catch (InterruptedException ex) {
-                LogUtils.exceptionLog(ex);
+    private long getNextFireTime(long afterMillis) {
+        long earliest = -1L;
+        for (CronExpression expression : expressions) {
+            long next = expression.nextFireTime(afterMillis);
+            if (next != -1L && (earliest == -1L || next < earliest)) {
+                earliest = next;
             }
         }
+        return earliest;
     }
 }
@@ -0,0 +1,84 @@
+package com.bukkitbackup.full.threading;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * One world, or one plugin, backed up on its own by "/backup world" or
+ * "/backup plugin". The backup holds nothing else, so it is a partial backup.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class BackupScope {
+
+    /**
+     * What is backed up.
+     */
+    public enum Kind {
+
+        WORLD,
+        PLUGIN;
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Kind kind;
+    private final String name;
+
+    private BackupScope(Kind kind, String name) {
+        this.kind = kind;
+        this.name = name;
+    }
+
+    /**
+     * @param worldName The name of the world, as its folder.
+     * @return The scope of a backup of just that world.
+     */
+    public static BackupScope world(String worldName) {
+        return new BackupScope(Kind.WORLD, worldName);
+    }
+
+    /**
+     * @param folderName The name of the plugin's folder in "plugins".
+     * @return The scope of a backup of just that plugin.
+     */
+    public static BackupScope plugin(String folderName) {
+        return new BackupScope(Kind.PLUGIN, folderName);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isWorld() {
+        return kind == Kind.WORLD;
+    }
+
+    /**
+     * @return What the backup holds, as written in the catalog.
+     */
+    public String getLabel() {
+        return kind.getName() + ":" + name;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof BackupScope && kind == ((BackupScope) other).kind && name.equals(((BackupScope) other).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return kind.hashCode() * 31 + name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return kind.getName() + " " + name;
+    }
+}
@@ -1,10 +1,30 @@
 package com.bukkitbackup.full.threading;
 
-import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.BackupFull;
+import com.bukkitbackup.full.archive.ArchiveCodec;
+import com.bukkitbackup.full.archive.ArchiveFormat;
+import com.bukkitbackup.full.catalog.BackupCatalog;
+import com.bukkitbackup.full.catalog.CatalogEntry;
+import com.bukkitbackup.full.config.BackupTier;
+import com.bukkitbackup.full.config.SettingsSnapshot;
 import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.crypto.ArchiveEncryption;
+import com.bukkitbackup.full.crypto.ArchiveKey;
+import com.bukkitbackup.full.delta.DeltaStore;
+import com.bukkitbackup.full.events.DirtyRegionTracker;
+import com.bukkitbackup.full.events.NotifyRecipients;
+import com.bukkitbackup.full.events.PluginChangeJournal;
+import com.bukkitbackup.full.history.BackupHistory;
+import com.bukkitbackup.full.history.HistoryRecord;
+import com.bukkitbackup.full.storage.RemoteStorage;
 import com.bukkitbackup.full.threading.tasks.BackupEverything;
+import com.bukkitbackup.full.threading.tasks.BackupPartial;
 import com.bukkitbackup.full.threading.tasks.BackupPlugins;
+import com.bukkitbackup.full.threading.tasks.BackupTiers;
 import com.bukkitbackup.full.threading.tasks.BackupWorlds;
+import com.bukkitbackup.full.threading.tasks.ConsolidateBackups;
+import com.bukkitbackup.full.threading.tasks.MigrateBackups;
+import com.bukkitbackup.full.threading.tasks.SnapshotWorlds;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import com.bukkitbackup.full.utils.LogUtils;
@@ -13,10 +33,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
 import org.bukkit.Server;
 import org.bukkit.World;
-import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
 /**
@@ -25,53 +48,139 @@ import org.bukkit.plugin.Plugin;
  * @author Samuel98
  * @author info@samuel98.com
  */
-public class BackupTask implements Runnable {
+public class BackupTask {
+
+    // Beside a tier backup while it is written, so one cut short by a crash is found.
+    private static final String INCOMPLETE_PREFIX = ".incomplete-";
 
     private final Plugin plugin;
     private final Server pluginServer;
-    private final Settings settings;
+    private final SettingsSnapshot settings;
     private final Strings strings;
+    private final NotifyRecipients notifyRecipients;
     private final boolean backupEverything;
     private final boolean splitBackup;
     private final boolean shouldZIP;
     private final boolean useTemp;
+    private final boolean verifyBackups;
+    private final boolean encryptBackups;
+    private final boolean worldSnapshots;
+    private final ArchiveFormat archiveFormat;
     private final String dateFormat;
     private final String worldContainer;
     private final String backupPath;
     private final String tempDestination;
+    private final String partialPath;
+    private final File coldFolder;
+    private final BackupJournal journal;
+    private final List<File> outputFolders;
+    private final List<File> mirrorFolders;
+    private final RemoteStorage remoteStorage;
+    private final ArchiveKey archiveKey;
+    private final DeltaStore deltaStore;
+    private final boolean incrementalWorlds;
+    private final DirtyRegionTracker regionTracker;
+    private final PluginChangeJournal pluginChanges;
     private String thisBackupName;
 
     // Threads.
     private final BackupWorlds worldBackupTask;
     private final BackupPlugins pluginBackupTask;
     private final BackupEverything everythingBackupTask;
+    private final BackupTiers tierBackupTask;
+    private final BackupPartial partialBackupTask;
+    private final ConsolidateBackups consolidateTask;
+    private final MigrateBackups migrateTask;
+    private final StripedOutput stripedOutput;
 
-    public BackupTask(Plugin plugin, Settings settings, Strings strings) {
+    /**
+     * Set up a backup task. A new one is made each time the settings are
+     * reloaded, and a backup keeps using the task it was started on.
+     *
+     * @param plugin The plugin.
+     * @param settings The settings for backups run by this task.
+     * @param strings The strings.
+     * @param notifyRecipients Who to notify of backups.
+     * @param journal The shared backup journal.
+     */
+    public BackupTask(Plugin plugin, SettingsSnapshot settings, Strings strings, NotifyRecipients notifyRecipients, BackupJournal journal) {
         // Retrieve parameters.
         this.plugin = plugin;
         this.pluginServer = plugin.getServer();
         this.settings = settings;
         this.strings = strings;
+        this.notifyRecipients = notifyRecipients;
 
         // The worlds container, if any.
         worldContainer = pluginServer.getWorldContainer().getName();
 
         // Load settings.
-        backupPath = settings.getStringProperty("backuppath", "backups");
-        backupEverything = settings.getBooleanProperty("backupeverything", false);
-        splitBackup = settings.getBooleanProperty("splitbackup", false);
-        shouldZIP = settings.getBooleanProperty("zipbackup", true);
-        useTemp = settings.getBooleanProperty("usetemp", true);
+        backupPath = settings.getBackupPath();
+        backupEverything = settings.isBackupEverything();
+        splitBackup = settings.isSplitBackup();
+        shouldZIP = settings.isZipBackup();
+        useTemp = settings.isUsingTemp();
+        verifyBackups = settings.getBooleanProperty("verifybackups", false);
+        archiveFormat = getArchiveFormat("archiveformat", "zip", "ziplevel", Deflater.DEFAULT_COMPRESSION);
         dateFormat = settings.getStringProperty("dateformat", "%1$tY-%1$tm-%1$td-%1$tH-%1$tM-%1$tS");
 
+        // The journal of the backup in progress.
+        this.journal = journal;
+
         // Import backup tasks.
-        everythingBackupTask = new BackupEverything(settings);
-        worldBackupTask = new BackupWorlds(pluginServer, settings, strings);
-        pluginBackupTask = new BackupPlugins(settings, strings);
+        everythingBackupTask = new BackupEverything(settings, journal);
+        worldSnapshots = settings.getStringProperty("worldengine", "copy").trim().equalsIgnoreCase("snapshot");
+        SnapshotWorlds snapshotWorlds = worldSnapshots ? new SnapshotWorlds(plugin, settings, strings) : null;
+        DeltaStore.BackupLookup backupLookup = new DeltaStore.BackupLookup() {
+            public boolean exists(String backupName) {
+                if (!findOutputs(backupName).isEmpty()) {
+                    return true;
+                }
+
+                // Backups moved to the cold directory can still be built on.
+                List<File> coldOutputs = new ArrayList<File>();
+                if (coldFolder != null) {
+                    findNamedEntries(coldFolder, backupName, 3, coldOutputs);
+                }
+                return !coldOutputs.isEmpty();
+            }
+        };
+        incrementalWorlds = settings.getBooleanProperty("incrementalworlds", false) && !worldSnapshots && !backupEverything;
+        regionTracker = incrementalWorlds ? BackupFull.dirtyRegions : null;
+        worldBackupTask = new BackupWorlds(pluginServer, settings, strings, journal, snapshotWorlds, regionTracker, backupLookup);
+        deltaStore = new DeltaStore(settings, plugin.getDataFolder(), backupLookup);
+        pluginChanges = settings.getBooleanProperty("incrementalplugins", false) && !backupEverything ? BackupFull.pluginChanges : null;
+        pluginBackupTask = new BackupPlugins(settings, strings, journal, deltaStore, pluginChanges, backupLookup);
+
+        // Striped backups are written across several directories.
+        if (settings.isStriped()) {
+            stripedOutput = new StripedOutput(settings, worldContainer, journal);
+            outputFolders = stripedOutput.getTargets();
+        } else {
+            stripedOutput = null;
+            outputFolders = Arrays.asList(new File(backupPath));
+        }
+
+        // Mirrors get a copy of each archive as it is written.
+        mirrorFolders = new ArrayList<File>();
+        for (String mirrorPath : settings.getMirrorPaths()) {
+            mirrorFolders.add(new File(mirrorPath));
+        }
+        remoteStorage = RemoteStorage.create(settings, plugin.getDataFolder(), strings);
+
+        // Encrypted ZIPs need the key file, which is made if there is none.
+        encryptBackups = shouldZIP && settings.getBooleanProperty("encryptbackups", false);
+        ArchiveKey key = null;
+        try {
+            key = ArchiveEncryption.loadKey(settings, plugin.getDataFolder(), strings);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to load the encryption key file.");
+        }
+        archiveKey = key;
 
         // Generate the worldStore.
         if (useTemp) {
-            String tempFolder = settings.getStringProperty("tempfoldername", "");
+            String tempFolder = settings.getTempFolderName();
             if (!tempFolder.equals("")) { // Absolute.
                 tempDestination = tempFolder.concat(FILE_SEPARATOR);
             } else { // Relative.
@@ -80,61 +189,869 @@ public class BackupTask implements Runnable {
         } else { // No temp folder.
             tempDestination = backupPath.concat(FILE_SEPARATOR);
         }
+
+        // Tiers back up part of each world on their own schedules.
+        boolean tierSnapshots = false;
+        for (BackupTier tier : settings.getTiers()) {
+            tierSnapshots |= tier.isSnapshot();
+        }
+        tierBackupTask = new BackupTiers(pluginServer, settings, tempDestination, tierSnapshots ? new SnapshotWorlds(plugin, settings, strings) : null);
+
+        // One world or plugin can be backed up on its own, kept apart from whole backups.
+        partialPath = backupPath.concat("-partial");
+        partialBackupTask = new BackupPartial(pluginServer, settings, partialPath, tempDestination, snapshotWorlds);
+
+        // Incremental backups are rebuilt as full ones before those they build on are removed.
+        if (settings.isConsolidateBackups() && stripedOutput == null && !backupEverything) {
+            consolidateTask = new ConsolidateBackups(settings, worldContainer, archiveKey);
+        } else {
+            consolidateTask = null;
+            if (settings.isConsolidateBackups()) {
+                LogUtils.sendLog(strings.getString("consolidateoff"));
+            }
+        }
+
+        // Old backups are moved to the cold directory, and recompressed on the way.
+        if (!settings.getColdPath().equals("") && stripedOutput == null) {
+            migrateTask = new MigrateBackups(settings, backupPath, archiveKey);
+            coldFolder = migrateTask.getColdFolder();
+        } else {
+            migrateTask = null;
+            coldFolder = null;
+        }
     }
 
-    public void run() {
+    /**
+     * Runs the backup for a job. This is called in another thread, apart from
+     * during shutdown.
+     *
+     * @param job The job being run.
+     */
+    public void run(BackupJob job) {
+        if (job.getTier() != null) {
+            runTier(job, job.getTier());
+            return;
+        }
+        if (job.getScope() != null) {
+            runScope(job, job.getScope());
+            return;
+        }
+        if (job.getType() == BackupJob.Type.CONSOLIDATE) {
+            runConsolidate(job);
+            return;
+        }
+        if (job.getType() == BackupJob.Type.MIGRATE) {
+            runMigrate(job);
+            return;
+        }
+
+        // A backup which failed, rather than being cancelled, is still in the
+        // journal. Deal with it as at startup, before the journal is replaced.
+        BackupJournal.Entry resumeEntry = job.getResumeEntry();
+        if (resumeEntry == null) {
+            BackupJournal.Entry interrupted = journal.readInterrupted();
+            if (interrupted != null && shouldResume()) {
+                resumeEntry = interrupted;
+            } else if (interrupted != null) {
+                LogUtils.sendLog(strings.getString("rollingbackbackup", interrupted.toString()));
+                removePartialBackup(interrupted.getBackupName());
+                journal.rollback(interrupted);
+            }
+        }
+
         // Get this instances folder name, set variables.
-        thisBackupName = getBackupName();
+        if (resumeEntry != null) {
+            thisBackupName = resumeEntry.getBackupName();
+            journal.resume(resumeEntry);
+            LogUtils.sendLog(strings.getString("resumingbackup", resumeEntry.toString()));
+        } else {
+            thisBackupName = getBackupName();
+            journal.begin(thisBackupName);
+        }
+
+        // Let the copy and ZIP loops see cancellation of this job, and its mirrors.
+        BackupJob.bind(job);
+        job.setFormat(archiveFormat);
+        BackupMirrors mirrors = createMirrors();
+        job.setMirrors(mirrors);
+        job.setEncryption(createEncryption());
+        job.setStaging(createStaging());
+        try {
+            checkEncryption(job);
+
+            // Finish uploads left from before, while the archives are still here.
+            if (remoteStorage != null) {
+                remoteStorage.resumePending();
+            }
+            planProgress(job.getProgress());
+            doBackup();
+            finishMirrors(job);
+            verifyArchives(thisBackupName);
+            recordCatalog(job);
+
+            // Perform cleaning on the backup folder.
+            try {
+                deleteOldBackups();
+            } catch (BackupCancelledException bce) {
+                throw bce;
+            } catch (Exception e) {
+                LogUtils.exceptionLog(e, "Failed to delete old backups.");
+                BackupProgress.errorOccurred();
+            }
+            journal.commit();
+            deltaStore.commit();
+            if (regionTracker != null) {
+                regionTracker.commit();
+            }
+            if (pluginChanges != null) {
+                pluginChanges.commit();
+            }
+            job.getProgress().setOutputBytes(measureOutput(thisBackupName));
+            job.getProgress().finish(true);
+        } catch (BackupCancelledException bce) {
+            LogUtils.sendLog(strings.getString("backupcancelled"));
+            finishMirrors(job);
+            removePartialBackup(thisBackupName);
+            journal.rollback();
+            if (BackupFull.backupCatalog != null) {
+                BackupFull.backupCatalog.remove(thisBackupName);
+            }
+            job.getProgress().finish(false);
+        } finally {
+            finishMirrors(job);
+            finishEncryption(job);
+            finishStaging(job);
+            deltaStore.rollback(); // Anything not committed.
+            if (regionTracker != null) {
+                regionTracker.rollback();
+            }
+            if (pluginChanges != null) {
+                pluginChanges.rollback();
+            }
+            BackupJob.bind(null);
+
+            // Perform finalization for this backup, whatever happened to it.
+            finishBackup(job);
+        }
+    }
+
+    /**
+     * Runs the backup of one tier. Tiers are small and frequent, so they are
+     * not journaled, mirrored or uploaded; one cut short is removed, and the
+     * next run of the tier replaces it.
+     *
+     * @param job The job being run.
+     * @param tier The tier it backs up.
+     */
+    private void runTier(BackupJob job, BackupTier tier) {
+        thisBackupName = getBackupName().concat("-").concat(tier.getName());
+        File tierFolder = new File(tier.getPath());
+        File marker = new File(tierFolder, INCOMPLETE_PREFIX.concat(thisBackupName));
+
+        BackupJob.bind(job);
+        job.setFormat(archiveFormat);
+        job.setEncryption(createEncryption());
+        try {
+            checkEncryption(job);
+            FileUtils.checkFolderAndCreate(tierFolder);
+            marker.createNewFile();
+
+            List<File> worldFolders = worldBackupTask.getWorldFolders();
+            tierBackupTask.planSources(job.getProgress(), tier, worldFolders);
+            planPasses(job.getProgress());
+            tierBackupTask.doTier(thisBackupName, tier, worldFolders);
+
+            List<File> outputs = new ArrayList<File>();
+            findNamedEntries(tierFolder, thisBackupName, 1, outputs);
+            verifyParts(outputs);
+            if (BackupFull.backupCatalog != null) {
+                CatalogEntry entry = new CatalogEntry(thisBackupName, job.getCreatedAt(), outputs)
+                        .withAttribute("tier", tier.getName())
+                        .withAttribute("content", tier.getContent());
+                if (job.getEncryption() != null) {
+                    entry = entry.withAttribute("encrypted", "true");
+                }
+                BackupFull.backupCatalog.add(entry);
+            }
+            marker.delete();
+            cleanTier(tier);
+            job.getProgress().setOutputBytes(measureParts(outputs));
+            job.getProgress().finish(true);
+        } catch (BackupCancelledException bce) {
+            LogUtils.sendLog(strings.getString("backupcancelled"));
+            FileUtils.deleteDir(new File(tempDestination.concat(thisBackupName)));
+            removeNamedEntries(tierFolder, thisBackupName, 1);
+            marker.delete();
+            job.getProgress().finish(false);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to back up tier " + tier.getName() + ".");
+            BackupProgress.errorOccurred();
+            FileUtils.deleteDir(new File(tempDestination.concat(thisBackupName)));
+            removeNamedEntries(tierFolder, thisBackupName, 1);
+            marker.delete();
+            job.getProgress().finish(false);
+        } finally {
+            finishEncryption(job);
+            BackupJob.bind(null);
+            finishBackup(job);
+        }
+    }
+
+    /**
+     * Runs the backup of one world or plugin, asked for before something
+     * risky is done to it. Like tiers, they are not journaled, mirrored or
+     * uploaded, and one cut short is removed.
+     *
+     * @param job The job being run.
+     * @param scope The world or plugin it backs up.
+     */
+    private void runScope(BackupJob job, BackupScope scope) {
+        thisBackupName = getBackupName().concat("-").concat(scope.getKind().getName()).concat("-").concat(scope.getName());
+        File partialFolder = new File(partialPath);
+
+        BackupJob.bind(job);
+        job.setFormat(archiveFormat);
+        job.setEncryption(createEncryption());
+        job.setStaging((scope.isWorld() && !worldSnapshots && shouldZIP) ? MemoryStaging.create(settings) : null);
+        try {
+            checkEncryption(job);
+            partialBackupTask.planSources(job.getProgress(), scope);
+            planPasses(job.getProgress());
+            partialBackupTask.doScope(thisBackupName, scope);
+
+            List<File> outputs = new ArrayList<File>();
+            findNamedEntries(partialFolder, thisBackupName, 1, outputs);
+            verifyParts(outputs);
+            if (BackupFull.backupCatalog != null) {
+                CatalogEntry entry = new CatalogEntry(thisBackupName, job.getCreatedAt(), outputs)
+                        .withAttribute("partial", scope.getLabel());
+                if (job.getEncryption() != null) {
+                    entry = entry.withAttribute("encrypted", "true");
+                }
+                BackupFull.backupCatalog.add(entry);
+            }
+            cleanCatalog(true);
+            job.getProgress().setOutputBytes(measureParts(outputs));
+            job.getProgress().finish(true);
+        } catch (BackupCancelledException bce) {
+            LogUtils.sendLog(strings.getString("backupcancelled"));
+            FileUtils.deleteDir(new File(tempDestination.concat(thisBackupName)));
+            removeNamedEntries(partialFolder, thisBackupName, 1);
+            job.getProgress().finish(false);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to back up " + scope + ".");
+            BackupProgress.errorOccurred();
+            FileUtils.deleteDir(new File(tempDestination.concat(thisBackupName)));
+            removeNamedEntries(partialFolder, thisBackupName, 1);
+            job.getProgress().finish(false);
+        } finally {
+            finishEncryption(job);
+            finishStaging(job);
+            BackupJob.bind(null);
+            finishBackup(job);
+        }
+    }
+
+    /**
+     * Rebuilds, ahead of time, the backups which the next backup would leave
+     * building on removed ones. This runs at the lowest priority, while the
+     * server is quiet, and stops for any backup.
+     *
+     * @param job The job being run.
+     */
+    private void runConsolidate(BackupJob job) {
+        BackupJob.bind(job);
+        job.setFormat(archiveFormat);
+        job.setEncryption(createEncryption());
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        try {
+            checkEncryption(job);
+            int rebuilt = 0;
+            if (consolidateTask != null) {
+                List<File> backupRoots = new ArrayList<File>();
+                backupRoots.add(new File(backupPath));
+                backupRoots.addAll(mirrorFolders);
+                if (coldFolder != null) {
+                    backupRoots.add(coldFolder);
+                }
+                for (File backupRoot : backupRoots) {
+                    for (File folder : consolidateTask.getBackupFolders(backupRoot)) {
+                        rebuilt += consolidateTask.consolidate(folder, true, job.getProgress());
+                    }
+                }
+            }
+            LogUtils.sendDebug("Consolidated %d backup(s). (M:0038)", rebuilt);
+            job.getProgress().finish(true);
+        } catch (BackupCancelledException bce) {
+            LogUtils.sendDebug("Consolidation stopped, it carries on next time. (M:0038)");
+            job.getProgress().finish(false);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to consolidate backups.");
+            job.getProgress().finish(false);
+        } finally {
+            thread.setPriority(priority);
+            finishEncryption(job);
+            BackupJob.bind(null);
+            finishBackup(job);
+        }
+    }
+
+    /**
+     * Moves backups older than "coldafter" hours to the cold directory. Like
+     * consolidation, this runs at the lowest priority, while the server is
+     * quiet, and stops for any backup; a backup cut short stays where it was.
+     *
+     * @param job The job being run.
+     */
+    private void runMigrate(BackupJob job) {
+        BackupJob.bind(job);
+        job.setFormat(getArchiveFormat("coldformat", archiveFormat.getCodec().getName(), "coldziplevel", Deflater.BEST_COMPRESSION));
+        job.setEncryption(createEncryption());
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        try {
+            checkEncryption(job);
+            int moved = 0;
+            if (migrateTask != null && BackupFull.backupCatalog != null) {
+                moved = migrateTask.migrate(BackupFull.backupCatalog, job.getEncryption() != null, job.getProgress());
+            }
+            if (moved > 0) {
+                LogUtils.sendLog(strings.getString("movedcold", Integer.toString(moved)));
+            }
+            job.getProgress().finish(true);
+        } catch (BackupCancelledException bce) {
+            LogUtils.sendDebug("Moving backups to the cold directory stopped, it carries on next time. (M:0039)");
+            job.getProgress().finish(false);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to move backups to the cold directory.");
+            job.getProgress().finish(false);
+        } finally {
+            thread.setPriority(priority);
+            finishEncryption(job);
+            BackupJob.bind(null);
+            finishBackup(job);
+        }
+    }
 
+    /**
+     * Remove the backups of a tier older than it keeps them for, and what was
+     * written by a tier backup which never finished, as shown by the marker
+     * it left. The newest backup of the tier is always kept, and nothing is
+     * removed without the catalog.
+     *
+     * @param tier The tier.
+     */
+    private void cleanTier(BackupTier tier) {
+        BackupCatalog catalog = BackupFull.backupCatalog;
+        if (catalog == null) {
+            return;
+        }
+        List<CatalogEntry> tierEntries = new ArrayList<CatalogEntry>();
+        for (CatalogEntry entry : catalog.getEntries()) {
+            if (tier.getName().equals(entry.getAttribute("tier"))) {
+                tierEntries.add(entry);
+            }
+        }
+
+        // Oldest first, never deleting the newest.
+        List<CatalogEntry> deletedList = new ArrayList<CatalogEntry>();
+        long oldestKept = System.currentTimeMillis() - tier.getKeepMillis();
+        while (tier.getKeepMillis() > 0 && tierEntries.size() > 1 && tierEntries.get(0).getCreatedAt() < oldestKept) {
+            deletedList.add(tierEntries.remove(0));
+        }
+        if (!deletedList.isEmpty()) {
+            LogUtils.sendLog(strings.getString("removeoldtier", tier.getName()));
+            LogUtils.sendLog("%s", deletedList);
+            for (CatalogEntry entry : deletedList) {
+                BackupJob.checkCancelled();
+                for (File part : entry.getParts()) {
+                    FileUtils.deleteDir(part);
+                }
+                catalog.remove(entry.getName());
+            }
+        }
+
+        // A marker is only left by a backup cut short, unless that was after it was cataloged.
+        File tierFolder = new File(tier.getPath());
+        File[] children = tierFolder.listFiles();
+        for (File child : (children != null) ? children : new File[0]) {
+            if (child.getName().startsWith(INCOMPLETE_PREFIX)) {
+                String name = child.getName().substring(INCOMPLETE_PREFIX.length());
+                if (catalog.get(name) == null) {
+                    removeNamedEntries(tierFolder, name, 1);
+                }
+                child.delete();
+            }
+        }
+    }
+
+    /**
+     * Performs the copy and ZIP steps.
+     */
+    private void doBackup() {
         // Check if backupeverything enabled.
         if (backupEverything) {
             // Start the BackupEverything class.
             try {
                 everythingBackupTask.doEverything(thisBackupName);
+            } catch (BackupCancelledException bce) {
+                throw bce;
             } catch (Exception e) {
                 LogUtils.exceptionLog(e, "Failed to backup worlds: Exception in BackupWorlds.");
+                BackupProgress.errorOccurred();
             }
         } else {
             // Check if we should be backing up worlds.
-            if (settings.getBooleanProperty("backupworlds", true)) {
+            if (settings.isBackupWorlds()) {
 
                 // Attempt to backup worlds.
                 try {
                     worldBackupTask.doWorlds(thisBackupName);
+                } catch (BackupCancelledException bce) {
+                    throw bce;
                 } catch (Exception e) {
                     LogUtils.exceptionLog(e, "Failed to backup worlds: Exception in BackupWorlds.");
+                    BackupProgress.errorOccurred();
                 }
             } else {
                 LogUtils.sendLog(strings.getString("skipworlds"));
             }
 
             // Check if we should be backing up plugins.
-            if (settings.getBooleanProperty("backupplugins", true)) {
+            if (journal.isPluginsDone()) {
+                LogUtils.sendDebug("Plugins already backed up, resuming. (M:0022)");
+            } else if (settings.isBackupPlugins()) {
                 // Attempt to backup plugins.
                 try {
                     pluginBackupTask.doPlugins(thisBackupName);
                 } catch (IOException e) {
                     LogUtils.exceptionLog(e, "Failed to backup plugins: Exception in BackupPlugins.");
+                    BackupProgress.errorOccurred();
                 }
             } else {
                 LogUtils.sendLog(strings.getString("skipplugins"));
             }
 
             // If this is a non-split backup, we need to ZIP the whole thing.
-            if (!splitBackup) {
-                FileUtils.doCopyAndZIP(tempDestination.concat(thisBackupName), backupPath.concat(FILE_SEPARATOR).concat(thisBackupName), shouldZIP, useTemp);
+            String finalDestination = backupPath.concat(FILE_SEPARATOR).concat(thisBackupName);
+            if (stripedOutput != null) {
+                stripedOutput.write(new File(tempDestination.concat(thisBackupName)), thisBackupName);
+            } else if (!splitBackup && !journal.isArchiveDone(finalDestination)) {
+                if (FileUtils.doCopyAndZIP(tempDestination.concat(thisBackupName), finalDestination, shouldZIP, useTemp)) {
+                    journal.recordArchive(finalDestination);
+                } else {
+                    discardChains();
+                }
             }
         }
+    }
+
+    /**
+     * Nothing was saved by this backup, so the next must not build on it:
+     * what it took to back up is changed again.
+     */
+    private void discardChains() {
+        if (regionTracker != null) {
+            regionTracker.rollback();
+        }
+        if (pluginChanges != null) {
+            pluginChanges.rollback();
+        }
+    }
+
+    /**
+     * Deals with a backup left unfinished by a crash or restart, and removes
+     * orphaned temp data. Depending on "journalrecovery", the backup is either
+     * queued to resume from its last checkpoint, or rolled back.
+     *
+     * @param backupQueue The queue to submit a resumed backup to.
+     */
+    public void recoverInterrupted(final BackupQueue backupQueue) {
+        final BackupJournal.Entry interrupted = journal.readInterrupted();
+
+        if (interrupted != null && shouldResume()) {
+            // The resumed backup reuses, and later removes, the temp data.
+            backupQueue.submit(BackupJob.resume(interrupted));
+            return;
+        }
+
+        // Deleting could take a while, so keep it off the main thread.
+        pluginServer.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            public void run() {
+                if (interrupted != null) {
+                    LogUtils.sendLog(strings.getString("rollingbackbackup", interrupted.toString()));
+                    removePartialBackup(interrupted.getBackupName());
+                    journal.rollback(interrupted);
+                }
+
+                // Anything left in the temp folder is from a backup that will not finish.
+                if (useTemp) {
+                    File[] orphans = new File(tempDestination).listFiles();
+                    if (orphans != null && orphans.length > 0) {
+                        LogUtils.sendLog(strings.getString("removedorphans", Integer.toString(orphans.length)));
+                        for (File orphan : orphans) {
+                            FileUtils.deleteDir(orphan);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Whether "journalrecovery" resumes unfinished backups, rather
+     * than rolling them back.
+     */
+    private boolean shouldResume() {
+        return settings.getStringProperty("journalrecovery", "resume").trim().equalsIgnoreCase("resume");
+    }
+
+    /**
+     * Removes everything written for a backup which did not complete. This
+     * covers the temp folder, and the ZIP or folder output of normal and split
+     * backups.
+     *
+     * @param backupName The name of the incomplete backup.
+     */
+    private void removePartialBackup(String backupName) {
+        // The staging copy, and the per-world staging copies of split backups.
+        FileUtils.deleteDir(new File(tempDestination.concat(backupName)));
+        if (useTemp) {
+            removeNamedEntries(new File(tempDestination), backupName, 2);
+        }
+
+        // Outputs are at most three levels down: backups/[container/][world/]name[.zip|.tar.gz|.bpk].
+        for (File outputFolder : outputFolders) {
+            removeNamedEntries(outputFolder, backupName, 3);
+        }
+        for (File mirrorFolder : mirrorFolders) {
+            removeNamedEntries(mirrorFolder, backupName, 3);
+        }
+    }
+
+    /**
+     * Set up the mirrors for a backup, if there are any.
+     *
+     * @return The mirrors, or null.
+     */
+    private BackupMirrors createMirrors() {
+        if (mirrorFolders.isEmpty() && remoteStorage == null) {
+            return null;
+        }
+
+        // Working files, which are only archived, are not copied.
+        File staging = null;
+        if (useTemp) {
+            staging = new File(tempDestination);
+        } else if (!splitBackup && stripedOutput == null) {
+            staging = new File(tempDestination.concat(thisBackupName));
+        }
+        long bufferLimit = Math.max(1, settings.getIntProperty("mirrorbuffer", 64)) * FileUtils.ONE_MB;
+        return new BackupMirrors(outputFolders, mirrorFolders, remoteStorage, thisBackupName, staging, bufferLimit, strings);
+    }
+
+    /**
+     * Wait for the copies to the mirrors to be written.
+     *
+     * @param job The job being run.
+     */
+    private void finishMirrors(BackupJob job) {
+        BackupMirrors mirrors = job.getMirrors();
+        if (mirrors != null) {
+            job.setMirrors(null);
+            mirrors.finish();
+        }
+    }
 
-        // Perform cleaning on the backup folder.
+    /**
+     * Worlds are only held in memory when they are going into a ZIP, and are
+     * copied from disk.
+     *
+     * @return The memory staging area for a backup, or null.
+     */
+    private MemoryStaging createStaging() {
+        if (!shouldZIP || stripedOutput != null || backupEverything || usesWorldSnapshots()) {
+            return null;
+        }
+        return MemoryStaging.create(settings);
+    }
+
+    private void finishStaging(BackupJob job) {
+        if (job.getStaging() != null) {
+            job.getStaging().finish();
+            job.setStaging(null);
+        }
+    }
+
+    /**
+     * Make the encryption for this backup, with a new data key.
+     *
+     * @return The encryption, or null if backups are not encrypted, or it
+     * could not be made.
+     */
+    private ArchiveEncryption createEncryption() {
+        if (!encryptBackups || archiveKey == null) {
+            return null;
+        }
+        int threads = settings.getIntProperty("encryptionthreads", 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
         try {
-            deleteOldBackups();
-        } catch (Exception e) {
-            LogUtils.exceptionLog(e, "Failed to delete old backups.");
+            return new ArchiveEncryption(archiveKey, threads);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to set up encryption for the backup.");
+            return null;
+        }
+    }
+
+    /**
+     * Never fall back to writing backups which should be encrypted in the
+     * clear.
+     *
+     * @param job The job being run.
+     */
+    private void checkEncryption(BackupJob job) {
+        if (encryptBackups && job.getEncryption() == null) {
+            LogUtils.sendLog(strings.getString("errorencryption"));
+            BackupProgress.errorOccurred();
+            throw new BackupCancelledException();
+        }
+    }
+
+    private void finishEncryption(BackupJob job) {
+        ArchiveEncryption encryption = job.getEncryption();
+        if (encryption != null) {
+            job.setEncryption(null);
+            encryption.finish();
         }
+    }
+
+    private void removeNamedEntries(File folder, String backupName, int depth) {
+        List<File> found = new ArrayList<File>();
+        findNamedEntries(folder, backupName, depth, found);
+        for (File entry : found) {
+            LogUtils.sendDebug("Removing partial backup: %s (M:0021)", entry);
+            FileUtils.deleteDir(entry);
+        }
+    }
+
+    /**
+     * Find the files and folders written for a backup, by name.
+     *
+     * @param folder The folder to search.
+     * @param backupName The name of the backup.
+     * @param depth How many levels of folders to search.
+     * @param found The list to add matches to.
+     */
+    private void findNamedEntries(File folder, String backupName, int depth, List<File> found) {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().equals(backupName) || child.getName().startsWith(backupName.concat("."))) {
+                found.add(child);
+            } else if (depth > 1 && child.isDirectory()) {
+                findNamedEntries(child, backupName, depth - 1, found);
+            }
+        }
+    }
+
+    /**
+     * Work out how much data the backup will read, for progress reporting.
+     *
+     * @param progress The progress of the job being run.
+     */
+    private void planProgress(BackupProgress progress) {
+        planSources(progress);
+        planPasses(progress);
+    }
+
+    private void planPasses(BackupProgress progress) {
+        // Copied once, then zipped or moved out of temp, then verified.
+        int passes = 1;
+        if (shouldZIP || useTemp) {
+            passes++;
+        }
+        if (shouldZIP && verifyBackups) {
+            passes++;
+        }
+        progress.startPasses(passes);
+    }
+
+    /**
+     * Worlds backed up from chunk snapshots do not need saving first, or
+     * auto-save turning off.
+     *
+     * @return True if this task takes worlds from chunk snapshots.
+     */
+    public boolean usesWorldSnapshots() {
+        return worldSnapshots && !backupEverything && settings.isBackupWorlds();
+    }
+
+    /**
+     * @param scope A world backed up on its own.
+     * @return True if it is taken from chunk snapshots, so need not be saved
+     * first.
+     */
+    public boolean usesWorldSnapshots(BackupScope scope) {
+        return worldSnapshots && scope.isWorld();
+    }
+
+    /**
+     * Take the regions changed since the last backup, for the backup about
+     * to start. Must be called on the main thread, after the worlds are saved.
+     */
+    public void captureChangedRegions() {
+        if (regionTracker != null && settings.isBackupWorlds()) {
+            regionTracker.capture(pluginServer.getWorlds());
+        }
+    }
+
+    /**
+     * Measure how much data a backup would read now, without starting one.
+     *
+     * @return The size of the data in bytes.
+     */
+    public long measureSource() {
+        BackupProgress measure = new BackupProgress();
+        planSources(measure);
+        return measure.getSourceBytes();
+    }
+
+    private void planSources(BackupProgress progress) {
+        if (backupEverything) {
+            progress.planSource(new File("."), new File(backupPath).getName());
+        } else {
+            if (settings.isBackupWorlds()) {
+                worldBackupTask.planSources(progress);
+            }
+            if (settings.isBackupPlugins()) {
+                pluginBackupTask.planSources(progress);
+            }
+        }
+    }
+
+    /**
+     * Read back the archives written for a backup, checking every entry.
+     *
+     * @param backupName The name of the backup to verify.
+     */
+    private void verifyArchives(String backupName) {
+        verifyParts(findOutputs(backupName));
+    }
 
-        // Perform finalization for this backup.
-        finishBackup();
+    private void verifyParts(List<File> parts) {
+        if (!shouldZIP || !verifyBackups) {
+            return;
+        }
+        BackupProgress.enter(BackupProgress.Phase.VERIFYING);
+        for (File part : parts) {
+            verifyArchive(part);
+        }
+    }
+
+    /**
+     * Verify an archive, or each archive in a folder, as striped backups keep
+     * an archive for each part in a folder for the backup.
+     */
+    private void verifyArchive(File archive) {
+        if (archive.isDirectory()) {
+            File[] children = archive.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    verifyArchive(child);
+                }
+            }
+        } else if (ArchiveCodec.forFile(archive) != null && !FileUtils.verifyArchive(archive, archiveKey)) {
+            LogUtils.sendLog(strings.getString("backupverifyfailed", archive.getPath()));
+            BackupProgress.errorOccurred();
+        }
+    }
+
+    /**
+     * Find everything written for a backup, in every output folder.
+     *
+     * @param backupName The name of the backup.
+     * @return The files and folders of the backup.
+     */
+    private List<File> findOutputs(String backupName) {
+        List<File> outputs = new ArrayList<File>();
+        for (File outputFolder : outputFolders) {
+            findNamedEntries(outputFolder, backupName, 3, outputs);
+        }
+        return outputs;
+    }
+
+    /**
+     * Add the backup just made to the catalog.
+     *
+     * @param job The job being run.
+     */
+    private void recordCatalog(BackupJob job) {
+        BackupCatalog catalog = BackupFull.backupCatalog;
+        if (catalog == null) {
+            return;
+        }
+        CatalogEntry entry = new CatalogEntry(thisBackupName, job.getCreatedAt(), findOutputs(thisBackupName));
+        if (stripedOutput != null) {
+            entry = entry.withAttribute("striped", "true");
+        }
+        if (job.getEncryption() != null) {
+            entry = entry.withAttribute("encrypted", "true");
+        }
+        catalog.add(entry);
+    }
+
+    /**
+     * Work out the size of everything written for a backup, for the history.
+     *
+     * @param backupName The name of the backup.
+     * @return The total size in bytes.
+     */
+    private long measureOutput(String backupName) {
+        return measureParts(findOutputs(backupName));
+    }
+
+    private long measureParts(List<File> parts) {
+        long total = 0L;
+        for (File part : parts) {
+            total += part.isDirectory() ? FileUtils.getTotalFolderSize(part) : part.length();
+        }
+        return total;
+    }
+
+    /**
+     * @param codecKey The setting naming the codec.
+     * @param defaultCodec The codec if it is not set.
+     * @param levelKey The setting holding the level.
+     * @param defaultLevel The level if it is not set.
+     * @return The archive format, ZIP if the codec is unknown, at the default
+     * level if the level is not from 0 to 9.
+     */
+    private ArchiveFormat getArchiveFormat(String codecKey, String defaultCodec, String levelKey, int defaultLevel) {
+        String codecName = settings.getStringProperty(codecKey, defaultCodec).trim();
+        if (codecName.isEmpty()) {
+            codecName = defaultCodec;
+        }
+        ArchiveCodec codec = ArchiveCodec.forName(codecName);
+        if (codec == null) {
+            LogUtils.sendLog(strings.getString("unknownformat", codecName));
+            codec = ArchiveCodec.ZIP;
+        }
+        int level = settings.getIntProperty(levelKey, defaultLevel);
+        if (level < 0 || level > 9) {
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        int threads = settings.getIntProperty("compressionthreads", 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return new ArchiveFormat(codec, level, threads);
     }
 
     /**
@@ -160,10 +1077,67 @@ public class BackupTask implements Runnable {
      * @throws Exception
      */
     private void deleteOldBackups() throws Exception {
-        File backupDir = new File(backupPath);
-
         LogUtils.sendDebug("Delete old backups. (M:0013)");
 
+        if (stripedOutput != null) { // Whole sets, from the catalog.
+            cleanCatalog(false);
+        } else {
+            deleteOldBackups(new File(backupPath));
+        }
+
+        // The cold directory keeps its own backups, up to the same limit.
+        if (coldFolder != null && coldFolder.isDirectory()) {
+            deleteOldBackups(coldFolder);
+        }
+
+        // Each mirror keeps its own backups, up to the same limit.
+        for (File mirrorFolder : mirrorFolders) {
+            if (!mirrorFolder.isDirectory()) {
+                continue;
+            }
+            if (stripedOutput != null) { // Each set is merged into one folder.
+                cleanFolder(mirrorFolder);
+            } else {
+                deleteOldBackups(mirrorFolder);
+            }
+        }
+
+        // And the remote storage, by the backups it lists.
+        if (remoteStorage != null) {
+            try {
+                List<RemoteStorage.RemoteBackup> deletedList = remoteStorage.deleteOldBackups(settings.getBackupLimit(), settings.isSizeLimit());
+                if (!deletedList.isEmpty()) {
+                    LogUtils.sendLog(strings.getString("remoteremoved", deletedList.toString()));
+                }
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to delete old remote backups.");
+            }
+        }
+    }
+
+    /**
+     * @return The remote storage backups are uploaded to, or null.
+     */
+    public RemoteStorage getRemoteStorage() {
+        return remoteStorage;
+    }
+
+    /**
+     * Delete old backups from one folder, laid out like "backuppath".
+     *
+     * @param backupRoot The folder to clean.
+     * @throws Exception
+     */
+    private void deleteOldBackups(File backupRoot) throws Exception {
+        File backupDir = backupRoot;
+
+        // The oldest backup kept must not need any of those removed.
+        if (consolidateTask != null) {
+            for (File folder : consolidateTask.getBackupFolders(backupRoot)) {
+                consolidateTask.consolidate(folder, false, null);
+            }
+        }
+
         if (splitBackup) { // Look inside the folders.
             LogUtils.sendDebug("Delete old backups. - Split Backup (M:0014)");
 
@@ -171,22 +1145,22 @@ public class BackupTask implements Runnable {
             if (!worldContainer.equals(".")) { // Custom.
                 LogUtils.sendDebug("Delete old backups. - Custom world container. (M:0015)");
 
-                backupDir = new File(backupPath.concat(FILE_SEPARATOR).concat(worldContainer));
+                backupDir = new File(backupRoot, worldContainer);
 
-                File[] worldFoldersToClean = backupDir.listFiles();
+                File[] worldFoldersToClean = FileUtils.listItemsInDir(backupDir);
 
-                for (File worldFoldersToClean1 : worldFoldersToClean) {
+                for (File worldFoldersToClean1 : (worldFoldersToClean != null) ? worldFoldersToClean : new File[0]) {
                     // Make sure we are cleaning a directory.
                     if (worldFoldersToClean1.isDirectory()) {
                         cleanFolder(worldFoldersToClean1);
                     }
                 }
 
-                backupDir = new File(backupPath.concat(FILE_SEPARATOR).concat("plugins"));
+                backupDir = new File(backupRoot, "plugins");
 
-                File[] pluginFolderToClean = backupDir.listFiles();
+                File[] pluginFolderToClean = FileUtils.listItemsInDir(backupDir);
 
-                for (File pluginFolderToClean1 : pluginFolderToClean) {
+                for (File pluginFolderToClean1 : (pluginFolderToClean != null) ? pluginFolderToClean : new File[0]) {
                     // Make sure we are cleaning a directory.
                     if (pluginFolderToClean1.isDirectory()) {
                         cleanFolder(pluginFolderToClean1);
@@ -212,18 +1186,126 @@ public class BackupTask implements Runnable {
         }
     }
 
+    /**
+     * Apply the backup limit to the backups in the catalog. A striped backup
+     * is only useful whole, so each is kept or deleted as a set. Partial
+     * backups are kept to the same limit, apart from whole backups.
+     *
+     * @param partial True to clean the partial backups, false for the rest.
+     */
+    private void cleanCatalog(boolean partial) {
+        BackupCatalog catalog = BackupFull.backupCatalog;
+        long backupLimit = settings.getBackupLimit();
+        if (catalog == null || backupLimit == 0) {
+            return;
+        }
+
+        // Oldest first, never deleting the newest. Tiers are kept by their own times.
+        List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+        for (CatalogEntry entry : catalog.getEntries()) {
+            if (entry.getAttribute("tier") == null && (entry.getAttribute("partial") != null) == partial) {
+                entries.add(entry);
+            }
+        }
+        List<CatalogEntry> deletedList = new ArrayList<CatalogEntry>();
+        if (settings.isSizeLimit()) {
+            long totalSize = 0L;
+            for (CatalogEntry entry : entries) {
+                totalSize += entry.getSize();
+            }
+
+            // Backups which newer ones build on are kept.
+            Set<String> chained = partial ? Collections.<String>emptySet() : getChainedBackups();
+            while (entries.size() > 1 && totalSize > backupLimit) {
+                CatalogEntry oldest = null;
+                for (CatalogEntry entry : entries.subList(0, entries.size() - 1)) {
+                    if (!chained.contains(entry.getName())) {
+                        oldest = entry;
+                        break;
+                    }
+                }
+                if (oldest == null) {
+                    LogUtils.sendLog(strings.getString("removeoldchained"));
+                    break;
+                }
+                entries.remove(oldest);
+                totalSize -= oldest.getSize();
+                deletedList.add(oldest);
+            }
+        } else {
+            while (entries.size() > backupLimit) {
+                deletedList.add(entries.remove(0));
+            }
+        }
+        if (deletedList.isEmpty()) {
+            return;
+        }
+
+        // Inform the user what backups are being deleted.
+        LogUtils.sendLog(strings.getString(settings.isSizeLimit() ? "removeoldsize" : "removeoldage"));
+        LogUtils.sendLog("%s", deletedList);
+        for (CatalogEntry entry : deletedList) {
+            BackupJob.checkCancelled();
+            for (File part : entry.getParts()) {
+                FileUtils.deleteDir(part);
+            }
+            catalog.remove(entry.getName());
+        }
+    }
+
+    /**
+     * Find the backups which newer ones build on. Removing one to meet a size
+     * limit would leave the newer ones impossible to restore, so they are
+     * kept. A limit on the number of backups keeps the chains shorter than
+     * the limit instead.
+     *
+     * @return The names of the backups.
+     */
+    private Set<String> getChainedBackups() {
+        Set<String> chained = new HashSet<String>();
+
+        // Each delta needs the full copy, and every delta before it.
+        chained.addAll(deltaStore.getChainedBackups());
+
+        // Rebuilt as full backups first, when consolidating.
+        if (consolidateTask == null && regionTracker != null) {
+            List<String> worldNames = new ArrayList<String>();
+            for (World world : pluginServer.getWorlds()) {
+                worldNames.add(world.getName());
+            }
+            chained.addAll(regionTracker.getChainedBackups(worldNames));
+        }
+        if (consolidateTask == null && pluginChanges != null) {
+            chained.addAll(pluginChanges.getChainedBackups());
+        }
+        return chained;
+    }
+
+    /**
+     * @param backup A backup, or a file or folder of one.
+     * @param chained The names of backups which newer ones build on.
+     * @return True if it is one of those backups.
+     */
+    private static boolean isChained(File backup, Set<String> chained) {
+        for (String backupName : chained) {
+            if (backup.getName().equals(backupName) || backup.getName().startsWith(backupName.concat("."))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void cleanFolder(File folderToClean) throws IOException {
-        LogUtils.sendDebug("Attempting to clean: " + folderToClean.toString() + " (M:0014)");
+        LogUtils.sendDebug("Attempting to clean: %s (M:0014)", folderToClean);
 
         try {
             // Get total backup limit.
-            long backupLimit = settings.getBackupLimits();
+            long backupLimit = settings.getBackupLimit();
             if (backupLimit != 0) {
                 // List all the files inside this folder.
                 File[] filesList = FileUtils.listItemsInDir(folderToClean);
 
-                LogUtils.sendDebug("Files: (M:0018)");
-                LogUtils.sendDebug(filesList.toString());
+                LogUtils.sendDebug("Files: %s (M:0018)", (Object) filesList);
 
                 // Check we listed the directory.
                 if (filesList == null) {
@@ -232,7 +1314,7 @@ public class BackupTask implements Runnable {
                 }
 
                 // Using size to limit backups.
-                if (settings.useMaxSizeBackup) {
+                if (settings.isSizeLimit()) {
                     // Get total folder size.
                     long totalFolderSize = FileUtils.getTotalFolderSize(folderToClean);
 
@@ -242,40 +1324,35 @@ public class BackupTask implements Runnable {
                         // Create a list for deleted backups.
                         ArrayList<File> deletedList = new ArrayList<File>(filesList.length);
 
-                        // Inti variables.
-                        int maxModifiedIndex;
-                        long maxModified;
+                        // Backups which newer ones build on are kept.
+                        Set<String> chained = getChainedBackups();
 
                         // While the total folder size is bigger than the limit.
                         while (FileUtils.getTotalFolderSize(folderToClean) > backupLimit) {
                             // Create updated list.
                             filesList = FileUtils.listFilesInDir(folderToClean);
 
-                            // List of all the backups.
-                            ArrayList<File> backupList = new ArrayList<File>(filesList.length);
-                            backupList.addAll(Arrays.asList(filesList));
-
-                            // Loop backup list.
-                            for (int i = 0; backupList.size() > 1; i++) {
-                                maxModifiedIndex = 0;
-                                maxModified = backupList.get(0).lastModified();
-                                for (int j = 1; j < backupList.size(); ++j) {
-                                    File currentFile = backupList.get(j);
-                                    if (currentFile.lastModified() > maxModified) {
-                                        maxModified = currentFile.lastModified();
-                                        maxModifiedIndex = j;
-                                    }
+                            // Find the oldest backup which can go.
+                            File oldestFile = null;
+                            for (File currentFile : filesList) {
+                                if (!isChained(currentFile, chained) && (oldestFile == null || currentFile.lastModified() < oldestFile.lastModified())) {
+                                    oldestFile = currentFile;
                                 }
-                                backupList.remove(maxModifiedIndex);
+                            }
+                            if (oldestFile == null) {
+                                LogUtils.sendLog(strings.getString("removeoldchained"));
+                                break;
                             }
 
-                            FileUtils.deleteDirectory(backupList.get(0));
-                            deletedList.add(backupList.get(0));
+                            FileUtils.deleteDirectory(oldestFile);
+                            deletedList.add(oldestFile);
                         }
 
                         // Inform the user what backups are being deleted.
-                        LogUtils.sendLog(strings.getString("removeoldsize"));
-                        LogUtils.sendLog(Arrays.toString(deletedList.toArray()));
+                        if (!deletedList.isEmpty()) {
+                            LogUtils.sendLog(strings.getString("removeoldsize"));
+                            LogUtils.sendLog("%s", deletedList);
+                        }
                     }
                 } else { // Using amount of backups.
                     // If the amount of files exceeds the max backups to keep.
@@ -302,7 +1379,7 @@ public class BackupTask implements Runnable {
 
                         // Inform the user what backups are being deleted.
                         LogUtils.sendLog(strings.getString("removeoldage"));
-                        LogUtils.sendLog(Arrays.toString(backupList.toArray()));
+                        LogUtils.sendLog("%s", backupList);
 
                         // Finally delete the backups.
                         for (File backupToDelete : backupList) {
@@ -320,74 +1397,87 @@ public class BackupTask implements Runnable {
      * Creates a temporary Runnable that is running on the main thread by the
      * scheduler to prevent thread problems.
      */
-    private void finishBackup() {
+    private void finishBackup(final BackupJob job) {
+        // Delete the temp directory here, as it could take a while on the main thread. Maintenance never uses it.
+        if (useTemp && !job.getType().isMaintenance()) {
+            FileUtils.deleteDir(new File(tempDestination));
+        }
+
         // Create new Runnable instance.
         Runnable run = new Runnable() {
 
             public void run() {
-                // Should we enable auto-save again?
-                if (settings.getBooleanProperty("enableautosave", true)) {
-                    for (World world : pluginServer.getWorlds()) {
-                        world.setAutoSave(true);
+                long startedAt = System.currentTimeMillis();
+                try {
+                    // Should we enable auto-save again? Only for the worlds this job turned it off for.
+                    if (settings.getBooleanProperty("enableautosave", true)) {
+                        for (String worldName : job.getQuiescedWorlds()) {
+                            World world = pluginServer.getWorld(worldName);
+                            if (world != null) {
+                                world.setAutoSave(true);
+                            }
+                        }
                     }
-                }
 
-                // Delete the temp directory.
-                if (useTemp) {
-                    FileUtils.deleteDir(new File(tempDestination));
-                }
+                    // Notify that it has completed. Tiers run too often to announce, and maintenance is not a backup.
+                    if (!job.isCancelled() && job.getTier() == null && !job.getType().isMaintenance()) {
+                        notifyCompleted();
+                    }
 
-                // Notify that it has completed.
-                notifyCompleted();
+                    // Keep a record of the run.
+                    job.getProgress().addMainThreadMillis(System.currentTimeMillis() - startedAt);
+                    recordHistory(job);
+                } finally {
+                    // Let the next job start, even if the above failed.
+                    BackupQueue backupQueue = BackupFull.backupQueue;
+                    if (backupQueue != null) {
+                        backupQueue.finished(job);
+                    }
+                }
             }
 
             private void notifyCompleted() {
-                String completedBackupMessage = strings.getString("backupfinished");
-
-                // Check there is a message.
-                if (completedBackupMessage != null) {
-                    // Check if we are using multiple lines.
-                    if (completedBackupMessage.contains(";;")) {
-                        // Convert to array of lines.
-                        List<String> messageList = Arrays.asList(completedBackupMessage.split(";;"));
-
-                        // Loop the lines of this message.
-                        for (int i = 0; i < messageList.size(); i++) {
-                            // Retrieve this line of the message.
-                            String thisMessage = messageList.get(i);
-
-                            // Notify all players, regardless of the permission node.
-                            if (settings.getBooleanProperty("notifyallplayers", true)) {
-                                pluginServer.broadcastMessage(thisMessage);
-                            } else {
-                                // Get all the players online and loop through them.
-                                for (Player currentplayer : pluginServer.getOnlinePlayers()) {
-                                    // If the current player has the right permissions, notify them.
-                                    if (currentplayer.hasPermission("backup.notify")) {
-                                        currentplayer.sendMessage(thisMessage);
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        // Notify all players, regardless of the permission node.
-                        if (settings.getBooleanProperty("notifyallplayers", true)) {
-                            pluginServer.broadcastMessage(completedBackupMessage);
-                        } else {
-                            // Get all the players online and loop through them.
-                            for (Player currentplayer : pluginServer.getOnlinePlayers()) {
-                                // If the current player has the right permissions, notify them.
-                                if (currentplayer.hasPermission("backup.notify")) {
-                                    currentplayer.sendMessage(completedBackupMessage);
-                                }
-                            }
-                        }
-                    }
-                }
+                notifyRecipients.notify(strings.getString("backupfinished"));
             }
         };
-        pluginServer.getScheduler().scheduleSyncDelayedTask(plugin, run);
 
-        PrepareBackup.backupInProgress = false;
+        // While disabling we cannot schedule, and the main thread is waiting for us.
+        if (isDisabling(job)) {
+            run.run();
+        } else {
+            pluginServer.getScheduler().scheduleSyncDelayedTask(plugin, run);
+        }
+    }
+
+    /**
+     * Add a finished job to the backup history. The file is written off the
+     * main thread, except while disabling.
+     *
+     * @param job The finished job.
+     */
+    private void recordHistory(BackupJob job) {
+        // Tier and partial backups are only part of the data, so would throw out predictions.
+        final BackupHistory history = BackupFull.backupHistory;
+        if (history == null || job.isPartial() || job.getType().isMaintenance()) {
+            return;
+        }
+        final HistoryRecord record = HistoryRecord.of(job);
+        if (isDisabling(job)) {
+            history.append(record);
+        } else {
+            pluginServer.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+                public void run() {
+                    history.append(record);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return True if the plugin is disabling, so the job must finish on its
+     * own thread: the shutdown backup, or one stopped by the shutdown.
+     */
+    private boolean isDisabling(BackupJob job) {
+        return job.getType() == BackupJob.Type.SHUTDOWN || !plugin.isEnabled();
     }
 }
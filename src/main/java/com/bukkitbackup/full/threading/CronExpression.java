@@ -0,0 +1,206 @@
+package com.bukkitbackup.full.threading;
+
+import java.util.BitSet;
+import java.util.Calendar;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A minimal five-field cron expression: "minute hour day-of-month month
+ * day-of-week". Each field accepts "*", single values, ranges ("1-5"), lists
+ * ("0,30") and steps ("*&#47;15", "8-18/2"). Months and days of the week may
+ * also be given by their three letter names.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public final class CronExpression {
+
+    private static final String[] MONTH_NAMES = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+    private static final String[] DAY_NAMES = {"sun", "mon", "tue", "wed", "thu", "fri", "sat"};
+
+    // How far ahead we search before giving up, to protect against "30 2 31 2 *" style expressions.
+    private static final int MAX_YEARS_AHEAD = 5;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean daysOfMonthRestricted;
+    private final boolean daysOfWeekRestricted;
+
+    /**
+     * Parse a cron expression.
+     *
+     * @param expression The expression, eg. "0 2 * * *".
+     * @throws IllegalArgumentException If the expression is malformed.
+     */
+    public CronExpression(String expression) {
+        this.expression = expression.trim();
+
+        String[] fields = this.expression.toLowerCase().split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Cron expression must have 5 fields: " + expression);
+        }
+
+        minutes = parseField(fields[0], 0, 59, null);
+        hours = parseField(fields[1], 0, 23, null);
+        daysOfMonth = parseField(fields[2], 1, 31, null);
+        months = parseField(fields[3], 1, 12, MONTH_NAMES);
+        daysOfWeek = parseField(fields[4], 0, 7, DAY_NAMES);
+
+        // Both 0 and 7 mean Sunday.
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+            daysOfWeek.clear(7);
+        }
+
+        daysOfMonthRestricted = !fields[2].equals("*");
+        daysOfWeekRestricted = !fields[4].equals("*");
+    }
+
+    /**
+     * Build an expression that fires once a day at the given "HH:mm" time.
+     *
+     * @param time The time of day, eg. "02:00".
+     * @return The expression for that time.
+     * @throws IllegalArgumentException If the time is malformed.
+     */
+    public static CronExpression daily(String time) {
+        String[] parts = time.trim().split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Time must be formatted as HH:mm: " + time);
+        }
+        try {
+            return new CronExpression(Integer.parseInt(parts[1]) + " " + Integer.parseInt(parts[0]) + " * * *");
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Time must be formatted as HH:mm: " + time);
+        }
+    }
+
+    /**
+     * Calculates the first time this expression fires strictly after the
+     * given time. Seconds and milliseconds are always zero.
+     *
+     * @param afterMillis The time to search from, in epoch milliseconds.
+     * @return The next fire time in epoch milliseconds, or -1 if none exists.
+     */
+    public long nextFireTime(long afterMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(afterMillis);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MINUTE, 1);
+
+        int maxYear = calendar.get(Calendar.YEAR) + MAX_YEARS_AHEAD;
+
+        // Skip forward in the largest step that can still match.
+        while (calendar.get(Calendar.YEAR) <= maxYear) {
+            if (!months.get(calendar.get(Calendar.MONTH) + 1)) {
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.add(Calendar.MONTH, 1);
+                continue;
+            }
+            if (!matchesDay(calendar)) {
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                continue;
+            }
+            if (!hours.get(calendar.get(Calendar.HOUR_OF_DAY))) {
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.add(Calendar.HOUR_OF_DAY, 1);
+                continue;
+            }
+            if (!minutes.get(calendar.get(Calendar.MINUTE))) {
+                calendar.add(Calendar.MINUTE, 1);
+                continue;
+            }
+            return calendar.getTimeInMillis();
+        }
+        return -1L;
+    }
+
+    /**
+     * Day matching follows cron: if both day fields are restricted, either
+     * may match.
+     */
+    private boolean matchesDay(Calendar calendar) {
+        boolean domMatch = daysOfMonth.get(calendar.get(Calendar.DAY_OF_MONTH));
+        boolean dowMatch = daysOfWeek.get(calendar.get(Calendar.DAY_OF_WEEK) - 1);
+
+        if (daysOfMonthRestricted && daysOfWeekRestricted) {
+            return domMatch || dowMatch;
+        } else if (daysOfMonthRestricted) {
+            return domMatch;
+        } else if (daysOfWeekRestricted) {
+            return dowMatch;
+        }
+        return true;
+    }
+
+    private static BitSet parseField(String field, int min, int max, String[] names) {
+        BitSet bits = new BitSet(max + 1);
+
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash != -1) {
+                step = parseValue(part.substring(slash + 1), 1, Integer.MAX_VALUE, null);
+                part = part.substring(0, slash);
+            }
+
+            int start;
+            int end;
+            if (part.equals("*")) {
+                start = min;
+                end = max;
+            } else if (part.indexOf('-') != -1) {
+                String[] range = part.split("-", 2);
+                start = parseValue(range[0], min, max, names);
+                end = parseValue(range[1], min, max, names);
+                if (end < start) {
+                    throw new IllegalArgumentException("Invalid range in cron field: " + field);
+                }
+            } else {
+                start = parseValue(part, min, max, names);
+                end = (slash != -1) ? max : start;
+            }
+
+            for (int i = start; i <= end; i += step) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(value)) {
+                    // Month names are 1-based, day names 0-based.
+                    return (min == 1) ? i + 1 : i;
+                }
+            }
+        }
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid value in cron field: " + value);
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException("Value out of range in cron field: " + value);
+        }
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,79 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.BackupFull;
+import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.history.ActivityProfile;
+import com.bukkitbackup.full.history.BackupHistory;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.util.Date;
+import java.util.List;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Treats each fire time as a deadline, and starts the backup early enough to
+ * finish by it. The duration is predicted from the backup history and the
+ * current size of the data. Within "deadlinewindow" hours of the deadline,
+ * the backup is moved to the time with the fewest players usually online.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class DeadlineScheduler extends BackupScheduler {
+
+    // Start times considered, when looking for a quieter time.
+    private static final long SLOT_STEP_MS = 15L * 60L * 1000L;
+
+    private final Settings settings;
+    private final Strings strings;
+    private final BackupHistory history;
+    private final ActivityProfile activity;
+    private long reportedMissed = -1L;
+
+    public DeadlineScheduler(Plugin plugin, BackupQueue backupQueue, Settings settings, Strings strings, List<CronExpression> deadlines, BackupHistory history, ActivityProfile activity) {
+        super(plugin, backupQueue, settings, strings, deadlines);
+        this.settings = settings;
+        this.strings = strings;
+        this.history = history;
+        this.activity = activity;
+    }
+
+    @Override
+    protected long planStart(long deadline) {
+        long now = System.currentTimeMillis();
+
+        // Predict the duration, and add the safety margin.
+        long defaultMillis = settings.getIntProperty("deadlinedefault", 30) * 60000L;
+        long predicted = history.predictDuration(BackupFull.backupTask.measureSource(), defaultMillis);
+        long needed = predicted + Math.max(60000L, predicted * settings.getIntProperty("deadlinemargin", 25) / 100L);
+
+        // Too late to finish in time, even starting now.
+        if (now + predicted > deadline) {
+            if (deadline > now && deadline != reportedMissed) {
+                reportedMissed = deadline;
+                LogUtils.sendLog(strings.getString("deadlinemissed", new Date(deadline).toString(), BackupProgress.formatSeconds(predicted / 1000L)));
+            }
+            return -1L;
+        }
+
+        // Start as late as possible, unless an earlier time is quieter.
+        long latestStart = Math.max(now, deadline - needed);
+        long earliestStart = Math.max(now, deadline - settings.getIntProperty("deadlinewindow", 4) * 3600000L);
+        long bestStart = latestStart;
+        double bestPlayers = activity.getExpectedPlayers(latestStart, needed);
+        for (long slot = latestStart - SLOT_STEP_MS; slot > earliestStart - SLOT_STEP_MS && bestPlayers > 0D; slot -= SLOT_STEP_MS) {
+            // The earliest slot is now, so a chosen time is kept when it is reached.
+            long start = Math.max(slot, earliestStart);
+            double players = activity.getExpectedPlayers(start, needed);
+            if (players >= 0D && players < bestPlayers) {
+                bestStart = start;
+                bestPlayers = players;
+            }
+        }
+
+        LogUtils.sendDebug("Backup for %s predicted to take %s, starting at %s. (M:0025)", new Date(deadline), BackupProgress.formatSeconds(predicted / 1000L), new Date(bestStart));
+        return bestStart;
+    }
+}
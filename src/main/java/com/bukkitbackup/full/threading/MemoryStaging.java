@@ -0,0 +1,315 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.archive.ArchiveOutputStream;
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.utils.FileUtils;
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Holds small worlds, and the player data of larger ones, in memory outside
+ * the Java heap while a backup is zipped, instead of copying them into the
+ * temp folder and reading them back. Staged folders are read into 1 MB slabs,
+ * one after another, and written into the ZIP of the folder they would have
+ * been copied to.
+ *
+ * The memory used is limited by "memorystaging". A folder which does not fit
+ * is copied to disk as normal. Slabs are kept for the next backup, so the
+ * memory is only allocated once.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class MemoryStaging {
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    // Slabs free for any backup. Guarded by itself.
+    private static final Deque<ByteBuffer> FREE_SLABS = new ArrayDeque<ByteBuffer>();
+
+    private final long budget;
+    private final long maxFolderSize;
+    private final List<StagedFolder> folders = new ArrayList<StagedFolder>();
+    private long usedBytes = 0L;
+    private long peakBytes = 0L;
+    private int stagedCount = 0;
+    private int fallbackCount = 0;
+
+    private MemoryStaging(long budget, long maxFolderSize) {
+        this.budget = budget;
+        this.maxFolderSize = maxFolderSize;
+    }
+
+    /**
+     * @param settings The settings.
+     * @return The staging area for a backup, or null if it is turned off.
+     */
+    public static MemoryStaging create(SettingsSnapshot settings) {
+        long budget = Math.max(0, settings.getIntProperty("memorystaging", 0)) * FileUtils.ONE_MB;
+        if (budget < SLAB_SIZE) {
+            return null;
+        }
+        return new MemoryStaging(budget, Math.max(1, settings.getIntProperty("memorystagingmax", 500)) * FileUtils.ONE_MB);
+    }
+
+    /**
+     * Hold a folder in memory, in place of copying it, if the backup on this
+     * thread has a staging area with room for it.
+     *
+     * @param source The folder to read.
+     * @param destination The folder it would have been copied to.
+     * @param filter Which files and folders to take, or null for all.
+     * @return True if it is held in memory, false if it must be copied.
+     * @throws IOException If a file cannot be read.
+     */
+    public static boolean stage(File source, File destination, FileFilter filter) throws IOException {
+        BackupJob job = BackupJob.current();
+        MemoryStaging staging = (job != null) ? job.getStaging() : null;
+        return staging != null && staging.stageFolder(source, destination, filter);
+    }
+
+    /**
+     * Write the folders held in memory which belong in a folder being
+     * zipped, then free their memory.
+     *
+     * @param directory The folder being zipped.
+     * @param zos The archive.
+     * @param prefix The path entries go under, as for the folder.
+     * @throws IOException If the ZIP cannot be written.
+     */
+    public static void zipStaged(File directory, ArchiveOutputStream zos, String prefix) throws IOException {
+        BackupJob job = BackupJob.current();
+        MemoryStaging staging = (job != null) ? job.getStaging() : null;
+        if (staging != null) {
+            staging.zipFolders(directory, zos, prefix);
+        }
+    }
+
+    private boolean stageFolder(File source, File destination, FileFilter filter) throws IOException {
+        long size = measure(source, filter);
+        if (size > maxFolderSize || usedBytes + size > budget) {
+            LogUtils.sendDebug("No room to hold %s in memory, copying it. (M:0035)", source);
+            fallbackCount++;
+            return false;
+        }
+
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+        StagedFolder folder = new StagedFolder(destination);
+        boolean fitted = false;
+        try {
+            fitted = readFolder(source, "", filter, folder);
+        } finally {
+            if (!fitted) {
+                release(folder); // Grew while being read, or failed.
+            }
+        }
+        if (!fitted) {
+            LogUtils.sendDebug("%s grew too big to hold in memory, copying it. (M:0035)", source);
+            fallbackCount++;
+            return false;
+        }
+        FileUtils.checkFolderAndCreate(destination);
+        folders.add(folder);
+        stagedCount++;
+        return true;
+    }
+
+    private static long measure(File folder, FileFilter filter) {
+        long bytes = 0L;
+        File[] files = (filter != null) ? folder.listFiles(filter) : folder.listFiles();
+        if (files == null) {
+            return 0L;
+        }
+        for (File file : files) {
+            bytes += file.isDirectory() ? measure(file, filter) : file.length();
+        }
+        return bytes;
+    }
+
+    private boolean readFolder(File source, String path, FileFilter filter, StagedFolder folder) throws IOException {
+        File[] files = (filter != null) ? source.listFiles(filter) : source.listFiles();
+        if (files == null) {
+            return true;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!readFolder(file, path.concat(file.getName()).concat(FILE_SEPARATOR), filter, folder)) {
+                    return false;
+                }
+            } else if (!readFile(file, path.concat(file.getName()), folder)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readFile(File file, String path, StagedFolder folder) throws IOException {
+        StagedFile staged = new StagedFile(path, file.lastModified(), folder.length);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            while (true) {
+                BackupJob.checkCancelled();
+                ByteBuffer slab = folder.lastSlab();
+                if (slab == null || !slab.hasRemaining()) {
+                    if (channel.position() >= channel.size()) {
+                        break; // Ended exactly at the end of a slab.
+                    }
+                    slab = takeSlab();
+                    if (slab == null) {
+                        return false;
+                    }
+                    folder.slabs.add(slab);
+                }
+                int read = channel.read(slab);
+                if (read < 0) {
+                    break;
+                }
+                folder.length += read;
+                BackupProgress.addBytes(read);
+            }
+        } finally {
+            in.close();
+        }
+        staged.length = folder.length - staged.offset;
+        folder.files.add(staged);
+        BackupProgress.addFile();
+        return true;
+    }
+
+    private ByteBuffer takeSlab() {
+        if (usedBytes + SLAB_SIZE > budget) {
+            return null;
+        }
+        ByteBuffer slab;
+        synchronized (FREE_SLABS) {
+            slab = FREE_SLABS.poll();
+        }
+        if (slab == null) {
+            try {
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            } catch (OutOfMemoryError oome) {
+                LogUtils.sendDebug("Ran out of direct memory for staging, raise -XX:MaxDirectMemorySize. (M:0035)");
+                return null;
+            }
+        }
+        slab.clear();
+        usedBytes += SLAB_SIZE;
+        peakBytes = Math.max(peakBytes, usedBytes);
+        return slab;
+    }
+
+    private void release(StagedFolder folder) {
+        synchronized (FREE_SLABS) {
+            for (ByteBuffer slab : folder.slabs) {
+                // Only keep as many as this backup could use.
+                if ((long) (FREE_SLABS.size() + 1) * SLAB_SIZE <= budget) {
+                    FREE_SLABS.push(slab);
+                }
+            }
+        }
+        usedBytes -= (long) folder.slabs.size() * SLAB_SIZE;
+        folder.slabs.clear();
+        folder.files.clear();
+    }
+
+    private void zipFolders(File directory, ArchiveOutputStream zos, String prefix) throws IOException {
+        Path zipped = directory.getAbsoluteFile().toPath().normalize();
+        byte[] buffer = new byte[FileUtils.BUFFER_SIZE * 8];
+        Iterator<StagedFolder> iterator = folders.iterator();
+        while (iterator.hasNext()) {
+            StagedFolder folder = iterator.next();
+            Path staged = folder.destination.getAbsoluteFile().toPath().normalize();
+            if (!staged.startsWith(zipped)) {
+                continue;
+            }
+            String path = prefix;
+            for (Path part : zipped.relativize(staged)) {
+                if (part.toString().length() > 0) {
+                    path = path.concat(part.toString()).concat(FILE_SEPARATOR);
+                }
+            }
+            for (StagedFile file : folder.files) {
+                BackupJob.checkCancelled();
+                zos.putNextEntry(path.concat(file.path), file.lastModified, file.length, true);
+                long position = file.offset;
+                long remaining = file.length;
+                while (remaining > 0) {
+                    ByteBuffer slab = folder.slabs.get((int) (position / SLAB_SIZE)).duplicate();
+                    slab.position((int) (position % SLAB_SIZE));
+                    int count = (int) Math.min(Math.min(remaining, buffer.length), SLAB_SIZE - slab.position());
+                    slab.get(buffer, 0, count);
+                    zos.write(buffer, 0, count);
+                    BackupProgress.addBytes(count);
+                    position += count;
+                    remaining -= count;
+                }
+                zos.closeEntry();
+                BackupProgress.addFile();
+            }
+            release(folder);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Free everything held, once the backup has finished with it.
+     */
+    void finish() {
+        for (StagedFolder folder : folders) {
+            release(folder);
+        }
+        folders.clear();
+        if (stagedCount > 0 || fallbackCount > 0) {
+            LogUtils.sendDebug("Held %d folders in memory, peak %s; %d copied to disk. (M:0035)",
+                    stagedCount, BackupProgress.formatBytes(peakBytes), fallbackCount);
+        }
+    }
+
+    /**
+     * A folder held in memory, its files one after another in the slabs.
+     */
+    private static class StagedFolder {
+
+        private final File destination;
+        private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+        private final List<StagedFile> files = new ArrayList<StagedFile>();
+        private long length = 0L;
+
+        StagedFolder(File destination) {
+            this.destination = destination;
+        }
+
+        ByteBuffer lastSlab() {
+            return slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        }
+    }
+
+    private static class StagedFile {
+
+        private final String path;
+        private final long lastModified;
+        private final long offset;
+        private long length;
+
+        StagedFile(String path, long lastModified, long offset) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.offset = offset;
+        }
+    }
+}
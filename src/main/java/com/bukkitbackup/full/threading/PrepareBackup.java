@@ -1,15 +1,21 @@
 package com.bukkitbackup.full.threading;
 
 import com.bukkitbackup.full.BackupFull;
+import com.bukkitbackup.full.config.BackupTier;
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.events.AutosaveTracker;
+import com.bukkitbackup.full.events.NotifyRecipients;
 import com.bukkitbackup.full.utils.LogUtils;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.bukkit.Server;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
 
 /**
  * Backup - The simple server backup solution.
@@ -17,29 +23,180 @@ import org.bukkit.plugin.Plugin;
  * @author Samuel98
  * @author info@samuel98.com
  */
-public class PrepareBackup implements Runnable {
+public class PrepareBackup {
 
     private final Plugin plugin;
     private final Server pluginServer;
     private final Settings settings;
     private final Strings strings;
-    public static boolean backupInProgress = false;
-    public static boolean backupEnabled = true;
-    public boolean isLastBackup = false;
-    public boolean isManualBackup;
+    private final NotifyRecipients notifyRecipients;
+    private final AutosaveTracker autosaveTracker;
+    public static volatile boolean backupEnabled = true;
 
-    public PrepareBackup(Plugin plugin, Settings settings, Strings strings) {
+    // The job waiting for an autosave, and its check. Main thread only.
+    private BackupJob waitingJob;
+    private BukkitTask waitingTask;
+
+    public PrepareBackup(Plugin plugin, Settings settings, Strings strings, NotifyRecipients notifyRecipients, AutosaveTracker autosaveTracker) {
         this.plugin = plugin;
         this.pluginServer = plugin.getServer();
         this.settings = settings;
         this.strings = strings;
+        this.notifyRecipients = notifyRecipients;
+        this.autosaveTracker = autosaveTracker;
     }
 
-    public synchronized void run() {
-        if (backupInProgress) {
-            LogUtils.sendLog(strings.getString("backupinprogress"));
+    /**
+     * Checks and prepares a job taken from the queue, then starts it in
+     * another thread. Must be called on the main thread.
+     *
+     * @param job The job to prepare.
+     * @return True if the backup was started, false if it was skipped.
+     */
+    public boolean prepare(final BackupJob job) {
+        return shouldRun(job) && begin(job);
+    }
+
+    /**
+     * Checks whether a job should run now, logging why if not. Must be
+     * called on the main thread.
+     *
+     * @param job The job to check.
+     * @return True if the backup should go ahead.
+     */
+    boolean shouldRun(BackupJob job) {
+        return !job.isCancelled() && checkShouldDoBackup(job);
+    }
+
+    /**
+     * Prepares a job already checked by {@link #shouldRun(BackupJob)}, then
+     * starts it in another thread. Must be called on the main thread.
+     *
+     * @param job The job to start.
+     * @return True if the backup was started, false if it was cancelled.
+     */
+    boolean begin(final BackupJob job) {
+        if (job.isCancelled()) {
+            return false;
+        }
+
+        // Keep the task, and so the settings, current when the job started.
+        final BackupTask backupTask = BackupFull.backupTask;
+
+        // Automatic backups can wait for the next autosave, rather than saving again.
+        if (shouldWaitForAutosave(job, backupTask)) {
+            waitForAutosave(job, backupTask);
         } else {
-            checkShouldDoBackup();
+            start(job, backupTask);
+        }
+        return true;
+    }
+
+    private void start(final BackupJob job, final BackupTask backupTask) {
+        job.getProgress().begin();
+        prepareBackup(job, backupTask);
+
+        // Start the backup in another thread.
+        pluginServer.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            public void run() {
+                backupTask.run(job);
+            }
+        });
+    }
+
+    private boolean isAutosaveMode() {
+        return settings.getStringProperty("savemode", "force").trim().equalsIgnoreCase("autosave");
+    }
+
+    private long getStaleness() {
+        return TimeUnit.SECONDS.toMillis(Math.max(0, settings.getIntProperty("savestaleness", 300)));
+    }
+
+    /**
+     * Automatic backups which would have to save a world wait for the next
+     * autosave instead. Backups started by people, on shutdown or to resume
+     * never wait.
+     */
+    private boolean shouldWaitForAutosave(BackupJob job, BackupTask backupTask) {
+        if (!isAutosaveMode() || !job.getType().isPreemptible() || !savesWorlds(job, backupTask)) {
+            return false;
+        }
+        for (World world : pluginServer.getWorlds()) {
+            if (autosaveTracker.isStale(world, getStaleness())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the worlds are saved before the job, rather than read
+     * from snapshots, or not read at all.
+     */
+    private boolean savesWorlds(BackupJob job, BackupTask backupTask) {
+        if (job.getType().isMaintenance()) {
+            return false;
+        }
+        if (job.getScope() != null) {
+            return job.getScope().isWorld() && !backupTask.usesWorldSnapshots(job.getScope());
+        }
+        return (job.getTier() != null) ? job.getTier().savesWorlds() : !backupTask.usesWorldSnapshots();
+    }
+
+    /**
+     * Start the job on the tick after the next world save, or once it has
+     * waited "savestaleness" seconds, whichever comes first.
+     */
+    private void waitForAutosave(final BackupJob job, final BackupTask backupTask) {
+        final long waitingSince = System.currentTimeMillis();
+        final long waitUntil = waitingSince + getStaleness();
+        LogUtils.sendDebug("Waiting for the next autosave to start the %s backup. (M:0034)", job);
+
+        waitingJob = job;
+        waitingTask = pluginServer.getScheduler().runTaskTimer(plugin, new Runnable() {
+            public void run() {
+                if (job.isCancelled()) {
+                    stopWaiting();
+                } else if (autosaveTracker.getLastAnySave() >= waitingSince || System.currentTimeMillis() >= waitUntil) {
+                    waitingTask.cancel();
+                    waitingTask = null;
+                    waitingJob = null;
+                    start(job, backupTask);
+                }
+            }
+        }, 1L, 1L);
+    }
+
+    /**
+     * Drop a job waiting for an autosave, so the queue can move on. Must be
+     * called on the main thread.
+     */
+    public void stopWaiting() {
+        if (waitingTask != null) {
+            waitingTask.cancel();
+            waitingTask = null;
+        }
+        if (waitingJob != null) {
+            BackupJob job = waitingJob;
+            waitingJob = null;
+            if (BackupFull.backupQueue != null) {
+                BackupFull.backupQueue.finished(job);
+            }
+        }
+    }
+
+    /**
+     * Prepares and runs a job on the calling thread. This is used while the
+     * plugin is disabling, when no new tasks can be scheduled.
+     *
+     * @param job The job to run.
+     */
+    public void runInline(BackupJob job) {
+        if (checkShouldDoBackup(job)) {
+            BackupTask backupTask = BackupFull.backupTask;
+            job.getProgress().begin();
+            prepareBackup(job, backupTask);
+            backupTask.run(job);
         }
     }
 
@@ -48,131 +205,141 @@ public class PrepareBackup implements Runnable {
      *
      * It checks: - Online players. - Bypass node. - Manual doBackup.
      *
-     * It then runs the doBackup if needed.
+     * @param job The job being checked.
+     * @return True if the backup should go ahead.
      */
-    private void checkShouldDoBackup() {
+    private boolean checkShouldDoBackup(BackupJob job) {
+        // Maintenance only reads backups, so waits for a quiet server rather than for players.
+        if (job.getType().isMaintenance()) {
+            int online = pluginServer.getOnlinePlayers().size();
+            if (online > settings.getIntProperty("idleplayers", 0)) {
+                LogUtils.sendDebug("Not running %s, %d player(s) online. (M:0038)", job, online);
+                return false;
+            }
+            return true;
+        }
+
+        // The world may have been unloaded since it was asked for.
+        BackupScope scope = job.getScope();
+        if (scope != null && scope.isWorld() && pluginServer.getWorld(scope.getName()) == null) {
+            LogUtils.sendLog(strings.getString("unknownworld", scope.getName()));
+            return false;
+        }
+
         // If it is a manual doBackup, start it, otherwise, perform checks.
-        if (isManualBackup) {
-            prepareBackup();
+        if (job.getType() == BackupJob.Type.MANUAL || job.getType() == BackupJob.Type.PARTIAL
+                || job.getType() == BackupJob.Type.SHUTDOWN || job.getType() == BackupJob.Type.RECOVERY) {
+            return true;
         } else if (backupEnabled) {
             // No player checking.
             if (settings.getBooleanProperty("backupemptyserver", false)) {
-                prepareBackup();
+                return true;
             } else {
                 // Checking online players.
                 if (pluginServer.getOnlinePlayers().size() == 0) {
 
                     // Check if last backup
-                    if (isLastBackup) {
+                    if (job.getType() == BackupJob.Type.LAST_PLAYER) {
                         LogUtils.sendLog(strings.getString("lastbackup"));
-                        prepareBackup();
-                        isLastBackup = false;
+                        return true;
                     } else {
                         LogUtils.sendLog(strings.getString("abortedbackup"));
                     }
                 } else {
-                    // Default don't do backup.
-                    boolean doBackup = false;
-
                     // Get all online players and loop through them.
                     for (Player currentplayer : pluginServer.getOnlinePlayers()) {
                         // If any players do not have the node, do the doBackup.
                         if (!currentplayer.hasPermission("backup.bypass")) {
-                            doBackup = true;
+                            return true;
                         }
                     }
 
-                    // Final check if we should do the backup.
-                    if (doBackup) {
-                        prepareBackup();
-                    } else {
-                        LogUtils.sendLog(strings.getString("skipbackupbypass"));
-                    }
+                    LogUtils.sendLog(strings.getString("skipbackupbypass"));
                 }
             }
         } else {
             LogUtils.sendLog(strings.getString("backupoff"));
         }
+        return false;
     }
 
     /**
-     * Prepares for, and starts, a doBackup.
+     * Prepares the worlds for a backup.
+     *
+     * @param job The job being prepared, which is charged the time taken.
+     * @param backupTask The task which will run the job.
      */
-    protected void prepareBackup() {
-        // Tell the world!
-        backupInProgress = true;
+    protected void prepareBackup(BackupJob job, BackupTask backupTask) {
+        // Maintenance never touches the worlds.
+        if (job.getType().isMaintenance()) {
+            return;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        BackupTier tier = job.getTier();
+        BackupScope scope = job.getScope();
 
-        // Notify doBackup has started.
-        notifyStarted();
+        // Notify doBackup has started. Tiers run too often to announce.
+        if (tier == null) {
+            notifyStarted();
+        }
 
-        // Save all players to worlds.
-        pluginServer.savePlayers();
+        // With autosave mode, a recent save is used as it is.
+        boolean onAutosave = isAutosaveMode();
+        long staleness = getStaleness();
 
-        // Turn off auto-saving of worlds.
-        for (World world : pluginServer.getWorlds()) {
-            world.setAutoSave(false);
+        // A backup of one world leaves the others alone, and one of a plugin needs no worlds.
+        List<World> worlds = pluginServer.getWorlds();
+        if (scope != null) {
+            worlds = scope.isWorld() ? Collections.singletonList(pluginServer.getWorld(scope.getName())) : Collections.<World>emptyList();
         }
 
-        // Perform final world save before backup.
-        for (World world : pluginServer.getWorlds()) {
-            world.save();
+        // Save all players to worlds. Autosave saves them with the worlds.
+        if (tier != null && tier.hasPlayers() && !tier.savesWorlds()) { // Players are the point of the tier.
+            pluginServer.savePlayers();
+        } else if (scope != null && !scope.isWorld()) {
+            LogUtils.sendDebug("Not saving worlds for a backup of the %s. (M:0037)", scope);
+        } else if (!onAutosave || worlds.isEmpty() || autosaveTracker.isStale(worlds.get(0), staleness)) {
+            pluginServer.savePlayers();
         }
 
-        // Schedule the doBackup.
-        pluginServer.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
-            public void run() {
-                pluginServer.getScheduler().runTaskAsynchronously(plugin, BackupFull.backupTask);
+        // Chunk snapshots are taken while the worlds carry on saving as normal.
+        if (savesWorlds(job, backupTask)) {
+            // Turn off auto-saving of worlds, remembering which to turn back on.
+            List<String> quiesced = new ArrayList<String>();
+            for (World world : worlds) {
+                world.setAutoSave(false);
+                quiesced.add(world.getName());
             }
-        });
-        isManualBackup = false;
-    }
+            job.setQuiescedWorlds(quiesced);
 
-    /**
-     * Notify that the backup has started.
-     *
-     */
-    private void notifyStarted() {
-        // Get message.
-        String startBackupMessage = strings.getString("backupstarted");
-
-        // Check the string is set.
-        if (startBackupMessage != null) {
-
-            // Check if we are using multiple lines.
-            if (startBackupMessage.contains(";;")) {
-
-                // Convert to array of lines.
-                List<String> messageList = Arrays.asList(startBackupMessage.split(";;"));
-
-                // Loop the lines of this message.
-                for (String thisMessage : messageList) {
-                    // Retrieve this line of the message.
-                    // Notify all players, regardless of the permission node.
-                    this.notifyPlayers(thisMessage);
+            // Perform final world save before backup, unless autosave has just done it.
+            int recentlySaved = 0;
+            for (World world : worlds) {
+                if (!onAutosave || autosaveTracker.isStale(world, staleness)) {
+                    world.save();
+                } else {
+                    recentlySaved++;
                 }
-            } else {
-                // Notify all players, regardless of the permission node.
-                this.notifyPlayers(startBackupMessage);
             }
+            if (onAutosave) {
+                LogUtils.sendDebug("Used the last autosave of %d of %d worlds. (M:0034)", recentlySaved, worlds.size());
+            }
+        }
+
+        // Everything changed up to now is on disk, for incremental backups. Tiers and partial backups leave them alone.
+        if (!job.isPartial()) {
+            backupTask.captureChangedRegions();
         }
+
+        job.getProgress().addMainThreadMillis(System.currentTimeMillis() - startedAt);
     }
 
     /**
-     * Private method to notify all players.
-     * @param message The message of which to notify.
+     * Notify that the backup has started.
+     *
      */
-    private void notifyPlayers(String message) {
-        // Notify all players, regardless of the permission node.
-        if (settings.getBooleanProperty("notifyallplayers", true)) {
-            pluginServer.broadcastMessage(message);
-        } else {
-            // Get all online players and loop through them.
-            for (Player currentplayer : pluginServer.getOnlinePlayers()) {
-                // If the current player has the right permissions, notify them.
-                if (currentplayer.hasPermission("backup.notify")) {
-                    currentplayer.sendMessage(message);
-                }
-            }
-        }
+    private void notifyStarted() {
+        notifyRecipients.notify(strings.getString("backupstarted"));
     }
 }
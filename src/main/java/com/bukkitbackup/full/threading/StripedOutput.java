@@ -0,0 +1,343 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.BackupFull;
+import com.bukkitbackup.full.catalog.BackupCatalog;
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.utils.FileUtils;
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes the parts of a backup across "backuppath" and the "stripepaths"
+ * directories, with one thread per directory. Each world, and the plugins,
+ * is a part. Parts are placed largest first, on the directory which would
+ * finish soonest at its measured speed, among those with room for it.
+ *
+ * Every directory gets a folder named after the backup, and each part is
+ * written under the same path in it as in the backup. The folders of a
+ * backup, merged, are the whole backup. ZIPs hold their part's path, so all
+ * of them extract into the one folder.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class StripedOutput {
+
+    // Room left on a directory, on top of the part, before it is used.
+    private static final double SPACE_MARGIN = 1.05D;
+
+    private final List<File> targets;
+    private final String worldContainer;
+    private final boolean shouldZIP;
+    private final BackupJournal journal;
+
+    /**
+     * @param settings The settings of the backup task.
+     * @param worldContainer The name of the world container folder.
+     * @param journal The shared backup journal.
+     */
+    public StripedOutput(SettingsSnapshot settings, String worldContainer, BackupJournal journal) {
+        List<File> allTargets = new ArrayList<File>();
+        allTargets.add(new File(settings.getBackupPath()));
+        for (String stripePath : settings.getStripePaths()) {
+            allTargets.add(new File(stripePath));
+        }
+        this.targets = Collections.unmodifiableList(allTargets);
+        this.worldContainer = worldContainer;
+        this.shouldZIP = settings.isZipBackup();
+        this.journal = journal;
+    }
+
+    /**
+     * @return The directories backups are written to, "backuppath" first.
+     */
+    public List<File> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Write the parts of a backup from its staging folder, then remove what
+     * was written from the staging folder.
+     *
+     * @param staging The folder the backup was copied to.
+     * @param backupName The name of the backup.
+     */
+    public void write(File staging, String backupName) {
+        List<String> parts = new ArrayList<String>();
+        listParts(staging, "", parts);
+        if (parts.isEmpty()) {
+            return;
+        }
+
+        // Parts written before a restart stay where they are.
+        final List<List<String>> assigned = new ArrayList<List<String>>();
+        long[] assignedBytes = new long[targets.size()];
+        long[] speeds = getSpeeds();
+        for (int i = 0; i < targets.size(); i++) {
+            assigned.add(new ArrayList<String>());
+            FileUtils.checkFolderAndCreate(targets.get(i));
+        }
+        List<String> remaining = new ArrayList<String>();
+        for (String part : parts) {
+            if (findWritten(part, backupName) < 0) {
+                remaining.add(part);
+            }
+        }
+
+        // Largest first, on whichever directory would be done soonest.
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        for (String part : remaining) {
+            sizes.put(part, sizeOf(new File(staging, part)));
+        }
+        Collections.sort(remaining, new Comparator<String>() {
+            public int compare(String first, String second) {
+                return sizes.get(second).compareTo(sizes.get(first));
+            }
+        });
+        for (String part : remaining) {
+            long size = sizes.get(part);
+            int target = placePart(size, assignedBytes, speeds);
+            assigned.get(target).add(part);
+            assignedBytes[target] += size;
+            LogUtils.sendDebug("Striping %s (%s) to %s. (M:0027)", part, BackupProgress.formatBytes(size), targets.get(target));
+        }
+
+        // One writer per directory.
+        final File stagingFolder = staging;
+        final BackupJob job = BackupJob.current();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(targets.size(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup-Stripe-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        try {
+            for (int i = 0; i < targets.size(); i++) {
+                if (assigned.get(i).isEmpty()) {
+                    continue;
+                }
+                final File target = targets.get(i);
+                final List<String> targetParts = assigned.get(i);
+                final String name = backupName;
+                results.add(writers.submit(new Callable<List<String>>() {
+                    public List<String> call() {
+                        BackupJob.bind(job);
+                        try {
+                            return writeParts(stagingFolder, target, name, targetParts);
+                        } finally {
+                            BackupJob.bind(null);
+                        }
+                    }
+                }));
+            }
+
+            // Wait for every writer, so none is left writing after a failure.
+            List<String> moved = new ArrayList<String>();
+            BackupCancelledException cancelled = null;
+            for (Future<List<String>> result : results) {
+                try {
+                    moved.addAll(result.get());
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof BackupCancelledException) {
+                        cancelled = (BackupCancelledException) ee.getCause();
+                    } else {
+                        LogUtils.exceptionLog(ee.getCause(), "Failed to write striped backup.");
+                        BackupProgress.errorOccurred();
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new BackupCancelledException();
+                }
+            }
+            if (cancelled != null) {
+                throw cancelled;
+            }
+            removeStaged(staging, backupName, moved);
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    /**
+     * Write parts to one directory, recording each in the journal, and the
+     * speed of the directory in the catalog.
+     *
+     * @return The parts written somewhere other than the staging folder.
+     */
+    private List<String> writeParts(File staging, File target, String backupName, List<String> parts) {
+        List<String> moved = new ArrayList<String>();
+        long startedAt = System.currentTimeMillis();
+        long bytes = 0L;
+        for (String part : parts) {
+            BackupJob.checkCancelled();
+            File source = new File(staging, part);
+            File destination = getDestination(target, backupName, part, source);
+            try {
+                if (!source.getCanonicalFile().equals(destination.getCanonicalFile())) {
+                    moved.add(part);
+                    if (shouldZIP && source.isDirectory()) {
+                        FileUtils.checkFolderAndCreate(destination.getParentFile());
+                        FileUtils.zipDir(source.getPath(), destination.getPath(), part.concat(FILE_SEPARATOR));
+                    } else if (source.isDirectory()) {
+                        FileUtils.copyDirectory(source.getPath(), destination.getPath());
+                    } else {
+                        FileUtils.copyFile(source, destination);
+                    }
+                }
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to write striped backup part: " + destination);
+                BackupProgress.errorOccurred();
+                moved.remove(part);
+                continue;
+            }
+            bytes += sizeOf(destination);
+            journal.recordArchive(destination.getPath());
+        }
+
+        // Only a run with real data says much about the speed.
+        long elapsed = System.currentTimeMillis() - startedAt;
+        BackupCatalog catalog = BackupFull.backupCatalog;
+        if (catalog != null && bytes > 0L && elapsed > 0L) {
+            catalog.recordTargetSpeed(target, bytes * 1000L / elapsed);
+        }
+        return moved;
+    }
+
+    /**
+     * List the parts in a staging folder. The world container is not a part
+     * itself, the worlds in it are.
+     */
+    private void listParts(File folder, String path, List<String> parts) {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String childPath = path.concat(child.getName());
+            if (path.isEmpty() && child.isDirectory() && !worldContainer.equals(".") && child.getName().equals(worldContainer)) {
+                listParts(child, childPath.concat(FILE_SEPARATOR), parts);
+            } else {
+                parts.add(childPath);
+            }
+        }
+    }
+
+    /**
+     * Choose a directory for a part, preferring the one which would finish
+     * its work soonest, among those with space for the part.
+     */
+    private int placePart(long size, long[] assignedBytes, long[] speeds) {
+        int best = -1;
+        double bestFinish = Double.MAX_VALUE;
+        int roomiest = 0;
+        long roomiestSpace = Long.MIN_VALUE;
+        for (int i = 0; i < targets.size(); i++) {
+            long space = targets.get(i).getUsableSpace() - assignedBytes[i];
+            if (space > roomiestSpace) {
+                roomiest = i;
+                roomiestSpace = space;
+            }
+            if (space < size * SPACE_MARGIN) {
+                continue;
+            }
+            double finish = (double) (assignedBytes[i] + size) / speeds[i];
+            if (finish < bestFinish) {
+                best = i;
+                bestFinish = finish;
+            }
+        }
+        return (best >= 0) ? best : roomiest;
+    }
+
+    /**
+     * The measured speed of each directory. One never measured is taken to
+     * be as fast as the average of the others.
+     */
+    private long[] getSpeeds() {
+        BackupCatalog catalog = BackupFull.backupCatalog;
+        long[] speeds = new long[targets.size()];
+        long known = 0L;
+        int knownCount = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            speeds[i] = (catalog != null) ? catalog.getTargetSpeed(targets.get(i)) : 0L;
+            if (speeds[i] > 0L) {
+                known += speeds[i];
+                knownCount++;
+            }
+        }
+        long average = (knownCount > 0) ? known / knownCount : 1L;
+        for (int i = 0; i < speeds.length; i++) {
+            if (speeds[i] <= 0L) {
+                speeds[i] = average;
+            }
+        }
+        return speeds;
+    }
+
+    /**
+     * @return The index of the directory a part was already written to, or
+     * -1 if it has not been.
+     */
+    private int findWritten(String part, String backupName) {
+        for (int i = 0; i < targets.size(); i++) {
+            File zip = new File(targets.get(i), backupName.concat(FILE_SEPARATOR).concat(part).concat(BackupJob.currentFormat().getExtension()));
+            File plain = new File(targets.get(i), backupName.concat(FILE_SEPARATOR).concat(part));
+            if (journal.isArchiveDone(zip.getPath()) || journal.isArchiveDone(plain.getPath())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private File getDestination(File target, String backupName, String part, File source) {
+        String path = backupName.concat(FILE_SEPARATOR).concat(part);
+        if (shouldZIP && source.isDirectory()) {
+            path = path.concat(BackupJob.currentFormat().getExtension());
+        }
+        return new File(target, path);
+    }
+
+    /**
+     * Remove the moved parts from the staging folder, and the folder itself
+     * if it is not also where parts were written.
+     */
+    private void removeStaged(File staging, String backupName, List<String> moved) {
+        boolean stagingIsTarget = false;
+        for (File target : targets) {
+            stagingIsTarget |= new File(target, backupName).getAbsoluteFile().equals(staging.getAbsoluteFile());
+        }
+        for (String part : moved) {
+            FileUtils.deleteDir(new File(staging, part));
+        }
+        if (stagingIsTarget) {
+            // Only removed if the worlds in it were all moved out.
+            new File(staging, worldContainer).delete();
+        } else {
+            FileUtils.deleteDir(staging);
+        }
+    }
+
+    private static long sizeOf(File file) {
+        return file.isDirectory() ? FileUtils.getTotalFolderSize(file) : file.length();
+    }
+}
@@ -1,6 +1,7 @@
 package com.bukkitbackup.full.threading.tasks;
 
-import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.threading.BackupJournal;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import java.io.File;
@@ -19,26 +20,30 @@ public class BackupEverything {
     private final boolean useTemp;
     private final String tempDestination;
     private final FileFilter fileFilter;
+    private final BackupJournal journal;
+
+    public BackupEverything(final SettingsSnapshot settings, BackupJournal journal) {
+        this.journal = journal;
 
-    public BackupEverything(final Settings settings) {
         // Get the backup destination.
-        backupPath = settings.getStringProperty("backuppath", "backups");
+        backupPath = settings.getBackupPath();
 
         // Get backup properties.
-        shouldZIP = settings.getBooleanProperty("zipbackup", true);
-        useTemp = settings.getBooleanProperty("usetemp", true);
+        shouldZIP = settings.isZipBackup();
+        useTemp = settings.isUsingTemp();
 
         // Filefiler for excludes.
+        final String backupFolderName = backupPath;
         fileFilter = new FileFilter() {
             public boolean accept(File f) {
                 // Disallow server.log and the backuppath.
-                return !f.getName().equals(settings.getStringProperty("backuppath", "backups")) && !f.getName().equals("server.log");
+                return !f.getName().equals(backupFolderName) && !f.getName().equals("server.log");
             }
         };
 
         // Generate the worldStore.
         if (useTemp) {
-            String tempFolder = settings.getStringProperty("tempfoldername", "");
+            String tempFolder = settings.getTempFolderName();
             if (!tempFolder.equals("")) { // Absolute.
                 tempDestination = tempFolder.concat(FILE_SEPARATOR);
             } else { // Relative.
@@ -51,10 +56,19 @@ public class BackupEverything {
 
     // The actual backup should be done here, as it is run in another thread.
     public void doEverything(String backupName) throws Exception {
+        String archivePath = backupPath.concat(FILE_SEPARATOR).concat(backupName);
+
+        // Already completed before an interruption.
+        if (journal.isArchiveDone(archivePath)) {
+            return;
+        }
+
         // Copy the directory.
         FileUtils.copyDirectory(new File(".".concat(FILE_SEPARATOR)), new File(tempDestination.concat(backupName)), fileFilter, true);
 
         // Perform the zipping action.
-        FileUtils.doCopyAndZIP(tempDestination.concat(backupName), backupPath.concat(FILE_SEPARATOR).concat(backupName), shouldZIP, useTemp);
+        if (FileUtils.doCopyAndZIP(tempDestination.concat(backupName), archivePath, shouldZIP, useTemp)) {
+            journal.recordArchive(archivePath);
+        }
     }
 }
@@ -0,0 +1,141 @@
+package com.bukkitbackup.full.threading.tasks;
+
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.threading.BackupScope;
+import com.bukkitbackup.full.threading.MemoryStaging;
+import com.bukkitbackup.full.utils.FileUtils;
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import org.bukkit.Server;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Backs up one world, or the folder of one plugin, on its own. It is always a
+ * full copy, laid out as in a normal backup, so it can be restored over one.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupPartial {
+
+    private final Server pluginServer;
+    private final String worldContainer;
+    private final String partialPath;
+    private final String tempDestination;
+    private final boolean shouldZIP;
+    private final boolean useTemp;
+    private final SnapshotWorlds snapshotWorlds;
+
+    /**
+     * @param server The server.
+     * @param settings The settings.
+     * @param partialPath The folder partial backups are written to.
+     * @param tempDestination The folder backups are copied into first.
+     * @param snapshotWorlds The snapshot engine, if worlds use it, or null.
+     */
+    public BackupPartial(Server server, SettingsSnapshot settings, String partialPath, String tempDestination, SnapshotWorlds snapshotWorlds) {
+        this.pluginServer = server;
+        this.worldContainer = server.getWorldContainer().getName();
+        this.partialPath = partialPath;
+        this.tempDestination = tempDestination;
+        this.shouldZIP = settings.isZipBackup();
+        this.useTemp = settings.isUsingTemp();
+        this.snapshotWorlds = snapshotWorlds;
+    }
+
+    /**
+     * Back up one world or plugin, into the folder for partial backups.
+     *
+     * @param backupName The name of the backup.
+     * @param scope The world or plugin.
+     * @throws IOException If the backup fails.
+     */
+    public void doScope(String backupName, BackupScope scope) throws IOException {
+        String finalDestination = partialPath.concat(FILE_SEPARATOR).concat(backupName);
+        FileUtils.checkFolderAndCreate(new File(partialPath));
+
+        // Without a temp folder or ZIP, the copy is the backup.
+        String copyRoot = (useTemp || shouldZIP) ? tempDestination.concat(backupName) : finalDestination;
+
+        // The same place as in a normal backup.
+        String copyDestination;
+        if (!scope.isWorld()) {
+            copyDestination = copyRoot.concat(FILE_SEPARATOR).concat("plugins").concat(FILE_SEPARATOR).concat(scope.getName());
+        } else if (!worldContainer.equals(".")) {
+            copyDestination = copyRoot.concat(FILE_SEPARATOR).concat(worldContainer).concat(FILE_SEPARATOR).concat(scope.getName());
+        } else {
+            copyDestination = copyRoot.concat(FILE_SEPARATOR).concat(scope.getName());
+        }
+        File destination = new File(copyDestination);
+        FileUtils.checkFolderAndCreate(destination);
+
+        File source = getSource(scope);
+        if (scope.isWorld() && snapshotWorlds != null) {
+            snapshotWorlds.copyWorld(pluginServer.getWorld(scope.getName()), source, destination);
+        } else if (!MemoryStaging.stage(source, destination, null)) {
+            FileUtils.copyDirectory(source, destination, null, true);
+        }
+        LogUtils.sendDebug("Copied the %s for a partial backup. (M:0037)", scope);
+
+        if (!FileUtils.doCopyAndZIP(copyRoot, finalDestination, shouldZIP, useTemp)) {
+            throw new IOException("Failed to write " + finalDestination);
+        }
+    }
+
+    /**
+     * @param scope The world or plugin.
+     * @return The folder it is backed up from.
+     * @throws IOException If a plugin's folder is not one in "plugins".
+     */
+    public File getSource(BackupScope scope) throws IOException {
+        if (scope.isWorld()) {
+            return new File(pluginServer.getWorldContainer(), scope.getName());
+        }
+        File pluginFolder = findPluginFolder(scope.getName());
+        if (pluginFolder == null) {
+            throw new IOException("Not a folder in plugins: " + scope.getName());
+        }
+        return pluginFolder;
+    }
+
+    /**
+     * Find the folder of one plugin. Names such as ".." or "a/b", and links
+     * out of "plugins", would back up something else, such as the whole
+     * server with the backups in it, so they are not accepted.
+     *
+     * @param folderName The name of the folder in "plugins".
+     * @return The folder, or null if it is not a folder directly in "plugins".
+     */
+    public static File findPluginFolder(String folderName) {
+        if (folderName.isEmpty() || folderName.equals(".") || folderName.equals("..")
+                || folderName.indexOf('/') != -1 || folderName.indexOf('\\') != -1 || folderName.indexOf(File.separatorChar) != -1) {
+            return null;
+        }
+        File pluginFolder = new File("plugins", folderName);
+        try {
+            if (!pluginFolder.isDirectory()
+                    || !new File("plugins").getCanonicalFile().equals(pluginFolder.getCanonicalFile().getParentFile())) {
+                return null;
+            }
+        } catch (IOException ioe) {
+            return null;
+        }
+        return pluginFolder;
+    }
+
+    /**
+     * Work out how much data a partial backup will read, for progress
+     * reporting.
+     *
+     * @param progress The progress of the job.
+     * @param scope The world or plugin.
+     * @throws IOException If a plugin's folder is not one in "plugins".
+     */
+    public void planSources(BackupProgress progress, BackupScope scope) throws IOException {
+        progress.planSource(getSource(scope), null);
+    }
+}
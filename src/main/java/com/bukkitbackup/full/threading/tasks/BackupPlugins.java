@@ -1,15 +1,25 @@
 package com.bukkitbackup.full.threading.tasks;
 
-import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.SettingsSnapshot;
 import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.delta.DeltaStore;
+import com.bukkitbackup.full.events.PluginChangeJournal;
+import com.bukkitbackup.full.threading.BackupJournal;
+import com.bukkitbackup.full.threading.BackupProgress;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.PackUtils;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Backup - The simple server backup solution.
@@ -26,21 +36,51 @@ public class BackupPlugins {
     private final boolean useTemp;
     private final String tempDestination;
     private final boolean pluginListMode;
+    private final boolean packPlugins;
     private final List<String> pluginList;
     private final FileFilter pluginsFileFilter;
+    private final FileFilter copyFileFilter;
+    private final BackupJournal journal;
+    private final DeltaStore deltaStore;
+    private final PluginChangeJournal changeJournal;
+    private final DeltaStore.BackupLookup backupLookup;
+    private final int maxChain;
 
-    public BackupPlugins(Settings settings, Strings strings) {
+    /**
+     * @param settings Settings.
+     * @param strings Strings.
+     * @param journal Journal of the backup in progress.
+     * @param deltaStore Backs up large files as deltas.
+     * @param changeJournal The changed plugin files, or null for full backups.
+     * @param backupLookup Finds which backups exist.
+     */
+    public BackupPlugins(SettingsSnapshot settings, Strings strings, BackupJournal journal, DeltaStore deltaStore,
+            PluginChangeJournal changeJournal, DeltaStore.BackupLookup backupLookup) {
         this.strings = strings;
+        this.journal = journal;
+        this.deltaStore = deltaStore;
+        this.backupLookup = backupLookup;
 
         // Get the backup destination.
-        backupPath = settings.getStringProperty("backuppath", "backups");
+        backupPath = settings.getBackupPath();
 
         // Get backup properties.
-        shouldZIP = settings.getBooleanProperty("zipbackup", true);
-        splitBackup = settings.getBooleanProperty("splitbackup", false);
-        useTemp = settings.getBooleanProperty("usetemp", true);
+        shouldZIP = settings.isZipBackup();
+        splitBackup = settings.isSplitBackup();
+        useTemp = settings.isUsingTemp();
         pluginListMode = settings.getBooleanProperty("pluginlistmode", true);
+        packPlugins = settings.getBooleanProperty("packplugins", false);
         pluginList = Arrays.asList(settings.getStringProperty("pluginlist", "").split(";"));
+        this.changeJournal = packPlugins ? null : changeJournal;
+
+        // Every backup in a chain must outlast the newest one, as with deltas.
+        // With a size limit, the backups in a chain are kept instead.
+        int chain = Math.max(0, settings.getIntProperty("incrementalmaxchain", 10));
+        long backupLimit = settings.getBackupLimit();
+        if (!settings.isSizeLimit() && backupLimit > 0) {
+            chain = (int) Math.min(chain, backupLimit - 1);
+        }
+        this.maxChain = chain;
 
         // The FileFilter instance for skipped/enabled plugins.
         pluginsFileFilter = new FileFilter() {
@@ -65,9 +105,16 @@ public class BackupPlugins {
             }
         };
 
+        // Large files backed up as deltas are left out of the plain copy.
+        copyFileFilter = new FileFilter() {
+            public boolean accept(File name) {
+                return pluginsFileFilter.accept(name) && !BackupPlugins.this.deltaStore.handles(name);
+            }
+        };
+
         // Generate the worldStore.
         if (useTemp) {
-            String tempFolder = settings.getStringProperty("tempfoldername", "");
+            String tempFolder = settings.getTempFolderName();
             if (!tempFolder.equals("")) { // Absolute.
                 tempDestination = tempFolder.concat(FILE_SEPARATOR);
             } else { // Relative.
@@ -78,6 +125,26 @@ public class BackupPlugins {
         }
     }
 
+    /**
+     * Add the plugins folder to the planned work. An incremental backup only
+     * counts the files the change journal has seen change, so the folder is
+     * not walked.
+     *
+     * @param progress The progress to plan in.
+     */
+    public void planSources(BackupProgress progress) {
+        File pluginsFolder = new File("plugins");
+        List<String> chain = (changeJournal != null && !packPlugins) ? changeJournal.getChain() : null;
+        Set<String> changes = (chain != null && !chain.isEmpty() && chain.size() <= maxChain) ? changeJournal.getChanges() : null;
+        if (changes == null) {
+            progress.planSource(pluginsFolder, null);
+            return;
+        }
+        for (String path : changes) {
+            progress.planFile(new File(pluginsFolder, path));
+        }
+    }
+
     // The actual backup should be done here.
     public void doPlugins(String backupName) throws IOException {
         // Setup Source and destination DIR's.
@@ -92,7 +159,6 @@ public class BackupPlugins {
         } else {
             thisTempDestination = tempDestination.concat(backupName).concat(FILE_SEPARATOR).concat("plugins");
         }
-        FileUtils.checkFolderAndCreate(new File(thisTempDestination));
 
         // Perform plugin backup.
         if (pluginList.size() > 0 &&  pluginList.get(0).length() != 0) {
@@ -101,21 +167,163 @@ public class BackupPlugins {
             } else {
                 LogUtils.sendLog(strings.getString("enabledplugins"));
             }
-            LogUtils.sendLog(pluginList.toString());
+            LogUtils.sendLog("%s", pluginList);
         }
-        FileUtils.copyDirectory(pluginsFolder, new File(thisTempDestination), pluginsFileFilter, true);
 
+        // Pack the whole tree into one file, rather than copying file by file.
+        if (packPlugins) {
+            // Split backups get the pack as their archive, otherwise it goes in the backup.
+            File packFile = new File(thisTempDestination.concat(PackUtils.PACK_EXTENSION));
+            int packedFiles = PackUtils.packDir(pluginsFolder, packFile, pluginsFileFilter);
+            LogUtils.sendDebug("Packed %d plugin files into %s (M:0023)", packedFiles, packFile);
+
+            if (splitBackup) {
+                journal.recordArchive(packFile.getPath());
+            }
+            journal.recordPlugins();
+            return;
+        }
+
+        // Only the files changed since the last backup are needed, if there is a chain to build on.
+        Set<String> changes = (changeJournal != null) ? changeJournal.capture() : null;
+        List<String> chain = (changes != null) ? getUsableChain() : null;
+
+        FileUtils.checkFolderAndCreate(new File(thisTempDestination));
+        if (chain != null) {
+            copyChanged(pluginsFolder, new File(thisTempDestination), changes, chain, backupName);
+        } else {
+            FileUtils.copyDirectory(pluginsFolder, new File(thisTempDestination), copyFileFilter, true);
+            backupDeltas(pluginsFolder, new File(thisTempDestination), backupName);
+        }
         // Check if ZIP is required.
         if (splitBackup && shouldZIP) {
             String destination = backupPath.concat(FILE_SEPARATOR).concat("plugins").concat(FILE_SEPARATOR).concat(backupName);
             try {
                 if (useTemp) {
                     FileUtils.zipDir(thisTempDestination, destination);
+                    journal.recordArchive(destination);
                     FileUtils.deleteDirectory(new File(thisTempDestination));
                     new File(thisTempDestination).delete();
                 }
             } catch (IOException e) {
                 LogUtils.exceptionLog(e);
+                BackupProgress.errorOccurred();
+                return; // Not checkpointed, so a resumed backup tries again.
+            }
+        }
+
+        // The plugins can now be restored from this backup, and those it builds on. If not, the changes are kept.
+        if (changeJournal != null) {
+            List<String> newChain = new ArrayList<String>((chain != null) ? chain : Collections.<String>emptyList());
+            newChain.add(backupName);
+            changeJournal.recordBackup(newChain);
+        }
+
+        // Checkpoint the plugins.
+        journal.recordPlugins();
+    }
+
+    /**
+     * Copy only the files which changed since the last backup, from the
+     * change journal, without walking the plugins folder. Files which were
+     * removed are listed in "deleted.txt".
+     *
+     * @param pluginsFolder The plugins folder.
+     * @param destDir The folder to copy to.
+     * @param changes The paths of the changed files.
+     * @param chain The backups this one builds on.
+     * @param backupName The name of the backup.
+     * @throws IOException If a file cannot be backed up.
+     */
+    private void copyChanged(File pluginsFolder, File destDir, Set<String> changes, List<String> chain, String backupName) throws IOException {
+        List<String> paths = new ArrayList<String>(changes);
+        Collections.sort(paths);
+        List<String> deleted = new ArrayList<String>();
+        for (String path : paths) {
+            File source = new File(pluginsFolder, path.replace('/', File.separatorChar));
+            if (!pluginsFileFilter.accept(source) || source.isDirectory()) {
+                continue;
+            }
+            File destination = new File(destDir, path.replace('/', File.separatorChar));
+            try {
+                if (!source.exists()) {
+                    deleted.add(path);
+                } else if (deltaStore.handles(source)) {
+                    deltaStore.backup(source, destination, backupName);
+                } else {
+                    FileUtils.copyFile(source, destination);
+                }
+            } catch (IOException ioe) {
+                if (source.exists()) {
+                    throw ioe;
+                }
+                deleted.add(path); // Removed while being copied.
+            }
+        }
+        LogUtils.sendDebug("Copied %d changed plugin files, %d removed. (M:0033)", paths.size() - deleted.size(), deleted.size());
+
+        BufferedWriter out = new BufferedWriter(new FileWriter(new File(destDir, "incremental.txt")));
+        try {
+            out.write("Incremental backup of the plugins, holding only the files changed since the backups below.");
+            out.newLine();
+            out.write("To restore, copy each of them over the one before, in order, then this one, and remove the files in deleted.txt:");
+            out.newLine();
+            for (String chainBackup : chain) {
+                out.write(chainBackup);
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+        if (!deleted.isEmpty()) {
+            out = new BufferedWriter(new FileWriter(new File(destDir, "deleted.txt")));
+            try {
+                for (String path : deleted) {
+                    out.write(path);
+                    out.newLine();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @return The backups an incremental plugin backup can build on, or null
+     * if it needs a full backup.
+     */
+    private List<String> getUsableChain() {
+        List<String> chain = changeJournal.getChain();
+        if (chain.isEmpty() || chain.size() > maxChain) { // The full backup, and as many incremental ones as allowed.
+            return null;
+        }
+        for (String backupName : chain) {
+            if (!backupLookup.exists(backupName)) {
+                LogUtils.sendDebug("Backup %s is gone, making a full plugin backup. (M:0033)", backupName);
+                return null;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Back up the files left out of the copy, as deltas where possible.
+     *
+     * @param sourceDir The folder to look in.
+     * @param destDir The folder its copy is in.
+     * @param backupName The name of the backup.
+     * @throws IOException If a file cannot be backed up.
+     */
+    private void backupDeltas(File sourceDir, File destDir, String backupName) throws IOException {
+        File[] files = sourceDir.listFiles(pluginsFileFilter);
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                backupDeltas(file, new File(destDir, file.getName()), backupName);
+            } else if (deltaStore.handles(file)) {
+                deltaStore.backup(file, new File(destDir, file.getName()), backupName);
             }
         }
     }
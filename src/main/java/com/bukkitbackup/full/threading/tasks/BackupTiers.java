@@ -0,0 +1,159 @@
+package com.bukkitbackup.full.threading.tasks;
+
+import com.bukkitbackup.full.config.BackupTier;
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.utils.FileUtils;
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import org.bukkit.Server;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Backs up one tier: the player files of each world, the rest of each world,
+ * or both. The backup is laid out like a normal one, so restoring it over a
+ * normal backup puts each file in its place.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class BackupTiers {
+
+    private final Server pluginServer;
+    private final String worldContainer;
+    private final String tempDestination;
+    private final boolean shouldZIP;
+    private final boolean useTemp;
+    private final SnapshotWorlds snapshotWorlds;
+
+    /**
+     * @param server The server.
+     * @param settings The settings.
+     * @param tempDestination The folder backups are copied into first.
+     * @param snapshotWorlds The snapshot engine, for tiers which use it.
+     */
+    public BackupTiers(Server server, SettingsSnapshot settings, String tempDestination, SnapshotWorlds snapshotWorlds) {
+        this.pluginServer = server;
+        this.worldContainer = server.getWorldContainer().getName();
+        this.tempDestination = tempDestination;
+        this.shouldZIP = settings.isZipBackup();
+        this.useTemp = settings.isUsingTemp();
+        this.snapshotWorlds = snapshotWorlds;
+    }
+
+    /**
+     * Back up a tier, into its own folder.
+     *
+     * @param backupName The name of the backup.
+     * @param tier The tier.
+     * @param worldFolders The folders of the worlds to back up.
+     * @return The path written, without any archive extension.
+     * @throws IOException If the backup fails.
+     */
+    public String doTier(String backupName, BackupTier tier, List<File> worldFolders) throws IOException {
+        String finalDestination = tier.getPath().concat(FILE_SEPARATOR).concat(backupName);
+        FileUtils.checkFolderAndCreate(new File(tier.getPath()));
+
+        // Without a temp folder or ZIP, the copy is the backup.
+        String copyRoot = (useTemp || shouldZIP) ? tempDestination.concat(backupName) : finalDestination;
+
+        for (File worldFolder : worldFolders) {
+            BackupJob.checkCancelled();
+            String worldName = worldFolder.getName();
+
+            // The same place as in a normal backup.
+            String copyDestination = copyRoot.concat(FILE_SEPARATOR).concat(worldName);
+            if (!worldContainer.equals(".")) {
+                copyDestination = copyRoot.concat(FILE_SEPARATOR).concat(worldContainer).concat(FILE_SEPARATOR).concat(worldName);
+            }
+            File destination = new File(copyDestination);
+            FileUtils.checkFolderAndCreate(destination);
+
+            if (tier.hasRegions()) {
+                copyRegions(tier, worldFolder, destination);
+            } else {
+                copyPlayers(worldFolder, destination);
+            }
+        }
+        writeTierNote(copyRoot, tier);
+
+        // Tiers are never split, so are one archive in the folder of the tier.
+        if (!FileUtils.doCopyAndZIP(copyRoot, finalDestination, shouldZIP, useTemp)) {
+            throw new IOException("Failed to write " + finalDestination);
+        }
+        return finalDestination;
+    }
+
+    /**
+     * Copy the world, without the player files unless the tier has them.
+     */
+    private void copyRegions(BackupTier tier, final File worldFolder, File destination) throws IOException {
+        final boolean withPlayers = tier.hasPlayers();
+        FileFilter filter = new FileFilter() {
+            public boolean accept(File file) {
+                return withPlayers || !(file.getParentFile().equals(worldFolder) && BackupTier.isPlayerFile(file.getName()));
+            }
+        };
+        if (tier.isSnapshot() && snapshotWorlds != null) {
+            snapshotWorlds.copyWorld(pluginServer.getWorld(worldFolder.getName()), worldFolder, destination, filter);
+        } else {
+            FileUtils.copyDirectory(worldFolder, destination, filter, true);
+        }
+    }
+
+    private void copyPlayers(File worldFolder, File destination) throws IOException {
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+        for (String playerFile : BackupTier.PLAYER_FILES) {
+            File source = new File(worldFolder, playerFile);
+            if (source.isDirectory()) {
+                FileUtils.copyDirectory(source, new File(destination, playerFile), null, true);
+            } else if (source.isFile()) {
+                FileUtils.copyFile(source, new File(destination, playerFile));
+            }
+        }
+    }
+
+    /**
+     * Say what the backup holds, for anyone restoring it by hand.
+     */
+    private void writeTierNote(String copyRoot, BackupTier tier) throws IOException {
+        FileUtils.checkFolderAndCreate(new File(copyRoot));
+        BufferedWriter out = new BufferedWriter(new FileWriter(copyRoot.concat(FILE_SEPARATOR).concat("tier.txt")));
+        try {
+            out.write("Tier backup '" + tier.getName() + "', holding only the " + tier.getContent() + " of each world.");
+            out.newLine();
+            out.write("Restore it over the newest full backup before it, or use the merge restore tool.");
+            out.newLine();
+        } finally {
+            out.close();
+        }
+        LogUtils.sendDebug("Copied the %s of each world for tier %s. (M:0036)", tier.getContent(), tier.getName());
+    }
+
+    /**
+     * Work out how much data a tier will read, for progress reporting.
+     *
+     * @param progress The progress of the job.
+     * @param tier The tier.
+     * @param worldFolders The folders of the worlds to back up.
+     */
+    public void planSources(BackupProgress progress, BackupTier tier, List<File> worldFolders) {
+        for (File worldFolder : worldFolders) {
+            if (tier.hasRegions()) {
+                progress.planSource(worldFolder, null);
+            } else {
+                for (String playerFile : BackupTier.PLAYER_FILES) {
+                    progress.planSource(new File(worldFolder, playerFile), null);
+                }
+            }
+        }
+    }
+}
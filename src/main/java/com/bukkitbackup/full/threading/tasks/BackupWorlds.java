@@ -1,17 +1,28 @@
 package com.bukkitbackup.full.threading.tasks;
 
-import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.SettingsSnapshot;
 import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.delta.DeltaStore;
+import com.bukkitbackup.full.events.DirtyRegionTracker;
+import com.bukkitbackup.full.threading.BackupJournal;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.threading.MemoryStaging;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.RegionBitmap;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.bukkit.Server;
 import org.bukkit.World;
 
@@ -23,8 +34,12 @@ import org.bukkit.World;
  */
 public class BackupWorlds {
 
+    // Small folders which change all the time, held in memory even for big worlds.
+    private static final String[] PLAYER_FOLDERS = {"playerdata", "stats", "advancements"};
+    private static final Pattern REGION_NAME = Pattern.compile("^r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.mca$");
+
     private final Server pluginServer;
-    private final Settings settings;
+    private final SettingsSnapshot settings;
     private final Strings strings;
     private final String worldContainer;
     private final String backupPath;
@@ -34,6 +49,11 @@ public class BackupWorlds {
     private final String tempDestination;
     private final List<String> ignoredWorlds;
     private final boolean backupSeeds;
+    private final BackupJournal journal;
+    private final SnapshotWorlds snapshotWorlds;
+    private final DirtyRegionTracker regionTracker;
+    private final DeltaStore.BackupLookup backupLookup;
+    private final int maxChain;
 
     /**
      * This should be the place where all the settings and paths for the backup
@@ -42,11 +62,29 @@ public class BackupWorlds {
      * @param server Server.
      * @param settings Settings.
      * @param strings Strings.
+     * @param journal Journal of the backup in progress.
+     * @param snapshotWorlds The snapshot engine, or null to copy from disk.
+     * @param regionTracker The changed regions, or null for full backups.
+     * @param backupLookup Finds which backups exist.
      */
-    public BackupWorlds(Server server, final Settings settings, Strings strings) {
+    public BackupWorlds(Server server, final SettingsSnapshot settings, Strings strings, BackupJournal journal, SnapshotWorlds snapshotWorlds,
+            DirtyRegionTracker regionTracker, DeltaStore.BackupLookup backupLookup) {
         this.pluginServer = server;
         this.settings = settings;
         this.strings = strings;
+        this.journal = journal;
+        this.snapshotWorlds = snapshotWorlds;
+        this.regionTracker = regionTracker;
+        this.backupLookup = backupLookup;
+
+        // Every backup in a chain must outlast the newest one, as with deltas.
+        // With a size limit, the backups in a chain are kept instead.
+        int chain = Math.max(0, settings.getIntProperty("incrementalmaxchain", 10));
+        long backupLimit = settings.getBackupLimit();
+        if (!settings.isSizeLimit() && backupLimit > 0) {
+            chain = (int) Math.min(chain, backupLimit - 1);
+        }
+        this.maxChain = chain;
 
         // Create list of worlds we need to backup.
         ignoredWorlds = getIgnoredWorldNames();
@@ -55,15 +93,15 @@ public class BackupWorlds {
         worldContainer = pluginServer.getWorldContainer().getName();
 
         // Get backup properties.
-        backupPath = settings.getStringProperty("backuppath", "backups");
-        shouldZIP = settings.getBooleanProperty("zipbackup", true);
-        splitBackup = settings.getBooleanProperty("splitbackup", false);
-        useTemp = settings.getBooleanProperty("usetemp", true);
+        backupPath = settings.getBackupPath();
+        shouldZIP = settings.isZipBackup();
+        splitBackup = settings.isSplitBackup();
+        useTemp = settings.isUsingTemp();
         backupSeeds = settings.getBooleanProperty("backupworldseed", true);
 
         // Generate the worldStore.
         if (useTemp) {
-            String tempFolder = settings.getStringProperty("tempfoldername", "");
+            String tempFolder = settings.getTempFolderName();
             if (!tempFolder.equals("")) { // Absolute.
                 tempDestination = tempFolder.concat(FILE_SEPARATOR);
             } else { // Relative.
@@ -87,6 +125,22 @@ public class BackupWorlds {
         while (!worldsToBackup.isEmpty()) {
             String currentWorldName = worldsToBackup.removeFirst();
 
+            // Already completed before an interruption.
+            if (journal.isWorldDone(currentWorldName)) {
+                LogUtils.sendDebug("World already backed up, resuming: %s (M:0022)", currentWorldName);
+                continue;
+            }
+
+            // Only the changed regions are needed, if there is a chain to build on.
+            List<String> chain = getUsableChain(currentWorldName);
+            RegionBitmap changedRegions = (chain != null) ? regionTracker.getCaptured(currentWorldName) : null;
+
+            // Set if the world is in memory, rather than the temp folder.
+            boolean heldInMemory = false;
+
+            // Cleared if the archive of a split backup was not written, so nothing may build on it.
+            boolean archived = true;
+
             // Get the current worlds seed.
             String worldSeed = String.valueOf(pluginServer.getWorld(currentWorldName).getSeed());
 
@@ -132,11 +186,15 @@ public class BackupWorlds {
                 }
 
                 // Copy the current world into it's backup folder.
-                FileUtils.copyDirectory(worldContainer.concat(FILE_SEPARATOR).concat(currentWorldName), thisWorldBackupFolder.concat(FILE_SEPARATOR).concat(currentWorldName));
+                copyWorld(currentWorldName, worldContainer.concat(FILE_SEPARATOR).concat(currentWorldName), thisWorldBackupFolder.concat(FILE_SEPARATOR).concat(currentWorldName), chain, changedRegions);
 
                 // Check and ZIP folder.
                 if (useTemp || shouldZIP) {
-                    FileUtils.doCopyAndZIP(thisWorldBackupFolder, thisWorldBackupPath.concat(FILE_SEPARATOR).concat(backupName), shouldZIP, useTemp);
+                    String archivePath = thisWorldBackupPath.concat(FILE_SEPARATOR).concat(backupName);
+                    archived = FileUtils.doCopyAndZIP(thisWorldBackupFolder, archivePath, shouldZIP, useTemp);
+                    if (archived) {
+                        journal.recordArchive(archivePath);
+                    }
                 }
 
             } else { // Not a split backup.
@@ -166,9 +224,174 @@ public class BackupWorlds {
                 }
 
                 // Copy the current world into it's backup folder.
-                FileUtils.copyDirectory(pluginServer.getWorldContainer().getAbsolutePath().concat(FILE_SEPARATOR).concat(currentWorldName), copyDestination);
+                heldInMemory = copyWorld(currentWorldName, pluginServer.getWorldContainer().getAbsolutePath().concat(FILE_SEPARATOR).concat(currentWorldName), copyDestination, chain, changedRegions);
+            }
+
+            // The world can now be restored from this backup, and those it builds on. If not, its regions stay dirty.
+            if (regionTracker != null && archived) {
+                List<String> newChain = new ArrayList<String>((changedRegions != null) ? chain : Collections.<String>emptyList());
+                newChain.add(backupName);
+                regionTracker.recordWorld(currentWorldName, newChain);
+            }
+
+            // Checkpoint this world, unless it would be lost from memory by a crash before the ZIP, or has none.
+            if (archived && !heldInMemory) {
+                journal.recordWorld(currentWorldName);
+            }
+        }
+    }
+
+    /**
+     * Copy a world folder, using the snapshot engine if it is enabled.
+     *
+     * @param worldName The name of the world.
+     * @param source The world folder.
+     * @param destination Where to copy it to.
+     * @param chain The backups an incremental copy builds on.
+     * @param changedRegions The regions changed since the last backup in the
+     * chain, or null for a full copy.
+     * @return True if any of the world is held in memory, not in the
+     * destination, until it is zipped.
+     * @throws IOException If the copy fails.
+     */
+    private boolean copyWorld(String worldName, String source, String destination, List<String> chain, RegionBitmap changedRegions) throws IOException {
+        if (snapshotWorlds != null) {
+            snapshotWorlds.copyWorld(pluginServer.getWorld(worldName), new File(source), new File(destination));
+            return false;
+        } else if (changedRegions == null) {
+            return stageOrCopy(new File(source), new File(destination), null);
+        } else if (changedRegions.isEmpty()) {
+            LogUtils.sendDebug("World unchanged since %s, not copied: %s (M:0032)", chain.get(chain.size() - 1), worldName);
+            writeIncrementalNote(worldName, destination, chain);
+            return false;
+        } else {
+            LogUtils.sendDebug("Copying %d changed regions of %s. (M:0032)", changedRegions.size(), worldName);
+            writeIncrementalNote(worldName, destination, chain);
+            return stageOrCopy(new File(source), new File(destination), changedRegionsFilter(pluginServer.getWorld(worldName), new File(source), changedRegions));
+        }
+    }
+
+    /**
+     * Hold a world in memory until it is zipped, if it fits, otherwise copy
+     * it. A world too big to hold may still have its player data held.
+     *
+     * @param source The world folder.
+     * @param destination Where to copy it to.
+     * @param filter Which files to take, or null for all.
+     * @return True if any of the world is held in memory.
+     * @throws IOException If the copy fails.
+     */
+    private boolean stageOrCopy(File source, File destination, final FileFilter filter) throws IOException {
+        if (MemoryStaging.stage(source, destination, filter)) {
+            return true;
+        }
+        final List<File> heldFolders = new ArrayList<File>();
+        for (String folderName : PLAYER_FOLDERS) {
+            File folder = new File(source, folderName);
+            if (folder.isDirectory() && MemoryStaging.stage(folder, new File(destination, folderName), filter)) {
+                heldFolders.add(folder);
+            }
+        }
+        FileUtils.copyDirectory(source, destination, new FileFilter() {
+            public boolean accept(File file) {
+                return (filter == null || filter.accept(file)) && !heldFolders.contains(file);
+            }
+        }, true);
+        return !heldFolders.isEmpty();
+    }
+
+    /**
+     * Leaves out the region files which have not changed. Region files in
+     * other region folders are left over from before the world had its own
+     * folder for the dimension, so are left out too.
+     */
+    private FileFilter changedRegionsFilter(World world, File source, final RegionBitmap changedRegions) {
+        final File liveFolder = new File(source, DirtyRegionTracker.getRegionPath(world.getEnvironment()));
+        return new FileFilter() {
+            public boolean accept(File file) {
+                Matcher matcher = REGION_NAME.matcher(file.getName());
+                if (!matcher.matches() || !file.getParentFile().getName().equals("region")) {
+                    return true;
+                }
+                return file.getParentFile().equals(liveFolder)
+                        && changedRegions.contains(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+            }
+        };
+    }
+
+    private void writeIncrementalNote(String worldName, String destination, List<String> chain) throws IOException {
+        FileUtils.checkFolderAndCreate(new File(destination));
+        BufferedWriter out = new BufferedWriter(new FileWriter(destination.concat(FILE_SEPARATOR).concat("incremental.txt")));
+        try {
+            out.write("Incremental backup of '" + worldName + "', holding only the regions changed since the backups below.");
+            out.newLine();
+            out.write("To restore, copy each of them over the one before, in order, then this one:");
+            out.newLine();
+            for (String backupName : chain) {
+                out.write(backupName);
+                out.newLine();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param worldName The name of a world.
+     * @return The backups an incremental backup of the world can build on,
+     * or null if it needs a full backup.
+     */
+    private List<String> getUsableChain(String worldName) {
+        if (regionTracker == null || snapshotWorlds != null) {
+            return null;
+        }
+        List<String> chain = regionTracker.getChain(worldName);
+        if (chain.isEmpty() || chain.size() > maxChain) { // The full backup, and as many incremental ones as allowed.
+            return null;
+        }
+        for (String backupName : chain) {
+            if (!backupLookup.exists(backupName)) {
+                LogUtils.sendDebug("Backup %s is gone, making a full backup of %s. (M:0032)", backupName, worldName);
+                return null;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Add the worlds to the planned work. A world backed up incrementally
+     * only counts its captured regions, so its region folders are not walked.
+     *
+     * @param progress The progress to plan in.
+     */
+    public void planSources(BackupProgress progress) {
+        for (String worldName : getWorldsToBackup()) {
+            File worldFolder = new File(pluginServer.getWorldContainer(), worldName);
+            RegionBitmap changedRegions = (regionTracker != null && snapshotWorlds == null) ? regionTracker.getCaptured(worldName) : null;
+            List<String> chain = (changedRegions != null) ? regionTracker.getChain(worldName) : null;
+            if (chain == null || chain.isEmpty() || chain.size() > maxChain) {
+                progress.planSource(worldFolder, null);
+                continue;
             }
+            progress.planSource(worldFolder, "region");
+            File liveFolder = new File(worldFolder, DirtyRegionTracker.getRegionPath(pluginServer.getWorld(worldName).getEnvironment()));
+            for (int[] region : changedRegions.getRegions()) {
+                progress.planFile(new File(liveFolder, "r." + region[0] + "." + region[1] + ".mca"));
+            }
+        }
+    }
+
+    /**
+     * The folders of the worlds which will be backed up.
+     *
+     * @return The world folders.
+     */
+    public List<File> getWorldFolders() {
+        List<File> worldFolders = new ArrayList<File>();
+        for (String worldName : getWorldsToBackup()) {
+            worldFolders.add(new File(pluginServer.getWorldContainer(), worldName));
         }
+        return worldFolders;
     }
 
     /**
@@ -184,7 +407,7 @@ public class BackupWorlds {
         if (worldNames.size() > 0 && (worldNames.get(0) != null)) {
             // Log what worlds are disabled.
             LogUtils.sendLog(strings.getString("disabledworlds"));
-            LogUtils.sendLog(worldNames.toString());
+            LogUtils.sendLog("%s", worldNames);
         }
 
         // Return the world names.
@@ -0,0 +1,259 @@
+package com.bukkitbackup.full.threading.tasks;
+
+import com.bukkitbackup.full.BackupFull;
+import com.bukkitbackup.full.archive.ArchiveCodec;
+import com.bukkitbackup.full.archive.ArchiveFormat;
+import com.bukkitbackup.full.catalog.BackupCatalog;
+import com.bukkitbackup.full.catalog.CatalogEntry;
+import com.bukkitbackup.full.catalog.MergeRestore;
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.crypto.ArchiveKey;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Rebuilds an incremental backup as a synthetic full one, from the full
+ * backup before it and every backup in between, so it no longer needs them.
+ * Only the backups are read, never the live worlds.
+ *
+ * Old backups are removed oldest first, which would leave the incremental
+ * backups after a removed full one with nothing to build on. The oldest
+ * backup which will be kept is made full first, so every backup left can
+ * still be restored, and from fewer archives.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ConsolidateBackups {
+
+    // The rebuilt backup, and the one it replaces, while they are swapped.
+    private static final String MERGED_SUFFIX = ".new";
+    private static final String REPLACED_SUFFIX = ".old";
+
+    private final String worldContainer;
+    private final boolean splitBackup;
+    private final long backupLimit;
+    private final boolean sizeLimit;
+    private final ArchiveKey archiveKey;
+
+    /**
+     * @param settings The settings.
+     * @param worldContainer The name of the world container.
+     * @param archiveKey The key, to read encrypted backups, or null.
+     */
+    public ConsolidateBackups(SettingsSnapshot settings, String worldContainer, ArchiveKey archiveKey) {
+        this.worldContainer = worldContainer;
+        this.splitBackup = settings.isSplitBackup();
+        this.backupLimit = settings.getBackupLimit();
+        this.sizeLimit = settings.isSizeLimit();
+        this.archiveKey = archiveKey;
+    }
+
+    /**
+     * @param backupRoot A folder laid out like "backuppath".
+     * @return The folders in it which each hold one backup after another,
+     * as old backups are removed from.
+     */
+    public List<File> getBackupFolders(File backupRoot) {
+        if (!splitBackup) {
+            return Collections.singletonList(backupRoot);
+        }
+        List<File> folders = new ArrayList<File>();
+        File worldsRoot = worldContainer.equals(".") ? backupRoot : new File(backupRoot, worldContainer);
+        File[] worldFolders = FileUtils.listItemsInDir(worldsRoot);
+        for (File worldFolder : (worldFolders != null) ? worldFolders : new File[0]) {
+            if (worldFolder.isDirectory()) {
+                folders.add(worldFolder);
+            }
+        }
+        File pluginsFolder = new File(backupRoot, "plugins");
+        if (pluginsFolder.isDirectory() && !folders.contains(pluginsFolder)) {
+            folders.add(pluginsFolder);
+        }
+        return folders;
+    }
+
+    /**
+     * Make the oldest backup in a folder which the backup limit keeps into a
+     * full one, if it builds on backups which would be removed.
+     *
+     * @param folder A folder holding one backup after another.
+     * @param ahead True to leave room for the next backup, so it is done
+     * before that backup removes anything.
+     * @param progress The progress to plan the rebuild in, or null if it is
+     * part of a backup.
+     * @return The number of backups rebuilt.
+     * @throws IOException If a backup cannot be read or written.
+     */
+    public int consolidate(File folder, boolean ahead, BackupProgress progress) throws IOException {
+        if (backupLimit <= 0 || !folder.isDirectory()) {
+            return 0;
+        }
+        removeLeftovers(folder);
+
+        // A rebuilt backup is bigger, which can move the oldest kept one on.
+        int rebuilt = 0;
+        List<File> backups = listBackups(folder);
+        for (int attempts = 0; attempts < backups.size(); attempts++) {
+            int oldestKept = findOldestKept(backups, ahead);
+            if (oldestKept <= 0 || !MergeRestore.buildsOnEarlier(backups.get(oldestKept), archiveKey)) {
+                break;
+            }
+
+            // Back to a backup holding everything.
+            int base = oldestKept - 1;
+            while (base >= 0 && MergeRestore.buildsOnEarlier(backups.get(base), archiveKey)) {
+                base--;
+            }
+            if (base < 0) {
+                LogUtils.sendDebug("No full backup before %s to rebuild it from. (M:0038)", backups.get(oldestKept));
+                break;
+            }
+            rebuild(backups, base, oldestKept, progress);
+            rebuilt++;
+            backups = listBackups(folder);
+        }
+        return rebuilt;
+    }
+
+    /**
+     * @return The index of the oldest backup the limit keeps, oldest first.
+     */
+    private int findOldestKept(List<File> backups, boolean ahead) {
+        if (!sizeLimit) {
+            long kept = ahead ? backupLimit - 1 : backupLimit;
+            return (kept <= 0) ? -1 : (int) Math.max(0L, backups.size() - kept);
+        }
+
+        // Newest first, as far as fits. The next backup is taken to be as big as the newest.
+        long total = (ahead && !backups.isEmpty()) ? sizeOf(backups.get(backups.size() - 1)) : 0L;
+        int oldestKept = backups.size();
+        while (oldestKept > 0) {
+            total += sizeOf(backups.get(oldestKept - 1));
+            if (total > backupLimit && oldestKept < backups.size()) {
+                break;
+            }
+            oldestKept--;
+        }
+        return oldestKept;
+    }
+
+    /**
+     * Restore the backups from the full one up to the target into one, and
+     * put it in place of the target, keeping its name, date and archive
+     * codec.
+     */
+    private void rebuild(List<File> backups, int base, int target, BackupProgress progress) throws IOException {
+        File backup = backups.get(target);
+        long started = System.currentTimeMillis();
+        ArchiveCodec codec = ArchiveCodec.forFile(backup);
+        boolean zipped = codec != null;
+        String extension = zipped ? codec.getExtension() : "";
+        String stem = backup.getPath().substring(0, backup.getPath().length() - extension.length());
+        File merged = new File(stem.concat(MERGED_SUFFIX));
+        File mergedZip = new File(stem.concat(MERGED_SUFFIX).concat(extension));
+        File replaced = new File(stem.concat(REPLACED_SUFFIX).concat(extension));
+
+        if (progress != null) {
+            for (int i = base; i <= target; i++) {
+                progress.planSource(backups.get(i), null);
+            }
+            progress.startPasses(zipped ? 2 : 1);
+        }
+
+        long lastModified = backup.lastModified();
+        try {
+            BackupProgress.enter(BackupProgress.Phase.COPYING);
+            FileUtils.checkFolderAndCreate(merged);
+            for (int i = base; i <= target; i++) {
+                BackupJob.checkCancelled();
+                MergeRestore.restorePart(backups.get(i), merged, archiveKey);
+            }
+            MergeRestore.removeNotes(merged);
+            if (zipped) {
+                ArchiveFormat format = BackupJob.currentFormat();
+                FileUtils.zipDir(merged.getPath(), mergedZip.getPath(), "", new ArchiveFormat(codec, format.getLevel(), format.getThreads()));
+                FileUtils.deleteDir(merged);
+            }
+            BackupJob.checkCancelled();
+
+            // Swap it in, so the backup is never missing.
+            File built = zipped ? mergedZip : merged;
+            if (!backup.renameTo(replaced) || !built.renameTo(backup)) {
+                replaced.renameTo(backup);
+                throw new IOException("Could not put the rebuilt backup in place of " + backup.getPath());
+            }
+            backup.setLastModified(lastModified);
+            FileUtils.deleteDir(replaced);
+        } finally {
+            FileUtils.deleteDir(merged);
+            FileUtils.deleteDir(mergedZip);
+        }
+        markCatalog(backup);
+        LogUtils.sendDebug("Rebuilt %s as a full backup from %d backup(s), in %d ms. (M:0038)",
+                backup, target - base + 1, System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Note in the catalog that the backup no longer needs those before it.
+     */
+    private void markCatalog(File backup) {
+        BackupCatalog catalog = BackupFull.backupCatalog;
+        String name = ArchiveCodec.stripExtension(backup.getName());
+        CatalogEntry entry = (catalog != null) ? catalog.get(name) : null;
+        if (entry != null) {
+            catalog.add(entry.withAttribute("synthetic", "true"));
+        }
+    }
+
+    /**
+     * Remove what was left by a rebuild which never finished. The backup it
+     * was rebuilding is still there, or was only just renamed.
+     */
+    private void removeLeftovers(File folder) {
+        File[] children = FileUtils.listItemsInDir(folder);
+        for (File child : (children != null) ? children : new File[0]) {
+            String name = ArchiveCodec.stripExtension(child.getName());
+            if (name.endsWith(REPLACED_SUFFIX)) {
+                File original = new File(folder, name.substring(0, name.length() - REPLACED_SUFFIX.length()) + child.getName().substring(name.length()));
+                if (!original.exists() && child.renameTo(original)) {
+                    continue;
+                }
+                FileUtils.deleteDir(child);
+            } else if (name.endsWith(MERGED_SUFFIX)) {
+                LogUtils.sendDebug("Removing unfinished rebuild: %s (M:0038)", child);
+                FileUtils.deleteDir(child);
+            }
+        }
+    }
+
+    /**
+     * @return The backups in a folder, oldest first, as old backups are
+     * removed.
+     */
+    private static List<File> listBackups(File folder) {
+        File[] children = FileUtils.listItemsInDir(folder);
+        List<File> backups = new ArrayList<File>(Arrays.asList((children != null) ? children : new File[0]));
+        Collections.sort(backups, new Comparator<File>() {
+            public int compare(File first, File second) {
+                return (first.lastModified() < second.lastModified()) ? -1 : ((first.lastModified() == second.lastModified()) ? 0 : 1);
+            }
+        });
+        return backups;
+    }
+
+    private static long sizeOf(File backup) {
+        return backup.isDirectory() ? FileUtils.getTotalFolderSize(backup) : backup.length();
+    }
+}
@@ -0,0 +1,246 @@
+package com.bukkitbackup.full.threading.tasks;
+
+import com.bukkitbackup.full.archive.ArchiveCodec;
+import com.bukkitbackup.full.archive.ArchiveEntry;
+import com.bukkitbackup.full.archive.ArchiveFormat;
+import com.bukkitbackup.full.archive.ArchiveInputStream;
+import com.bukkitbackup.full.archive.ArchiveOutputStream;
+import com.bukkitbackup.full.catalog.BackupCatalog;
+import com.bukkitbackup.full.catalog.CatalogEntry;
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.crypto.ArchiveEncryption;
+import com.bukkitbackup.full.crypto.ArchiveKey;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupMirrors;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.PackUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Moves backups older than "coldafter" hours from "backuppath" to the cold
+ * directory, "coldpath", recompressing their archives harder, and in
+ * "coldformat", on the way. Fresh backups can then be written quickly to a
+ * fast disk, and kept small on a slow one once they are unlikely to be
+ * restored.
+ *
+ * Backups are found through the catalog, which is updated to follow each one
+ * to its new place. A backup is only removed from "backuppath" once all of it
+ * is in the cold directory.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class MigrateBackups {
+
+    // What a part is written as, until all of the backup has been moved.
+    private static final String MOVING_SUFFIX = ".moving";
+
+    private final File backupRoot;
+    private final File coldRoot;
+    private final long coldAfterMillis;
+    private final ArchiveKey archiveKey;
+
+    /**
+     * @param settings The settings.
+     * @param backupPath The folder backups are written to.
+     * @param archiveKey The key, to read encrypted backups, or null.
+     */
+    public MigrateBackups(SettingsSnapshot settings, String backupPath, ArchiveKey archiveKey) {
+        this.backupRoot = new File(backupPath);
+        this.coldRoot = new File(settings.getColdPath());
+        this.coldAfterMillis = TimeUnit.HOURS.toMillis(Math.max(0, settings.getIntProperty("coldafter", 72)));
+        this.archiveKey = archiveKey;
+    }
+
+    /**
+     * @return The cold directory.
+     */
+    public File getColdFolder() {
+        return coldRoot;
+    }
+
+    /**
+     * Move every backup old enough to the cold directory.
+     *
+     * @param catalog The catalog of backups.
+     * @param encrypting True if archives written by this job are encrypted.
+     * @param progress The progress to plan the moves in.
+     * @return The number of backups moved.
+     * @throws IOException If a backup cannot be read or written.
+     */
+    public int migrate(BackupCatalog catalog, boolean encrypting, BackupProgress progress) throws IOException {
+        List<CatalogEntry> aged = findAged(catalog);
+        for (CatalogEntry entry : aged) {
+            for (File part : entry.getParts()) {
+                progress.planSource(part, null);
+            }
+        }
+        progress.startPasses(1);
+
+        BackupProgress.enter(BackupProgress.Phase.ZIPPING);
+        for (CatalogEntry entry : aged) {
+            BackupJob.checkCancelled();
+            migrate(catalog, entry, encrypting);
+        }
+        return aged.size();
+    }
+
+    /**
+     * @return The whole backups in "backuppath" older than "coldafter",
+     * oldest first. Tier, partial and striped backups have their own places.
+     */
+    private List<CatalogEntry> findAged(BackupCatalog catalog) throws IOException {
+        List<CatalogEntry> aged = new ArrayList<CatalogEntry>();
+        long oldestHot = System.currentTimeMillis() - coldAfterMillis;
+        for (CatalogEntry entry : catalog.getEntries()) {
+            if (entry.getCreatedAt() > oldestHot || entry.getParts().isEmpty() || entry.isIncomplete() || entry.isStriped()
+                    || entry.getAttribute("tier") != null || entry.getAttribute("partial") != null || entry.getAttribute("cold") != null) {
+                continue;
+            }
+            boolean hot = true;
+            for (File part : entry.getParts()) {
+                hot &= getRelativePath(part) != null;
+            }
+            if (hot) {
+                aged.add(entry);
+            }
+        }
+        return aged;
+    }
+
+    /**
+     * Move one backup, then point its catalog entry at the cold copy before
+     * the original is removed, so it is never missing.
+     */
+    private void migrate(BackupCatalog catalog, CatalogEntry entry, boolean encrypting) throws IOException {
+        long started = System.currentTimeMillis();
+
+        // An encrypted archive can only be rewritten as one, so otherwise it is moved as it is.
+        boolean recompress = (entry.getAttribute("encrypted") != null) == encrypting;
+        List<File> moved = new ArrayList<File>();
+        boolean finished = false;
+        try {
+            for (File part : entry.getParts()) {
+                moved.add(migratePart(part, recompress));
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                for (File part : moved) {
+                    FileUtils.deleteDir(part);
+                }
+            }
+        }
+
+        catalog.add(entry.withParts(moved).withAttribute("cold", "true"));
+        for (File part : entry.getParts()) {
+            FileUtils.deleteDir(part);
+        }
+        LogUtils.sendDebug("Moved %s to %s, in %d ms. (M:0039)", entry, coldRoot, System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Move one part of a backup to the same place under the cold directory.
+     * Archives are rewritten in the cold format, and folders become archives.
+     *
+     * @return The part in the cold directory.
+     */
+    private File migratePart(File part, boolean recompress) throws IOException {
+        String relativePath = getRelativePath(part);
+        ArchiveFormat format = BackupJob.currentFormat();
+        ArchiveCodec codec = ArchiveCodec.forFile(part);
+        boolean archiveFolder = recompress && part.isDirectory();
+        boolean rewrite = recompress && codec != null && !part.isDirectory();
+        if (archiveFolder) {
+            relativePath = relativePath.concat(format.getExtension());
+        } else if (rewrite) {
+            relativePath = ArchiveCodec.stripExtension(relativePath).concat(format.getExtension());
+        }
+        File target = new File(coldRoot, relativePath);
+        File moving = new File(target.getPath().concat(MOVING_SUFFIX));
+        FileUtils.deleteDir(moving); // From a move which never finished.
+        FileUtils.checkFolderAndCreate(target.getParentFile());
+
+        if (archiveFolder) {
+            // Named as an archive while written, as the archive writer expects.
+            File movingArchive = new File(moving.getPath().concat(format.getExtension()));
+            try {
+                FileUtils.zipDir(part.getPath(), movingArchive.getPath(), "", format);
+                if (!movingArchive.renameTo(moving)) {
+                    throw new IOException("Could not rename " + movingArchive.getPath());
+                }
+            } finally {
+                FileUtils.deleteDir(movingArchive);
+            }
+        } else if (rewrite) {
+            recompress(part, codec, moving, format);
+        } else if (part.isDirectory()) {
+            FileUtils.copyDirectory(part, moving, null, true);
+        } else {
+            FileUtils.copyFile(part, moving);
+        }
+        BackupJob.checkCancelled();
+
+        FileUtils.deleteDir(target); // From a move which was not recorded.
+        if (!moving.renameTo(target)) {
+            FileUtils.deleteDir(moving);
+            throw new IOException("Could not put " + target.getPath() + " in place.");
+        }
+        target.setLastModified(part.lastModified());
+        return target;
+    }
+
+    /**
+     * Copy every entry of an archive into a new one, in the cold format.
+     * Packs are already compressed, so they are only stored.
+     */
+    private void recompress(File archive, ArchiveCodec codec, File target, ArchiveFormat format) throws IOException {
+        InputStream in = ArchiveEncryption.openArchive(archive, archiveKey);
+        try {
+            ArchiveInputStream ais = codec.openReader(in);
+            ArchiveOutputStream aos = format.open(BackupMirrors.openZip(target));
+            try {
+                byte[] buffer = new byte[FileUtils.BUFFER_SIZE];
+                ArchiveEntry entry;
+                while ((entry = ais.getNextEntry()) != null) {
+                    BackupJob.checkCancelled();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    boolean isPack = entry.getName().endsWith(PackUtils.PACK_EXTENSION);
+                    aos.putNextEntry(entry.getName(), entry.getTime(), -1L, !isPack);
+                    int bytesIn;
+                    while ((bytesIn = ais.read(buffer)) != -1) {
+                        aos.write(buffer, 0, bytesIn);
+                        BackupProgress.addBytes(bytesIn);
+                    }
+                    aos.closeEntry();
+                    BackupProgress.addFile();
+                }
+            } finally {
+                aos.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The path of a part under "backuppath", or null if it is not in
+     * it.
+     */
+    private String getRelativePath(File part) throws IOException {
+        String rootPath = backupRoot.getCanonicalPath().concat(File.separator);
+        String partPath = part.getCanonicalPath();
+        return partPath.startsWith(rootPath) ? partPath.substring(rootPath.length()) : null;
+    }
+}
@@ -0,0 +1,482 @@
+package com.bukkitbackup.full.threading.tasks;
+
+import com.bukkitbackup.full.config.SettingsSnapshot;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupProgress;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.NBTUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The "snapshot" world engine. Instead of saving the world and copying its
+ * region files, loaded chunks are captured with {@link ChunkSnapshot}s a few
+ * at a time on the main thread, and written into the backup's region files
+ * on the backup thread. Chunks which are not loaded are read from the region
+ * files on disk, and each one is checked, as the server may be writing it.
+ *
+ * Bukkit cannot snapshot entities or block inventories, so for loaded chunks
+ * these are kept from the chunk as it was last saved, with blocks and light
+ * from the snapshot.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class SnapshotWorlds {
+
+    private static final int SECTOR_BYTES = 4096;
+    private static final int REGION_CHUNKS = 1024;
+    private static final int MAX_CHUNK_SECTORS = 255;
+    private static final int READ_ATTEMPTS = 3;
+    private static final byte COMPRESSION_GZIP = 1;
+    private static final byte COMPRESSION_ZLIB = 2;
+    private static final Pattern REGION_NAME = Pattern.compile("^r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.mca$");
+
+    private final Plugin plugin;
+    private final Server pluginServer;
+    private final Strings strings;
+    private final int batchSize;
+
+    public SnapshotWorlds(Plugin plugin, SettingsSnapshot settings, Strings strings) {
+        this.plugin = plugin;
+        this.pluginServer = plugin.getServer();
+        this.strings = strings;
+        this.batchSize = Math.max(1, settings.getIntProperty("snapshotbatch", 32));
+    }
+
+    /**
+     * Copy a world into the backup, taking loaded chunks from snapshots.
+     *
+     * @param world The world being backed up.
+     * @param source The world folder.
+     * @param destination The folder to copy it to.
+     * @throws IOException If the copy fails.
+     */
+    public void copyWorld(World world, File source, File destination) throws IOException {
+        copyWorld(world, source, destination, null);
+    }
+
+    /**
+     * Copy a world into the backup, taking loaded chunks from snapshots, and
+     * leaving out some of the other files.
+     *
+     * @param world The world being backed up.
+     * @param source The world folder.
+     * @param destination The folder to copy it to.
+     * @param filter Which files other than regions to copy, or null for all.
+     * @throws IOException If the copy fails.
+     */
+    public void copyWorld(World world, File source, File destination, final FileFilter filter) throws IOException {
+        // Capture loaded chunks first, so chunks unloaded meanwhile are saved to disk.
+        Map<Long, byte[]> snapshots = takeSnapshots(world);
+
+        // Everything but the region files is copied as it is.
+        FileUtils.copyDirectory(source, destination, new FileFilter() {
+            public boolean accept(File file) {
+                return !isRegionFile(file) && (filter == null || filter.accept(file));
+            }
+        }, true);
+
+        // The region folder of the world itself gets the snapshots.
+        String liveFolder = getRegionFolder(world.getEnvironment());
+        String[] regionFolders = {"region", "DIM-1" + File.separator + "region", "DIM1" + File.separator + "region"};
+        for (String regionFolder : regionFolders) {
+            Map<Long, byte[]> folderSnapshots = regionFolder.equals(liveFolder) ? snapshots : new HashMap<Long, byte[]>();
+            File sourceFolder = new File(source, regionFolder);
+            if (sourceFolder.isDirectory() || !folderSnapshots.isEmpty()) {
+                rewriteRegions(sourceFolder, new File(destination, regionFolder), folderSnapshots);
+            }
+        }
+    }
+
+    private static String getRegionFolder(World.Environment environment) {
+        if (environment == World.Environment.NETHER) {
+            return "DIM-1" + File.separator + "region";
+        } else if (environment == World.Environment.THE_END) {
+            return "DIM1" + File.separator + "region";
+        }
+        return "region";
+    }
+
+    private static boolean isRegionFile(File file) {
+        return file.isFile() && file.getParentFile().getName().equals("region") && REGION_NAME.matcher(file.getName()).matches();
+    }
+
+    /**
+     * Capture every loaded chunk of a world. Snapshots are taken in batches of
+     * "snapshotbatch" per tick on the main thread, and serialized here as
+     * they arrive.
+     *
+     * @param world The world.
+     * @return The serialized blocks and light of each chunk, by chunk key.
+     * @throws IOException If waiting is interrupted.
+     */
+    private Map<Long, byte[]> takeSnapshots(final World world) throws IOException {
+        final Map<Long, byte[]> snapshots = new HashMap<Long, byte[]>();
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+
+        // While disabling we are on the main thread, and cannot schedule.
+        if (pluginServer.isPrimaryThread()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                ChunkSnapshot snapshot = chunk.getChunkSnapshot(true, false, false);
+                snapshots.put(chunkKey(snapshot.getX(), snapshot.getZ()), serializeSnapshot(snapshot));
+            }
+            return snapshots;
+        }
+
+        final BlockingQueue<ChunkSnapshot> captured = new ArrayBlockingQueue<ChunkSnapshot>(batchSize * 4);
+        final BackupProgress progress = BackupProgress.current();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        BukkitTask captureTask = pluginServer.getScheduler().runTaskTimer(plugin, new Runnable() {
+            private Chunk[] chunks = null;
+            private int next = 0;
+
+            public void run() {
+                long startedAt = System.currentTimeMillis();
+                if (chunks == null) {
+                    chunks = world.getLoadedChunks();
+                }
+
+                // Only as many as there is room for, so memory stays bounded.
+                int taken = 0;
+                while (next < chunks.length && taken < batchSize && captured.remainingCapacity() > 0) {
+                    Chunk chunk = chunks[next++];
+                    if (chunk.isLoaded()) {
+                        captured.add(chunk.getChunkSnapshot(true, false, false));
+                        taken++;
+                    }
+                }
+                if (next >= chunks.length) {
+                    done.set(true);
+                }
+                if (progress != null) {
+                    progress.addMainThreadMillis(System.currentTimeMillis() - startedAt);
+                }
+            }
+        }, 0L, 1L);
+
+        try {
+            while (true) {
+                BackupJob.checkCancelled();
+                ChunkSnapshot snapshot = captured.poll(100L, TimeUnit.MILLISECONDS);
+                if (snapshot != null) {
+                    snapshots.put(chunkKey(snapshot.getX(), snapshot.getZ()), serializeSnapshot(snapshot));
+                } else if (done.get() && captured.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while taking chunk snapshots.", ie);
+        } finally {
+            captureTask.cancel();
+        }
+
+        LogUtils.sendDebug("Captured %d chunk snapshots of %s (M:0026)", snapshots.size(), world.getName());
+        return snapshots;
+    }
+
+    /**
+     * Write the blocks, light and height map of a snapshot, in the layout of
+     * a chunk's "Sections" and "HeightMap" tags, compressed.
+     */
+    private static byte[] serializeSnapshot(ChunkSnapshot snapshot) throws IOException {
+        NBTUtils.TagList sections = new NBTUtils.TagList(NBTUtils.TAG_COMPOUND);
+        for (int sectionY = 0; sectionY < 16; sectionY++) {
+            if (snapshot.isSectionEmpty(sectionY)) {
+                continue;
+            }
+            byte[] blocks = new byte[4096];
+            byte[] add = null;
+            byte[] data = new byte[2048];
+            byte[] blockLight = new byte[2048];
+            byte[] skyLight = new byte[2048];
+            for (int y = 0; y < 16; y++) {
+                int worldY = (sectionY << 4) | y;
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        int index = (y << 8) | (z << 4) | x;
+                        int id = snapshot.getBlockTypeId(x, worldY, z);
+                        blocks[index] = (byte) id;
+                        if (id > 255) {
+                            if (add == null) {
+                                add = new byte[2048];
+                            }
+                            setNibble(add, index, id >> 8);
+                        }
+                        setNibble(data, index, snapshot.getBlockData(x, worldY, z));
+                        setNibble(blockLight, index, snapshot.getBlockEmittedLight(x, worldY, z));
+                        setNibble(skyLight, index, snapshot.getBlockSkyLight(x, worldY, z));
+                    }
+                }
+            }
+            Map<String, Object> section = new LinkedHashMap<String, Object>();
+            section.put("Y", (byte) sectionY);
+            section.put("Blocks", blocks);
+            if (add != null) {
+                section.put("Add", add);
+            }
+            section.put("Data", data);
+            section.put("BlockLight", blockLight);
+            section.put("SkyLight", skyLight);
+            sections.add(section);
+        }
+
+        int[] heightMap = new int[256];
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                heightMap[(z << 4) | x] = snapshot.getHighestBlockYAt(x, z);
+            }
+        }
+
+        Map<String, Object> fragment = new LinkedHashMap<String, Object>();
+        fragment.put("Sections", sections);
+        fragment.put("HeightMap", heightMap);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)));
+        NBTUtils.writeRoot(out, fragment);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void setNibble(byte[] nibbles, int index, int value) {
+        int shift = (index & 1) << 2;
+        nibbles[index >> 1] = (byte) ((nibbles[index >> 1] & ~(0xF << shift)) | ((value & 0xF) << shift));
+    }
+
+    /**
+     * Write the region files of a folder into the backup, with the snapshot
+     * chunks in place of those on disk.
+     */
+    private void rewriteRegions(File sourceFolder, File destinationFolder, Map<Long, byte[]> snapshots) throws IOException {
+        FileUtils.checkFolderAndCreate(destinationFolder);
+
+        // Every region on disk, and any only in the snapshots.
+        Map<Long, File> regions = new LinkedHashMap<Long, File>();
+        File[] regionFiles = sourceFolder.listFiles();
+        if (regionFiles != null) {
+            for (File regionFile : regionFiles) {
+                Matcher name = REGION_NAME.matcher(regionFile.getName());
+                if (name.matches()) {
+                    regions.put(chunkKey(Integer.parseInt(name.group(1)), Integer.parseInt(name.group(2))), regionFile);
+                }
+            }
+        }
+        for (Long key : snapshots.keySet()) {
+            long regionKey = chunkKey(chunkX(key) >> 5, chunkZ(key) >> 5);
+            if (!regions.containsKey(regionKey)) {
+                regions.put(regionKey, new File(sourceFolder, "r." + chunkX(regionKey) + "." + chunkZ(regionKey) + ".mca"));
+            }
+        }
+
+        for (Map.Entry<Long, File> region : regions.entrySet()) {
+            BackupJob.checkCancelled();
+            File destination = new File(destinationFolder, region.getValue().getName());
+            rewriteRegion(region.getValue(), destination, chunkX(region.getKey()), chunkZ(region.getKey()), snapshots);
+            BackupProgress.addFile();
+        }
+    }
+
+    private void rewriteRegion(File source, File destination, int regionX, int regionZ, Map<Long, byte[]> snapshots) throws IOException {
+        RandomAccessFile in = source.exists() ? new RandomAccessFile(source, "r") : null;
+        RandomAccessFile out = new RandomAccessFile(destination, "rw");
+        try {
+            out.setLength(0L);
+            int[] locations = new int[REGION_CHUNKS];
+            int[] timestamps = new int[REGION_CHUNKS];
+            int nextSector = 2;
+            out.seek(2L * SECTOR_BYTES);
+
+            for (int index = 0; index < REGION_CHUNKS; index++) {
+                int chunkX = (regionX << 5) + (index & 31);
+                int chunkZ = (regionZ << 5) + (index >> 5);
+                byte[] snapshot = snapshots.get(chunkKey(chunkX, chunkZ));
+                byte[] chunk = (in != null) ? readChunk(in, index, timestamps, source) : null;
+
+                if (snapshot != null) {
+                    byte[] merged = mergeChunk(chunk, snapshot, chunkX, chunkZ);
+                    if (4 + merged.length <= MAX_CHUNK_SECTORS * SECTOR_BYTES) {
+                        chunk = merged;
+                        timestamps[index] = (int) (System.currentTimeMillis() / 1000L);
+                    }
+                }
+                if (chunk == null) {
+                    continue;
+                }
+
+                // Each chunk is its length, then its data, padded to whole sectors.
+                int sectors = (4 + chunk.length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+                out.writeInt(chunk.length);
+                out.write(chunk);
+                out.write(new byte[sectors * SECTOR_BYTES - 4 - chunk.length]);
+                locations[index] = (nextSector << 8) | sectors;
+                nextSector += sectors;
+            }
+
+            out.seek(0L);
+            for (int location : locations) {
+                out.writeInt(location);
+            }
+            for (int timestamp : timestamps) {
+                out.writeInt(timestamp);
+            }
+        } finally {
+            out.close();
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Read a chunk from a live region file. A chunk which does not decompress
+     * was being written, and is read again.
+     *
+     * @return The chunk, as its compression type then data, or null if none.
+     */
+    private byte[] readChunk(RandomAccessFile in, int index, int[] timestamps, File source) throws IOException {
+        for (int attempt = 1; attempt <= READ_ATTEMPTS; attempt++) {
+            if (in.length() < 2L * SECTOR_BYTES) {
+                return null;
+            }
+            in.seek(index * 4L);
+            int location = in.readInt();
+            in.seek(SECTOR_BYTES + index * 4L);
+            int timestamp = in.readInt();
+            if (location == 0) {
+                return null;
+            }
+
+            long offset = (long) (location >>> 8) * SECTOR_BYTES;
+            int sectors = location & 0xFF;
+            if (offset + 5L <= in.length()) {
+                in.seek(offset);
+                int length = in.readInt();
+                if (length > 1 && length <= sectors * SECTOR_BYTES - 4 && offset + 4L + length <= in.length()) {
+                    byte[] chunk = new byte[length];
+                    in.readFully(chunk);
+                    if (isReadable(chunk)) {
+                        timestamps[index] = timestamp;
+                        BackupProgress.addBytes(length);
+                        return chunk;
+                    }
+                }
+            }
+
+            // Give the server a moment to finish writing it.
+            try {
+                Thread.sleep(50L * attempt);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + source, ie);
+            }
+        }
+
+        LogUtils.sendLog(strings.getString("snapshotbadchunk", source.getPath()));
+        BackupProgress.errorOccurred();
+        return null;
+    }
+
+    private static boolean isReadable(byte[] chunk) {
+        try {
+            InputStream data = decompress(chunk);
+            byte[] sink = new byte[8192];
+            while (data.read(sink) != -1) {
+                // Only checking it decompresses.
+            }
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private static InputStream decompress(byte[] chunk) throws IOException {
+        ByteArrayInputStream data = new ByteArrayInputStream(chunk, 1, chunk.length - 1);
+        if (chunk[0] == COMPRESSION_GZIP) {
+            return new GZIPInputStream(data);
+        } else if (chunk[0] == COMPRESSION_ZLIB) {
+            return new InflaterInputStream(data);
+        }
+        throw new IOException("Unknown chunk compression: " + chunk[0]);
+    }
+
+    /**
+     * Put the blocks and light of a snapshot into a chunk, keeping everything
+     * else from the chunk on disk. If there is none, a minimal chunk is made.
+     */
+    private static byte[] mergeChunk(byte[] diskChunk, byte[] snapshot, int chunkX, int chunkZ) throws IOException {
+        Map<String, Object> root = null;
+        if (diskChunk != null) {
+            root = NBTUtils.readRoot(new DataInputStream(decompress(diskChunk)));
+        }
+        Map<String, Object> level = (root != null) ? NBTUtils.getCompound(root, "Level") : null;
+        if (level == null) {
+            root = new LinkedHashMap<String, Object>();
+            level = new LinkedHashMap<String, Object>();
+            level.put("xPos", chunkX);
+            level.put("zPos", chunkZ);
+            level.put("LastUpdate", 0L);
+            level.put("LightPopulated", (byte) 1);
+            level.put("TerrainPopulated", (byte) 1);
+            level.put("V", (byte) 1);
+            level.put("InhabitedTime", 0L);
+            level.put("Entities", new NBTUtils.TagList(NBTUtils.TAG_COMPOUND));
+            level.put("TileEntities", new NBTUtils.TagList(NBTUtils.TAG_COMPOUND));
+            root.put("Level", level);
+        }
+
+        Map<String, Object> fragment = NBTUtils.readRoot(new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(snapshot))));
+        level.put("Sections", fragment.get("Sections"));
+        level.put("HeightMap", fragment.get("HeightMap"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(COMPRESSION_ZLIB);
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        NBTUtils.writeRoot(out, root);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static long chunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static int chunkX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int chunkZ(long key) {
+        return (int) key;
+    }
+}
@@ -18,15 +18,23 @@
  */
 package com.bukkitbackup.full.utils;
 
+import com.bukkitbackup.full.archive.ArchiveCodec;
+import com.bukkitbackup.full.archive.ArchiveFormat;
+import com.bukkitbackup.full.archive.ArchiveInputStream;
+import com.bukkitbackup.full.archive.ArchiveOutputStream;
+import com.bukkitbackup.full.crypto.ArchiveEncryption;
+import com.bukkitbackup.full.crypto.ArchiveKey;
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupMirrors;
+import com.bukkitbackup.full.threading.BackupProgress;
 import com.bukkitbackup.full.threading.BackupTask;
+import com.bukkitbackup.full.threading.MemoryStaging;
 import java.io.*;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * General file manipulation utilities.
@@ -208,6 +216,8 @@ public class FileUtils {
             throw new IOException("Source '" + srcDir + "' and destination '" + destDir + "' are the same");
         }
 
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+
         // Cater for destination being directory within the source directory (see IO-141)
         List<String> exclusionList = null;
         if (destDir.getCanonicalPath().startsWith(srcDir.getCanonicalPath())) {
@@ -256,12 +266,14 @@ public class FileUtils {
             throw new IOException("Destination '" + destDir + "' cannot be written to");
         }
         for (File file : files) {
+            BackupJob.checkCancelled();
             File copiedFile = new File(destDir, file.getName());
             if (exclusionList == null || !exclusionList.contains(file.getCanonicalPath())) {
                 if (file.isDirectory()) {
                     doCopyDirectory(file, copiedFile, filter, preserveFileDate, exclusionList);
                 } else {
                     doCopyFile(file, copiedFile, preserveFileDate);
+                    BackupProgress.addFile();
                 }
             }
         }
@@ -272,6 +284,49 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Copies a file to a new location preserving the file date, creating the
+     * parent directories of the destination if needed. The copy is streamed,
+     * so it is also written to any mirrors of the backup.
+     *
+     * @param srcFile an existing file to copy, must not be <code>null</code>
+     * @param destFile the new file, must not be <code>null</code>
+     * @throws IOException if the copy fails
+     */
+    public static void copyFile(File srcFile, File destFile) throws IOException {
+        File parent = destFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Destination '" + parent + "' directory cannot be created");
+        }
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+
+        FileInputStream fis = null;
+        OutputStream fos = null;
+        try {
+            fis = new FileInputStream(srcFile);
+            fos = BackupMirrors.open(destFile);
+            byte[] readBuffer = new byte[BUFFER_SIZE * 8];
+            int bytesIn;
+            while ((bytesIn = fis.read(readBuffer)) != -1) {
+                BackupJob.checkCancelled();
+                fos.write(readBuffer, 0, bytesIn);
+                BackupProgress.addBytes(bytesIn);
+            }
+            fos.close();
+            fos = null;
+        } finally {
+            closeQuietly(fos);
+            closeQuietly(fis);
+        }
+
+        if (srcFile.length() != destFile.length()) {
+            throw new IOException("Failed to copy full contents from '"
+                    + srcFile + "' to '" + destFile + "'");
+        }
+        destFile.setLastModified(srcFile.lastModified());
+        BackupProgress.addFile();
+    }
+
     /**
      * Internal copy file method.
      *
@@ -300,8 +355,11 @@ public class FileUtils {
             long pos = 0;
             long count = 0;
             while (pos < size) {
+                BackupJob.checkCancelled();
                 count = (size - pos) > FIFTY_MB ? FIFTY_MB : (size - pos);
-                pos += output.transferFrom(input, pos, count);
+                long transferred = output.transferFrom(input, pos, count);
+                BackupProgress.addBytes(transferred);
+                pos += transferred;
             }
         } finally {
             closeQuietly(output);
@@ -495,15 +553,58 @@ public class FileUtils {
      * @throws IOException
      */
     public static void zipDir(String directory, String zipName) throws IOException {
+        zipDir(directory, zipName, "");
+    }
+
+    /**
+     * Zip up a directory, with every entry under a path prefix. This lets the
+     * parts of a striped backup each extract to their place in one folder.
+     *
+     * @param directory The directory to ZIP.
+     * @param zipName The ZIP file to write.
+     * @param prefix The path to put entries under, empty or ending with a
+     * separator.
+     * @throws IOException
+     */
+    public static void zipDir(String directory, String zipName, String prefix) throws IOException {
+        zipDir(directory, zipName, prefix, BackupJob.currentFormat());
+    }
+
+    /**
+     * Zip up a directory in the archive format given, rather than that of
+     * the backup on this thread.
+     *
+     * @param directory The directory to ZIP.
+     * @param zipName The archive to write, given the extension of the format
+     * if it has not got it.
+     * @param prefix The path to put entries under, empty or ending with a
+     * separator.
+     * @param format The archive format.
+     * @throws IOException
+     */
+    public static void zipDir(String directory, String zipName, String prefix, ArchiveFormat format) throws IOException {
         // Make sure name is correct.
-        if (!zipName.endsWith(".zip")) {
-            zipName += ".zip";
-        }
-        // create a ZipOutputStream to zip the data to
-        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipName));
-        zipDir(directory, zos, "");
-        // close the stream
-        closeQuietly(zos);
+        if (!zipName.endsWith(format.getExtension())) {
+            zipName += format.getExtension();
+        }
+        BackupProgress.enter(BackupProgress.Phase.ZIPPING);
+
+        // create an archive to zip the data to, encrypted if set, and any mirrors
+        OutputStream out = BackupMirrors.openZip(new File(zipName));
+        ArchiveOutputStream zos;
+        try {
+            zos = format.open(out);
+        } catch (IOException ioe) {
+            closeQuietly(out);
+            throw ioe;
+        }
+        try {
+            zipDir(directory, zos, prefix);
+            MemoryStaging.zipStaged(new File(directory), zos, prefix);
+        } finally {
+            // close the stream
+            closeQuietly(zos);
+        }
     }
 
     /**
@@ -514,7 +615,7 @@ public class FileUtils {
      * @param path
      * @throws IOException
      */
-    private static void zipDir(String directory, ZipOutputStream zos, String path) throws IOException {
+    private static void zipDir(String directory, ArchiveOutputStream zos, String path) throws IOException {
         File zipDir = new File(directory);
         // get a listing of the directory content
         String[] dirList = zipDir.list();
@@ -527,14 +628,21 @@ public class FileUtils {
                 zipDir(f.getPath(), zos, path.concat(f.getName()).concat(FILE_SEPARATOR));
                 continue;
             }
+            BackupJob.checkCancelled();
             FileInputStream fis = new FileInputStream(f);
             try {
-                zos.putNextEntry(new ZipEntry(path.concat(f.getName())));
+                // Packs are already compressed, so only store them.
+                boolean isPack = f.getName().endsWith(PackUtils.PACK_EXTENSION);
+                zos.putNextEntry(path.concat(f.getName()), f.lastModified(), f.length(), !isPack);
                 bytesIn = fis.read(readBuffer);
                 while (bytesIn != -1) {
+                    BackupJob.checkCancelled();
                     zos.write(readBuffer, 0, bytesIn);
+                    BackupProgress.addBytes(bytesIn);
                     bytesIn = fis.read(readBuffer);
                 }
+                zos.closeEntry();
+                BackupProgress.addFile();
             } finally {
                 closeQuietly(fis);
             }
@@ -542,6 +650,50 @@ public class FileUtils {
 
     }
 
+    /**
+     * Read every entry of an archive back, which checks each entry's CRC in
+     * a ZIP, or the whole stream's in a gzip. An encrypted archive is
+     * decrypted as it is read, which checks each segment.
+     *
+     * @param zipFile The archive to check, read with the codec of its
+     * extension.
+     * @param key The key from the key file, or null if there is none.
+     * @return True if the whole archive could be read.
+     */
+    public static boolean verifyArchive(File zipFile, ArchiveKey key) {
+        ArchiveCodec codec = ArchiveCodec.forFile(zipFile);
+        ArchiveInputStream zis = null;
+        try {
+            if (codec == null) {
+                throw new IOException("Not an archive.");
+            }
+            InputStream in = ArchiveEncryption.openArchive(zipFile, key);
+            try {
+                zis = codec.openReader(in);
+            } finally {
+                if (zis == null) {
+                    in.close();
+                }
+            }
+            byte[] readBuffer = new byte[BUFFER_SIZE];
+            while (zis.getNextEntry() != null) {
+                int bytesIn = zis.read(readBuffer);
+                while (bytesIn != -1) {
+                    BackupJob.checkCancelled();
+                    BackupProgress.addBytes(bytesIn);
+                    bytesIn = zis.read(readBuffer);
+                }
+                BackupProgress.addFile();
+            }
+            return true;
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to verify archive: " + zipFile);
+            return false;
+        } finally {
+            closeQuietly(zis);
+        }
+    }
+
     public static boolean deleteDir(File dir) {
         if (dir.isDirectory()) {
             String[] children = dir.list();
@@ -592,8 +744,10 @@ public class FileUtils {
      * @param finalDIR The final destination. (ex: "backups/xxxxxxxx")
      * @param shouldZIP
      * @param useTempFolder
+     * @return False if the ZIP or copy failed.
      */
-    public static void doCopyAndZIP(String sourceDIR, String finalDIR, boolean shouldZIP, boolean useTempFolder) {
+    public static boolean doCopyAndZIP(String sourceDIR, String finalDIR, boolean shouldZIP, boolean useTempFolder) {
+        boolean success = true;
 
         if (useTempFolder) {
             if (shouldZIP) {
@@ -601,12 +755,14 @@ public class FileUtils {
                     FileUtils.zipDir(sourceDIR, finalDIR);
                 } catch (IOException ioe) {
                     LogUtils.exceptionLog(ioe, "Failed to ZIP backup: IO Exception.");
+                    success = false;
                 }
             } else {
                 try {
                     FileUtils.copyDirectory(sourceDIR, finalDIR);
                 } catch (IOException ex) {
                     Logger.getLogger(BackupTask.class.getName()).log(Level.SEVERE, null, ex);
+                    success = false;
                 }
 
             }
@@ -623,6 +779,7 @@ public class FileUtils {
                     FileUtils.zipDir(sourceDIR, finalDIR);
                 } catch (IOException ioe) {
                     LogUtils.exceptionLog(ioe, "Failed to ZIP backup: IO Exception.");
+                    success = false;
                 }
                 try {
                     // Delete the original doBackup directory.
@@ -635,6 +792,10 @@ public class FileUtils {
 
         }
 
+        if (!success) {
+            BackupProgress.errorOccurred();
+        }
+        return success;
     }
 
     public static File[] listFilesInDir(File directory) {
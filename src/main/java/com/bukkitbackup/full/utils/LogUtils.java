@@ -1,7 +1,16 @@
 package com.bukkitbackup.full.utils;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Date;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.bukkit.plugin.Plugin;
@@ -9,16 +18,59 @@ import org.bukkit.plugin.Plugin;
 /**
  * Backup - The simple server backup solution.
  *
+ * Messages are put into a fixed ring buffer and written by a single logging
+ * thread, so callers never wait on the console or the debug log. A
+ * pattern and its arguments are put in the ring as they are, and formatted
+ * by the logging thread, along with splitting of ";;" lines and
+ * de-duplication. Array arguments are copied, as the caller may change them
+ * once it carries on; other arguments should not be changed.
+ *
  * @author Samuel98
  * @author info@samuel98.com
  */
 public class LogUtils {
 
+    private static final int RING_SIZE = 1024;
+    private static final int LEVEL_INFO = 0;
+    private static final int LEVEL_DEBUG = 1;
+    private static final int LEVEL_EXCEPTION = 2;
+
     private static Plugin plugin;
     private static Logger logger;
-    private static boolean logToConsole = true;
-    private static String lastMesage;
-    public static boolean debugMode = false;
+    private static String logPrefix = "[Backup] ";
+    private static volatile boolean logToConsole = true;
+    public static volatile boolean debugMode = false;
+
+    // The ring buffer, slots are re-used rather than allocated per message.
+    private static final LogSlot[] ring = new LogSlot[RING_SIZE];
+    private static final ReentrantLock ringLock = new ReentrantLock();
+    private static final Condition ringNotEmpty = ringLock.newCondition();
+    private static int ringHead = 0;
+    private static int ringCount = 0;
+    private static long droppedMessages = 0L;
+    private static Thread logThread;
+    private static volatile boolean running = false;
+
+    // Only touched by the logging thread.
+    private static String lastMessage = "";
+    private static PrintWriter debugLog;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new LogSlot();
+        }
+    }
+
+    /**
+     * One entry in the ring buffer.
+     */
+    private static class LogSlot {
+
+        private int level;
+        private String message;
+        private Object[] args;
+        private Throwable thrown;
+    }
 
     /**
      * Setup the logger class with required settings.
@@ -28,13 +80,16 @@ public class LogUtils {
     public static void initLogUtils(Plugin plugin) {
         LogUtils.plugin = plugin;
         LogUtils.logger = Logger.getLogger(plugin.getServer().getLogger().getName() + "." + plugin.getServer().getName());
-        lastMesage = "";
+        LogUtils.logPrefix = "[".concat(plugin.getDescription().getName()).concat("] ");
+        startLogThread();
     }
 
     /**
      * Finish setting up the LogUtils class.
      *
      * @param logToConsole Whether or not to output to the console.
+     * @param debugMode Whether debug messages are logged, and written to
+     * debug.log.
      */
     public static void finishInitLogUtils(boolean logToConsole, boolean debugMode) {
 
@@ -43,6 +98,34 @@ public class LogUtils {
 
         // Is debugging enabled?
         LogUtils.debugMode = debugMode;
+
+        // Start a fresh debug log for this run, if not already started.
+        if (debugMode) {
+            enqueue(LEVEL_DEBUG, null, null, null);
+        }
+    }
+
+    /**
+     * Drain any waiting messages, and stop the logging thread. Messages sent
+     * after this are written directly.
+     */
+    public static void shutdown() {
+        Thread thread = logThread;
+        running = false;
+        if (thread != null) {
+            ringLock.lock();
+            try {
+                ringNotEmpty.signal();
+            } finally {
+                ringLock.unlock();
+            }
+            try {
+                thread.join(5000L);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            logThread = null;
+        }
     }
 
     /**
@@ -51,33 +134,18 @@ public class LogUtils {
      * @param message The message to be send.
      */
     public static void sendLog(String message) {
+        enqueue(LEVEL_INFO, message, null, null);
+    }
 
-        // Check if this is a split-message.
-        if (message.contains(";;")) {
-
-            // Split the message list.
-            List<String> messageList = Arrays.asList(message.split(";;"));
-
-            // Loop each message in the array.
-            for (int i = 0; i < messageList.size(); i++) {
-
-                String thisMessage = messageList.get(i);
-
-                // Check it should be sent to the console.
-                if (logToConsole && !lastMesage.equals(message)) {
-                    logger.log(Level.INFO, "[".concat(plugin.getDescription().getName()).concat("] ").concat(thisMessage));
-                }
-            }
-        } else {
-
-            // Check it should be sent to the console.
-            if (logToConsole && !lastMesage.equals(message)) {
-                logger.log(Level.INFO, "[".concat(plugin.getDescription().getName()).concat("] ").concat(message));
-            }
-        }
-
-        // Set the last message so they don't duplicate.
-        lastMesage = message;
+    /**
+     * Send a formatted message.
+     *
+     * @param format A String.format pattern. Array arguments are printed
+     * with Arrays.toString.
+     * @param args Arguments for the pattern.
+     */
+    public static void sendLog(String format, Object... args) {
+        enqueue(LEVEL_INFO, format, capture(args), null);
     }
 
     /**
@@ -87,8 +155,7 @@ public class LogUtils {
      * @param message Message to accompany this exception.
      */
     public static void exceptionLog(Throwable ste, String message) {
-        sendLog(message);
-        exceptionLog(ste);
+        enqueue(LEVEL_EXCEPTION, message, null, ste);
     }
 
     /**
@@ -98,7 +165,21 @@ public class LogUtils {
      */
     public static void sendDebug(String message) {
         if (debugMode) {
-            sendLog(message);
+            enqueue(LEVEL_DEBUG, message, null, null);
+        }
+    }
+
+    /**
+     * Send a formatted debug message. Nothing is done with it unless
+     * debugging is enabled.
+     *
+     * @param format A String.format pattern. Array arguments are printed
+     * with Arrays.toString.
+     * @param args Arguments for the pattern.
+     */
+    public static void sendDebug(String format, Object... args) {
+        if (debugMode) {
+            enqueue(LEVEL_DEBUG, format, capture(args), null);
         }
     }
 
@@ -108,7 +189,209 @@ public class LogUtils {
      * @param ste The Stack Trace object.
      */
     public static void exceptionLog(Throwable ste) {
-        sendLog("Please provide following error with support request:");
-        ste.printStackTrace(System.out);
+        enqueue(LEVEL_EXCEPTION, null, null, ste);
+    }
+
+    /**
+     * Put a message in the ring buffer. If the buffer is full the message is
+     * dropped and counted, rather than making the caller wait.
+     *
+     * @param args Arguments to format the message with, or null if it is
+     * not a pattern.
+     */
+    private static void enqueue(int level, String message, Object[] args, Throwable thrown) {
+        if (!running) {
+            write(level, format(message, args), thrown);
+            return;
+        }
+
+        ringLock.lock();
+        try {
+            if (ringCount == RING_SIZE) {
+                droppedMessages++;
+                return;
+            }
+            LogSlot slot = ring[(ringHead + ringCount) % RING_SIZE];
+            slot.level = level;
+            slot.message = message;
+            slot.args = args;
+            slot.thrown = thrown;
+            ringCount++;
+            ringNotEmpty.signal();
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    private static synchronized void startLogThread() {
+        if (logThread != null) {
+            return;
+        }
+        running = true;
+        logThread = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "Backup-Logger");
+        logThread.setDaemon(true);
+        logThread.start();
+    }
+
+    /**
+     * The logging thread, takes messages from the ring and writes them.
+     */
+    private static void drainLoop() {
+        while (true) {
+            int level;
+            String message;
+            Object[] args;
+            Throwable thrown;
+            long dropped;
+            boolean moreWaiting;
+
+            ringLock.lock();
+            try {
+                while (ringCount == 0 && running) {
+                    try {
+                        ringNotEmpty.await();
+                    } catch (InterruptedException ie) {
+                        running = false;
+                    }
+                }
+                if (ringCount == 0) {
+                    break;
+                }
+
+                // Copy out, and clear the slot for re-use.
+                LogSlot slot = ring[ringHead];
+                level = slot.level;
+                message = slot.message;
+                args = slot.args;
+                thrown = slot.thrown;
+                slot.message = null;
+                slot.args = null;
+                slot.thrown = null;
+                ringHead = (ringHead + 1) % RING_SIZE;
+                ringCount--;
+                moreWaiting = ringCount > 0;
+
+                dropped = droppedMessages;
+                droppedMessages = 0L;
+            } finally {
+                ringLock.unlock();
+            }
+
+            if (dropped > 0) {
+                write(LEVEL_INFO, "Dropped " + dropped + " log message(s), the log buffer was full.", null);
+            }
+            write(level, format(message, args), thrown);
+
+            // Only flush the debug log once we have caught up.
+            if (!moreWaiting && debugLog != null) {
+                debugLog.flush();
+            }
+        }
+
+        closeDebugLog();
+    }
+
+    /**
+     * Write one message. Called by the logging thread, or directly when it is
+     * not running.
+     */
+    private static synchronized void write(int level, String message, Throwable thrown) {
+        // A debug entry with no message starts a new debug log.
+        if (level == LEVEL_DEBUG && message == null) {
+            openDebugLog();
+            return;
+        }
+
+        if (message != null) {
+            // Do not repeat the same message over and over.
+            if (!message.equals(lastMessage) || thrown != null) {
+                lastMessage = message;
+                for (String line : message.split(";;")) {
+                    if (logToConsole && logger != null) {
+                        logger.log(Level.INFO, logPrefix.concat(line));
+                    }
+                    writeDebugLog(level, line);
+                }
+            }
+        }
+
+        if (thrown != null) {
+            if (logger != null) {
+                logger.log(Level.SEVERE, logPrefix.concat("Please provide following error with support request:"), thrown);
+            } else {
+                thrown.printStackTrace();
+            }
+            if (debugLog != null) {
+                thrown.printStackTrace(debugLog);
+            }
+        }
+    }
+
+    /**
+     * Copy any array arguments, so they are formatted as they were when the
+     * message was sent.
+     */
+    private static Object[] capture(Object[] args) {
+        Object[] captured = args;
+        for (int i = 0; args != null && i < args.length; i++) {
+            if (args[i] instanceof Object[]) {
+                if (captured == args) {
+                    captured = args.clone();
+                }
+                captured[i] = ((Object[]) args[i]).clone();
+            }
+        }
+        return captured;
+    }
+
+    private static String format(String message, Object[] args) {
+        if (message == null || args == null || args.length == 0) {
+            return message;
+        }
+        Object[] printable = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            printable[i] = (args[i] instanceof Object[]) ? Arrays.toString((Object[]) args[i]) : args[i];
+        }
+        try {
+            return String.format(message, printable);
+        } catch (RuntimeException re) {
+            return message.concat(" ").concat(Arrays.toString(printable));
+        }
+    }
+
+    private static void writeDebugLog(int level, String line) {
+        if (debugLog != null) {
+            debugLog.print(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()));
+            debugLog.print(level == LEVEL_DEBUG ? " [DEBUG] " : " [INFO] ");
+            debugLog.println(line);
+        }
+    }
+
+    private static void openDebugLog() {
+        // Already open, such as after a reload.
+        if (debugLog != null || plugin == null) {
+            return;
+        }
+        try {
+            File debugFile = new File(plugin.getDataFolder(), "debug.log");
+            debugLog = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(debugFile, false), "UTF-8")));
+            debugLog.println("Debug log for " + plugin.getDescription().getFullName() + ", started " + new Date());
+        } catch (IOException ioe) {
+            debugLog = null;
+            if (logger != null) {
+                logger.log(Level.WARNING, logPrefix.concat("Failed to create debug.log."), ioe);
+            }
+        }
+    }
+
+    private static synchronized void closeDebugLog() {
+        if (debugLog != null) {
+            debugLog.close();
+            debugLog = null;
+        }
     }
 }
@@ -0,0 +1,258 @@
+package com.bukkitbackup.full.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Reads and writes the Named Binary Tag format used by Minecraft chunks.
+ * Compounds are read as ordered maps and lists as {@link TagList}, with the
+ * other tags as their boxed Java types, so a chunk can be changed and written
+ * back exactly as it was.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class NBTUtils {
+
+    public static final byte TAG_END = 0;
+    public static final byte TAG_BYTE = 1;
+    public static final byte TAG_SHORT = 2;
+    public static final byte TAG_INT = 3;
+    public static final byte TAG_LONG = 4;
+    public static final byte TAG_FLOAT = 5;
+    public static final byte TAG_DOUBLE = 6;
+    public static final byte TAG_BYTE_ARRAY = 7;
+    public static final byte TAG_STRING = 8;
+    public static final byte TAG_LIST = 9;
+    public static final byte TAG_COMPOUND = 10;
+    public static final byte TAG_INT_ARRAY = 11;
+    public static final byte TAG_LONG_ARRAY = 12;
+
+    // Deeper nesting than this is treated as a corrupt chunk.
+    private static final int MAX_DEPTH = 512;
+
+    /**
+     * A list tag, which keeps its element type even when empty.
+     */
+    public static class TagList extends ArrayList<Object> {
+
+        private static final long serialVersionUID = 1L;
+        private final byte elementType;
+
+        public TagList(byte elementType) {
+            this.elementType = elementType;
+        }
+
+        public byte getElementType() {
+            return elementType;
+        }
+    }
+
+    /**
+     * Read a root compound tag.
+     *
+     * @param in The input, positioned at the root tag.
+     * @return The root compound.
+     * @throws IOException If the data is not a valid compound.
+     */
+    public static Map<String, Object> readRoot(DataInput in) throws IOException {
+        byte type = in.readByte();
+        if (type != TAG_COMPOUND) {
+            throw new IOException("Root tag is not a compound: " + type);
+        }
+        in.readUTF();
+        return readCompound(in, 0);
+    }
+
+    /**
+     * Write a root compound tag, with an empty name.
+     *
+     * @param out The output.
+     * @param root The root compound.
+     * @throws IOException If the output fails, or a value has no tag type.
+     */
+    public static void writeRoot(DataOutput out, Map<String, Object> root) throws IOException {
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("");
+        writeCompound(out, root);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getCompound(Map<String, Object> compound, String name) {
+        Object value = compound.get(name);
+        return (value instanceof Map) ? (Map<String, Object>) value : null;
+    }
+
+    private static Map<String, Object> readCompound(DataInput in, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Tags are nested too deeply.");
+        }
+        Map<String, Object> compound = new LinkedHashMap<String, Object>();
+        byte type;
+        while ((type = in.readByte()) != TAG_END) {
+            String name = in.readUTF();
+            compound.put(name, readPayload(in, type, depth + 1));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(DataInput in, byte type, int depth) throws IOException {
+        switch (type) {
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_BYTE_ARRAY: {
+                byte[] bytes = new byte[checkLength(in.readInt())];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case TAG_STRING:
+                return in.readUTF();
+            case TAG_LIST: {
+                byte elementType = in.readByte();
+                int length = checkLength(in.readInt());
+                TagList list = new TagList(elementType);
+                for (int i = 0; i < length; i++) {
+                    list.add(readPayload(in, elementType, depth + 1));
+                }
+                return list;
+            }
+            case TAG_COMPOUND:
+                return readCompound(in, depth);
+            case TAG_INT_ARRAY: {
+                int[] ints = new int[checkLength(in.readInt())];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            }
+            case TAG_LONG_ARRAY: {
+                long[] longs = new long[checkLength(in.readInt())];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readLong();
+                }
+                return longs;
+            }
+            default:
+                throw new IOException("Unknown tag type: " + type);
+        }
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > 16777216) {
+            throw new IOException("Bad tag length: " + length);
+        }
+        return length;
+    }
+
+    private static void writeCompound(DataOutput out, Map<String, Object> compound) throws IOException {
+        for (Map.Entry<String, Object> entry : compound.entrySet()) {
+            out.writeByte(typeOf(entry.getValue()));
+            out.writeUTF(entry.getKey());
+            writePayload(out, entry.getValue());
+        }
+        out.writeByte(TAG_END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(DataOutput out, Object value) throws IOException {
+        switch (typeOf(value)) {
+            case TAG_BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case TAG_SHORT:
+                out.writeShort((Short) value);
+                break;
+            case TAG_INT:
+                out.writeInt((Integer) value);
+                break;
+            case TAG_LONG:
+                out.writeLong((Long) value);
+                break;
+            case TAG_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case TAG_DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case TAG_BYTE_ARRAY:
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+                break;
+            case TAG_STRING:
+                out.writeUTF((String) value);
+                break;
+            case TAG_LIST: {
+                List<Object> list = (List<Object>) value;
+                byte elementType = (value instanceof TagList) ? ((TagList) value).getElementType()
+                        : (list.isEmpty() ? TAG_END : typeOf(list.get(0)));
+                out.writeByte(elementType);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writePayload(out, element);
+                }
+                break;
+            }
+            case TAG_COMPOUND:
+                writeCompound(out, (Map<String, Object>) value);
+                break;
+            case TAG_INT_ARRAY:
+                out.writeInt(((int[]) value).length);
+                for (int element : (int[]) value) {
+                    out.writeInt(element);
+                }
+                break;
+            default:
+                out.writeInt(((long[]) value).length);
+                for (long element : (long[]) value) {
+                    out.writeLong(element);
+                }
+                break;
+        }
+    }
+
+    private static byte typeOf(Object value) throws IOException {
+        if (value instanceof Byte) {
+            return TAG_BYTE;
+        } else if (value instanceof Short) {
+            return TAG_SHORT;
+        } else if (value instanceof Integer) {
+            return TAG_INT;
+        } else if (value instanceof Long) {
+            return TAG_LONG;
+        } else if (value instanceof Float) {
+            return TAG_FLOAT;
+        } else if (value instanceof Double) {
+            return TAG_DOUBLE;
+        } else if (value instanceof byte[]) {
+            return TAG_BYTE_ARRAY;
+        } else if (value instanceof String) {
+            return TAG_STRING;
+        } else if (value instanceof List) {
+            return TAG_LIST;
+        } else if (value instanceof Map) {
+            return TAG_COMPOUND;
+        } else if (value instanceof int[]) {
+            return TAG_INT_ARRAY;
+        } else if (value instanceof long[]) {
+            return TAG_LONG_ARRAY;
+        }
+        throw new IOException("No tag type for: " + value);
+    }
+}
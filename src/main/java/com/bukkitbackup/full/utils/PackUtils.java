@@ -0,0 +1,384 @@
+package com.bukkitbackup.full.utils;
+
+import com.bukkitbackup.full.threading.BackupJob;
+import com.bukkitbackup.full.threading.BackupMirrors;
+import com.bukkitbackup.full.threading.BackupProgress;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A "pack" container for folders of many small files. The contents of all
+ * files are concatenated into one logical stream, which is cut into solid
+ * blocks and compressed block by block in parallel. A compact index of
+ * (path, modified, size, offset) entries is written at the end of the file.
+ *
+ * Layout: "BPK1", blocks as [raw length][compressed length][data], the
+ * deflated index, then the index position and "BPKI".
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class PackUtils {
+
+    public static final String PACK_EXTENSION = ".bpk";
+    private static final int HEADER_MAGIC = 0x42504B31; // "BPK1"
+    private static final int TRAILER_MAGIC = 0x42504B49; // "BPKI"
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * One file stored in the pack.
+     */
+    private static class PackEntry {
+
+        private final String path;
+        private final long modified;
+        private final long size;
+        private final long offset;
+
+        PackEntry(String path, long modified, long size, long offset) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Pack a directory into a single file.
+     *
+     * @param sourceDir The directory to pack.
+     * @param packFile The pack file to create.
+     * @param filter Filter applied at every level, as with copyDirectory. May
+     * be null.
+     * @return The number of files packed.
+     * @throws IOException If reading or writing fails.
+     */
+    public static int packDir(File sourceDir, File packFile, final FileFilter filter) throws IOException {
+        if (!packFile.getName().endsWith(PACK_EXTENSION)) {
+            packFile = new File(packFile.getPath().concat(PACK_EXTENSION));
+        }
+        FileUtils.checkFolderAndCreate(packFile.getAbsoluteFile().getParentFile());
+
+        final Path root = sourceDir.toPath();
+        final List<PackEntry> entries = new ArrayList<PackEntry>();
+        final List<Path> files = new ArrayList<Path>();
+
+        // One walk gives us the size and date without extra stat calls.
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            private long offset = 0L;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && filter != null && !filter.accept(dir.toFile())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && (filter == null || filter.accept(file.toFile()))) {
+                    String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    entries.add(new PackEntry(relative, attrs.lastModifiedTime().toMillis(), attrs.size(), offset));
+                    files.add(file);
+                    offset += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                LogUtils.sendDebug("Skipping unreadable file: %s (M:0023)", file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        BackupProgress.enter(BackupProgress.Phase.COPYING);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ExecutorService compressors = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        List<long[]> blocks = new ArrayList<long[]>();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(BackupMirrors.open(packFile), FileUtils.BUFFER_SIZE * 8));
+        try {
+            out.writeInt(HEADER_MAGIC);
+            long position = 4L;
+
+            byte[] block = new byte[BLOCK_SIZE];
+            int blockFill = 0;
+
+            for (int i = 0; i < files.size(); i++) {
+                BackupJob.checkCancelled();
+
+                // Read exactly the size we indexed, even if the file changed since.
+                long remaining = entries.get(i).size;
+                InputStream in;
+                try {
+                    in = new FileInputStream(files.get(i).toFile());
+                } catch (FileNotFoundException fnfe) {
+                    // Deleted since the walk, as map tiles often are. It is
+                    // left out of the index, and its bytes padded below.
+                    LogUtils.sendDebug("Skipping file deleted while packing: %s (M:0041)", files.get(i));
+                    entries.set(i, null);
+                    in = null;
+                }
+                try {
+                    while (remaining > 0) {
+                        int read = (in != null) ? in.read(block, blockFill, (int) Math.min(remaining, BLOCK_SIZE - blockFill)) : -1;
+                        if (read == -1) {
+                            // Pad a truncated or deleted file, to keep the offsets valid.
+                            int pad = (int) Math.min(remaining, BLOCK_SIZE - blockFill);
+                            Arrays.fill(block, blockFill, blockFill + pad, (byte) 0);
+                            read = pad;
+                        }
+                        blockFill += read;
+                        remaining -= read;
+                        BackupProgress.addBytes(read);
+
+                        // Hand a full block to the compressors.
+                        if (blockFill == BLOCK_SIZE) {
+                            pending.add(compressors.submit(compressTask(block, blockFill)));
+                            block = new byte[BLOCK_SIZE];
+                            blockFill = 0;
+
+                            // Bound memory use, by writing out completed blocks in order.
+                            while (pending.size() > threads * 2) {
+                                position = writeBlock(out, pending.removeFirst(), blocks, position);
+                            }
+                        }
+                    }
+                } finally {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+                BackupProgress.addFile();
+            }
+            entries.removeAll(Collections.singleton(null));
+            if (blockFill > 0) {
+                pending.add(compressors.submit(compressTask(block, blockFill)));
+            }
+            while (!pending.isEmpty()) {
+                position = writeBlock(out, pending.removeFirst(), blocks, position);
+            }
+
+            // Write the index, then the pointer to it.
+            long indexPosition = position;
+            DataOutputStream index = new DataOutputStream(new DeflaterOutputStream(new NonClosingOutputStream(out)));
+            index.writeInt(entries.size());
+            for (PackEntry entry : entries) {
+                index.writeUTF(entry.path);
+                index.writeLong(entry.modified);
+                index.writeLong(entry.size);
+                index.writeLong(entry.offset);
+            }
+            index.writeInt(blocks.size());
+            for (long[] blockInfo : blocks) {
+                index.writeLong(blockInfo[0]);
+                index.writeInt((int) blockInfo[1]);
+            }
+            index.close();
+            out.writeLong(indexPosition);
+            out.writeInt(TRAILER_MAGIC);
+        } finally {
+            compressors.shutdownNow();
+            out.close();
+        }
+        return entries.size();
+    }
+
+    /**
+     * Extract a pack into a directory, restoring modified dates.
+     *
+     * @param packFile The pack file to read.
+     * @param destDir The directory to extract into.
+     * @return The number of files extracted.
+     * @throws IOException If the pack is corrupt, or cannot be read.
+     */
+    public static int unpack(File packFile, File destDir) throws IOException {
+        RandomAccessFile pack = new RandomAccessFile(packFile, "r");
+        try {
+            // Locate and read the index.
+            pack.seek(pack.length() - 12);
+            long indexPosition = pack.readLong();
+            if (pack.readInt() != TRAILER_MAGIC) {
+                throw new IOException("Not a pack file, or truncated: " + packFile);
+            }
+            byte[] indexBytes = new byte[(int) (pack.length() - 12 - indexPosition)];
+            pack.seek(indexPosition);
+            pack.readFully(indexBytes);
+
+            DataInputStream index = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(indexBytes)));
+            int entryCount = index.readInt();
+            List<PackEntry> entries = new ArrayList<PackEntry>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                entries.add(new PackEntry(index.readUTF(), index.readLong(), index.readLong(), index.readLong()));
+            }
+
+            // Files are in stream order, so blocks are only ever read once.
+            pack.seek(4L);
+            byte[] block = new byte[0];
+            long blockStart = 0L;
+            int blockLength = 0;
+
+            for (PackEntry entry : entries) {
+                File outFile = new File(destDir, entry.path.replace('/', File.separatorChar));
+                FileUtils.checkFolderAndCreate(outFile.getParentFile());
+                FileOutputStream out = new FileOutputStream(outFile);
+                try {
+                    long written = 0L;
+                    while (written < entry.size) {
+                        long streamPosition = entry.offset + written;
+                        while (streamPosition >= blockStart + blockLength) {
+                            blockStart += blockLength;
+                            block = readBlock(pack);
+                            blockLength = block.length;
+                        }
+                        int from = (int) (streamPosition - blockStart);
+                        int count = (int) Math.min(entry.size - written, blockLength - from);
+                        out.write(block, from, count);
+                        written += count;
+                    }
+                } finally {
+                    out.close();
+                }
+                outFile.setLastModified(entry.modified);
+            }
+            return entries.size();
+        } finally {
+            pack.close();
+        }
+    }
+
+    private static Callable<byte[]> compressTask(final byte[] block, final int length) {
+        return new Callable<byte[]>() {
+            public byte[] call() {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(block, 0, length);
+                    deflater.finish();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+                    byte[] buffer = new byte[64 * 1024];
+                    while (!deflater.finished()) {
+                        int count = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, count);
+                    }
+
+                    // Prefix with the raw length, so the reader can size its buffer.
+                    byte[] data = compressed.toByteArray();
+                    byte[] result = new byte[data.length + 4];
+                    result[0] = (byte) (length >>> 24);
+                    result[1] = (byte) (length >>> 16);
+                    result[2] = (byte) (length >>> 8);
+                    result[3] = (byte) length;
+                    System.arraycopy(data, 0, result, 4, data.length);
+                    return result;
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    private static long writeBlock(DataOutputStream out, Future<byte[]> future, List<long[]> blocks, long position) throws IOException {
+        byte[] data;
+        try {
+            data = future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while packing.");
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed to compress block.", ee.getCause());
+        }
+
+        // [raw length][compressed length][data]
+        out.write(data, 0, 4);
+        out.writeInt(data.length - 4);
+        out.write(data, 4, data.length - 4);
+        blocks.add(new long[]{position, data.length - 4});
+        return position + 8 + data.length - 4;
+    }
+
+    private static byte[] readBlock(RandomAccessFile pack) throws IOException {
+        int rawLength = pack.readInt();
+        byte[] compressed = new byte[pack.readInt()];
+        pack.readFully(compressed);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[rawLength];
+            int filled = 0;
+            while (filled < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(raw, filled, rawLength - filled);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated block in pack file.");
+                }
+                filled += count;
+            }
+            if (filled < rawLength) {
+                throw new IOException("Truncated block in pack file.");
+            }
+            return raw;
+        } catch (DataFormatException dfe) {
+            throw new IOException("Corrupt block in pack file.", dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Lets the index be deflated into the main stream without closing it.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
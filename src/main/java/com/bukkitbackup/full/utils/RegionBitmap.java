@@ -0,0 +1,136 @@
+package com.bukkitbackup.full.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A set of region coordinates. Regions are grouped into tiles of 32 by 32,
+ * each held as 1024 bits, so a world only takes space where it has been
+ * touched.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class RegionBitmap {
+
+    private static final int TILE_SHIFT = 5;
+    private static final int TILE_MASK = (1 << TILE_SHIFT) - 1;
+    private static final int TILE_LONGS = (1 << (TILE_SHIFT * 2)) / 64;
+
+    private final Map<Long, long[]> tiles = new HashMap<Long, long[]>();
+
+    private static long tileKey(int regionX, int regionZ) {
+        return ((long) (regionX >> TILE_SHIFT) << 32) | ((regionZ >> TILE_SHIFT) & 0xFFFFFFFFL);
+    }
+
+    private static int bitIndex(int regionX, int regionZ) {
+        return ((regionZ & TILE_MASK) << TILE_SHIFT) | (regionX & TILE_MASK);
+    }
+
+    /**
+     * @return True if the region was not already in the set.
+     */
+    public boolean add(int regionX, int regionZ) {
+        Long key = tileKey(regionX, regionZ);
+        long[] tile = tiles.get(key);
+        if (tile == null) {
+            tile = new long[TILE_LONGS];
+            tiles.put(key, tile);
+        }
+        int bit = bitIndex(regionX, regionZ);
+        long mask = 1L << (bit & 63);
+        if ((tile[bit >> 6] & mask) != 0) {
+            return false;
+        }
+        tile[bit >> 6] |= mask;
+        return true;
+    }
+
+    public boolean contains(int regionX, int regionZ) {
+        long[] tile = tiles.get(tileKey(regionX, regionZ));
+        if (tile == null) {
+            return false;
+        }
+        int bit = bitIndex(regionX, regionZ);
+        return (tile[bit >> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    public void addAll(RegionBitmap other) {
+        for (Map.Entry<Long, long[]> entry : other.tiles.entrySet()) {
+            long[] tile = tiles.get(entry.getKey());
+            if (tile == null) {
+                tiles.put(entry.getKey(), entry.getValue().clone());
+            } else {
+                for (int i = 0; i < TILE_LONGS; i++) {
+                    tile[i] |= entry.getValue()[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The regions in the set, each as its x then z.
+     */
+    public List<int[]> getRegions() {
+        List<int[]> regions = new ArrayList<int[]>();
+        for (Map.Entry<Long, long[]> entry : tiles.entrySet()) {
+            int tileX = (int) (entry.getKey() >> 32);
+            int tileZ = (int) (long) entry.getKey();
+            long[] tile = entry.getValue();
+            for (int bit = 0; bit < TILE_LONGS * 64; bit++) {
+                if ((tile[bit >> 6] & (1L << (bit & 63))) != 0) {
+                    regions.add(new int[]{(tileX << TILE_SHIFT) | (bit & TILE_MASK), (tileZ << TILE_SHIFT) | (bit >> TILE_SHIFT)});
+                }
+            }
+        }
+        return regions;
+    }
+
+    public boolean isEmpty() {
+        return tiles.isEmpty();
+    }
+
+    /**
+     * @return The number of regions in the set.
+     */
+    public int size() {
+        int count = 0;
+        for (long[] tile : tiles.values()) {
+            for (long bits : tile) {
+                count += Long.bitCount(bits);
+            }
+        }
+        return count;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(tiles.size());
+        for (Map.Entry<Long, long[]> entry : tiles.entrySet()) {
+            out.writeLong(entry.getKey());
+            for (long bits : entry.getValue()) {
+                out.writeLong(bits);
+            }
+        }
+    }
+
+    public static RegionBitmap read(DataInputStream in) throws IOException {
+        RegionBitmap bitmap = new RegionBitmap();
+        int tileCount = in.readInt();
+        for (int i = 0; i < tileCount; i++) {
+            long key = in.readLong();
+            long[] tile = new long[TILE_LONGS];
+            for (int j = 0; j < TILE_LONGS; j++) {
+                tile[j] = in.readLong();
+            }
+            bitmap.tiles.put(key, tile);
+        }
+        return bitmap;
+    }
+}
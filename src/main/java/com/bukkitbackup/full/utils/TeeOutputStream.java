@@ -0,0 +1,261 @@
+package com.bukkitbackup.full.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes to one stream, and sends a copy of everything written to any number
+ * of {@link Branch}es. Each branch has its own bounded buffer, and is written
+ * by its own thread, so the main stream never waits for a branch. A branch
+ * which fails, or falls too far behind, is dropped and its file removed.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class TeeOutputStream extends OutputStream {
+
+    private final OutputStream primary;
+    private final List<Branch> branches;
+
+    /**
+     * @param primary The stream which must be written.
+     * @param branches The copies, each run on its own thread.
+     */
+    public TeeOutputStream(OutputStream primary, List<Branch> branches) {
+        this.primary = primary;
+        this.branches = new ArrayList<Branch>(branches);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        primary.write(b, off, len);
+        for (Branch branch : branches) {
+            branch.offer(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        primary.flush();
+    }
+
+    /**
+     * Close the main stream, and let each branch finish writing what it has
+     * buffered. A branch is only complete if the main stream closed cleanly.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean closed = false;
+        try {
+            primary.close();
+            closed = true;
+        } finally {
+            for (Branch branch : branches) {
+                if (!closed) {
+                    branch.fail("the archive was not finished");
+                }
+                branch.end();
+            }
+        }
+    }
+
+    /**
+     * A copy of a stream, written to a file. Data is buffered in memory up to
+     * a limit, and written by whichever thread runs the branch. Subclasses
+     * can write the copy somewhere else, or handle falling behind another way.
+     */
+    public static class Branch implements Runnable {
+
+        private static final byte[] END = new byte[0];
+
+        private final File file;
+        private final long bufferLimit;
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        private final AtomicLong buffered = new AtomicLong();
+        private volatile boolean behind;
+        private volatile String failure;
+        private long written;
+
+        /**
+         * @param file The file to write the copy to.
+         * @param bufferLimit The most bytes to hold while waiting to be
+         * written.
+         */
+        public Branch(File file, long bufferLimit) {
+            this.file = file;
+            this.bufferLimit = bufferLimit;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return Where the copy is written, for messages.
+         */
+        public String describe() {
+            return file.getPath();
+        }
+
+        /**
+         * @return Why the copy failed, or null if it did not.
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return True if data stopped being buffered for this branch, after
+         * it fell behind.
+         */
+        protected boolean isBehind() {
+            return behind;
+        }
+
+        void offer(byte[] b, int off, int len) {
+            if (failure != null || behind) {
+                return;
+            }
+            if (buffered.get() + len > bufferLimit) {
+                behind = true;
+                fellBehind();
+                return;
+            }
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            buffered.addAndGet(len);
+            queue.add(chunk);
+        }
+
+        /**
+         * Mark the copy as failed. It is thrown away when the stream closes.
+         *
+         * @param reason Why it failed.
+         */
+        protected void fail(String reason) {
+            if (failure == null) {
+                failure = (reason != null) ? reason : "unknown error";
+            }
+        }
+
+        /**
+         * Called when the buffer is full. By default the copy is dropped.
+         * Nothing more is buffered for the branch either way.
+         */
+        protected void fellBehind() {
+            fail("it fell too far behind");
+        }
+
+        /**
+         * @return The stream to write the copy to.
+         * @throws IOException If it cannot be opened.
+         */
+        protected OutputStream openTarget() throws IOException {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create " + parent);
+            }
+            return new BufferedOutputStream(new FileOutputStream(file), FileUtils.BUFFER_SIZE * 8);
+        }
+
+        /**
+         * Called once everything buffered has been written, before the copy
+         * is closed. A branch which fell behind can finish the copy here.
+         *
+         * @param out The copy.
+         * @param bytesWritten How much was written from the buffer.
+         * @throws IOException If the copy cannot be finished.
+         */
+        protected void finishTarget(OutputStream out, long bytesWritten) throws IOException {
+        }
+
+        /**
+         * Called once the copy has been closed, and is complete.
+         */
+        protected void completed() {
+        }
+
+        /**
+         * Close a copy which failed while it was open. The copy is discarded
+         * afterwards, so it must not be made complete.
+         *
+         * @param out The copy.
+         */
+        protected void abandonTarget(OutputStream out) {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                // Discarded anyway.
+            }
+        }
+
+        /**
+         * Remove a failed copy.
+         */
+        protected void discard() {
+            file.delete();
+        }
+
+        void end() {
+            queue.add(END);
+        }
+
+        /**
+         * Write the copy, until the stream is closed. Data for a failed copy
+         * is thrown away, to free the buffer.
+         */
+        public void run() {
+            OutputStream out = null;
+            try {
+                out = openTarget();
+                byte[] chunk;
+                while ((chunk = queue.take()) != END) {
+                    buffered.addAndGet(-chunk.length);
+                    if (failure == null) {
+                        out.write(chunk);
+                        written += chunk.length;
+                    }
+                }
+                if (failure == null) {
+                    finishTarget(out, written);
+                }
+                if (failure != null) {
+                    throw new IOException(failure);
+                }
+                out.close();
+                out = null;
+                completed();
+            } catch (IOException ioe) {
+                fail(ioe.getMessage());
+            } catch (InterruptedException ie) {
+                fail("it was interrupted");
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException re) {
+                fail(re.toString());
+            } finally {
+                // Still open only if the copy failed.
+                if (out != null) {
+                    abandonTarget(out);
+                }
+                if (failure != null) {
+                    queue.clear();
+                    discard();
+                }
+            }
+        }
+    }
+}
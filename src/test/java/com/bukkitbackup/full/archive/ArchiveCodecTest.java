@@ -0,0 +1,87 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Checks that every built in codec reads back what it wrote, and that
+ * archives are found by their extension.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class ArchiveCodecTest {
+
+    private static final String[] BUILT_IN = {"zip", "tar", "tar.gz", "tar.lz4", "tar.zst"};
+
+    private static byte[] content(int length, long seed) {
+        byte[] data = new byte[length];
+        Random random = new Random(seed);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) random.nextInt(16); // Compressible, as most files are.
+        }
+        return data;
+    }
+
+    private static byte[] readEntry(ArchiveInputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+    @Test
+    public void everyCodecReadsBackWhatItWrote() throws IOException {
+        byte[] region = content(700 * 1024, 1L);
+        byte[] level = content(3000, 2L);
+        for (String name : BUILT_IN) {
+            ArchiveCodec codec = ArchiveCodec.forName(name);
+            assertTrue("Missing codec: " + name, codec != null);
+            for (int compression : new int[]{-1, 1, 9}) {
+                ByteArrayOutputStream archive = new ByteArrayOutputStream();
+                ArchiveOutputStream out = codec.openWriter(archive, compression, 4);
+                out.putNextEntry("world/region/r.0.0.mca", 1500000000000L, region.length, true);
+                out.write(region);
+                out.closeEntry();
+                out.putNextEntry("world/level.dat", 1500000002000L, level.length, true);
+                out.write(level);
+                out.closeEntry();
+                out.close();
+
+                ArchiveInputStream in = codec.openReader(new ByteArrayInputStream(archive.toByteArray()));
+                try {
+                    ArchiveEntry entry = in.getNextEntry();
+                    assertEquals("world/region/r.0.0.mca", entry.getName());
+                    assertArrayEquals(region, readEntry(in));
+                    entry = in.getNextEntry();
+                    assertEquals("world/level.dat", entry.getName());
+                    assertEquals(1500000002000L, entry.getTime());
+                    assertArrayEquals(level, readEntry(in));
+                    assertEquals(null, in.getNextEntry());
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsCodecsByExtension() {
+        assertEquals("tar.zst", ArchiveCodec.forFile("2026-10-19-12-00-00.tar.zst").getName());
+        assertEquals("tar.lz4", ArchiveCodec.forFile("2026-10-19-12-00-00.tar.lz4").getName());
+        assertEquals("tar", ArchiveCodec.forFile("2026-10-19-12-00-00.tar").getName());
+        assertEquals("2026-10-19-12-00-00", ArchiveCodec.stripExtension("2026-10-19-12-00-00.tar.zst"));
+    }
+}
@@ -0,0 +1,172 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Compares the archive codecs on real backups, to choose "archiveformat",
+ * "coldformat" and the format of each tier. Each codec archives the sample
+ * folders at a few levels. JMH reports how long each took, and how small
+ * each archive was is printed as it starts.
+ *
+ * The samples are read into memory first, so only the codec is measured,
+ * and the archives are counted, not written. Run it with a copy of a world
+ * or plugin folder, while the server is stopped:
+ *
+ * mvn -Pbenchmark test-compile exec:exec -Dbackup.samples=world-copy
+ *
+ * Several folders can be given, separated as on a class path.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CodecBenchmark {
+
+    // More than this is unlikely to fit in memory beside the JVM.
+    private static final long MAX_SAMPLE_BYTES = 1024L * 1024L * 1024L;
+
+    @Param({"zip", "tar", "tar.gz", "tar.lz4", "tar.zst"})
+    public String codec;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+    private ArchiveFormat format;
+
+    @Setup
+    public void setUp() throws IOException {
+        String folders = System.getProperty("backup.samples", "");
+        if (folders.isEmpty()) {
+            throw new IOException("Set -Dbackup.samples to the folders to archive.");
+        }
+        long sampleBytes = 0L;
+        for (String folderName : folders.split(File.pathSeparator)) {
+            File folder = new File(folderName);
+            if (!folder.isDirectory()) {
+                throw new IOException("Not a folder: " + folder.getPath());
+            }
+            sampleBytes += readSamples(folder, folder.getName() + "/");
+            if (sampleBytes > MAX_SAMPLE_BYTES) {
+                throw new IOException("The samples are over 1 GB, use a smaller folder.");
+            }
+        }
+        if (sampleBytes == 0) {
+            throw new IOException("The folders have nothing in them.");
+        }
+
+        ArchiveCodec archiveCodec = ArchiveCodec.forName(codec);
+        if (archiveCodec == null) {
+            throw new IOException("Not available on this platform: " + codec);
+        }
+        format = new ArchiveFormat(archiveCodec, level, Runtime.getRuntime().availableProcessors());
+        System.out.println(String.format("%s: %d file(s), %.1f MB, archived to %.1f%%.", format, samples.size(), sampleBytes / 1048576D,
+                archive() * 100D / sampleBytes));
+    }
+
+    /**
+     * @return The length of the archive of the samples.
+     */
+    @Benchmark
+    public long archive() throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        ArchiveOutputStream out = format.open(counter);
+        try {
+            for (Sample sample : samples) {
+                out.putNextEntry(sample.name, sample.modified, sample.content.length, true);
+                out.write(sample.content);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return counter.count;
+    }
+
+    /**
+     * Read every file in a folder into memory.
+     *
+     * @return How many bytes were read.
+     */
+    private long readSamples(File folder, String path) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + folder.getPath());
+        }
+        long total = 0L;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                total += readSamples(file, path + file.getName() + "/");
+                continue;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            samples.add(new Sample(path + file.getName(), file.lastModified(), content.toByteArray()));
+            total += content.size();
+        }
+        return total;
+    }
+
+    private static class Sample {
+
+        final String name;
+        final long modified;
+        final byte[] content;
+
+        Sample(String name, long modified, byte[] content) {
+            this.name = name;
+            this.modified = modified;
+            this.content = content;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        long count = 0L;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.bukkitbackup.full.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Checks how written data is cut into parts, and that a resumed upload
+ * only sends the parts not already stored.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class MultipartOutputStreamTest {
+
+    private ExecutorService uploaders;
+
+    @Before
+    public void setUp() {
+        uploaders = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        uploaders.shutdownNow();
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void cutsWritesIntoParts() throws IOException {
+        MemoryUpload upload = new MemoryUpload(Collections.<Integer>emptySet(), 0);
+        MultipartOutputStream out = new MultipartOutputStream(upload, 4, uploaders, 2);
+        byte[] data = sequence(10);
+        out.write(data, 0, 3);
+        out.write(data[3]);
+        out.write(data, 4, 6);
+        out.close();
+
+        assertEquals(3, upload.completedParts);
+        assertArrayEquals(new byte[]{0, 1, 2, 3}, upload.parts.get(1));
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, upload.parts.get(2));
+        assertArrayEquals(new byte[]{8, 9}, upload.parts.get(3));
+    }
+
+    @Test
+    public void resumeSkipsStoredParts() throws IOException {
+        MemoryUpload upload = new MemoryUpload(new HashSet<Integer>(Arrays.asList(1, 3)), 0);
+        MultipartOutputStream out = new MultipartOutputStream(upload, 4, uploaders, 2);
+        out.write(sequence(16));
+        out.close();
+
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 4)), upload.parts.keySet());
+        assertEquals(4, upload.completedParts);
+    }
+
+    @Test
+    public void emptyObjectStillHasOnePart() throws IOException {
+        MemoryUpload upload = new MemoryUpload(Collections.<Integer>emptySet(), 0);
+        new MultipartOutputStream(upload, 4, uploaders, 2).close();
+
+        assertEquals(1, upload.completedParts);
+        assertEquals(0, upload.parts.get(1).length);
+    }
+
+    @Test
+    public void failedPartIsRetried() throws IOException {
+        MemoryUpload upload = new MemoryUpload(Collections.<Integer>emptySet(), 1);
+        MultipartOutputStream out = new MultipartOutputStream(upload, 4, uploaders, 2);
+        out.write(sequence(4));
+        out.close();
+
+        assertEquals(2, upload.attempts.get());
+        assertEquals(1, upload.completedParts);
+    }
+
+    @Test
+    public void abandonedUploadIsNotCompleted() throws IOException {
+        MemoryUpload upload = new MemoryUpload(Collections.<Integer>emptySet(), 0);
+        MultipartOutputStream out = new MultipartOutputStream(upload, 4, uploaders, 2);
+        out.write(sequence(6));
+        out.abandon();
+        out.close();
+
+        assertEquals(-1, upload.completedParts);
+        assertFalse(upload.parts.containsKey(2));
+        assertTrue(upload.parts.size() <= 1);
+    }
+
+    /**
+     * Keeps the parts in memory, failing the first few part uploads.
+     */
+    private static class MemoryUpload implements MultipartUpload {
+
+        final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+        final AtomicInteger attempts = new AtomicInteger();
+        final Set<Integer> storedParts;
+        final int failures;
+        volatile int completedParts = -1;
+
+        MemoryUpload(Set<Integer> storedParts, int failures) {
+            this.storedParts = storedParts;
+            this.failures = failures;
+        }
+
+        public String getKey() {
+            return "key";
+        }
+
+        public String getUploadId() {
+            return "upload";
+        }
+
+        public Set<Integer> getStoredParts() {
+            return storedParts;
+        }
+
+        public void uploadPart(int partNumber, byte[] data, int length) throws IOException {
+            if (attempts.incrementAndGet() <= failures) {
+                throw new IOException("Failed on purpose.");
+            }
+            parts.put(partNumber, Arrays.copyOf(data, length));
+        }
+
+        public void complete(int partCount) {
+            completedParts = partCount;
+        }
+
+        public void abort() {
+        }
+    }
+}
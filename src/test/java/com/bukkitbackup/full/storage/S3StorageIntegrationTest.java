@@ -0,0 +1,114 @@
+package com.bukkitbackup.full.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Uploads, resumes, lists and deletes against a real S3 store, such as a
+ * local MinIO. It is skipped unless "s3.endpoint" is set:
+ *
+ * mvn test -Ds3.endpoint=http://127.0.0.1:9000 -Ds3.bucket=backup-test
+ *
+ * The bucket must already exist. The keys default to MinIO's own, and can be
+ * set with "s3.accesskey" and "s3.secretkey", and the region with
+ * "s3.region".
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class S3StorageIntegrationTest {
+
+    // S3 refuses parts under 5 MB, apart from the last.
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private S3Storage storage;
+    private ExecutorService uploaders;
+    private String prefix;
+
+    @Before
+    public void setUp() throws IOException {
+        String endpoint = System.getProperty("s3.endpoint");
+        Assume.assumeTrue(endpoint != null && !endpoint.trim().isEmpty());
+        storage = new S3Storage(endpoint, System.getProperty("s3.region", "us-east-1"), System.getProperty("s3.bucket", "backup-test"),
+                System.getProperty("s3.accesskey", "minioadmin"), System.getProperty("s3.secretkey", "minioadmin"), true);
+        uploaders = Executors.newFixedThreadPool(2);
+        prefix = "backup-test-" + System.currentTimeMillis() + "/";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (storage == null) {
+            return;
+        }
+        uploaders.shutdownNow();
+        for (RemoteObject object : storage.list(prefix)) {
+            storage.delete(object.getKey());
+        }
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void uploadsListsAndDeletes() throws IOException {
+        String key = prefix + "world name/region r.0.0.zip";
+        MultipartOutputStream out = new MultipartOutputStream(storage.startUpload(key), PART_SIZE, uploaders, 3);
+        out.write(data(PART_SIZE * 2 + 1000));
+        out.close();
+
+        List<RemoteObject> objects = storage.list(prefix);
+        assertEquals(1, objects.size());
+        assertEquals(key, objects.get(0).getKey());
+        assertEquals(PART_SIZE * 2 + 1000, objects.get(0).getSize());
+        assertTrue(objects.get(0).getLastModified() > 0L);
+
+        storage.delete(key);
+        assertTrue(storage.list(prefix).isEmpty());
+    }
+
+    @Test
+    public void resumesFromStoredParts() throws IOException {
+        String key = prefix + "resumed.zip";
+        byte[] data = data(PART_SIZE * 2 + 10);
+        MultipartUpload first = storage.startUpload(key);
+        first.uploadPart(1, data, PART_SIZE);
+
+        MultipartUpload resumed = storage.resumeUpload(key, first.getUploadId());
+        assertEquals(new HashSet<Integer>(Arrays.asList(1)), resumed.getStoredParts());
+        MultipartOutputStream out = new MultipartOutputStream(resumed, PART_SIZE, uploaders, 3);
+        out.write(data);
+        out.close();
+
+        List<RemoteObject> objects = storage.list(prefix);
+        assertEquals(1, objects.size());
+        assertEquals(data.length, objects.get(0).getSize());
+    }
+
+    @Test
+    public void abortedUploadLeavesNothing() throws IOException {
+        String key = prefix + "aborted.zip";
+        MultipartUpload upload = storage.startUpload(key);
+        upload.uploadPart(1, data(10), 10);
+        upload.abort();
+
+        assertTrue(storage.list(prefix).isEmpty());
+    }
+}
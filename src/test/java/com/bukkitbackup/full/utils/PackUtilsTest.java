@@ -0,0 +1,156 @@
+package com.bukkitbackup.full.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Checks that packs read back as they were written, and that damaged packs
+ * and files deleted while packing are dealt with.
+ *
+ * @author Samuel98
+ * @author info@samuel98.com
+ */
+public class PackUtilsTest {
+
+    private File testFolder;
+    private File sourceFolder;
+    private File packFile;
+    private File restoreFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        testFolder = Files.createTempDirectory("packtest").toFile();
+        sourceFolder = new File(testFolder, "source");
+        packFile = new File(testFolder, "plugins" + PackUtils.PACK_EXTENSION);
+        restoreFolder = new File(testFolder, "restore");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDir(testFolder);
+    }
+
+    private File writeFile(String path, byte[] content, long modified) throws IOException {
+        File file = new File(sourceFolder, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content);
+        file.setLastModified(modified);
+        return file;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private byte[] restored(String path) throws IOException {
+        return Files.readAllBytes(new File(restoreFolder, path).toPath());
+    }
+
+    @Test
+    public void readsBackWhatWasPacked() throws IOException {
+        // Over one block, so files span blocks.
+        byte[] large = randomBytes(5 * 1024 * 1024, 1L);
+        byte[] small = text(1000);
+        writeFile("dynmap/tiles/0_0.png", large, 1500000000000L);
+        writeFile("dynmap/configuration.txt", small, 1500000001000L);
+        writeFile("Essentials/userdata/empty.yml", new byte[0], 1500000002000L);
+
+        assertEquals(3, PackUtils.packDir(sourceFolder, packFile, null));
+        assertEquals(3, PackUtils.unpack(packFile, restoreFolder));
+
+        assertArrayEquals(large, restored("dynmap/tiles/0_0.png"));
+        assertArrayEquals(small, restored("dynmap/configuration.txt"));
+        assertArrayEquals(new byte[0], restored("Essentials/userdata/empty.yml"));
+        assertEquals(1500000001000L, new File(restoreFolder, "dynmap/configuration.txt").lastModified());
+    }
+
+    @Test(timeout = 10000L)
+    public void truncatedBlockFails() throws IOException {
+        writeFile("config.yml", text(256 * 1024), 1500000000000L);
+        PackUtils.packDir(sourceFolder, packFile, null);
+
+        // Claim half the compressed length for the first block, so it ends
+        // before the block does.
+        RandomAccessFile pack = new RandomAccessFile(packFile, "rw");
+        try {
+            pack.seek(8L);
+            int compressedLength = pack.readInt();
+            pack.seek(8L);
+            pack.writeInt(compressedLength / 2);
+        } finally {
+            pack.close();
+        }
+
+        try {
+            PackUtils.unpack(packFile, restoreFolder);
+            fail("A truncated block should fail.");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage(), ioe.getMessage().contains("Truncated block"));
+        }
+    }
+
+    @Test
+    public void fileDeletedWhilePackingIsLeftOut() throws IOException {
+        byte[] first = text(3000);
+        byte[] second = randomBytes(2000, 2L);
+        byte[] third = text(5000);
+        writeFile("a.txt", first, 1500000000000L);
+        writeFile("b.bin", second, 1500000000000L);
+        writeFile("c.txt", third, 1500000000000L);
+
+        // Delete the first file seen once the second is found, so it is gone
+        // after the walk but before it is read.
+        final File[] seen = new File[1];
+        int packed = PackUtils.packDir(sourceFolder, packFile, new FileFilter() {
+            public boolean accept(File file) {
+                if (file.isFile()) {
+                    if (seen[0] == null) {
+                        seen[0] = file;
+                    } else if (seen[0].exists()) {
+                        assertTrue(seen[0].delete());
+                    }
+                }
+                return true;
+            }
+        });
+
+        assertEquals(2, packed);
+        assertEquals(2, PackUtils.unpack(packFile, restoreFolder));
+        String deleted = seen[0].getName();
+        assertFalse(new File(restoreFolder, deleted).exists());
+        if (!deleted.equals("a.txt")) {
+            assertArrayEquals(first, restored("a.txt"));
+        }
+        if (!deleted.equals("b.bin")) {
+            assertArrayEquals(second, restored("b.bin"));
+        }
+        if (!deleted.equals("c.txt")) {
+            assertArrayEquals(third, restored("c.txt"));
+        }
+    }
+}